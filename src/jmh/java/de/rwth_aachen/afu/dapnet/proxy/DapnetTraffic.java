@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.util.Properties;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Workloads used by the relay benchmarks. The templates are copied into a new
+ * buffer for each operation, like a socket read would do.
+ *
+ * @author Philipp Thiel
+ */
+final class DapnetTraffic {
+
+	/**
+	 * Number of paging messages in a burst.
+	 */
+	static final int BURST = 64;
+	static final ByteBuf WELCOME = template("[RasPager v1.0]\n");
+	static final ByteBuf TIME_SYNC = template("2:1A2B\n");
+	static final ByteBuf TIME_SYNC_RESPONSE = template("2:1A2B\n+\n");
+	static final ByteBuf KEEP_ALIVE_RESPONSE = template("2:PING\n+\n");
+	static final ByteBuf PAGE = template(page(0));
+	static final ByteBuf ACK = template("#00 +\n");
+	static final ByteBuf PAGING_BURST = template(pagingBurst());
+	static final ByteBuf ACK_BURST = template(ackBurst());
+
+	private DapnetTraffic() {
+	}
+
+	/**
+	 * Copies a template into a new buffer.
+	 *
+	 * @param alloc    Allocator to use
+	 * @param template Template to copy
+	 * @return New buffer, must be released by the caller.
+	 */
+	static ByteBuf copy(ByteBufAllocator alloc, ByteBuf template) {
+		return alloc.directBuffer(template.readableBytes()).writeBytes(template, template.readerIndex(),
+				template.readableBytes());
+	}
+
+	/**
+	 * Creates connection settings for the benchmarks.
+	 *
+	 * @param frontendPort Port of the frontend server
+	 * @param backendPort  Port of the backend server
+	 * @param batching     Whether to use the batching relay mode
+	 * @return Connection settings
+	 */
+	static ConnectionSettings settings(int frontendPort, int backendPort, boolean batching) {
+		Properties props = new Properties();
+		props.setProperty("profileName", "benchmark");
+		props.setProperty("reconnectSleepTime", "0");
+		props.setProperty("frontend.name", "bench");
+		props.setProperty("frontend.key", "secret");
+		props.setProperty("frontend.host", "127.0.0.1");
+		props.setProperty("frontend.port", Integer.toString(frontendPort));
+		props.setProperty("backend.host", "127.0.0.1");
+		props.setProperty("backend.port", Integer.toString(backendPort));
+		props.setProperty("backend.timeout", "30000");
+		props.setProperty("relay.batching", Boolean.toString(batching));
+
+		return new ConnectionSettings(props);
+	}
+
+	private static String page(int seq) {
+		return String.format("#%02X 6:1:%X:3:%d:DAPNET benchmark message %d\n", seq, 0x7C8 + seq, seq % 4, seq);
+	}
+
+	private static String pagingBurst() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < BURST; ++i) {
+			sb.append(page(i));
+		}
+
+		return sb.toString();
+	}
+
+	private static String ackBurst() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < BURST; ++i) {
+			sb.append(String.format("#%02X +\n", i));
+		}
+
+		return sb.toString();
+	}
+
+	private static ByteBuf template(String lines) {
+		return Unpooled.unreleasableBuffer(Unpooled.copiedBuffer(LineBuffers.ascii(lines)).asReadOnly());
+	}
+
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+
+/**
+ * Benchmarks the frontend and backend pipelines on embedded channels, without
+ * any network I/O. The frontend pipeline is created by the
+ * {@link FrontendInitializer}, its {@link FrontendHandler} connects the backend
+ * pipeline using the embedded transport. So each line passes the acknowledgement
+ * tracking, the relay write listeners and the batching logic like on a socket,
+ * but everything runs on the benchmark thread.
+ *
+ * Run with {@code -prof gc} to get the allocations per operation
+ * ({@code gc.alloc.rate.norm}). The page round trip is also reported in sample
+ * time mode, which gives the latency percentiles.
+ *
+ * @author Philipp Thiel
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark {
+
+	@Param({ "false", "true" })
+	public boolean batching;
+
+	private EmbeddedChannel frontend;
+	private EmbeddedChannel backend;
+
+	/**
+	 * Lines and bytes relayed, reported per second.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Traffic {
+
+		public long lines;
+		public long bytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			lines = 0;
+			bytes = 0;
+		}
+
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		ConnectionSettings settings = DapnetTraffic.settings(0, 0, batching);
+		ConnectionMetrics metrics = new ConnectionMetrics(settings.getProfileName());
+
+		frontend = new EmbeddedChannel(false, false);
+		new FrontendInitializer(settings, Transport.EMBEDDED, metrics, null, null, null,
+				new WelcomeMessageEncoder(settings.getFrontendName(), settings.getFrontendKey()),
+				ImmediateEventExecutor.INSTANCE.newPromise()).initChannel(frontend);
+		frontend.register();
+
+		// The backend is connected by a task on the event loop of the frontend
+		frontend.runPendingTasks();
+		backend = (EmbeddedChannel) frontend.pipeline().get(FrontendHandler.class).getOutboundChannel();
+		if (backend == null || !backend.isActive()) {
+			throw new IllegalStateException("Backend not connected.");
+		}
+
+		// Welcome and time sync, the backend handler is in its idle state afterwards
+		backend.writeInbound(DapnetTraffic.copy(backend.alloc(), DapnetTraffic.WELCOME));
+		relayToBackend(DapnetTraffic.TIME_SYNC);
+		relayToFrontend(DapnetTraffic.TIME_SYNC_RESPONSE);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		frontend.finishAndReleaseAll();
+		backend.finishAndReleaseAll();
+	}
+
+	@Benchmark
+	public long timeSync(Traffic traffic) {
+		long result = relayToBackend(DapnetTraffic.TIME_SYNC);
+		return count(traffic, result + relayToFrontend(DapnetTraffic.TIME_SYNC_RESPONSE));
+	}
+
+	@Benchmark
+	public long pagingBurst(Traffic traffic) {
+		// The pages are tracked until the acknowledgements have been relayed
+		long result = relayToBackend(DapnetTraffic.PAGING_BURST);
+		return count(traffic, result + relayToFrontend(DapnetTraffic.ACK_BURST));
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public long pageRoundTrip() {
+		return relayToBackend(DapnetTraffic.PAGE) + relayToFrontend(DapnetTraffic.ACK);
+	}
+
+	@Benchmark
+	public long backendKeepAlive(Traffic traffic) {
+		// Request is written to the backend, the response is not relayed
+		backend.pipeline().get(BackendHandler.class).sendKeepAlive(backend.pipeline().context(BackendHandler.class));
+		long lines = drain(backend, 0);
+		return count(traffic, lines + relayToFrontend(DapnetTraffic.KEEP_ALIVE_RESPONSE));
+	}
+
+	@Benchmark
+	public long welcome(Traffic traffic) {
+		EmbeddedChannel ch = new EmbeddedChannel(new WelcomeMessageEncoder("bench", "secret"));
+		ch.writeOutbound(DapnetTraffic.copy(ch.alloc(), DapnetTraffic.WELCOME));
+		long bytes = drain(ch, 0);
+		ch.finishAndReleaseAll();
+		return count(traffic, bytes);
+	}
+
+	/**
+	 * Reads the given lines from the frontend, they are relayed to the backend by
+	 * the {@link FrontendHandler}.
+	 */
+	private long relayToBackend(ByteBuf template) {
+		frontend.writeInbound(DapnetTraffic.copy(frontend.alloc(), template));
+		frontend.pipeline().fireChannelReadComplete();
+		return drain(backend, 0);
+	}
+
+	/**
+	 * Reads the given lines from the backend, they are relayed to the frontend by
+	 * the {@link BackendHandler}.
+	 */
+	private long relayToFrontend(ByteBuf template) {
+		backend.writeInbound(DapnetTraffic.copy(backend.alloc(), template));
+		return drain(frontend, 0);
+	}
+
+	/**
+	 * Releases all outbound messages of a channel.
+	 *
+	 * @return Number of lines in the upper 32 bits, number of bytes in the lower
+	 *         32 bits, added to the given value.
+	 */
+	private static long drain(EmbeddedChannel channel, long result) {
+		// Consolidated flushes are executed as tasks
+		channel.runPendingTasks();
+
+		Object msg;
+		while ((msg = channel.readOutbound()) != null) {
+			ByteBuf buf = (ByteBuf) msg;
+			result += (1L << 32) + buf.readableBytes();
+			ReferenceCountUtil.release(msg);
+		}
+
+		return result;
+	}
+
+	private static long count(Traffic traffic, long result) {
+		traffic.lines += result >>> 32;
+		traffic.bytes += result & 0xFFFFFFFFL;
+		return result;
+	}
+
+}
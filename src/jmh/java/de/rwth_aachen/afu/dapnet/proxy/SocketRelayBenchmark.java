@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.LineBasedFrameDecoder;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/**
+ * Benchmarks a proxy connection over loopback sockets. A fake DAPNET core
+ * server sends paging messages which are relayed to a fake raspager server,
+ * the acknowledgements are relayed back. The proxy connection is set up like
+ * the {@link ProxyManager} does, the fake servers run on their own event loop.
+ *
+ * The page round trip is reported in sample time mode, which gives the latency
+ * percentiles. Note that {@code -prof gc} only covers the benchmark thread, the
+ * allocations of the event loops are measured by {@link PipelineBenchmark}.
+ *
+ * @author Philipp Thiel
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SocketRelayBenchmark {
+
+	@Param({ "NIO", "EPOLL" })
+	public String transport;
+
+	@Param({ "false", "true" })
+	public boolean batching;
+
+	private final Semaphore acks = new Semaphore(0);
+	private final CountDownLatch welcome = new CountDownLatch(1);
+	private EventLoopGroup serverGroup;
+	private EventLoopGroup proxyGroup;
+	private volatile Channel core;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		Transport t = Transport.valueOf(transport);
+		serverGroup = new NioEventLoopGroup(1, new DefaultThreadFactory("bench-server"));
+		proxyGroup = t.newEventLoopGroup(1, new DefaultThreadFactory("bench-proxy"));
+
+		Channel coreServer = startServer(new CoreHandler());
+		Channel raspagerServer = startServer(new RaspagerHandler());
+		ConnectionSettings settings = DapnetTraffic.settings(port(coreServer), port(raspagerServer), batching);
+
+		Bootstrap b = new Bootstrap();
+		b.group(proxyGroup);
+		b.handler(new FrontendInitializer(settings, t, new ConnectionMetrics(settings.getProfileName()), null,
+				null, null, new WelcomeMessageEncoder(settings.getFrontendName(), settings.getFrontendKey()),
+				proxyGroup.next().newPromise()));
+		t.configure(b, settings);
+		b.connect(settings.getFrontendAddress()).sync();
+
+		if (!welcome.await(10, TimeUnit.SECONDS)) {
+			throw new IllegalStateException("Proxy connection not established.");
+		}
+
+		core.writeAndFlush(DapnetTraffic.copy(core.alloc(), DapnetTraffic.TIME_SYNC)).sync();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		proxyGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+		serverGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void pageRoundTrip() throws InterruptedException {
+		core.writeAndFlush(DapnetTraffic.copy(core.alloc(), DapnetTraffic.PAGE));
+		acks.acquire();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@OperationsPerInvocation(DapnetTraffic.BURST)
+	public void pagingBurst() throws InterruptedException {
+		core.writeAndFlush(DapnetTraffic.copy(core.alloc(), DapnetTraffic.PAGING_BURST));
+		acks.acquire(DapnetTraffic.BURST);
+	}
+
+	private Channel startServer(SimpleChannelInboundHandler<ByteBuf> handler) throws InterruptedException {
+		ServerBootstrap b = new ServerBootstrap();
+		b.group(serverGroup);
+		b.channel(NioServerSocketChannel.class);
+		b.childHandler(new ChannelInitializer<Channel>() {
+			@Override
+			protected void initChannel(Channel ch) throws Exception {
+				ch.pipeline().addLast(new LineBasedFrameDecoder(1024), handler);
+			}
+		});
+
+		return b.bind("127.0.0.1", 0).sync().channel();
+	}
+
+	private static int port(Channel server) {
+		return ((InetSocketAddress) server.localAddress()).getPort();
+	}
+
+	/**
+	 * Fake DAPNET core server, counts the acknowledgements.
+	 */
+	private final class CoreHandler extends SimpleChannelInboundHandler<ByteBuf> {
+
+		@Override
+		public boolean isSharable() {
+			return true;
+		}
+
+		@Override
+		public void channelActive(ChannelHandlerContext ctx) throws Exception {
+			core = ctx.channel();
+		}
+
+		@Override
+		protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) throws Exception {
+			if (msg.readableBytes() > 0) {
+				byte first = msg.getByte(msg.readerIndex());
+				if (first == '#') {
+					acks.release();
+				} else if (first == '[') {
+					welcome.countDown();
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Fake raspager server, acknowledges paging messages and answers time sync
+	 * and keep alive requests.
+	 */
+	private static final class RaspagerHandler extends SimpleChannelInboundHandler<ByteBuf> {
+
+		private static final byte[] ACK = LineBuffers.ascii(" +\n");
+		private static final byte[] RESPONSE = LineBuffers.ascii("\n+\n");
+
+		@Override
+		public boolean isSharable() {
+			return true;
+		}
+
+		@Override
+		public void channelActive(ChannelHandlerContext ctx) throws Exception {
+			ctx.writeAndFlush(DapnetTraffic.copy(ctx.alloc(), DapnetTraffic.WELCOME));
+		}
+
+		@Override
+		protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) throws Exception {
+			if (msg.readableBytes() < 3) {
+				return;
+			}
+
+			ByteBuf reply = ctx.alloc().directBuffer();
+			if (msg.getByte(msg.readerIndex()) == '#') {
+				// #NN 6:... is acknowledged with #NN +
+				reply.writeBytes(msg, msg.readerIndex(), 3).writeBytes(ACK);
+			} else {
+				reply.writeBytes(msg).writeBytes(RESPONSE);
+			}
+
+			ctx.write(reply);
+		}
+
+		@Override
+		public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+			ctx.flush();
+		}
+
+	}
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+
+/**
+ * Compares the welcome message rewriting of the {@link WelcomeMessageEncoder}
+ * with the former implementation, which decoded the line, matched it against a
+ * regular expression and formatted the reply with {@link String#format}. Both
+ * are run on the welcome message of the RasPager firmware, a welcome message
+ * with a long version string and a line that is not a welcome message.
+ *
+ * Run with {@code -prof gc} to get the allocations per operation
+ * ({@code gc.alloc.rate.norm}).
+ *
+ * @author Philipp Thiel
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WelcomeBenchmark {
+
+	private static final Pattern WELCOME_PATTERN = Pattern
+			.compile("\\[([/\\p{Alnum}]+) v?(\\d[\\d\\.]+[\\p{Graph}]*)\\]");
+	private static final String AUTH_NAME = "bench";
+	private static final String AUTH_KEY = "secret";
+
+	@Param({ "[RasPager v1.0]", "[RasPager v1.0.0-SCP-#123456]", "[Test/RPC 1.0" })
+	public String line;
+
+	private final ByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+	private final WelcomeMessageEncoder encoder = new WelcomeMessageEncoder(AUTH_NAME, AUTH_KEY);
+	private ByteBuf frame;
+
+	@Setup
+	public void setup() {
+		frame = alloc.directBuffer().writeBytes(LineBuffers.ascii(line + "\n"));
+	}
+
+	@TearDown
+	public void tearDown() {
+		frame.release();
+	}
+
+	@Benchmark
+	public int regex() {
+		return release(rewriteRegex(frame, alloc));
+	}
+
+	@Benchmark
+	public int parser() {
+		return release(encoder.rewrite(frame, alloc));
+	}
+
+	/**
+	 * The former implementation of the welcome message rewriting.
+	 */
+	private static ByteBuf rewriteRegex(ByteBuf msg, ByteBufAllocator alloc) {
+		int length = LineBuffers.contentLength(msg);
+		if (length > 0 && msg.getByte(msg.readerIndex()) == '[') {
+			String line = msg.toString(msg.readerIndex(), length, StandardCharsets.US_ASCII);
+			Matcher m = WELCOME_PATTERN.matcher(line);
+			if (m.matches()) {
+				String response = String.format("[%s v%s %s %s]\n", m.group(1), m.group(2), AUTH_NAME, AUTH_KEY);
+				return ByteBufUtil.writeAscii(alloc, response);
+			}
+		}
+
+		return null;
+	}
+
+	private static int release(ByteBuf reply) {
+		if (reply == null) {
+			return 0;
+		}
+
+		int length = reply.readableBytes();
+		reply.release();
+		return length;
+	}
+
+}
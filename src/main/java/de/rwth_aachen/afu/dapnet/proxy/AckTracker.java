@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.util.Arrays;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.EventLoop;
+
+/**
+ * This class tracks the acknowledgements of the sequenced ({@code #NN})
+ * messages of a frontend session. The frontend server numbers its messages
+ * with a hexadecimal sequence number from {@code 00} to {@code FF} and the
+ * backend server acknowledges each message with {@code #NN +}. The state of
+ * each sequence number is kept in a fixed ring of primitive arrays indexed by
+ * the sequence number.
+ *
+ * The time from receiving a message until receiving its acknowledgement is
+ * recorded. A message is counted as lost if it has not been acknowledged when
+ * its sequence number is reused or the acknowledgement timeout has elapsed, an
+ * acknowledgement for a sequence number that is not outstanding is counted as
+ * duplicate.
+ *
+ * With early acknowledgements, the proxy acknowledges each message to the
+ * frontend server as soon as it has been received and keeps a copy of it. The
+ * acknowledgements of the backend server are not forwarded then. A message
+ * that has not been acknowledged within the timeout is written to the backend
+ * server again, up to the configured number of retries. Messages that are
+ * still unacknowledged after the last retry, when their sequence number is
+ * reused or when the frontend session ends are appended to the page spool,
+ * which early acknowledgements require, unless they have been spooled already.
+ *
+ * The timeout checks are scheduled once the first message is tracked.
+ *
+ * This class must only be used from the event loop of the connection.
+ *
+ * @author Philipp Thiel
+ */
+final class AckTracker {
+
+	/**
+	 * Number of sequence numbers.
+	 */
+	public static final int SEQUENCE_COUNT = 256;
+	private static final ByteBuf[] ACKS = new ByteBuf[SEQUENCE_COUNT];
+	private static final Logger LOGGER = Logger.getLogger(AckTracker.class.getName());
+	private final long[] received = new long[SEQUENCE_COUNT];
+	private final long[] deadlines = new long[SEQUENCE_COUNT];
+	private final int[] attempts = new int[SEQUENCE_COUNT];
+	private final boolean[] pending = new boolean[SEQUENCE_COUNT];
+	private final ByteBuf[] messages;
+	private final ConnectionMetrics metrics;
+	private final PageSpool spool;
+	private final EventLoop eventLoop;
+	private final ProfileLogger log;
+	private final boolean early;
+	private final long timeoutNanos;
+	private final int maxRetries;
+	private ScheduledFuture<?> timer;
+	private Channel backend;
+	private int outstanding;
+	private boolean released;
+
+	static {
+		for (int i = 0; i < ACKS.length; ++i) {
+			ACKS[i] = LineBuffers.newLine(String.format("#%02X +", i));
+		}
+	}
+
+	/**
+	 * Creates a new tracker.
+	 *
+	 * @param settings  Connection settings
+	 * @param metrics   Traffic counters of the connection profile
+	 * @param spool     Page spool or {@code null} if pages are not spooled, must
+	 *                  be set with early acknowledgements.
+	 * @param eventLoop Event loop of the connection, used to check the timeouts
+	 */
+	public AckTracker(ConnectionSettings settings, ConnectionMetrics metrics, PageSpool spool, EventLoop eventLoop) {
+		this.metrics = metrics;
+		this.spool = spool;
+		this.eventLoop = eventLoop;
+		this.log = new ProfileLogger(LOGGER, settings.getProfileName(), "frontend", null);
+		this.early = settings.isBackendAckEarly();
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(settings.getBackendAckTimeout());
+		this.maxRetries = settings.getBackendAckRetries();
+		this.messages = early ? new ByteBuf[SEQUENCE_COUNT] : null;
+
+		if (early && spool == null) {
+			throw new IllegalArgumentException("Early acknowledgements require a page spool.");
+		}
+
+		metrics.setOutstandingAcks(0);
+	}
+
+	/**
+	 * Returns whether messages are acknowledged to the frontend server early.
+	 *
+	 * @return {@code true} if early acknowledgements are enabled
+	 */
+	public boolean isEarlyAck() {
+		return early;
+	}
+
+	/**
+	 * Gets the acknowledgement for a sequence number.
+	 *
+	 * @param sequence Sequence number
+	 * @return Acknowledgement line, must be duplicated before writing it.
+	 */
+	public static ByteBuf getAck(int sequence) {
+		return ACKS[sequence];
+	}
+
+	/**
+	 * Gets the number of messages waiting for their acknowledgement.
+	 *
+	 * @return Number of messages
+	 */
+	public int getOutstanding() {
+		return outstanding;
+	}
+
+	/**
+	 * Sets the backend connection unacknowledged messages are written to again.
+	 * Must be called once the handshake with the backend has been completed.
+	 *
+	 * @param channel Backend channel
+	 */
+	public void setBackend(Channel channel) {
+		backend = channel;
+	}
+
+	/**
+	 * Clears the backend connection if it is the given channel.
+	 *
+	 * @param channel Closed backend channel
+	 */
+	public void clearBackend(Channel channel) {
+		if (backend == channel) {
+			backend = null;
+		}
+	}
+
+	/**
+	 * Tracks a sequenced message received from the frontend server.
+	 *
+	 * @param frame         Sequenced message
+	 * @param receivedNanos Receive timestamp as returned by
+	 *                      {@link System#nanoTime()}
+	 */
+	public void onMessage(DapnetFrame frame, long receivedNanos) {
+		int sequence = frame.getSequence();
+		if (pending[sequence]) {
+			log.log(Level.WARNING, "{0} Message #{1} has not been acknowledged before its sequence number was reused.",
+					sequenceName(sequence));
+			lost(sequence);
+		}
+
+		if (timer == null && timeoutNanos > 0 && !released) {
+			// A message is retried or counted as lost at most half a timeout late
+			long period = Math.max(timeoutNanos / 2, TimeUnit.MILLISECONDS.toNanos(10));
+			timer = eventLoop.scheduleAtFixedRate(() -> expire(System.nanoTime()), period, period,
+					TimeUnit.NANOSECONDS);
+		}
+
+		pending[sequence] = true;
+		received[sequence] = receivedNanos;
+		deadlines[sequence] = receivedNanos + timeoutNanos;
+		attempts[sequence] = 0;
+		if (early) {
+			messages[sequence] = frame.getContent().copy();
+		}
+
+		metrics.setOutstandingAcks(++outstanding);
+	}
+
+	/**
+	 * Tracks an acknowledgement received from the backend server.
+	 *
+	 * @param sequence      Sequence number
+	 * @param receivedNanos Receive timestamp as returned by
+	 *                      {@link System#nanoTime()}
+	 * @return {@code true} if the acknowledgement is to be forwarded to the
+	 *         frontend server
+	 */
+	public boolean onAck(int sequence, long receivedNanos) {
+		if (pending[sequence]) {
+			metrics.recordAck(receivedNanos - received[sequence]);
+			clear(sequence);
+		} else {
+			if (log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, "{0} Duplicate acknowledgement for message #{1}.", sequenceName(sequence));
+			}
+
+			metrics.recordDuplicateAck();
+		}
+
+		return !early;
+	}
+
+	/**
+	 * Stops tracking a message that has been appended to the page spool, it is
+	 * delivered from the spool then.
+	 *
+	 * @param frame Spooled line frame
+	 */
+	public void onSpooled(ByteBuf frame) {
+		int sequence = DapnetFrame.sequenceOf(frame);
+		// The sequence number may have been reused by a later message
+		if (sequence >= 0 && pending[sequence] && (!early || frame.equals(messages[sequence]))) {
+			clear(sequence);
+		}
+	}
+
+	/**
+	 * Retries or drops all messages whose acknowledgement timeout has elapsed.
+	 *
+	 * @param now Current time as returned by {@link System#nanoTime()}
+	 */
+	void expire(long now) {
+		if (outstanding == 0) {
+			return;
+		}
+
+		boolean connected = backend != null && backend.isActive();
+		for (int i = 0; i < SEQUENCE_COUNT; ++i) {
+			if (!pending[i] || now - deadlines[i] < 0) {
+				continue;
+			}
+
+			if (early && attempts[i] < maxRetries) {
+				deadlines[i] = now + timeoutNanos;
+
+				// Otherwise retried once the backend is connected again
+				if (connected) {
+					++attempts[i];
+					metrics.recordRetriedMessage();
+					log.log(Level.INFO, "{0} Retrying unacknowledged message #{1}.", sequenceName(i));
+					backend.writeAndFlush(messages[i].retainedDuplicate())
+							.addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+				}
+			} else {
+				log.log(Level.WARNING, "{0} Message #{1} has not been acknowledged by the backend.",
+						sequenceName(i));
+				lost(i);
+			}
+		}
+	}
+
+	/**
+	 * Stops the timeout checks and releases all kept messages. With early
+	 * acknowledgements, the unacknowledged messages are appended to the page
+	 * spool in the order they have been received, as the frontend server
+	 * considers them delivered. Must be called when the frontend session ends.
+	 */
+	public void release() {
+		released = true;
+		if (timer != null) {
+			timer.cancel(false);
+		}
+
+		if (early && outstanding > 0) {
+			Integer[] order = new Integer[outstanding];
+			int count = 0;
+			for (int i = 0; i < SEQUENCE_COUNT; ++i) {
+				if (pending[i]) {
+					order[count++] = i;
+				}
+			}
+
+			Arrays.sort(order, (a, b) -> Long.signum(received[a] - received[b]));
+			int spooled = 0;
+			for (int sequence : order) {
+				if (spool.append(messages[sequence])) {
+					++spooled;
+				}
+			}
+
+			log.log(Level.INFO, "{0} Spooled {1,number,#} unacknowledged messages.", spooled);
+		}
+
+		for (int i = 0; i < SEQUENCE_COUNT; ++i) {
+			if (pending[i]) {
+				clear(i);
+			}
+		}
+	}
+
+	private void lost(int sequence) {
+		// The frontend server considers early acknowledged messages delivered
+		if (!early || !spool.append(messages[sequence])) {
+			metrics.recordLostAck();
+		}
+
+		clear(sequence);
+	}
+
+	private void clear(int sequence) {
+		pending[sequence] = false;
+		if (early && messages[sequence] != null) {
+			messages[sequence].release();
+			messages[sequence] = null;
+		}
+
+		metrics.setOutstandingAcks(--outstanding);
+	}
+
+	private static String sequenceName(int sequence) {
+		return String.format("%02X", sequence);
+	}
+
+}
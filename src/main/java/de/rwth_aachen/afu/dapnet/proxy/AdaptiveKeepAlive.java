@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class derives the keep alive schedule of a backend connection from the
+ * measured round trip times. The smoothed round trip time (SRTT), its variation
+ * (RTTVAR) and the retransmission timeout (RTO) are computed as in RFC 6298:
+ * the first sample sets SRTT to the sample and RTTVAR to half of it, later
+ * samples are weighted with 1/8 and 1/4, and the timeout is SRTT plus four
+ * times RTTVAR. The timeout starts at one second, is doubled for each missed
+ * response and limited to the range between the minimum timeout and the
+ * backend timeout.
+ *
+ * A keep alive request is sent after the connection has been idle for eight
+ * times the timeout, but at least the minimum interval and at most the backend
+ * timeout. The backend is considered dead once the configured number of
+ * requests in a row has not been answered within the timeout. A fast link is
+ * thus probed often and a dead backend detected within seconds, while a slow or
+ * lossy link gets longer timeouts instead of being disconnected.
+ *
+ * This class must only be used from the event loop of the connection.
+ *
+ * @author Philipp Thiel
+ */
+final class AdaptiveKeepAlive {
+
+	private static final long INITIAL_TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+	private static final long CLOCK_GRANULARITY = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final int INTERVAL_FACTOR = 8;
+	private final long maxTimeout;
+	private final long minTimeout;
+	private final long minInterval;
+	private final int maxMissed;
+	private long smoothedRtt = -1;
+	private long rttVariance = -1;
+	private long timeout;
+	private int missed;
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param settings Connection settings
+	 */
+	public AdaptiveKeepAlive(ConnectionSettings settings) {
+		this.maxTimeout = TimeUnit.MILLISECONDS.toNanos(settings.getBackendTimout());
+		this.minTimeout = Math.min(TimeUnit.MILLISECONDS.toNanos(settings.getBackendKeepAliveMinTimeout()), maxTimeout);
+		this.minInterval = Math.min(TimeUnit.MILLISECONDS.toNanos(settings.getBackendKeepAliveMinInterval()),
+				maxTimeout);
+		this.maxMissed = settings.getBackendKeepAliveProbes();
+		this.timeout = clamp(INITIAL_TIMEOUT);
+	}
+
+	/**
+	 * Gets the time the connection may be idle before a keep alive request is
+	 * sent.
+	 *
+	 * @return Interval in nanoseconds
+	 */
+	public long getInterval() {
+		return Math.min(Math.max(INTERVAL_FACTOR * timeout, minInterval), maxTimeout);
+	}
+
+	/**
+	 * Gets the time to wait for the response to a keep alive request.
+	 *
+	 * @return Timeout in nanoseconds
+	 */
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Gets the smoothed round trip time.
+	 *
+	 * @return Round trip time in nanoseconds or -1 if not available.
+	 */
+	public long getSmoothedRtt() {
+		return smoothedRtt;
+	}
+
+	/**
+	 * Gets the round trip time variation.
+	 *
+	 * @return Variation in nanoseconds or -1 if not available.
+	 */
+	public long getRttVariance() {
+		return rttVariance;
+	}
+
+	/**
+	 * Gets the number of keep alive requests in a row that have not been
+	 * answered in time.
+	 *
+	 * @return Number of requests
+	 */
+	public int getMissed() {
+		return missed;
+	}
+
+	/**
+	 * Records a response to a keep alive request. A response to a request that
+	 * has been repeated must not be sampled, as it cannot be told which request
+	 * it answers (Karn's algorithm).
+	 *
+	 * @param rttNanos Round trip time in nanoseconds or -1 if not to be sampled.
+	 */
+	public void onResponse(long rttNanos) {
+		missed = 0;
+		if (rttNanos < 0) {
+			return;
+		}
+
+		if (smoothedRtt < 0) {
+			smoothedRtt = rttNanos;
+			rttVariance = rttNanos / 2;
+		} else {
+			rttVariance = (3 * rttVariance + Math.abs(smoothedRtt - rttNanos)) / 4;
+			smoothedRtt = (7 * smoothedRtt + rttNanos) / 8;
+		}
+
+		timeout = clamp(smoothedRtt + Math.max(CLOCK_GRANULARITY, 4 * rttVariance));
+	}
+
+	/**
+	 * Records a keep alive request that has not been answered within the timeout
+	 * and doubles the timeout.
+	 *
+	 * @return {@code true} if the backend is considered dead
+	 */
+	public boolean onTimeout() {
+		timeout = clamp(2 * timeout);
+		return ++missed >= maxMissed;
+	}
+
+	private long clamp(long value) {
+		return Math.min(Math.max(value, minTimeout), maxTimeout);
+	}
+
+}
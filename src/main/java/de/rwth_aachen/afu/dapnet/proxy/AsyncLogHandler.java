@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import io.netty.util.internal.PlatformDependent;
+
+/**
+ * Log handler that passes the records to other handlers on a dedicated
+ * thread, so the event loops never block on the console or the journal. The
+ * records are passed through a bounded lock-free ring buffer with
+ * {@code dapnet.proxy.log.capacity} entries (default 8192). If the buffer is
+ * full, the record is dropped and counted, the number of dropped records is
+ * logged once per second.
+ *
+ * Identical messages are rate limited by a {@link LogRateLimiter} before they
+ * are queued, so a flapping connection cannot flood the log. The source of a
+ * record is determined on the logging thread, as it cannot be inferred on the
+ * dispatcher thread.
+ *
+ * Records logged after the handler has been closed are passed on directly.
+ *
+ * @author Philipp Thiel
+ */
+final class AsyncLogHandler extends Handler {
+
+	static final String CAPACITY_KEY = "dapnet.proxy.log.capacity";
+	private static final long REPORT_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+	private final List<Handler> targets = new CopyOnWriteArrayList<>();
+	private final Queue<LogRecord> queue;
+	private final LogRateLimiter limiter;
+	private final LongAdder dropped = new LongAdder();
+	private final Thread dispatcher;
+	private volatile boolean running = true;
+	private volatile boolean parked;
+	// Dispatcher thread only
+	private long reportedDrops;
+
+	/**
+	 * Creates a new instance using the settings from the system properties and
+	 * starts the dispatcher thread.
+	 *
+	 * @param targets Handlers to pass the records to
+	 */
+	public AsyncLogHandler(List<Handler> targets) {
+		this(targets, Integer.getInteger(CAPACITY_KEY, 8192), new LogRateLimiter());
+	}
+
+	/**
+	 * Creates a new instance and starts the dispatcher thread.
+	 *
+	 * @param targets  Handlers to pass the records to
+	 * @param capacity Maximum number of queued records
+	 * @param limiter  Rate limiter for identical messages
+	 */
+	public AsyncLogHandler(List<Handler> targets, int capacity, LogRateLimiter limiter) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Log queue capacity must be at least 1.");
+		}
+
+		this.targets.addAll(targets);
+		this.queue = PlatformDependent.newFixedMpscQueue(capacity);
+		this.limiter = limiter;
+
+		// Do not queue records none of the targets would publish
+		Level level = Level.OFF;
+		for (Handler target : targets) {
+			if (target.getLevel().intValue() < level.intValue()) {
+				level = target.getLevel();
+			}
+		}
+
+		setLevel(level);
+
+		this.dispatcher = new Thread(this::run, "dapnet-log");
+		this.dispatcher.setDaemon(true);
+		this.dispatcher.start();
+	}
+
+	/**
+	 * Replaces the handlers of a logger by an asynchronous handler passing the
+	 * records to them.
+	 *
+	 * @param logger Logger, usually the root logger
+	 * @return Installed handler
+	 */
+	public static AsyncLogHandler install(Logger logger) {
+		List<Handler> handlers = List.of(logger.getHandlers());
+		AsyncLogHandler handler = new AsyncLogHandler(handlers);
+
+		logger.addHandler(handler);
+		for (Handler h : handlers) {
+			logger.removeHandler(h);
+		}
+
+		return handler;
+	}
+
+	/**
+	 * Gets the number of records dropped because the queue was full.
+	 *
+	 * @return Number of records
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	@Override
+	public void publish(LogRecord record) {
+		if (!isLoggable(record)) {
+			return;
+		}
+
+		// Infer the source while still on the logging thread
+		record.getSourceClassName();
+
+		if (!running) {
+			dispatch(record);
+		} else if (limiter.admit(record, System.nanoTime(), this::enqueue)) {
+			enqueue(record);
+		}
+	}
+
+	@Override
+	public void flush() {
+		for (Handler target : targets) {
+			target.flush();
+		}
+	}
+
+	/**
+	 * Dispatches the queued records, stops the dispatcher thread and closes the
+	 * target handlers.
+	 */
+	@Override
+	public void close() {
+		if (!running) {
+			return;
+		}
+
+		running = false;
+		LockSupport.unpark(dispatcher);
+
+		try {
+			dispatcher.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+
+		for (Handler target : targets) {
+			target.close();
+		}
+	}
+
+	private void enqueue(LogRecord record) {
+		if (queue.offer(record)) {
+			if (parked) {
+				LockSupport.unpark(dispatcher);
+			}
+		} else {
+			dropped.increment();
+		}
+	}
+
+	private void dispatch(LogRecord record) {
+		for (Handler target : targets) {
+			try {
+				target.publish(record);
+			} catch (Exception ex) {
+				reportError("Failed to publish log record.", ex, ErrorManager.WRITE_FAILURE);
+			}
+		}
+	}
+
+	private void run() {
+		long nextReport = System.nanoTime() + REPORT_INTERVAL;
+
+		while (true) {
+			boolean stopping = !running;
+
+			LogRecord record;
+			boolean published = false;
+			while ((record = queue.poll()) != null) {
+				dispatch(record);
+				published = true;
+			}
+
+			long now = System.nanoTime();
+			if (stopping || now - nextReport >= 0) {
+				nextReport = now + REPORT_INTERVAL;
+				if (stopping) {
+					limiter.expireAll(this::dispatch);
+				} else {
+					limiter.expire(now, this::dispatch);
+				}
+
+				reportDrops();
+				published = true;
+			}
+
+			if (published) {
+				flush();
+			}
+
+			if (stopping) {
+				break;
+			} else if (queue.isEmpty()) {
+				parked = true;
+				if (queue.isEmpty() && running) {
+					LockSupport.parkNanos(this, Math.max(0, nextReport - System.nanoTime()));
+				}
+
+				parked = false;
+			}
+		}
+	}
+
+	private void reportDrops() {
+		long total = dropped.sum();
+		if (total > reportedDrops) {
+			LogRecord record = new LogRecord(Level.WARNING,
+					"Dropped {0,number,#} log records, the log queue is full.");
+			record.setLoggerName(AsyncLogHandler.class.getName());
+			record.setSourceClassName(AsyncLogHandler.class.getName());
+			record.setSourceMethodName("publish");
+			record.setParameters(new Object[] { total - reportedDrops });
+			reportedDrops = total;
+			dispatch(record);
+		}
+	}
+
+}
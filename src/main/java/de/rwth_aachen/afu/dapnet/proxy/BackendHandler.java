@@ -16,139 +16,464 @@
  */
 package de.rwth_aachen.afu.dapnet.proxy;
 
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.handler.timeout.IdleState;
-import io.netty.handler.timeout.IdleStateEvent;
 
 /**
  * The backend handler is responsible for the connection to the backend server.
+ * Lines are forwarded as received, the handler routes on the message type of
+ * the decoded frames to handle handshake and keep alive lines.
+ *
+ * When resuming a kept frontend session, the welcome message of the backend is
+ * not forwarded. Instead the captured session lines are replayed and their
+ * responses are dropped. Once the backend has answered the time sync, the
+ * buffered lines are relayed.
+ *
+ * Spooled pages are replayed once the backend has answered the time sync, in
+ * chunks whenever the backend channel is writable. Their acknowledgements are
+ * matched by sequence number and only forwarded if the page has been received
+ * during the current frontend session. A rejected page stays in the spool up
+ * to the configured number of rejections.
+ *
+ * A standby backend connection is synchronized like a resumed session, but no
+ * lines are forwarded to the frontend until it has been promoted to the active
+ * backend connection. Session lines received later are mirrored to it.
+ *
+ * In fan-out mode the backend joins the fan-out group once it is ready and the
+ * group decides which lines are forwarded. A backend connected after the
+ * frontend session has been established is synchronized like a resumed
+ * session.
+ *
+ * Acknowledgements of sequenced messages are passed to the {@link AckTracker}
+ * before they are forwarded. With early acknowledgements they are not
+ * forwarded, as the proxy has acknowledged the messages already.
+ *
+ * Keep alive requests are scheduled by the {@link AdaptiveKeepAlive} estimator
+ * once the backend has answered the time sync. Each request is answered with
+ * an echo and an acknowledgement, which are not forwarded. The round trip time
+ * is sampled from the first request of a round only, a round with a repeated
+ * request is not sampled. Any line received from the backend restarts the
+ * timeout, as the responses are queued behind the lines sent before.
  *
  * @author Philipp Thiel
  */
-final class BackendHandler extends SimpleChannelInboundHandler<String> {
+final class BackendHandler extends SimpleChannelInboundHandler<DapnetFrame> {
 
 	private enum State {
-		HANDSHAKE, SEND_KEEP_ALIVE, PENDING_KEEP_ALIVE_1, PENDING_KEEP_ALIVE_2
+		RESUME_WELCOME, RESUME_HANDSHAKE, HANDSHAKE, SEND_KEEP_ALIVE, PENDING_KEEP_ALIVE
 	}
 
-	private static final String KEEP_ALIVE_REQ = "2:PING";
+	private static final ByteBuf KEEP_ALIVE_REQ = LineBuffers.newLine("2:PING");
+	private static final byte[] KEEP_ALIVE_PAYLOAD = LineBuffers.ascii("PING");
+	private static final int HANDSHAKE_TYPE = 2;
 	private static final Logger LOGGER = Logger.getLogger(BackendHandler.class.getName());
-	private final String profileName;
+	private final ProfileLogger log;
 	private final Channel inboundChannel;
+	private final boolean batching;
+	private final ConnectionMetrics metrics;
+	private final SessionBuffer session;
+	private final PageSpool spool;
+	private final FanoutGroup fanout;
+	private final int member;
+	private final AckTracker acks;
+	private final AdaptiveKeepAlive keepAlive;
+	private boolean standby;
+	private RelayWriteListener writeListener;
+	private ScheduledFuture<?> keepAliveTimer;
 	private volatile State state = State.HANDSHAKE;
+	private long keepAliveSent;
+	private long lastRead;
+	private boolean sampleKeepAlive;
+	private int pendingEchoes;
+	private int pendingKeepAliveAcks;
+	private int pendingSessionAcks;
+	private int pendingSpoolAcks;
 
-	public BackendHandler(String profileName, Channel inboundChannel) {
-		this.profileName = profileName;
+	/**
+	 * Creates a new backend handler.
+	 *
+	 * @param profileName    Connection profile name
+	 * @param inboundChannel Frontend channel
+	 * @param batching       Whether to use the batching relay mode
+	 * @param metrics        Traffic counters of the connection profile
+	 * @param session        Kept frontend session or {@code null} if the session
+	 *                       is not kept.
+	 * @param spool          Page spool or {@code null} if pages are not spooled.
+	 * @param standby        Whether this is a standby backend connection, requires
+	 *                       a kept session.
+	 * @param fanout         Fan-out group or {@code null} if not in fan-out mode,
+	 *                       requires a session.
+	 * @param member         Index of the backend in the fan-out group
+	 * @param acks           Acknowledgement tracker of the frontend session or
+	 *                       {@code null} if acknowledgements are not tracked.
+	 * @param keepAlive      Keep alive estimator or {@code null} if no keep alive
+	 *                       requests are sent.
+	 */
+	public BackendHandler(String profileName, Channel inboundChannel, boolean batching, ConnectionMetrics metrics,
+			SessionBuffer session, PageSpool spool, boolean standby, FanoutGroup fanout, int member,
+			AckTracker acks, AdaptiveKeepAlive keepAlive) {
+		this.log = new ProfileLogger(LOGGER, profileName, "backend", () -> state);
 		this.inboundChannel = inboundChannel;
+		this.batching = batching;
+		this.metrics = metrics;
+		this.session = session;
+		this.spool = spool;
+		this.standby = standby;
+		this.fanout = fanout;
+		this.member = member;
+		this.acks = acks;
+		this.keepAlive = keepAlive;
+	}
+
+	@Override
+	public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+		writeListener = new RelayWriteListener(metrics, metrics.getBackendRelayLatency(), ctx.channel(), !batching);
+
+		if (standby || (fanout != null && session.isEstablished())) {
+			state = State.RESUME_WELCOME;
+		} else if (fanout == null && session != null && session.isEstablished()) {
+			state = State.RESUME_WELCOME;
+			session.setBackendReady(false);
+		}
+	}
+
+	/**
+	 * Promotes a standby backend connection to the active backend connection. If
+	 * the standby backend has already answered the time sync, the buffered lines
+	 * are relayed immediately, otherwise once the answer has been received.
+	 *
+	 * @param channel Backend channel
+	 */
+	public void promote(Channel channel) {
+		standby = false;
+
+		if (state != State.RESUME_WELCOME && state != State.RESUME_HANDSHAKE) {
+			resumeSession(channel);
+		}
+	}
+
+	/**
+	 * Writes a session line received from the frontend server to a standby backend
+	 * connection. The response is not forwarded. Lines received before the
+	 * welcome message of the backend are replayed with the session instead.
+	 *
+	 * @param channel Backend channel
+	 * @param frame   Session line frame
+	 */
+	public void mirrorSessionLine(Channel channel, ByteBuf frame) {
+		if (standby && state != State.RESUME_WELCOME) {
+			++pendingSessionAcks;
+			channel.writeAndFlush(frame.retainedDuplicate());
+		}
 	}
 
 	@Override
 	public void channelActive(ChannelHandlerContext ctx) throws Exception {
-		LOGGER.log(Level.INFO, "{0} Connected to backend server.", profileName);
+		log.log(Level.INFO, "{0} Connected to backend server.");
+
+		if (fanout != null && state == State.HANDSHAKE) {
+			fanout.join(member, ctx.channel());
+		}
+
+		lastRead = System.nanoTime();
+		if (keepAlive != null) {
+			recordKeepAliveEstimate();
+			scheduleKeepAlive(ctx, keepAlive.getInterval());
+		}
 
 		ctx.read();
 	}
 
 	@Override
 	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-		LOGGER.log(Level.INFO, "{0} Disconnected from backend server.", profileName);
+		log.log(Level.INFO, "{0} Disconnected from backend server.");
 
-		FrontendHandler.closeOnFlush(inboundChannel);
+		if (keepAliveTimer != null) {
+			keepAliveTimer.cancel(false);
+			keepAliveTimer = null;
+		}
+
+		if (fanout != null) {
+			fanout.leave(member);
+		}
+
+		if (acks != null) {
+			acks.clearBackend(ctx.channel());
+		}
+
+		// A kept session is handled by the frontend handler
+		if (session == null) {
+			FrontendHandler.closeOnFlush(inboundChannel);
+		}
 	}
 
 	@Override
-	protected void channelRead0(ChannelHandlerContext ctx, String msg) throws Exception {
+	protected void channelRead0(ChannelHandlerContext ctx, DapnetFrame msg) throws Exception {
+		final long received = System.nanoTime();
 		boolean forward = true;
 
+		lastRead = received;
+		metrics.recordBackendLine(msg);
+
 		switch (state) {
-		case HANDSHAKE:
-			if (msg.startsWith("2:")) {
-				state = State.SEND_KEEP_ALIVE;
+		case RESUME_WELCOME:
+			if (msg.getType() == DapnetFrame.TYPE_WELCOME) {
+				log.log(Level.INFO, standby ? "{0} Replaying frontend session to standby backend."
+						: "{0} Replaying frontend session to backend.");
+				pendingSessionAcks = session.replaySession(ctx.channel());
+				state = State.RESUME_HANDSHAKE;
 			}
+			forward = false;
 			break;
-		case SEND_KEEP_ALIVE:
-			break;
-		case PENDING_KEEP_ALIVE_1:
-			if (msg.startsWith(KEEP_ALIVE_REQ)) {
-				state = State.PENDING_KEEP_ALIVE_2;
-				forward = false;
+		case RESUME_HANDSHAKE:
+			if (msg.is(HANDSHAKE_TYPE)) {
+				state = State.SEND_KEEP_ALIVE;
+				metrics.recordHandshake();
+				if (standby) {
+					log.log(Level.INFO, "{0} Standby backend is ready.");
+				} else if (fanout != null) {
+					fanout.join(member, ctx.channel());
+				} else {
+					resumeSession(ctx.channel());
+				}
+			} else {
+				dropSessionAck(msg);
 			}
+			forward = false;
 			break;
-		case PENDING_KEEP_ALIVE_2:
-			if (msg.equals("+")) {
+		case HANDSHAKE:
+			if (msg.is(HANDSHAKE_TYPE)) {
 				state = State.SEND_KEEP_ALIVE;
-				forward = false;
-				LOGGER.log(Level.INFO, "{0} Received keep alive response from backend.", profileName);
+				metrics.recordHandshake();
+				replaySpool(ctx.channel());
+				if (acks != null && fanout == null) {
+					acks.setBackend(ctx.channel());
+				}
 			}
 			break;
+		case SEND_KEEP_ALIVE:
+		case PENDING_KEEP_ALIVE:
+			forward = !dropKeepAliveResponse(msg, received) && !dropSessionAck(msg);
+			break;
 		}
 
-		if (forward) {
-			forwardMessage(ctx, msg);
-		} else {
+		if (forward && dropSpoolAck(msg)) {
+			forward = false;
+		}
+
+		if (forward && !standby && (fanout == null || fanout.accept(member, msg)) && acceptAck(msg, received)) {
+			forwardMessage(msg.getContent(), received);
+		} else if (!batching) {
 			ctx.read();
 		}
 	}
 
+	@Override
+	public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+		if (batching && inboundChannel.isActive()) {
+			inboundChannel.flush();
+
+			// Continue reading once the frontend has drained its outbound buffer
+			if (inboundChannel.isWritable()) {
+				ctx.read();
+			}
+		}
+	}
+
+	@Override
+	public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+		if (spool != null && spool.isReplaying() && ctx.channel().isWritable()) {
+			pendingSpoolAcks += spool.continueReplay(ctx.channel());
+		}
+
+		if (fanout != null) {
+			fanout.onWritabilityChanged();
+		} else if (batching && !standby && ctx.channel().isWritable()) {
+			inboundChannel.read();
+		}
+	}
+
 	@Override
 	public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
-		LOGGER.log(Level.SEVERE, profileName + " Exception in backend handler.", cause);
+		log.log(Level.SEVERE, "{0} Exception in backend handler.", cause);
 		FrontendHandler.closeOnFlush(ctx.channel());
 	}
 
-	@Override
-	public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
-		if (evt instanceof IdleStateEvent) {
-			IdleStateEvent idle = (IdleStateEvent) evt;
-			if (idle.state() == IdleState.READER_IDLE) {
-				handleReadTimeout(ctx);
+	/**
+	 * Sends a keep alive request to the backend. A round trip time sample is only
+	 * taken if no other request is pending.
+	 *
+	 * @param ctx Channel handler context
+	 */
+	void sendKeepAlive(ChannelHandlerContext ctx) {
+		sampleKeepAlive = state == State.SEND_KEEP_ALIVE && pendingEchoes == 0 && pendingKeepAliveAcks == 0;
+		state = State.PENDING_KEEP_ALIVE;
+		keepAliveSent = System.nanoTime();
+		++pendingEchoes;
+
+		log.log(Level.FINE, "{0} Sending keep alive request to backend.");
+		writeMessage(ctx, KEEP_ALIVE_REQ.duplicate());
+	}
+
+	private void checkKeepAlive(ChannelHandlerContext ctx) {
+		if (!ctx.channel().isActive()) {
+			return;
+		}
+
+		final long now = System.nanoTime();
+		long delay;
+		switch (state) {
+		case SEND_KEEP_ALIVE:
+			delay = keepAlive.getInterval() - (now - lastRead);
+			if (delay <= 0) {
+				sendKeepAlive(ctx);
+				delay = keepAlive.getTimeout();
 			}
+			break;
+		case PENDING_KEEP_ALIVE:
+			delay = keepAlive.getTimeout() - (now - Math.max(keepAliveSent, lastRead));
+			if (delay <= 0) {
+				metrics.recordMissedKeepAlive();
+				if (keepAlive.onTimeout()) {
+					log.log(Level.SEVERE,
+							"{0} Backend did not answer {1,number,#} keep alive requests, closing channel.",
+							keepAlive.getMissed());
+					FrontendHandler.closeOnFlush(ctx.channel());
+					return;
+				}
+
+				recordKeepAliveEstimate();
+				log.log(Level.WARNING, "{0} Keep alive request timed out, retrying within {1,number,#} ms.",
+						TimeUnit.NANOSECONDS.toMillis(keepAlive.getTimeout()));
+				sendKeepAlive(ctx);
+				delay = keepAlive.getTimeout();
+			}
+			break;
+		default:
+			// Keep alive requests are sent once the backend is ready
+			delay = keepAlive.getInterval();
+			break;
 		}
+
+		scheduleKeepAlive(ctx, delay);
 	}
 
-	private void forwardMessage(final ChannelHandlerContext ctx, String msg) throws Exception {
-		LOGGER.log(Level.FINEST, "{0} Forwarding message from backend to frontend.", profileName);
+	private void scheduleKeepAlive(ChannelHandlerContext ctx, long delay) {
+		keepAliveTimer = ctx.executor().schedule(() -> checkKeepAlive(ctx), delay, TimeUnit.NANOSECONDS);
+	}
 
-		inboundChannel.writeAndFlush(msg).addListener((ChannelFuture future) -> {
-			if (future.isSuccess()) {
-				ctx.channel().read();
-			} else {
-				future.channel().close();
+	private boolean dropKeepAliveResponse(DapnetFrame msg, long received) {
+		if (pendingEchoes > 0 && msg.is(HANDSHAKE_TYPE) && msg.payloadStartsWith(KEEP_ALIVE_PAYLOAD)) {
+			--pendingEchoes;
+			++pendingKeepAliveAcks;
+			return true;
+		} else if (pendingKeepAliveAcks > 0 && msg.is(DapnetFrame.TYPE_ACK)) {
+			--pendingKeepAliveAcks;
+			if (state == State.PENDING_KEEP_ALIVE) {
+				state = State.SEND_KEEP_ALIVE;
+				onKeepAliveResponse(sampleKeepAlive ? received - keepAliveSent : -1);
 			}
-		});
+			return true;
+		} else {
+			return false;
+		}
+	}
+
+	private void onKeepAliveResponse(long rtt) {
+		if (rtt >= 0) {
+			metrics.recordKeepAlive(rtt);
+		}
+
+		if (keepAlive != null) {
+			keepAlive.onResponse(rtt);
+			recordKeepAliveEstimate();
+		}
+
+		log.log(Level.FINE, "{0} Received keep alive response from backend.");
+	}
+
+	private void recordKeepAliveEstimate() {
+		// Standby connections would overwrite the estimates of the active backend
+		if (!standby) {
+			metrics.recordKeepAliveEstimate(keepAlive.getSmoothedRtt(), keepAlive.getRttVariance(),
+					keepAlive.getTimeout());
+		}
+	}
+
+	private boolean dropSessionAck(DapnetFrame msg) {
+		if (pendingSessionAcks > 0 && msg.is(DapnetFrame.TYPE_ACK)) {
+			--pendingSessionAcks;
+			return true;
+		} else {
+			return false;
+		}
 	}
 
-	private void writeMessage(ChannelHandlerContext ctx, String msg) throws Exception {
+	private boolean acceptAck(DapnetFrame msg, long received) {
+		if (acks != null && msg.isSequenced() && msg.getType() == DapnetFrame.TYPE_ACK) {
+			return acks.onAck(msg.getSequence(), received);
+		} else {
+			return true;
+		}
+	}
+
+	private void resumeSession(Channel channel) {
+		replaySpool(channel);
+		if (acks != null) {
+			acks.setBackend(channel);
+		}
+		int replayed = session.replay(channel);
+		session.setBackendReady(true);
+		log.log(Level.INFO, "{0} Frontend session resumed, relayed {1,number,#} buffered messages.", replayed);
+	}
+
+	private void replaySpool(Channel channel) {
+		if (spool != null && spool.getPending() > 0) {
+			log.log(Level.INFO, "{0} Replaying {1,number,#} spooled pages.", spool.getPending());
+			pendingSpoolAcks = spool.replay(channel);
+		}
+	}
+
+	private boolean dropSpoolAck(DapnetFrame msg) {
+		int type = msg.getType();
+		if (pendingSpoolAcks > 0 && msg.isSequenced() && (type == DapnetFrame.TYPE_ACK || type == DapnetFrame.TYPE_NAK)
+				&& spool.isReplayed(msg.getSequence())) {
+			--pendingSpoolAcks;
+			return !spool.ack(msg.getSequence(), type == DapnetFrame.TYPE_ACK);
+		} else {
+			return false;
+		}
+	}
+
+	private void forwardMessage(ByteBuf msg, long received) throws Exception {
+		log.log(Level.FINEST, "{0} Forwarding message from backend to frontend.");
+
+		writeListener.add(received);
+		if (batching) {
+			// Flushed in channelReadComplete
+			inboundChannel.write(msg.retain()).addListener(writeListener);
+		} else {
+			inboundChannel.writeAndFlush(msg.retain()).addListener(writeListener);
+		}
+	}
+
+	private void writeMessage(ChannelHandlerContext ctx, ByteBuf msg) {
 		ctx.writeAndFlush(msg).addListener((ChannelFuture f) -> {
 			if (f.isSuccess()) {
 				f.channel().read();
 			} else {
+				metrics.recordWriteFailure();
 				f.channel().close();
 			}
 		});
 	}
 
-	private void handleReadTimeout(ChannelHandlerContext ctx) throws Exception {
-		switch (state) {
-		case HANDSHAKE:
-			break;
-		case SEND_KEEP_ALIVE:
-			state = State.PENDING_KEEP_ALIVE_1;
-			LOGGER.log(Level.INFO, "{0} Sending keep alive request to backend.", profileName);
-			writeMessage(ctx, KEEP_ALIVE_REQ);
-			break;
-		case PENDING_KEEP_ALIVE_1:
-		case PENDING_KEEP_ALIVE_2:
-			LOGGER.log(Level.SEVERE, "{0} Backend read timed out, closing channel.", profileName);
-			FrontendHandler.closeOnFlush(ctx.channel());
-			break;
-		}
-	}
-
 }
@@ -16,49 +16,54 @@
  */
 package de.rwth_aachen.afu.dapnet.proxy;
 
-import java.nio.charset.StandardCharsets;
-import java.util.concurrent.TimeUnit;
-
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
-import io.netty.channel.socket.SocketChannel;
-import io.netty.handler.codec.LineBasedFrameDecoder;
-import io.netty.handler.codec.string.StringDecoder;
-import io.netty.handler.codec.string.StringEncoder;
-import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.handler.flush.FlushConsolidationHandler;
 
 /**
  * This class initializes the backend channel pipeline.
  *
  * @author Philipp Thiel
  */
-class BackendInitializer extends ChannelInitializer<SocketChannel> {
+class BackendInitializer extends ChannelInitializer<Channel> {
 
-	private static final StringDecoder DECODER = new StringDecoder(StandardCharsets.US_ASCII);
-	private static final StringEncoder ENCODER = new StringEncoder(StandardCharsets.US_ASCII);
-	private static final LineBreakAdder LBA = new LineBreakAdder();
 	private final ConnectionSettings settings;
 	private final Channel inbound;
+	private final ConnectionMetrics metrics;
+	private final SessionBuffer session;
+	private final PageSpool spool;
+	private final boolean standby;
+	private final FanoutGroup fanout;
+	private final int member;
+	private final AckTracker acks;
 
-	public BackendInitializer(ConnectionSettings settings, Channel inbound) {
+	public BackendInitializer(ConnectionSettings settings, Channel inbound, ConnectionMetrics metrics,
+			SessionBuffer session, PageSpool spool, boolean standby, FanoutGroup fanout, int member, AckTracker acks) {
 		this.settings = settings;
 		this.inbound = inbound;
+		this.metrics = metrics;
+		this.session = session;
+		this.spool = spool;
+		this.standby = standby;
+		this.fanout = fanout;
+		this.member = member;
+		this.acks = acks;
 	}
 
 	@Override
-	protected void initChannel(SocketChannel ch) throws Exception {
+	protected void initChannel(Channel ch) throws Exception {
 		ChannelPipeline p = ch.pipeline();
-		p.addLast(new LineBasedFrameDecoder(1024));
-		p.addLast(DECODER);
-		p.addLast(ENCODER);
-		p.addLast(LBA);
-
-		if (settings.getBackendTimout() > 0) {
-			p.addLast(new IdleStateHandler(settings.getBackendTimout(), 0, 0, TimeUnit.MILLISECONDS));
+		if (settings.isRelayBatching() && settings.getRelayFlushConsolidation() > 0) {
+			p.addLast(new FlushConsolidationHandler(settings.getRelayFlushConsolidation(), true));
 		}
 
-		p.addLast(new BackendHandler(settings.getProfileName(), inbound));
+		p.addLast(new DapnetFrameDecoder(DapnetFrameDecoder.DEFAULT_MAX_LENGTH, metrics, settings.getProfileName(),
+				"backend"));
+
+		AdaptiveKeepAlive keepAlive = settings.getBackendTimout() > 0 ? new AdaptiveKeepAlive(settings) : null;
+		p.addLast(new BackendHandler(settings.getProfileName(), inbound, settings.isRelayBatching(), metrics, session,
+				spool, standby, fanout, member, acks, keepAlive));
 	}
 
 }
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class watches a configuration directory and applies changes to the
+ * connection profiles without restarting the other profiles. Each file ending
+ * in {@code .properties} contains one profile.
+ *
+ * Changes are applied once no further change has been detected for the
+ * debounce time, so an editor writing a file in several steps causes a single
+ * reload. The loaded settings are compared with the settings of the open
+ * profiles: new profiles are opened, removed profiles are closed and changed
+ * profiles are reopened. A file that cannot be loaded keeps its previous
+ * settings. Settings are only recorded as applied once the profile has been
+ * opened, profiles that failed to open are retried after the retry time.
+ *
+ * @author Philipp Thiel
+ */
+final class ConfigWatcher implements Closeable {
+
+	static final String DEBOUNCE_KEY = "dapnet.proxy.config.debounce";
+	static final String RETRY_KEY = "dapnet.proxy.config.retry";
+	static final String SUFFIX = ".properties";
+	private static final Logger LOGGER = Logger.getLogger(ConfigWatcher.class.getName());
+	private final ProxyManager manager;
+	private final Path directory;
+	private final long debounce;
+	private final long retry;
+	private final WatchService watchService;
+	private final Thread thread;
+	private Map<Path, ConnectionSettings> files = Collections.emptyMap();
+	private Map<String, ConnectionSettings> profiles = Collections.emptyMap();
+	private boolean complete;
+
+	/**
+	 * Creates a new instance using the debounce time from the system property
+	 * {@code dapnet.proxy.config.debounce} (default 500 ms) and the retry time
+	 * from {@code dapnet.proxy.config.retry} (default 30000 ms).
+	 *
+	 * @param manager   Proxy manager to apply the changes to.
+	 * @param directory Configuration directory
+	 * @throws IOException If the directory cannot be watched.
+	 */
+	public ConfigWatcher(ProxyManager manager, Path directory) throws IOException {
+		this(manager, directory, Long.getLong(DEBOUNCE_KEY, 500), Long.getLong(RETRY_KEY, 30000));
+	}
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param manager   Proxy manager to apply the changes to.
+	 * @param directory Configuration directory
+	 * @param debounce  Debounce time in milliseconds
+	 * @param retry     Time in milliseconds after which profiles that failed to
+	 *                  open are retried
+	 * @throws IOException If the directory cannot be watched.
+	 */
+	public ConfigWatcher(ProxyManager manager, Path directory, long debounce, long retry) throws IOException {
+		if (debounce < 0) {
+			throw new IllegalArgumentException("Debounce time cannot be negative.");
+		} else if (retry <= 0) {
+			throw new IllegalArgumentException("Retry time must be positive.");
+		}
+
+		this.manager = manager;
+		this.directory = directory;
+		this.debounce = debounce;
+		this.retry = retry;
+		this.watchService = directory.getFileSystem().newWatchService();
+		this.thread = new Thread(this::run, "dapnet-config");
+		this.thread.setDaemon(true);
+
+		directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+	}
+
+	/**
+	 * Opens the profiles found in the configuration directory and starts watching
+	 * it for changes.
+	 */
+	public void start() {
+		LOGGER.log(Level.INFO, "Loading profiles from {0}", directory);
+
+		complete = reload();
+		thread.start();
+	}
+
+	/**
+	 * Stops watching the configuration directory. The open profiles are not
+	 * closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		watchService.close();
+	}
+
+	private void run() {
+		try {
+			while (true) {
+				// Profiles that failed to open are retried without a change
+				WatchKey key = complete ? watchService.take() : watchService.poll(retry, TimeUnit.MILLISECONDS);
+				boolean valid = key == null || drain(key);
+
+				// Wait until the directory has been quiet for the debounce time
+				while ((key = watchService.poll(debounce, TimeUnit.MILLISECONDS)) != null) {
+					valid &= drain(key);
+				}
+
+				complete = reload();
+
+				if (!valid) {
+					LOGGER.log(Level.SEVERE, "Configuration directory {0} is no longer accessible.", directory);
+					break;
+				}
+			}
+		} catch (ClosedWatchServiceException | InterruptedException ex) {
+			// Watcher has been closed
+		} catch (Exception ex) {
+			LOGGER.log(Level.SEVERE, "Configuration watcher failed.", ex);
+		}
+	}
+
+	private static boolean drain(WatchKey key) {
+		key.pollEvents();
+		return key.reset();
+	}
+
+	/**
+	 * Loads all profiles from the configuration directory and applies the
+	 * differences to the open profiles. Only called from a single thread.
+	 *
+	 * @return {@code false} if a profile could not be opened
+	 */
+	boolean reload() {
+		Map<Path, ConnectionSettings> loadedFiles = load();
+
+		Map<String, ConnectionSettings> loaded = new LinkedHashMap<>();
+		for (Map.Entry<Path, ConnectionSettings> e : loadedFiles.entrySet()) {
+			String name = e.getValue().getProfileName();
+			if (loaded.putIfAbsent(name, e.getValue()) != null) {
+				LOGGER.log(Level.SEVERE, "Ignoring {0}: duplicate profile name {1}.",
+						new Object[] { e.getKey(), name });
+			}
+		}
+
+		Map<String, ConnectionSettings> applied = new HashMap<>();
+		for (Map.Entry<String, ConnectionSettings> e : profiles.entrySet()) {
+			if (!loaded.containsKey(e.getKey())) {
+				manager.closeConnection(e.getKey());
+			}
+		}
+
+		boolean complete = true;
+		for (ConnectionSettings settings : loaded.values()) {
+			String name = settings.getProfileName();
+			ConnectionSettings current = profiles.get(name);
+
+			try {
+				if (current == null) {
+					manager.openConnection(settings);
+				} else if (!current.equals(settings)) {
+					// Wait for the reopen, so a failure is retried
+					manager.reopenConnection(settings).get();
+				}
+
+				applied.put(name, settings);
+			} catch (Exception ex) {
+				LOGGER.log(Level.SEVERE, name + " Failed to open profile.",
+						ex instanceof ExecutionException ? ex.getCause() : ex);
+				complete = false;
+				if (current != null) {
+					applied.put(name, current);
+				}
+			}
+		}
+
+		files = loadedFiles;
+		profiles = applied;
+		return complete;
+	}
+
+	private Map<Path, ConnectionSettings> load() {
+		List<Path> paths = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+			stream.forEach(paths::add);
+		} catch (IOException ex) {
+			LOGGER.log(Level.SEVERE, "Failed to list configuration directory, keeping current profiles.", ex);
+			return files;
+		}
+
+		Collections.sort(paths);
+
+		Map<Path, ConnectionSettings> result = new LinkedHashMap<>();
+		for (Path path : paths) {
+			try {
+				result.put(path, ConnectionSettings.fromFile(path.toString()));
+			} catch (Exception ex) {
+				ConnectionSettings previous = files.get(path);
+				if (previous != null) {
+					LOGGER.log(Level.SEVERE, "Failed to load " + path + ", keeping previous settings.", ex);
+					result.put(path, previous);
+				} else {
+					LOGGER.log(Level.SEVERE, "Failed to load " + path + ".", ex);
+				}
+			}
+		}
+
+		return result;
+	}
+
+}
@@ -0,0 +1,658 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * This class holds the traffic counters of a connection profile. The counters
+ * are updated by the channel handlers without locking and survive reconnects.
+ * Lines and bytes received from the frontend server are counted as frontend
+ * traffic, lines and bytes received from the backend server as backend
+ * traffic.
+ *
+ * @author Philipp Thiel
+ */
+@JsonInclude(JsonInclude.Include.ALWAYS)
+public final class ConnectionMetrics {
+
+	/**
+	 * Number of DAPNET message types ({@code 0:} to {@code 7:}).
+	 */
+	public static final int MESSAGE_TYPES = 8;
+	private final String profileName;
+	private final LongAdder frontendLines = new LongAdder();
+	private final LongAdder frontendBytes = new LongAdder();
+	private final LongAdder backendLines = new LongAdder();
+	private final LongAdder backendBytes = new LongAdder();
+	private final LongAdder[] messageTypes = new LongAdder[MESSAGE_TYPES];
+	private final LongAdder sequencedMessages = new LongAdder();
+	private final LatencyHistogram keepAliveRtt = new LatencyHistogram();
+	private final LongAdder missedKeepAlives = new LongAdder();
+	private final LatencyHistogram frontendRelayLatency = new LatencyHistogram();
+	private final LatencyHistogram backendRelayLatency = new LatencyHistogram();
+	private final LatencyHistogram tlsHandshakeTime = new LatencyHistogram();
+	private final LatencyHistogram ackLatency = new LatencyHistogram();
+	private final LongAdder lostAcks = new LongAdder();
+	private final LongAdder duplicateAcks = new LongAdder();
+	private final LongAdder retriedMessages = new LongAdder();
+	private final LongAdder tlsResumedSessions = new LongAdder();
+	private final LongAdder reconnects = new LongAdder();
+	private final LongAdder handshakes = new LongAdder();
+	private final LongAdder writeFailures = new LongAdder();
+	private final LongAdder backendReconnects = new LongAdder();
+	private final LongAdder backendFailovers = new LongAdder();
+	private final LongAdder bufferedMessages = new LongAdder();
+	private final LongAdder droppedMessages = new LongAdder();
+	private final LongAdder spooledMessages = new LongAdder();
+	private final LongAdder replayedMessages = new LongAdder();
+	private final LongAdder oversizeFrames = new LongAdder();
+	private volatile long lastKeepAliveRtt = -1;
+	private volatile long smoothedKeepAliveRtt = -1;
+	private volatile long keepAliveRttVariance = -1;
+	private volatile long keepAliveTimeout = -1;
+	private volatile long lastTlsHandshakeTime = -1;
+	private volatile int outstandingAcks;
+	private volatile ProxyEventListener listener;
+
+	public ConnectionMetrics(String profileName) {
+		this.profileName = profileName;
+
+		for (int i = 0; i < messageTypes.length; ++i) {
+			messageTypes[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Records a line received from the frontend server.
+	 *
+	 * @param frame Decoded frame
+	 */
+	void recordFrontendLine(DapnetFrame frame) {
+		frontendLines.increment();
+		frontendBytes.add(frame.getContent().readableBytes());
+
+		if (frame.isSequenced()) {
+			sequencedMessages.increment();
+		}
+
+		if (frame.getType() < MESSAGE_TYPES) {
+			messageTypes[frame.getType()].increment();
+		}
+	}
+
+	/**
+	 * Records a line received from the backend server.
+	 *
+	 * @param frame Decoded frame
+	 */
+	void recordBackendLine(DapnetFrame frame) {
+		backendLines.increment();
+		backendBytes.add(frame.getContent().readableBytes());
+	}
+
+	/**
+	 * Records a line that has been discarded because it exceeded the maximum
+	 * line length.
+	 */
+	public void recordOversizeFrame() {
+		oversizeFrames.increment();
+	}
+
+	/**
+	 * Records a completed keep alive request.
+	 *
+	 * @param rttNanos Round trip time in nanoseconds
+	 */
+	public void recordKeepAlive(long rttNanos) {
+		keepAliveRtt.recordNanos(rttNanos);
+		lastKeepAliveRtt = rttNanos;
+
+		ProxyEventListener theListener = listener;
+		if (theListener != null) {
+			theListener.onKeepAlive(profileName, rttNanos);
+		}
+	}
+
+	/**
+	 * Records a keep alive request that has not been answered in time.
+	 */
+	public void recordMissedKeepAlive() {
+		missedKeepAlives.increment();
+	}
+
+	/**
+	 * Records the current keep alive estimates of the backend connection.
+	 *
+	 * @param smoothedRtt Smoothed round trip time in nanoseconds or -1
+	 * @param rttVariance Round trip time variation in nanoseconds or -1
+	 * @param timeout     Keep alive timeout in nanoseconds
+	 */
+	public void recordKeepAliveEstimate(long smoothedRtt, long rttVariance, long timeout) {
+		smoothedKeepAliveRtt = smoothedRtt;
+		keepAliveRttVariance = rttVariance;
+		keepAliveTimeout = timeout;
+	}
+
+	/**
+	 * Records a completed handshake with a backend server.
+	 */
+	public void recordHandshake() {
+		handshakes.increment();
+
+		ProxyEventListener theListener = listener;
+		if (theListener != null) {
+			theListener.onHandshakeCompleted(profileName);
+		}
+	}
+
+	/**
+	 * Records a completed TLS handshake with the frontend server.
+	 *
+	 * @param nanos   Handshake time in nanoseconds
+	 * @param resumed Whether a cached session has been resumed
+	 */
+	public void recordTlsHandshake(long nanos, boolean resumed) {
+		tlsHandshakeTime.recordNanos(nanos);
+		lastTlsHandshakeTime = nanos;
+
+		if (resumed) {
+			tlsResumedSessions.increment();
+		}
+	}
+
+	/**
+	 * Records a sequenced message acknowledged by the backend server.
+	 *
+	 * @param nanos Time from receiving the message until receiving the
+	 *              acknowledgement in nanoseconds
+	 */
+	public void recordAck(long nanos) {
+		ackLatency.recordNanos(nanos);
+	}
+
+	/**
+	 * Records a sequenced message that has not been acknowledged by the backend
+	 * server.
+	 */
+	public void recordLostAck() {
+		lostAcks.increment();
+	}
+
+	/**
+	 * Records an acknowledgement for a sequenced message that was not outstanding.
+	 */
+	public void recordDuplicateAck() {
+		duplicateAcks.increment();
+	}
+
+	/**
+	 * Records a sequenced message written to the backend server again.
+	 */
+	public void recordRetriedMessage() {
+		retriedMessages.increment();
+	}
+
+	/**
+	 * Sets the number of sequenced messages waiting for their acknowledgement.
+	 *
+	 * @param outstanding Number of messages
+	 */
+	public void setOutstandingAcks(int outstanding) {
+		outstandingAcks = outstanding;
+	}
+
+	/**
+	 * Sets the listener to report keep alive responses and completed handshakes
+	 * to.
+	 *
+	 * @param listener Listener or {@code null}
+	 */
+	void setListener(ProxyEventListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Records a scheduled reconnect.
+	 */
+	public void recordReconnect() {
+		reconnects.increment();
+	}
+
+	/**
+	 * Records a failed write operation.
+	 */
+	public void recordWriteFailure() {
+		writeFailures.increment();
+	}
+
+	/**
+	 * Records a scheduled backend reconnect while the frontend session is kept.
+	 */
+	public void recordBackendReconnect() {
+		backendReconnects.increment();
+	}
+
+	/**
+	 * Records a switch to the standby backend.
+	 */
+	public void recordBackendFailover() {
+		backendFailovers.increment();
+	}
+
+	/**
+	 * Records a message buffered while the backend is not connected.
+	 */
+	public void recordBufferedMessage() {
+		bufferedMessages.increment();
+	}
+
+	/**
+	 * Records a buffered message that has been dropped because the buffer was
+	 * full or the message expired.
+	 */
+	public void recordDroppedMessage() {
+		droppedMessages.increment();
+	}
+
+	/**
+	 * Records a page appended to the spool.
+	 */
+	public void recordSpooledMessage() {
+		spooledMessages.increment();
+	}
+
+	/**
+	 * Records a spooled page that has been acknowledged by the backend server.
+	 */
+	public void recordReplayedMessage() {
+		replayedMessages.increment();
+	}
+
+	/**
+	 * Gets the connection profile name.
+	 *
+	 * @return Connection profile name
+	 */
+	public String getProfileName() {
+		return profileName;
+	}
+
+	/**
+	 * Gets the number of lines received from the frontend server.
+	 *
+	 * @return Number of lines
+	 */
+	public long getFrontendLines() {
+		return frontendLines.sum();
+	}
+
+	/**
+	 * Gets the number of bytes received from the frontend server.
+	 *
+	 * @return Number of bytes including line delimiters
+	 */
+	public long getFrontendBytes() {
+		return frontendBytes.sum();
+	}
+
+	/**
+	 * Gets the number of lines received from the backend server.
+	 *
+	 * @return Number of lines
+	 */
+	public long getBackendLines() {
+		return backendLines.sum();
+	}
+
+	/**
+	 * Gets the number of bytes received from the backend server.
+	 *
+	 * @return Number of bytes including line delimiters
+	 */
+	public long getBackendBytes() {
+		return backendBytes.sum();
+	}
+
+	/**
+	 * Gets the number of messages received from the frontend server per message
+	 * type.
+	 *
+	 * @return Map of message type to number of messages
+	 */
+	public Map<String, Long> getMessageTypes() {
+		Map<String, Long> result = new LinkedHashMap<>();
+		for (int i = 0; i < messageTypes.length; ++i) {
+			result.put(Integer.toString(i), messageTypes[i].sum());
+		}
+
+		return result;
+	}
+
+	/**
+	 * Gets the number of messages of the given type received from the frontend
+	 * server.
+	 *
+	 * @param type Message type
+	 * @return Number of messages
+	 */
+	public long getMessageTypeCount(int type) {
+		return messageTypes[type].sum();
+	}
+
+	/**
+	 * Gets the number of sequenced ({@code #NN}) messages received from the
+	 * frontend server.
+	 *
+	 * @return Number of messages
+	 */
+	public long getSequencedMessages() {
+		return sequencedMessages.sum();
+	}
+
+	/**
+	 * Gets the number of completed keep alive requests.
+	 *
+	 * @return Number of keep alive requests
+	 */
+	public long getKeepAliveCount() {
+		return keepAliveRtt.getCount();
+	}
+
+	/**
+	 * Gets the round trip time of the last keep alive request.
+	 *
+	 * @return Round trip time in milliseconds or -1 if not available.
+	 */
+	public double getLastKeepAliveRtt() {
+		long rtt = lastKeepAliveRtt;
+		return rtt >= 0 ? toMillis(rtt) : -1;
+	}
+
+	/**
+	 * Gets the average keep alive round trip time.
+	 *
+	 * @return Round trip time in milliseconds or -1 if not available.
+	 */
+	public double getAverageKeepAliveRtt() {
+		long count = keepAliveRtt.getCount();
+		return count > 0 ? keepAliveRtt.getSum() / 1000.0 / count : -1;
+	}
+
+	/**
+	 * Gets the smoothed keep alive round trip time of the backend connection.
+	 *
+	 * @return Round trip time in milliseconds or -1 if not available.
+	 */
+	public double getSmoothedKeepAliveRtt() {
+		long rtt = smoothedKeepAliveRtt;
+		return rtt >= 0 ? toMillis(rtt) : -1;
+	}
+
+	/**
+	 * Gets the keep alive round trip time variation of the backend connection.
+	 *
+	 * @return Variation in milliseconds or -1 if not available.
+	 */
+	public double getKeepAliveRttVariance() {
+		long variance = keepAliveRttVariance;
+		return variance >= 0 ? toMillis(variance) : -1;
+	}
+
+	/**
+	 * Gets the time to wait for the response to a keep alive request.
+	 *
+	 * @return Timeout in milliseconds or -1 if not available.
+	 */
+	public double getKeepAliveTimeout() {
+		long timeout = keepAliveTimeout;
+		return timeout >= 0 ? toMillis(timeout) : -1;
+	}
+
+	/**
+	 * Gets the number of keep alive requests that have not been answered in time.
+	 *
+	 * @return Number of requests
+	 */
+	public long getMissedKeepAlives() {
+		return missedKeepAlives.sum();
+	}
+
+	/**
+	 * Gets the keep alive round trip time histogram.
+	 *
+	 * @return Histogram
+	 */
+	LatencyHistogram getKeepAliveRttHistogram() {
+		return keepAliveRtt;
+	}
+
+	/**
+	 * Gets the histogram of the time from reading a line from the frontend server
+	 * until it has been written to the backend server.
+	 *
+	 * @return Histogram
+	 */
+	LatencyHistogram getFrontendRelayLatency() {
+		return frontendRelayLatency;
+	}
+
+	/**
+	 * Gets the histogram of the time from reading a line from the backend server
+	 * until it has been written to the frontend server.
+	 *
+	 * @return Histogram
+	 */
+	LatencyHistogram getBackendRelayLatency() {
+		return backendRelayLatency;
+	}
+
+	/**
+	 * Gets the histogram of the TLS handshake times with the frontend server.
+	 *
+	 * @return Histogram
+	 */
+	LatencyHistogram getTlsHandshakeTime() {
+		return tlsHandshakeTime;
+	}
+
+	/**
+	 * Gets the histogram of the time from receiving a sequenced message until
+	 * receiving its acknowledgement from the backend server.
+	 *
+	 * @return Histogram
+	 */
+	LatencyHistogram getAckLatency() {
+		return ackLatency;
+	}
+
+	/**
+	 * Gets the number of sequenced messages acknowledged by the backend server.
+	 *
+	 * @return Number of messages
+	 */
+	public long getAcknowledgedMessages() {
+		return ackLatency.getCount();
+	}
+
+	/**
+	 * Gets the number of sequenced messages that have not been acknowledged in
+	 * time or before their sequence number was reused.
+	 *
+	 * @return Number of messages
+	 */
+	public long getLostAcks() {
+		return lostAcks.sum();
+	}
+
+	/**
+	 * Gets the number of acknowledgements received for sequenced messages that
+	 * were not outstanding.
+	 *
+	 * @return Number of acknowledgements
+	 */
+	public long getDuplicateAcks() {
+		return duplicateAcks.sum();
+	}
+
+	/**
+	 * Gets the number of sequenced messages written to the backend server again.
+	 *
+	 * @return Number of messages
+	 */
+	public long getRetriedMessages() {
+		return retriedMessages.sum();
+	}
+
+	/**
+	 * Gets the number of sequenced messages waiting for their acknowledgement.
+	 *
+	 * @return Number of messages
+	 */
+	public int getOutstandingAcks() {
+		return outstandingAcks;
+	}
+
+	/**
+	 * Gets the number of completed TLS handshakes with the frontend server.
+	 *
+	 * @return Number of handshakes
+	 */
+	public long getTlsHandshakes() {
+		return tlsHandshakeTime.getCount();
+	}
+
+	/**
+	 * Gets the number of TLS handshakes that resumed a cached session.
+	 *
+	 * @return Number of handshakes
+	 */
+	public long getTlsResumedSessions() {
+		return tlsResumedSessions.sum();
+	}
+
+	/**
+	 * Gets the time of the last TLS handshake with the frontend server.
+	 *
+	 * @return Handshake time in milliseconds or -1 if not available.
+	 */
+	public double getLastTlsHandshakeTime() {
+		long time = lastTlsHandshakeTime;
+		return time >= 0 ? toMillis(time) : -1;
+	}
+
+	/**
+	 * Gets the number of scheduled reconnects.
+	 *
+	 * @return Number of reconnects
+	 */
+	public long getReconnects() {
+		return reconnects.sum();
+	}
+
+	/**
+	 * Gets the number of completed backend handshakes.
+	 *
+	 * @return Number of handshakes
+	 */
+	public long getHandshakes() {
+		return handshakes.sum();
+	}
+
+	/**
+	 * Gets the number of failed write operations.
+	 *
+	 * @return Number of failed writes
+	 */
+	public long getWriteFailures() {
+		return writeFailures.sum();
+	}
+
+	/**
+	 * Gets the number of backend reconnects while the frontend session was kept.
+	 *
+	 * @return Number of reconnects
+	 */
+	public long getBackendReconnects() {
+		return backendReconnects.sum();
+	}
+
+	/**
+	 * Gets the number of switches to the standby backend.
+	 *
+	 * @return Number of switches
+	 */
+	public long getBackendFailovers() {
+		return backendFailovers.sum();
+	}
+
+	/**
+	 * Gets the number of messages buffered while the backend was not connected.
+	 *
+	 * @return Number of messages
+	 */
+	public long getBufferedMessages() {
+		return bufferedMessages.sum();
+	}
+
+	/**
+	 * Gets the number of buffered messages that have been dropped.
+	 *
+	 * @return Number of messages
+	 */
+	public long getDroppedMessages() {
+		return droppedMessages.sum();
+	}
+
+	/**
+	 * Gets the number of pages appended to the spool.
+	 *
+	 * @return Number of pages
+	 */
+	public long getSpooledMessages() {
+		return spooledMessages.sum();
+	}
+
+	/**
+	 * Gets the number of spooled pages that have been replayed and acknowledged.
+	 *
+	 * @return Number of pages
+	 */
+	public long getReplayedMessages() {
+		return replayedMessages.sum();
+	}
+
+	/**
+	 * Gets the number of lines discarded because they exceeded the maximum line
+	 * length.
+	 *
+	 * @return Number of lines
+	 */
+	public long getOversizeFrames() {
+		return oversizeFrames.sum();
+	}
+
+	private static double toMillis(long nanos) {
+		return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+}
@@ -21,22 +21,60 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
 import java.util.Properties;
 
 /**
- * This class contains the connection profile settings.
+ * This class contains the connection profile settings. Two instances are equal
+ * if they have been created from equal properties.
  *
  * @author Philipp Thiel
  */
 final class ConnectionSettings {
 
+	private final Properties properties = new Properties();
 	private final String profileName;
 	private final String frontendName;
 	private final String frontendKey;
 	private final SocketAddress frontendAddress;
-	private final SocketAddress backendAddress;
+	private final boolean frontendTls;
+	private final Path frontendTlsTrustCertificates;
+	private final String frontendTlsServerName;
+	private final List<SocketAddress> backendAddresses;
+	private final boolean backendStandby;
+	private final boolean backendFanout;
+	private final FanoutAckPolicy backendFanoutAck;
+	private final String workerGroup;
 	private final long reconnectSleepTime;
+	private final long reconnectMaxDelay;
+	private final long reconnectStableTime;
 	private final long backendTimeout;
+	private final long backendKeepAliveMinInterval;
+	private final long backendKeepAliveMinTimeout;
+	private final int backendKeepAliveProbes;
+	private final boolean backendKeepSession;
+	private final int backendBufferSize;
+	private final long backendBufferMaxAge;
+	private final boolean backendAckEarly;
+	private final long backendAckTimeout;
+	private final int backendAckRetries;
+	private final Path spoolDirectory;
+	private final int spoolSegmentSize;
+	private final int spoolMaxSegments;
+	private final int spoolMaxRejections;
+	private final long spoolFlushInterval;
+	private final boolean relayBatching;
+	private final int relayMaxPendingBytes;
+	private final int relayFlushConsolidation;
+	private final boolean tcpNoDelay;
+	private final boolean tcpQuickAck;
+	private final boolean keepAlive;
+	private final int tcpUserTimeout;
 
 	/**
 	 * Creates a settings instance by loading the settings from the given
@@ -46,6 +84,7 @@ final class ConnectionSettings {
 	 * @throws NullPointerException If a required settings is not found.
 	 */
 	public ConnectionSettings(Properties props) {
+		properties.putAll(props);
 		profileName = getString(props, "profileName");
 
 		// Retry sleep time
@@ -54,14 +93,138 @@ final class ConnectionSettings {
 			throw new IllegalArgumentException("Reconnect sleep time cannot be negative.");
 		}
 
+		// Reconnect backoff
+		reconnectMaxDelay = Math.max(reconnectSleepTime, getLong(props, "reconnect.maxDelay", 60000));
+		reconnectStableTime = getLong(props, "reconnect.stableTime", 60000);
+		if (reconnectStableTime < 0) {
+			throw new IllegalArgumentException("Reconnect stable time cannot be negative.");
+		}
+
+		// Event loop group
+		workerGroup = props.getProperty("workerGroup", WorkerGroups.DEFAULT_GROUP).trim();
+		if (workerGroup.isEmpty()) {
+			throw new IllegalArgumentException("Worker group name cannot be empty.");
+		}
+
 		// Frontend configuration
 		frontendName = getString(props, "frontend.name");
 		frontendKey = getString(props, "frontend.key");
 		frontendAddress = getAddress(props, "frontend.host", "frontend.port");
+		frontendTls = getBoolean(props, "frontend.tls", false);
+		String trust = props.getProperty("frontend.tls.trustCertificates", "").trim();
+		frontendTlsTrustCertificates = !trust.isEmpty() ? Paths.get(trust) : null;
+		frontendTlsServerName = props.getProperty("frontend.tls.serverName", getString(props, "frontend.host")).trim();
 
 		// Backend configuration
-		backendAddress = getAddress(props, "backend.host", "backend.port");
+		String hosts = props.getProperty("backend.hosts", "").trim();
+		if (!hosts.isEmpty()) {
+			backendAddresses = getAddressList(hosts);
+		} else {
+			backendAddresses = Collections.singletonList(getAddress(props, "backend.host", "backend.port"));
+		}
+
+		backendStandby = getBoolean(props, "backend.standby", false);
+		if (backendStandby && backendAddresses.size() < 2) {
+			throw new IllegalArgumentException("A standby backend requires at least two backend hosts.");
+		}
+
+		backendFanout = getBoolean(props, "backend.fanout", false);
+		backendFanoutAck = FanoutAckPolicy
+				.valueOf(props.getProperty("backend.fanout.ack", "all").trim().toUpperCase(Locale.ROOT));
+		if (backendFanout && backendAddresses.size() < 2) {
+			throw new IllegalArgumentException("Fan-out requires at least two backend hosts.");
+		} else if (backendFanout && backendStandby) {
+			throw new IllegalArgumentException("Fan-out cannot be combined with a standby backend.");
+		}
+
 		backendTimeout = getLong(props, "backend.timeout");
+		backendKeepAliveMinInterval = getLong(props, "backend.keepAlive.minInterval", 5000);
+		backendKeepAliveMinTimeout = getLong(props, "backend.keepAlive.minTimeout", 1000);
+		if (backendKeepAliveMinInterval < 0 || backendKeepAliveMinTimeout < 0) {
+			throw new IllegalArgumentException("Keep alive interval and timeout cannot be negative.");
+		}
+
+		backendKeepAliveProbes = getInt(props, "backend.keepAlive.probes", 3);
+		if (backendKeepAliveProbes < 1) {
+			throw new IllegalArgumentException("Keep alive probes must be at least 1.");
+		}
+		backendKeepSession = getBoolean(props, "backend.keepSession", false) || backendStandby;
+		backendBufferSize = getInt(props, "backend.buffer.size", 256);
+		if (backendBufferSize < 0) {
+			throw new IllegalArgumentException("Backend buffer size cannot be negative.");
+		}
+
+		backendBufferMaxAge = getLong(props, "backend.buffer.maxAge", 60000);
+		if (backendBufferMaxAge < 0) {
+			throw new IllegalArgumentException("Backend buffer max age cannot be negative.");
+		}
+
+		// Acknowledgement tracking
+		backendAckEarly = getBoolean(props, "backend.ack.early", false);
+		if (backendAckEarly && backendFanout) {
+			throw new IllegalArgumentException("Early acknowledgements cannot be combined with fan-out.");
+		}
+
+		backendAckTimeout = getLong(props, "backend.ack.timeout", 30000);
+		if (backendAckTimeout < 0) {
+			throw new IllegalArgumentException("Acknowledgement timeout cannot be negative.");
+		} else if (backendAckEarly && backendAckTimeout == 0) {
+			throw new IllegalArgumentException("Early acknowledgements require an acknowledgement timeout.");
+		}
+
+		backendAckRetries = getInt(props, "backend.ack.retries", 3);
+		if (backendAckRetries < 0) {
+			throw new IllegalArgumentException("Acknowledgement retries cannot be negative.");
+		}
+
+		// Page spool configuration
+		String spool = props.getProperty("spool.directory", "").trim();
+		spoolDirectory = !spool.isEmpty() ? Paths.get(spool) : null;
+		if (backendAckEarly && spoolDirectory == null) {
+			throw new IllegalArgumentException("Early acknowledgements require a spool directory.");
+		}
+
+		spoolSegmentSize = getInt(props, "spool.segmentSize", 1024 * 1024);
+		if (spoolSegmentSize < 4096) {
+			throw new IllegalArgumentException("Spool segment size must be at least 4096.");
+		}
+
+		spoolMaxSegments = getInt(props, "spool.maxSegments", 16);
+		if (spoolMaxSegments < 1) {
+			throw new IllegalArgumentException("Spool max segments must be at least 1.");
+		}
+
+		// Stored in the flags of a spool record
+		spoolMaxRejections = getInt(props, "spool.maxRejections", 3);
+		if (spoolMaxRejections < 0 || spoolMaxRejections > 127) {
+			throw new IllegalArgumentException("Spool max rejections must be between 0 and 127.");
+		}
+
+		spoolFlushInterval = getLong(props, "spool.flushInterval", 1000);
+		if (spoolFlushInterval < 0) {
+			throw new IllegalArgumentException("Spool flush interval cannot be negative.");
+		}
+
+		// Relay configuration
+		relayBatching = getBoolean(props, "relay.batching", false);
+		relayMaxPendingBytes = getInt(props, "relay.maxPendingBytes", 64 * 1024);
+		if (relayMaxPendingBytes < 2) {
+			throw new IllegalArgumentException("Max pending bytes must be at least 2.");
+		}
+
+		relayFlushConsolidation = getInt(props, "relay.flushConsolidation", 256);
+		if (relayFlushConsolidation < 0) {
+			throw new IllegalArgumentException("Flush consolidation cannot be negative.");
+		}
+
+		// Socket configuration
+		tcpNoDelay = getBoolean(props, "socket.tcpNoDelay", true);
+		tcpQuickAck = getBoolean(props, "socket.tcpQuickAck", false);
+		keepAlive = getBoolean(props, "socket.keepAlive", false);
+		tcpUserTimeout = getInt(props, "socket.tcpUserTimeout", 0);
+		if (tcpUserTimeout < 0) {
+			throw new IllegalArgumentException("TCP user timeout cannot be negative.");
+		}
 	}
 
 	/**
@@ -99,6 +262,36 @@ final class ConnectionSettings {
 		return reconnectSleepTime;
 	}
 
+	/**
+	 * Gets the maximum time between retries in milliseconds. The time between
+	 * retries grows from the reconnect sleep time up to this value.
+	 *
+	 * @return Maximum time between retries in milliseconds.
+	 */
+	public long getReconnectMaxDelay() {
+		return reconnectMaxDelay;
+	}
+
+	/**
+	 * Gets the time in milliseconds a connection must stay open until the time
+	 * between retries is reset to the reconnect sleep time.
+	 *
+	 * @return Time in milliseconds.
+	 */
+	public long getReconnectStableTime() {
+		return reconnectStableTime;
+	}
+
+	/**
+	 * Gets the name of the event loop group the connections of this profile are
+	 * assigned to.
+	 *
+	 * @return Worker group name.
+	 */
+	public String getWorkerGroup() {
+		return workerGroup;
+	}
+
 	/**
 	 * Gets the frontend server address.
 	 *
@@ -127,23 +320,323 @@ final class ConnectionSettings {
 	}
 
 	/**
-	 * Gets the backend server address.
+	 * Tests if the connection to the frontend server is secured by TLS.
+	 *
+	 * @return {@code true} if TLS is used
+	 */
+	public boolean isFrontendTls() {
+		return frontendTls;
+	}
+
+	/**
+	 * Gets the file containing the certificates trusted for the frontend server.
+	 *
+	 * @return Path of a PEM file or {@code null} if the trust store of the JVM is
+	 *         used.
+	 */
+	public Path getFrontendTlsTrustCertificates() {
+		return frontendTlsTrustCertificates;
+	}
+
+	/**
+	 * Gets the name the certificate of the frontend server is verified against.
+	 * It is also sent as server name indication.
+	 *
+	 * @return Server name, the frontend host by default.
+	 */
+	public String getFrontendTlsServerName() {
+		return frontendTlsServerName;
+	}
+
+	/**
+	 * Gets the address of the first backend server.
 	 *
 	 * @return Backend server address.
 	 */
 	public SocketAddress getBackendAddress() {
-		return backendAddress;
+		return backendAddresses.get(0);
+	}
+
+	/**
+	 * Gets the backend server addresses in the order they are tried.
+	 *
+	 * @return Unmodifiable list of backend server addresses.
+	 */
+	public List<SocketAddress> getBackendAddresses() {
+		return backendAddresses;
+	}
+
+	/**
+	 * Returns whether a standby connection to the next backend server is kept
+	 * open. The frontend session is replayed to the standby backend in advance,
+	 * so it can take over immediately if the active backend fails. Implies that
+	 * the frontend session is kept.
+	 *
+	 * @return Whether a standby backend is used.
+	 */
+	public boolean isBackendStandby() {
+		return backendStandby;
+	}
+
+	/**
+	 * Returns whether the lines received from the frontend server are written to
+	 * all backend servers at once (fan-out mode).
+	 *
+	 * @return Whether fan-out mode is enabled.
+	 */
+	public boolean isBackendFanout() {
+		return backendFanout;
+	}
+
+	/**
+	 * Gets the policy used to forward page acknowledgements in fan-out mode.
+	 *
+	 * @return Acknowledgement policy.
+	 */
+	public FanoutAckPolicy getBackendFanoutAck() {
+		return backendFanoutAck;
 	}
 
 	/**
-	 * Gets the backend timeout in milliseconds.
+	 * Gets the backend timeout in milliseconds. This is the maximum time the
+	 * backend connection may be idle before a keep alive request is sent and the
+	 * maximum time to wait for its response.
 	 *
-	 * @return Backend timeout in milliseconds.
+	 * @return Backend timeout in milliseconds, keep alive requests are disabled
+	 *         if not positive.
 	 */
 	public long getBackendTimout() {
 		return backendTimeout;
 	}
 
+	/**
+	 * Gets the minimum time in milliseconds the backend connection must be idle
+	 * before a keep alive request is sent.
+	 *
+	 * @return Minimum interval in milliseconds.
+	 */
+	public long getBackendKeepAliveMinInterval() {
+		return backendKeepAliveMinInterval;
+	}
+
+	/**
+	 * Gets the minimum time in milliseconds to wait for the response to a keep
+	 * alive request.
+	 *
+	 * @return Minimum timeout in milliseconds.
+	 */
+	public long getBackendKeepAliveMinTimeout() {
+		return backendKeepAliveMinTimeout;
+	}
+
+	/**
+	 * Gets the number of keep alive requests in a row that may remain unanswered
+	 * before the backend connection is closed.
+	 *
+	 * @return Number of requests.
+	 */
+	public int getBackendKeepAliveProbes() {
+		return backendKeepAliveProbes;
+	}
+
+	/**
+	 * Returns whether the frontend connection is kept open while the backend
+	 * connection is re-established. Messages received in the meantime are
+	 * buffered.
+	 *
+	 * @return Whether the frontend session is kept.
+	 */
+	public boolean isBackendKeepSession() {
+		return backendKeepSession;
+	}
+
+	/**
+	 * Gets the maximum number of messages buffered while the backend is not
+	 * connected. The oldest message is dropped if the buffer is full.
+	 *
+	 * @return Maximum number of messages.
+	 */
+	public int getBackendBufferSize() {
+		return backendBufferSize;
+	}
+
+	/**
+	 * Gets the time in milliseconds after which a buffered message is dropped.
+	 *
+	 * @return Maximum age in milliseconds or 0 for no limit.
+	 */
+	public long getBackendBufferMaxAge() {
+		return backendBufferMaxAge;
+	}
+
+	/**
+	 * Returns whether sequenced messages are acknowledged to the frontend server
+	 * by the proxy as soon as they have been received. The acknowledgements of
+	 * the backend server are not forwarded then, unacknowledged messages are
+	 * written to the backend again.
+	 *
+	 * @return Whether early acknowledgements are enabled.
+	 */
+	public boolean isBackendAckEarly() {
+		return backendAckEarly;
+	}
+
+	/**
+	 * Gets the time in milliseconds after which a sequenced message that has not
+	 * been acknowledged by the backend is retried or counted as lost.
+	 *
+	 * @return Timeout in milliseconds or 0 to disable.
+	 */
+	public long getBackendAckTimeout() {
+		return backendAckTimeout;
+	}
+
+	/**
+	 * Gets the number of times an unacknowledged message is written to the
+	 * backend again if early acknowledgements are enabled.
+	 *
+	 * @return Number of retries.
+	 */
+	public int getBackendAckRetries() {
+		return backendAckRetries;
+	}
+
+	/**
+	 * Gets the directory pages that could not be relayed are spooled to. Each
+	 * profile uses a sub-directory named after the profile.
+	 *
+	 * @return Spool directory or {@code null} if spooling is disabled.
+	 */
+	public Path getSpoolDirectory() {
+		return spoolDirectory;
+	}
+
+	/**
+	 * Gets the size of a spool segment file in bytes.
+	 *
+	 * @return Segment size in bytes.
+	 */
+	public int getSpoolSegmentSize() {
+		return spoolSegmentSize;
+	}
+
+	/**
+	 * Gets the maximum number of spool segment files. The oldest segment is
+	 * dropped if a new segment would exceed this number.
+	 *
+	 * @return Maximum number of segments.
+	 */
+	public int getSpoolMaxSegments() {
+		return spoolMaxSegments;
+	}
+
+	/**
+	 * Gets the number of times a spooled page rejected by the backend is
+	 * replayed again before it is dropped.
+	 *
+	 * @return Maximum number of rejections.
+	 */
+	public int getSpoolMaxRejections() {
+		return spoolMaxRejections;
+	}
+
+	/**
+	 * Gets the interval in milliseconds in which spooled pages are forced to
+	 * disk.
+	 *
+	 * @return Flush interval in milliseconds or 0 to leave writing back to the
+	 *         operating system.
+	 */
+	public long getSpoolFlushInterval() {
+		return spoolFlushInterval;
+	}
+
+	/**
+	 * Returns whether relayed lines are batched. If enabled, lines are written as
+	 * they are read and flushed once per read operation. Otherwise each line is
+	 * flushed and the next line is read once the write has completed.
+	 *
+	 * @return Whether batching is enabled.
+	 */
+	public boolean isRelayBatching() {
+		return relayBatching;
+	}
+
+	/**
+	 * Gets the maximum number of bytes that may be pending in the outbound buffer
+	 * of a channel before reading from the peer channel is suspended.
+	 *
+	 * @return Maximum number of pending bytes.
+	 */
+	public int getRelayMaxPendingBytes() {
+		return relayMaxPendingBytes;
+	}
+
+	/**
+	 * Gets the number of flushes after which a flush is performed even if further
+	 * flushes could be consolidated. Only used if batching is enabled.
+	 *
+	 * @return Number of flushes or 0 if flush consolidation is disabled.
+	 */
+	public int getRelayFlushConsolidation() {
+		return relayFlushConsolidation;
+	}
+
+	/**
+	 * Returns whether Nagle's algorithm is disabled (TCP_NODELAY).
+	 *
+	 * @return Whether TCP_NODELAY is set.
+	 */
+	public boolean isTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	/**
+	 * Returns whether delayed acknowledgements are disabled (TCP_QUICKACK). Only
+	 * supported by the native transport.
+	 *
+	 * @return Whether TCP_QUICKACK is set.
+	 */
+	public boolean isTcpQuickAck() {
+		return tcpQuickAck;
+	}
+
+	/**
+	 * Returns whether TCP keep alive probes are enabled (SO_KEEPALIVE).
+	 *
+	 * @return Whether SO_KEEPALIVE is set.
+	 */
+	public boolean isKeepAlive() {
+		return keepAlive;
+	}
+
+	/**
+	 * Gets the time in milliseconds transmitted data may remain unacknowledged
+	 * before the connection is closed (TCP_USER_TIMEOUT). Only supported by the
+	 * native transport.
+	 *
+	 * @return TCP user timeout in milliseconds or 0 to use the system default.
+	 */
+	public int getTcpUserTimeout() {
+		return tcpUserTimeout;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		} else if (!(obj instanceof ConnectionSettings)) {
+			return false;
+		}
+
+		return properties.equals(((ConnectionSettings) obj).properties);
+	}
+
+	@Override
+	public int hashCode() {
+		return properties.hashCode();
+	}
+
 	private static String getString(Properties props, String key) {
 		String value = props.getProperty(key);
 		if (value != null) {
@@ -157,12 +650,47 @@ final class ConnectionSettings {
 		return new InetSocketAddress(getString(props, host), getInt(props, port));
 	}
 
+	private static List<SocketAddress> getAddressList(String value) {
+		List<SocketAddress> result = new ArrayList<>();
+		for (String entry : value.split(",")) {
+			entry = entry.trim();
+			int separator = entry.lastIndexOf(':');
+			if (separator <= 0 || separator == entry.length() - 1) {
+				throw new IllegalArgumentException("Invalid backend host, expected host:port: " + entry);
+			}
+
+			String host = entry.substring(0, separator);
+			if (host.startsWith("[") && host.endsWith("]")) {
+				host = host.substring(1, host.length() - 1);
+			}
+
+			result.add(new InetSocketAddress(host, Integer.parseInt(entry.substring(separator + 1))));
+		}
+
+		return Collections.unmodifiableList(result);
+	}
+
 	private static int getInt(Properties props, String key) {
 		return Integer.parseInt(getString(props, key));
 	}
 
+	private static int getInt(Properties props, String key, int defaultValue) {
+		String value = props.getProperty(key);
+		return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+	}
+
 	private static long getLong(Properties props, String key) {
 		return Long.parseLong(getString(props, key));
 	}
 
+	private static long getLong(Properties props, String key, long defaultValue) {
+		String value = props.getProperty(key);
+		return value != null ? Long.parseLong(value.trim()) : defaultValue;
+	}
+
+	private static boolean getBoolean(Properties props, String key, boolean defaultValue) {
+		String value = props.getProperty(key);
+		return value != null ? Boolean.parseBoolean(value.trim()) : defaultValue;
+	}
+
 }
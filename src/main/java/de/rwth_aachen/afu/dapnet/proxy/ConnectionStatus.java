@@ -12,7 +12,7 @@
  * GNU General Public License for more details.
  *
  * You should have received a copy of the GNU General Public License
- * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
  */
 package de.rwth_aachen.afu.dapnet.proxy;
 
@@ -22,12 +22,13 @@ import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 
 /**
- * This class holds connection status information.
+ * This class holds connection status information. Instances are immutable, a
+ * status change creates a new instance.
  *
  * @author Philipp Thiel
  */
 @JsonInclude(JsonInclude.Include.ALWAYS)
-public class ConnectionStatus {
+public final class ConnectionStatus {
 
 	public enum State {
 		CONNECTING, ONLINE, OFFLINE
@@ -35,13 +36,68 @@ public class ConnectionStatus {
 
 	private final String profileName;
 	@JsonSerialize(using = InstantJsonSerializer.class)
-	private Instant lastUpdate;
+	private final Instant lastUpdate;
 	@JsonSerialize(using = InstantJsonSerializer.class)
-	private Instant connectedSince;
-	private State state = State.CONNECTING;
+	private final Instant connectedSince;
+	private final State state;
+	private final int reconnectAttempts;
+	@JsonSerialize(using = InstantJsonSerializer.class)
+	private final Instant nextReconnect;
+
+	/**
+	 * Creates the status of a newly registered connection.
+	 *
+	 * @param profileName Connection profile name
+	 * @param lastUpdate  Registration time
+	 */
+	public ConnectionStatus(String profileName, Instant lastUpdate) {
+		this(profileName, lastUpdate, null, State.CONNECTING, 0, null);
+	}
 
-	public ConnectionStatus(String profileName) {
+	private ConnectionStatus(String profileName, Instant lastUpdate, Instant connectedSince, State state,
+			int reconnectAttempts, Instant nextReconnect) {
 		this.profileName = profileName;
+		this.lastUpdate = lastUpdate;
+		this.connectedSince = connectedSince;
+		this.state = state;
+		this.reconnectAttempts = reconnectAttempts;
+		this.nextReconnect = nextReconnect;
+	}
+
+	/**
+	 * Creates the status after the connection has been established.
+	 *
+	 * @param now Current time
+	 * @return New status
+	 */
+	public ConnectionStatus connected(Instant now) {
+		return new ConnectionStatus(profileName, now, now, State.ONLINE, reconnectAttempts, null);
+	}
+
+	/**
+	 * Creates the status after the connection has been closed.
+	 *
+	 * @param now       Current time
+	 * @param reconnect Whether a reconnect attempt is made or not.
+	 * @return New status
+	 */
+	public ConnectionStatus disconnected(Instant now, boolean reconnect) {
+		return new ConnectionStatus(profileName, now, null, reconnect ? State.CONNECTING : State.OFFLINE,
+				reconnectAttempts, nextReconnect);
+	}
+
+	/**
+	 * Creates the status after a reconnect has been scheduled or the reconnect
+	 * delay has been reset.
+	 *
+	 * @param now         Current time
+	 * @param attempts    Number of reconnect attempts since the last reset.
+	 * @param nextAttempt Time of the next attempt or {@code null} if none is
+	 *                    scheduled.
+	 * @return New status
+	 */
+	public ConnectionStatus reconnectScheduled(Instant now, int attempts, Instant nextAttempt) {
+		return new ConnectionStatus(profileName, now, connectedSince, state, attempts, nextAttempt);
 	}
 
 	/**
@@ -62,15 +118,6 @@ public class ConnectionStatus {
 		return lastUpdate;
 	}
 
-	/**
-	 * Sets the last update timestamp
-	 *
-	 * @param lastUpdate Last update time
-	 */
-	public void setLastUpdate(Instant lastUpdate) {
-		this.lastUpdate = lastUpdate;
-	}
-
 	/**
 	 * Gets the time since the connection has been established.
 	 *
@@ -80,21 +127,27 @@ public class ConnectionStatus {
 		return connectedSince;
 	}
 
+	public State getState() {
+		return state;
+	}
+
 	/**
-	 * Sets the time since the connection has been established.
+	 * Gets the number of reconnect attempts since the connection has last been
+	 * stable.
 	 *
-	 * @param connectedSince Time or {@code null} if not connected.
+	 * @return Number of attempts
 	 */
-	public void setConnectedSince(Instant connectedSince) {
-		this.connectedSince = connectedSince;
-	}
-
-	public State getState() {
-		return state;
+	public int getReconnectAttempts() {
+		return reconnectAttempts;
 	}
 
-	public void setState(State state) {
-		this.state = state;
+	/**
+	 * Gets the time of the next reconnect attempt.
+	 *
+	 * @return Time or {@code null} if no reconnect is scheduled.
+	 */
+	public Instant getNextReconnect() {
+		return nextReconnect;
 	}
 
 }
@@ -16,6 +16,7 @@
  */
 package de.rwth_aachen.afu.dapnet.proxy;
 
+import java.io.IOException;
 import java.net.URI;
 import java.time.Instant;
 import java.util.Collection;
@@ -24,60 +25,85 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
 
 import javax.ws.rs.core.UriBuilder;
 
 import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
+import org.glassfish.grizzly.threadpool.ThreadPoolConfig;
 import org.glassfish.jersey.grizzly2.httpserver.GrizzlyHttpServerFactory;
 import org.glassfish.jersey.internal.inject.AbstractBinder;
 import org.glassfish.jersey.jackson.JacksonFeature;
+import org.glassfish.jersey.media.sse.SseFeature;
 import org.glassfish.jersey.server.ResourceConfig;
 
 /**
  * This class provides an embedded REST server for querying connection status
- * information.
+ * information. The status of all connections is published as immutable
+ * snapshot, which is replaced on each change, so reading the status never
+ * blocks the event loops reporting the changes. The snapshot tag is used as
+ * entity tag of the status report and as event id of the status stream.
  *
  * @author Philipp Thiel
  */
 final class ConnectionStatusManager implements ProxyEventListener {
 
-	private final ConcurrentMap<String, ConnectionStatus> connections = new ConcurrentHashMap<>();
+	private final AtomicReference<StatusSnapshot> snapshot = new AtomicReference<>(StatusSnapshot.EMPTY);
+	private final ConcurrentMap<String, ConnectionMetrics> metrics = new ConcurrentHashMap<>();
+	private final OpenMetricsFormatter formatter = new OpenMetricsFormatter(this);
+	private final StatusStream stream = new StatusStream(this);
 	private volatile HttpServer server;
 
 	@Override
-	public void onRegister(String profileName) {
-		ConnectionStatus status = new ConnectionStatus(profileName);
-		status.setLastUpdate(Instant.now());
+	public void onRegister(String profileName, ConnectionMetrics profileMetrics) {
+		metrics.put(profileName, profileMetrics);
+		ConnectionStatus status = new ConnectionStatus(profileName, Instant.now());
 
-		connections.put(profileName, status);
+		StatusSnapshot current;
+		StatusSnapshot next;
+		do {
+			current = snapshot.get();
+			next = current.with(status);
+		} while (!snapshot.compareAndSet(current, next));
+
+		published(next, status);
 	}
 
 	@Override
-	public void onConnect(String profileName) {
-		ConnectionStatus status = connections.get(profileName);
-		if (status != null) {
-			synchronized (status) {
-				Instant now = Instant.now();
-
-				status.setLastUpdate(now);
-				status.setConnectedSince(now);
-				status.setState(ConnectionStatus.State.ONLINE);
+	public void onUnregister(String profileName) {
+		StatusSnapshot current;
+		StatusSnapshot next;
+		do {
+			current = snapshot.get();
+			if (current.get(profileName) == null) {
+				return;
 			}
-		}
+
+			next = current.without(profileName);
+		} while (!snapshot.compareAndSet(current, next));
+
+		metrics.remove(profileName);
+		stream.publishRemoved(next.getVersion(), profileName);
+	}
+
+	@Override
+	public void onConnect(String profileName) {
+		Instant now = Instant.now();
+		update(profileName, status -> status.connected(now));
 	}
 
 	@Override
 	public void onDisconnect(String profileName, boolean reconnect) {
-		ConnectionStatus status = connections.get(profileName);
-		if (status != null) {
-			synchronized (status) {
-				Instant now = Instant.now();
-
-				status.setLastUpdate(now);
-				status.setConnectedSince(null);
-				status.setState(reconnect ? ConnectionStatus.State.CONNECTING : ConnectionStatus.State.OFFLINE);
-			}
-		}
+		Instant now = Instant.now();
+		update(profileName, status -> status.disconnected(now, reconnect));
+	}
+
+	@Override
+	public void onReconnectStateChanged(String profileName, int attempt, Instant nextAttempt) {
+		Instant now = Instant.now();
+		update(profileName, status -> status.reconnectScheduled(now, attempt, nextAttempt));
 	}
 
 	@Override
@@ -85,13 +111,40 @@ final class ConnectionStatusManager implements ProxyEventListener {
 		shutdown();
 	}
 
+	/**
+	 * Gets the current status snapshot.
+	 *
+	 * @return Snapshot
+	 */
+	public StatusSnapshot getSnapshot() {
+		return snapshot.get();
+	}
+
+	/**
+	 * Gets the status version, which is incremented on each status change.
+	 *
+	 * @return Version number
+	 */
+	public long getVersion() {
+		return snapshot.get().getVersion();
+	}
+
+	/**
+	 * Gets the status stream.
+	 *
+	 * @return Status stream
+	 */
+	public StatusStream getStream() {
+		return stream;
+	}
+
 	/**
 	 * Gets an unmodifiable collection of all loaded connections.
 	 *
 	 * @return Collection of loaded connections.
 	 */
 	public Collection<ConnectionStatus> getConnections() {
-		return Collections.unmodifiableCollection(connections.values());
+		return snapshot.get().getConnections();
 	}
 
 	/**
@@ -102,16 +155,51 @@ final class ConnectionStatusManager implements ProxyEventListener {
 	 * @return Connection status object or {@code null} if name not found.
 	 */
 	public ConnectionStatus get(String name) {
-		return connections.get(name);
+		return snapshot.get().get(name);
+	}
+
+	/**
+	 * Gets an unmodifiable collection of the traffic counters of all loaded
+	 * connections.
+	 *
+	 * @return Collection of traffic counters.
+	 */
+	public Collection<ConnectionMetrics> getAllMetrics() {
+		return Collections.unmodifiableCollection(metrics.values());
+	}
+
+	/**
+	 * Gets the traffic counters of a connection profile.
+	 *
+	 * @param name Name of the connection profile. A case-sensitive lookup is
+	 *             performed.
+	 * @return Traffic counters or {@code null} if name not found.
+	 */
+	public ConnectionMetrics getMetrics(String name) {
+		return metrics.get(name);
+	}
+
+	/**
+	 * Renders the connection status, the traffic counters and the JVM and
+	 * allocator statistics in the OpenMetrics text format.
+	 *
+	 * @return UTF-8 encoded metrics
+	 */
+	public byte[] renderMetrics() {
+		return formatter.render();
 	}
 
 	/**
 	 * Starts the REST server on the given port. The server will listen on all
-	 * interfaces.
+	 * interfaces and use a single selector thread.
 	 *
-	 * @param port Port to listen on.
+	 * @param port    Port to listen on.
+	 * @param threads Number of dedicated worker threads.
+	 * @param admin   Proxy manager to expose the profile management API for, or
+	 *                {@code null} to disable it.
+	 * @throws IOException If the server could not be started.
 	 */
-	public void start(int port) {
+	public void start(int port, int threads, ProxyManager admin) throws IOException {
 		Map<String, Object> properties = new HashMap<>();
 		properties.put("proxyStatusManager", this);
 
@@ -119,7 +207,8 @@ final class ConnectionStatusManager implements ProxyEventListener {
 		URI baseUri = UriBuilder.fromUri("http://0.0.0.0/").port(port).build();
 
 		// Resource configuration
-		ResourceConfig config = new ResourceConfig(ConnectionStatusResource.class, JacksonFeature.class);
+		ResourceConfig config = new ResourceConfig(ConnectionStatusResource.class, MetricsResource.class,
+				JacksonFeature.class, SseFeature.class);
 		config.register(new AbstractBinder() {
 			@Override
 			protected void configure() {
@@ -127,18 +216,65 @@ final class ConnectionStatusManager implements ProxyEventListener {
 			}
 		});
 
+		if (admin != null) {
+			config.register(ProfileResource.class);
+			config.register(new AbstractBinder() {
+				@Override
+				protected void configure() {
+					bind(admin).to(ProxyManager.class);
+				}
+			});
+		}
+
+		// Thread configuration
+		HttpServer theServer = GrizzlyHttpServerFactory.createHttpServer(baseUri, config, false);
+		TCPNIOTransport transport = theServer.getListener("grizzly").getTransport();
+		transport.setSelectorRunnersCount(1);
+		transport.setKernelThreadPoolConfig(ThreadPoolConfig.defaultConfig().setPoolName("dapnet-rest-selector")
+				.setCorePoolSize(1).setMaxPoolSize(1));
+
+		transport.setWorkerThreadPoolConfig(ThreadPoolConfig.defaultConfig().setPoolName("dapnet-rest")
+				.setCorePoolSize(threads).setMaxPoolSize(threads));
+
 		// Start the server
-		server = GrizzlyHttpServerFactory.createHttpServer(baseUri, config);
+		theServer.start();
+		server = theServer;
 	}
 
 	/**
 	 * Stops the REST server.
 	 */
 	public void shutdown() {
+		stream.close();
+
 		HttpServer theServer = server;
 		if (theServer != null) {
 			theServer.shutdown();
 		}
 	}
 
+	private void update(String profileName, UnaryOperator<ConnectionStatus> change) {
+		StatusSnapshot current;
+		StatusSnapshot next;
+		ConnectionStatus status;
+		do {
+			current = snapshot.get();
+			status = current.get(profileName);
+			if (status == null) {
+				return;
+			}
+
+			status = change.apply(status);
+			next = current.with(status);
+		} while (!snapshot.compareAndSet(current, next));
+
+		published(next, status);
+	}
+
+	private void published(StatusSnapshot next, ConnectionStatus status) {
+		if (stream.isActive()) {
+			stream.publishStatus(next.getVersion(), status);
+		}
+	}
+
 }
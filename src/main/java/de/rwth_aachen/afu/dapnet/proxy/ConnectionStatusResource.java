@@ -16,18 +16,28 @@
  */
 package de.rwth_aachen.afu.dapnet.proxy;
 
-import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.inject.Inject;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseEventSink;
 
 /**
- * This class provides the REST API for the connection status report.
+ * This class provides the REST API for the connection status report. The
+ * status report is tagged with the status version and the start time of the
+ * process, so a conditional request for an unchanged status is answered with
+ * 304 (Not Modified), but not after a restart.
  *
  * @author Philipp Thiel
  */
@@ -39,22 +49,80 @@ public class ConnectionStatusResource {
 
 	@GET
 	@Produces(MediaType.APPLICATION_JSON)
-	public Response get() {
-		Collection<ConnectionStatus> active = manager.getConnections();
+	public Response get(@Context Request request) {
+		StatusSnapshot snapshot = manager.getSnapshot();
+		EntityTag tag = tagOf(snapshot);
+		Response.ResponseBuilder notModified = request.evaluatePreconditions(tag);
+		if (notModified != null) {
+			return notModified.build();
+		}
+
+		return Response.ok(snapshot.toJson()).tag(tag).build();
+	}
 
-		return Response.ok(active).build();
+	@GET
+	@Path("stream")
+	@Produces(MediaType.SERVER_SENT_EVENTS)
+	public void stream(@Context SseEventSink sink, @Context Sse sse) {
+		manager.getStream().register(sink, sse);
 	}
 
 	@GET
 	@Path("{name}")
 	@Produces(MediaType.APPLICATION_JSON)
-	public Response get(@PathParam("name") String name) {
-		ConnectionStatus status = manager.get(name);
-		if (status != null) {
-			return Response.ok(status).build();
+	public Response get(@PathParam("name") String name, @Context Request request) {
+		StatusSnapshot snapshot = manager.getSnapshot();
+		EntityTag tag = tagOf(snapshot);
+		ConnectionStatus status = snapshot.get(name);
+		if (status == null) {
+			return Response.status(Response.Status.NOT_FOUND).build();
+		}
+
+		Response.ResponseBuilder notModified = request.evaluatePreconditions(tag);
+		if (notModified != null) {
+			return notModified.build();
+		}
+
+		return Response.ok(status).tag(tag).build();
+	}
+
+	@GET
+	@Path("{name}/traffic")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response getTraffic(@PathParam("name") String name) {
+		ConnectionMetrics metrics = manager.getMetrics(name);
+		if (metrics != null) {
+			return Response.ok(metrics).build();
 		} else {
 			return Response.status(Response.Status.NOT_FOUND).build();
 		}
 	}
 
+	@GET
+	@Path("{name}/latency")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response getLatency(@PathParam("name") String name, @QueryParam("interval") boolean interval) {
+		ConnectionMetrics metrics = manager.getMetrics(name);
+		if (metrics == null) {
+			return Response.status(Response.Status.NOT_FOUND).build();
+		}
+
+		Map<String, LatencySnapshot> result = new LinkedHashMap<>();
+		result.put("frontend", snapshot(metrics.getFrontendRelayLatency(), interval));
+		result.put("backend", snapshot(metrics.getBackendRelayLatency(), interval));
+		result.put("keepAlive", snapshot(metrics.getKeepAliveRttHistogram(), interval));
+		result.put("tlsHandshake", snapshot(metrics.getTlsHandshakeTime(), interval));
+		result.put("ack", snapshot(metrics.getAckLatency(), interval));
+
+		return Response.ok(result).build();
+	}
+
+	private static EntityTag tagOf(StatusSnapshot snapshot) {
+		return new EntityTag(snapshot.getTag());
+	}
+
+	private static LatencySnapshot snapshot(LatencyHistogram histogram, boolean interval) {
+		return interval ? histogram.intervalSnapshot() : histogram.snapshot();
+	}
+
 }
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.Recycler;
+
+/**
+ * A line of the DAPNET protocol as decoded by the {@link DapnetFrameDecoder}.
+ * The frame keeps the received line including its line delimiter, so it can be
+ * relayed without copying, together with the message type, the sequence number
+ * and the position of the payload within the line.
+ *
+ * Lines of the form {@code <type>:<payload>} have the message type {@code 0}
+ * to {@code 7}, acknowledgements ({@code +}) and negative acknowledgements
+ * ({@code -}) have the types {@link #TYPE_ACK} and {@link #TYPE_NAK}. Each of
+ * them may be preceded by a hexadecimal sequence number ({@code #NN }). Welcome
+ * messages ({@code [...]}) have the type {@link #TYPE_WELCOME}, all other lines
+ * the type {@link #TYPE_OTHER} with the whole line as payload.
+ *
+ * Frames are recycled once released. Releasing a frame releases its reference
+ * to the line, so the line must be retained if it is relayed. This class must
+ * only be used from the event loop of the connection.
+ *
+ * @author Philipp Thiel
+ */
+final class DapnetFrame extends AbstractReferenceCounted {
+
+	/**
+	 * Message type of an acknowledgement ({@code +}).
+	 */
+	public static final int TYPE_ACK = ConnectionMetrics.MESSAGE_TYPES;
+	/**
+	 * Message type of a negative acknowledgement ({@code -}).
+	 */
+	public static final int TYPE_NAK = TYPE_ACK + 1;
+	/**
+	 * Message type of a welcome message ({@code [...]}).
+	 */
+	public static final int TYPE_WELCOME = TYPE_NAK + 1;
+	/**
+	 * Message type of all other lines.
+	 */
+	public static final int TYPE_OTHER = TYPE_WELCOME + 1;
+	private static final Recycler<DapnetFrame> RECYCLER = new Recycler<DapnetFrame>() {
+		@Override
+		protected DapnetFrame newObject(Handle<DapnetFrame> handle) {
+			return new DapnetFrame(handle);
+		}
+	};
+	private final Recycler.Handle<DapnetFrame> handle;
+	private ByteBuf content;
+	private int type;
+	private int sequence;
+	private int payloadOffset;
+	private int payloadLength;
+
+	private DapnetFrame(Recycler.Handle<DapnetFrame> handle) {
+		this.handle = handle;
+	}
+
+	/**
+	 * Parses a line frame.
+	 *
+	 * @param content Line frame including its line delimiter. The reference is
+	 *                transferred to the returned frame.
+	 * @return Frame, must be released by the caller.
+	 */
+	public static DapnetFrame parse(ByteBuf content) {
+		DapnetFrame frame = RECYCLER.get();
+		frame.setRefCnt(1);
+		frame.content = content;
+		frame.sequence = -1;
+
+		int start = content.readerIndex();
+		int end = start + LineBuffers.contentLength(content);
+		int pos = start;
+
+		// Sequence number: #NN <message>
+		if (pos < end && content.getByte(pos) == '#') {
+			int sequence = 0;
+			int digits = 0;
+			int digit;
+			++pos;
+			while (pos < end && digits < 2 && (digit = hexValue(content.getByte(pos))) >= 0) {
+				sequence = sequence * 16 + digit;
+				++digits;
+				++pos;
+			}
+
+			if (digits > 0 && pos < end && content.getByte(pos) == ' ') {
+				frame.sequence = sequence;
+				++pos;
+			} else {
+				pos = start;
+			}
+		}
+
+		int length = end - pos;
+		byte first = length > 0 ? content.getByte(pos) : 0;
+		if (length >= 2 && first >= '0' && first < '0' + ConnectionMetrics.MESSAGE_TYPES
+				&& content.getByte(pos + 1) == ':') {
+			frame.type = first - '0';
+			pos += 2;
+		} else if (length == 1 && first == '+') {
+			frame.type = TYPE_ACK;
+			++pos;
+		} else if (length == 1 && first == '-') {
+			frame.type = TYPE_NAK;
+			++pos;
+		} else if (first == '[' && frame.sequence < 0) {
+			frame.type = TYPE_WELCOME;
+		} else {
+			frame.type = TYPE_OTHER;
+			frame.sequence = -1;
+			pos = start;
+		}
+
+		frame.payloadOffset = pos;
+		frame.payloadLength = end - pos;
+		return frame;
+	}
+
+	/**
+	 * Gets the sequence number of a line frame without keeping the parsed frame.
+	 *
+	 * @param content Line frame including its line delimiter, will not be
+	 *                released.
+	 * @return Sequence number or -1 if the message is not sequenced.
+	 */
+	public static int sequenceOf(ByteBuf content) {
+		DapnetFrame frame = parse(content.retain());
+		try {
+			return frame.getSequence();
+		} finally {
+			frame.release();
+		}
+	}
+
+	/**
+	 * Gets the line frame including its line delimiter.
+	 *
+	 * @return Line frame
+	 */
+	public ByteBuf getContent() {
+		return content;
+	}
+
+	/**
+	 * Gets the message type, {@code 0} to {@code 7} for DAPNET messages or one of
+	 * the {@code TYPE_} constants.
+	 *
+	 * @return Message type
+	 */
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * Gets the sequence number.
+	 *
+	 * @return Sequence number or -1 if the message is not sequenced.
+	 */
+	public int getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Returns whether the message has a sequence number.
+	 *
+	 * @return {@code true} if sequenced
+	 */
+	public boolean isSequenced() {
+		return sequence >= 0;
+	}
+
+	/**
+	 * Tests if the message is of the given type and not sequenced.
+	 *
+	 * @param messageType Message type
+	 * @return {@code true} if the message is of the given type
+	 */
+	public boolean is(int messageType) {
+		return type == messageType && sequence < 0;
+	}
+
+	/**
+	 * Gets the index of the payload within the line frame.
+	 *
+	 * @return Index of the first payload byte
+	 */
+	public int getPayloadOffset() {
+		return payloadOffset;
+	}
+
+	/**
+	 * Gets the length of the payload excluding the line delimiter.
+	 *
+	 * @return Payload length in bytes
+	 */
+	public int getPayloadLength() {
+		return payloadLength;
+	}
+
+	/**
+	 * Tests if the payload starts with the given prefix.
+	 *
+	 * @param prefix Prefix bytes
+	 * @return {@code true} if the payload starts with the prefix
+	 */
+	public boolean payloadStartsWith(byte[] prefix) {
+		if (payloadLength < prefix.length) {
+			return false;
+		}
+
+		for (int i = 0; i < prefix.length; ++i) {
+			if (content.getByte(payloadOffset + i) != prefix[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	@Override
+	public DapnetFrame touch(Object hint) {
+		content.touch(hint);
+		return this;
+	}
+
+	@Override
+	protected void deallocate() {
+		ByteBuf theContent = content;
+		content = null;
+		handle.recycle(this);
+		theContent.release();
+	}
+
+	private static int hexValue(byte b) {
+		if (b >= '0' && b <= '9') {
+			return b - '0';
+		} else if (b >= 'A' && b <= 'F') {
+			return b - 'A' + 10;
+		} else if (b >= 'a' && b <= 'f') {
+			return b - 'a' + 10;
+		} else {
+			return -1;
+		}
+	}
+
+}
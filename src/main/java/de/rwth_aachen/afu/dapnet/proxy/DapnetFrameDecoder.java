@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.util.ByteProcessor;
+
+/**
+ * Splits the received bytes into lines and decodes them into
+ * {@link DapnetFrame DAPNET frames}. The lines are sliced from the received
+ * buffer including their line delimiter, so they can be relayed without
+ * copying.
+ *
+ * Lines longer than the maximum length are discarded up to and including their
+ * line delimiter and counted as oversize frames. Unlike the
+ * {@link io.netty.handler.codec.LineBasedFrameDecoder} no exception is raised,
+ * so an oversize line does not close the connection.
+ *
+ * @author Philipp Thiel
+ */
+final class DapnetFrameDecoder extends ByteToMessageDecoder {
+
+	/**
+	 * Default maximum length of a line excluding its line delimiter.
+	 */
+	public static final int DEFAULT_MAX_LENGTH = 1024;
+	private static final Logger LOGGER = Logger.getLogger(DapnetFrameDecoder.class.getName());
+	private final int maxLength;
+	private final ConnectionMetrics metrics;
+	private final ProfileLogger log;
+	private boolean discarding;
+	private int discarded;
+	private int offset;
+
+	/**
+	 * Creates a new decoder.
+	 *
+	 * @param maxLength   Maximum length of a line excluding its line delimiter
+	 * @param metrics     Traffic counters for oversize frames
+	 * @param profileName Connection profile name
+	 * @param direction   Direction of the connection, {@code frontend} or
+	 *                    {@code backend}
+	 */
+	public DapnetFrameDecoder(int maxLength, ConnectionMetrics metrics, String profileName, String direction) {
+		if (maxLength <= 0) {
+			throw new IllegalArgumentException("maxLength must be positive.");
+		}
+
+		this.maxLength = maxLength;
+		this.metrics = metrics;
+		this.log = new ProfileLogger(LOGGER, profileName, direction, null);
+	}
+
+	@Override
+	protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+		int start = in.readerIndex();
+		int readable = in.readableBytes();
+		int eol = in.forEachByte(start + offset, readable - offset, ByteProcessor.FIND_LF);
+
+		if (discarding) {
+			if (eol >= 0) {
+				discard(in, eol + 1 - start);
+			} else {
+				discarded += readable;
+				in.skipBytes(readable);
+			}
+			return;
+		}
+
+		if (eol < 0) {
+			// A line delimiter takes at most two bytes
+			if (readable > maxLength + 1) {
+				discarding = true;
+				discarded = readable;
+				offset = 0;
+				in.skipBytes(readable);
+			} else {
+				offset = readable;
+			}
+			return;
+		}
+
+		int length = eol + 1 - start;
+		int delimiter = eol > start && in.getByte(eol - 1) == '\r' ? 2 : 1;
+		if (length - delimiter > maxLength) {
+			discard(in, length);
+			return;
+		}
+
+		offset = 0;
+		out.add(DapnetFrame.parse(in.readRetainedSlice(length)));
+	}
+
+	private void discard(ByteBuf in, int length) {
+		in.skipBytes(length);
+		length += discarded;
+		discarding = false;
+		discarded = 0;
+		offset = 0;
+
+		metrics.recordOversizeFrame();
+		log.log(Level.WARNING, "{0} Discarded line of {1,number,#} bytes exceeding the limit of {2,number,#} bytes.",
+				length, maxLength);
+	}
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+/**
+ * Policy for forwarding page acknowledgements in fan-out mode.
+ *
+ * @author Philipp Thiel
+ */
+enum FanoutAckPolicy {
+
+	/**
+	 * The first acknowledgement of a page is forwarded.
+	 */
+	FIRST,
+
+	/**
+	 * The acknowledgement is forwarded once all backends the page has been
+	 * written to have acknowledged it.
+	 */
+	ALL,
+
+	/**
+	 * The acknowledgement is forwarded once the majority of the configured
+	 * backends has acknowledged the page. If fewer backends are ready, all
+	 * backends the page has been written to are required.
+	 */
+	QUORUM;
+
+	/**
+	 * Gets the number of acknowledgements required to forward the acknowledgement
+	 * of a page.
+	 *
+	 * @param targets  Number of backends the page has been written to
+	 * @param backends Number of configured backends
+	 * @return Number of acknowledgements
+	 */
+	public int required(int targets, int backends) {
+		switch (this) {
+		case FIRST:
+			return 1;
+		case QUORUM:
+			return Math.max(1, Math.min(backends / 2 + 1, targets));
+		default:
+			return Math.max(1, targets);
+		}
+	}
+
+}
@@ -0,0 +1,484 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+
+/**
+ * This class relays the lines of one frontend session to several backend
+ * servers (fan-out mode). Each line is written to every backend that is ready,
+ * each backend has its own outbound buffer. A backend that cannot keep up does
+ * not block the others unless all acknowledgements are required; the lines it
+ * cannot take are dropped for this backend.
+ *
+ * Lines received from the backends are forwarded from the leader only, which
+ * is the first backend that has become ready. Page acknowledgements are
+ * aggregated according to the {@link FanoutAckPolicy} instead. A backend
+ * answers the pages in the order they have been written to it, so the
+ * acknowledgements are matched by their position and not by their sequence
+ * number. A negative acknowledgement is forwarded instead once the policy can
+ * no longer be met. If all backends a page has been written to leave without
+ * answering it, the page is counted as dropped and rejected to the frontend.
+ *
+ * This class must only be used from the event loop of the connection.
+ *
+ * @author Philipp Thiel
+ */
+final class FanoutGroup {
+
+	private static final ByteBuf[] NAKS = new ByteBuf[AckTracker.SEQUENCE_COUNT];
+	private static final Logger LOGGER = Logger.getLogger(FanoutGroup.class.getName());
+	private final ProfileLogger log;
+	private final Channel inboundChannel;
+	private final ConnectionMetrics metrics;
+	private final FanoutAckPolicy policy;
+	private final boolean batching;
+	private final Channel[] members;
+	private final RelayWriteListener[] listeners;
+	private final Ordinals[] written;
+	private final ChannelFutureListener ackListener;
+	private int readyCount;
+	private int leader = -1;
+	// Pages awaiting acknowledgements, indexed by ordinal
+	private long nextOrdinal;
+	private long base;
+	private int head;
+	private int size;
+	private int[] counts = new int[16];
+	private int[] answers = new int[16];
+	private int[] targets = new int[16];
+	private int[] sequences = new int[16];
+	private boolean[] forwarded = new boolean[16];
+	private ByteBuf[] acks = new ByteBuf[16];
+	private ByteBuf[] naks = new ByteBuf[16];
+
+	static {
+		for (int i = 0; i < NAKS.length; ++i) {
+			NAKS[i] = LineBuffers.newLine(String.format("#%02X -", i));
+		}
+	}
+
+	/**
+	 * Creates a new fan-out group.
+	 *
+	 * @param settings       Connection settings
+	 * @param inboundChannel Frontend channel
+	 * @param metrics        Traffic counters of the connection profile
+	 */
+	public FanoutGroup(ConnectionSettings settings, Channel inboundChannel, ConnectionMetrics metrics) {
+		this.log = new ProfileLogger(LOGGER, settings.getProfileName(), "backend", null);
+		this.inboundChannel = inboundChannel;
+		this.metrics = metrics;
+		this.policy = settings.getBackendFanoutAck();
+		this.batching = settings.isRelayBatching();
+
+		int backends = settings.getBackendAddresses().size();
+		this.members = new Channel[backends];
+		this.listeners = new RelayWriteListener[backends];
+		this.written = new Ordinals[backends];
+		for (int i = 0; i < backends; ++i) {
+			written[i] = new Ordinals();
+		}
+
+		this.ackListener = (ChannelFuture f) -> {
+			if (!f.isSuccess()) {
+				metrics.recordWriteFailure();
+				f.channel().close();
+			}
+		};
+	}
+
+	/**
+	 * Adds a backend that is ready to receive lines.
+	 *
+	 * @param member  Index of the backend
+	 * @param channel Backend channel
+	 */
+	public void join(int member, Channel channel) {
+		if (members[member] != null) {
+			return;
+		}
+
+		members[member] = channel;
+		listeners[member] = new RelayWriteListener(metrics, metrics.getFrontendRelayLatency(), inboundChannel, false);
+		++readyCount;
+		if (leader < 0) {
+			leader = member;
+		}
+
+		log.log(Level.INFO, "{0} Backend {1,number,#} ready, {2,number,#} backends ready.", member, readyCount);
+
+		if (isWritable()) {
+			inboundChannel.read();
+		}
+	}
+
+	/**
+	 * Removes a backend. Acknowledgements still expected from this backend are no
+	 * longer waited for.
+	 *
+	 * @param member Index of the backend
+	 */
+	public void leave(int member) {
+		if (members[member] == null) {
+			return;
+		}
+
+		members[member] = null;
+		listeners[member] = null;
+		--readyCount;
+
+		Ordinals pending = written[member];
+		while (!pending.isEmpty()) {
+			int index = slot(pending.poll());
+			--targets[index];
+			if (forwarded[index]) {
+				continue;
+			}
+
+			// Forward the response that has been kept for this case
+			ByteBuf response = null;
+			if (counts[index] > 0 && isAcknowledged(index)) {
+				response = acks[index];
+				acks[index] = null;
+			} else if (naks[index] != null && isRejected(index)) {
+				response = naks[index];
+				naks[index] = null;
+			} else if (answers[index] >= targets[index]) {
+				// No backend is left to answer the page
+				log.log(Level.WARNING, "{0} Page #{1} has not been answered by any backend, rejecting it.",
+						String.format("%02X", sequences[index]));
+				metrics.recordDroppedMessage();
+				response = NAKS[sequences[index]].duplicate();
+			}
+
+			if (response != null) {
+				forwarded[index] = true;
+				if (inboundChannel.isActive()) {
+					inboundChannel.writeAndFlush(response).addListener(ackListener);
+				} else {
+					response.release();
+				}
+			}
+		}
+
+		removeCompleted();
+
+		if (leader == member) {
+			leader = -1;
+			for (int i = 0; i < members.length && leader < 0; ++i) {
+				if (members[i] != null) {
+					leader = i;
+				}
+			}
+		}
+
+		log.log(Level.INFO, "{0} Backend {1,number,#} left, {2,number,#} backends ready.", member, readyCount);
+	}
+
+	/**
+	 * Writes a line received from the frontend server to all ready backends.
+	 *
+	 * @param frame    Frame received from the frontend server
+	 * @param received Receive timestamp as returned by {@link System#nanoTime()}
+	 * @return Number of backends the line has been written to
+	 */
+	public int write(DapnetFrame frame, long received) {
+		ByteBuf content = frame.getContent();
+		boolean page = frame.isSequenced();
+		int count = 0;
+		for (int i = 0; i < members.length; ++i) {
+			Channel channel = members[i];
+			if (channel == null || !channel.isActive()) {
+				continue;
+			} else if (!channel.isWritable() && policy != FanoutAckPolicy.ALL) {
+				log.log(Level.FINE, "{0} Backend {1,number,#} is not writable, dropping message.", i);
+
+				metrics.recordDroppedMessage();
+				continue;
+			}
+
+			listeners[i].add(received);
+			if (batching) {
+				// Flushed in flush()
+				channel.write(content.retain()).addListener(listeners[i]);
+			} else {
+				channel.writeAndFlush(content.retain()).addListener(listeners[i]);
+			}
+
+			if (page) {
+				written[i].add(nextOrdinal);
+			}
+
+			++count;
+		}
+
+		if (page && count > 0) {
+			addPage(count, frame.getSequence());
+		}
+
+		return count;
+	}
+
+	/**
+	 * Decides whether a line received from a backend is forwarded to the frontend
+	 * server.
+	 *
+	 * @param member Index of the backend
+	 * @param frame  Frame received from the backend
+	 * @return {@code true} if the line is to be forwarded
+	 */
+	public boolean accept(int member, DapnetFrame frame) {
+		int type = frame.getType();
+		if (!frame.isSequenced() || (type != DapnetFrame.TYPE_ACK && type != DapnetFrame.TYPE_NAK)
+				|| written[member].isEmpty()) {
+			return member == leader;
+		}
+
+		int index = slot(written[member].poll());
+		boolean ack = type == DapnetFrame.TYPE_ACK;
+		++answers[index];
+		if (ack) {
+			++counts[index];
+		}
+
+		boolean forward = false;
+		if (!forwarded[index]) {
+			if (ack && isAcknowledged(index)) {
+				forwarded[index] = true;
+				forward = true;
+				releaseResponses(index);
+			} else if (!ack && isRejected(index)) {
+				// Enough backends have rejected the page to never meet the policy
+				forwarded[index] = true;
+				forward = true;
+				releaseResponses(index);
+			} else if (ack && acks[index] == null) {
+				// Forwarded if the remaining backends leave
+				acks[index] = frame.getContent().copy();
+			} else if (!ack && naks[index] == null) {
+				naks[index] = frame.getContent().copy();
+			}
+		}
+
+		removeCompleted();
+		return forward;
+	}
+
+	/**
+	 * Returns whether enough backends can take more lines, so the next line can
+	 * be read from the frontend server.
+	 *
+	 * @return {@code true} if the next line can be read
+	 */
+	public boolean isWritable() {
+		int writable = 0;
+		for (Channel channel : members) {
+			if (channel != null && channel.isWritable()) {
+				++writable;
+			}
+		}
+
+		int required = policy == FanoutAckPolicy.ALL ? readyCount
+				: Math.min(readyCount, policy.required(readyCount, members.length));
+		return readyCount > 0 && writable >= required;
+	}
+
+	/**
+	 * Flushes all backend channels.
+	 */
+	public void flush() {
+		for (Channel channel : members) {
+			if (channel != null) {
+				channel.flush();
+			}
+		}
+	}
+
+	/**
+	 * Requests a read from all backend channels.
+	 */
+	public void read() {
+		for (Channel channel : members) {
+			if (channel != null) {
+				channel.read();
+			}
+		}
+	}
+
+	/**
+	 * Resumes reading from the frontend server once enough backends are writable
+	 * again.
+	 */
+	public void onWritabilityChanged() {
+		if (isWritable()) {
+			inboundChannel.read();
+		}
+	}
+
+	/**
+	 * Removes all backends and releases all retained acknowledgements.
+	 */
+	public void release() {
+		for (int i = 0; i < members.length; ++i) {
+			members[i] = null;
+			listeners[i] = null;
+			written[i].clear();
+		}
+
+		readyCount = 0;
+		leader = -1;
+
+		while (size > 0) {
+			releaseResponses(head);
+			head = (head + 1) % counts.length;
+			--size;
+		}
+	}
+
+	private void addPage(int count, int sequence) {
+		if (size == counts.length) {
+			grow();
+		}
+
+		int index = (head + size) % counts.length;
+		counts[index] = 0;
+		answers[index] = 0;
+		targets[index] = count;
+		sequences[index] = sequence;
+		forwarded[index] = false;
+		acks[index] = null;
+		naks[index] = null;
+		++size;
+		++nextOrdinal;
+	}
+
+	private int slot(long ordinal) {
+		return (int) ((head + (ordinal - base)) % counts.length);
+	}
+
+	private boolean isAcknowledged(int index) {
+		return counts[index] >= policy.required(targets[index], members.length);
+	}
+
+	private boolean isRejected(int index) {
+		// Not even the backends that have not answered yet could meet the policy
+		int open = targets[index] - answers[index];
+		return counts[index] + open < policy.required(targets[index], members.length);
+	}
+
+	private void removeCompleted() {
+		while (size > 0 && answers[head] >= targets[head]) {
+			releaseResponses(head);
+			head = (head + 1) % counts.length;
+			--size;
+			++base;
+		}
+	}
+
+	private void releaseResponses(int index) {
+		if (acks[index] != null) {
+			acks[index].release();
+			acks[index] = null;
+		}
+
+		if (naks[index] != null) {
+			naks[index].release();
+			naks[index] = null;
+		}
+	}
+
+	private void grow() {
+		int capacity = counts.length * 2;
+		int[] newCounts = new int[capacity];
+		int[] newAnswers = new int[capacity];
+		int[] newTargets = new int[capacity];
+		int[] newSequences = new int[capacity];
+		boolean[] newForwarded = new boolean[capacity];
+		ByteBuf[] newAcks = new ByteBuf[capacity];
+		ByteBuf[] newNaks = new ByteBuf[capacity];
+
+		for (int i = 0; i < size; ++i) {
+			int index = (head + i) % counts.length;
+			newCounts[i] = counts[index];
+			newAnswers[i] = answers[index];
+			newTargets[i] = targets[index];
+			newSequences[i] = sequences[index];
+			newForwarded[i] = forwarded[index];
+			newAcks[i] = acks[index];
+			newNaks[i] = naks[index];
+		}
+
+		counts = newCounts;
+		answers = newAnswers;
+		targets = newTargets;
+		sequences = newSequences;
+		forwarded = newForwarded;
+		acks = newAcks;
+		naks = newNaks;
+		head = 0;
+	}
+
+	/**
+	 * Queue of the ordinals of the pages written to a backend.
+	 */
+	private static final class Ordinals {
+
+		private long[] values = new long[16];
+		private int head;
+		private int size;
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		void clear() {
+			head = 0;
+			size = 0;
+		}
+
+		void add(long value) {
+			if (size == values.length) {
+				long[] grown = new long[values.length * 2];
+				for (int i = 0; i < size; ++i) {
+					grown[i] = values[(head + i) % values.length];
+				}
+
+				values = grown;
+				head = 0;
+			}
+
+			values[(head + size) % values.length] = value;
+			++size;
+		}
+
+		long poll() {
+			long value = values[head];
+			head = (head + 1) % values.length;
+			--size;
+			return value;
+		}
+
+	}
+
+}
@@ -17,106 +17,543 @@
 package de.rwth_aachen.afu.dapnet.proxy;
 
 import java.net.ConnectException;
+import java.net.SocketAddress;
 import java.net.UnknownHostException;
+import java.nio.channels.ClosedChannelException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.ChannelOption;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.PromiseCombiner;
 
 /**
  * The frontend handler is responsible for the connection to the frontend
  * server. It will open a connection to the backend server once the connection
- * to the frontend server has been established.
+ * to the frontend server has been established. Received lines are forwarded to
+ * the backend server as received, only their message type is inspected.
+ *
+ * If the frontend session is kept, a lost backend connection is re-established
+ * while the frontend connection stays open. Lines received in the meantime are
+ * buffered and relayed once the session has been replayed to the new backend
+ * connection.
+ *
+ * If several backend servers are configured, they are tried in order until a
+ * connection succeeds and a failed backend is replaced by the next one. With a
+ * standby backend, a second backend connection is kept open and synchronized
+ * with the frontend session, so it can take over without a new connection.
+ *
+ * In fan-out mode all backend servers are connected at once and each line is
+ * written to all of them by a {@link FanoutGroup}. A failed backend is
+ * reconnected while the others continue, the frontend connection is closed
+ * once no backend is connected anymore.
+ *
+ * Pages that cannot be relayed because the backend connection is not active
+ * are appended to the page spool, if configured.
+ *
+ * If the frontend connection is secured by TLS, the backend is connected once
+ * the TLS handshake has been completed.
+ *
+ * Once the frontend connection has been closed, the session is released into
+ * the page spool and the backend connections are closed. The released promise
+ * is completed afterwards, so the spool is no longer used.
+ *
+ * The acknowledgements of sequenced messages are tracked by an
+ * {@link AckTracker}. With early acknowledgements, each sequenced message is
+ * acknowledged to the frontend server as soon as it has been received.
  *
  * @author Philipp Thiel
  */
-final class FrontendHandler extends SimpleChannelInboundHandler<String> {
+final class FrontendHandler extends SimpleChannelInboundHandler<DapnetFrame> {
 
 	private static final Logger LOGGER = Logger.getLogger(FrontendHandler.class.getName());
 	private final ConnectionSettings settings;
-	private final String profileName;
+	private final Transport transport;
+	private final ProfileLogger log;
+	private final boolean batching;
+	private final ConnectionMetrics metrics;
+	private final PageSpool spool;
+	private final Promise<Void> released;
+	private final List<SocketAddress> backends;
+	private RelayWriteListener writeListener;
+	private SessionBuffer session;
+	private AckTracker acks;
+	private FanoutGroup fanout;
+	private Channel[] memberChannels;
+	private long[] memberDelays;
 	private Channel outboundChannel;
+	private Channel standbyChannel;
+	private int backendIndex;
+	private int standbyIndex;
+	private long backendDelay;
+	private long standbyDelay;
+	private boolean tlsEstablished;
 
 	/**
 	 * Creates a new frontend handler.
 	 *
-	 * @param settings Settings instance
+	 * @param settings  Settings instance
+	 * @param transport Transport used for the backend connection
+	 * @param metrics   Traffic counters of the connection profile
+	 * @param spool     Page spool or {@code null} if pages are not spooled.
+	 * @param released  Completed once the frontend connection and all backend
+	 *                  connections have been closed.
 	 */
-	public FrontendHandler(ConnectionSettings settings) {
+	public FrontendHandler(ConnectionSettings settings, Transport transport, ConnectionMetrics metrics,
+			PageSpool spool, Promise<Void> released) {
 		this.settings = settings;
-		this.profileName = settings.getProfileName();
+		this.transport = transport;
+		this.log = new ProfileLogger(LOGGER, settings.getProfileName(), "frontend", null);
+		this.batching = settings.isRelayBatching();
+		this.metrics = metrics;
+		this.spool = spool;
+		this.released = released;
+		this.backends = settings.getBackendAddresses();
+	}
+
+	/**
+	 * Gets the connection to the active backend server.
+	 *
+	 * @return Backend channel or {@code null} if no connection has been opened
+	 *         yet.
+	 */
+	public Channel getOutboundChannel() {
+		return outboundChannel;
 	}
 
 	@Override
 	public void channelActive(ChannelHandlerContext ctx) throws Exception {
-		LOGGER.log(Level.INFO, "{0} Connected to frontend server.", profileName);
+		SslHandler ssl = ctx.pipeline().get(SslHandler.class);
+		if (ssl == null) {
+			log.log(Level.INFO, "{0} Connected to frontend server.");
+			onFrontendReady(ctx.channel());
+			return;
+		}
+
+		// Connect to the backend once the frontend server has been authenticated
+		final long started = System.nanoTime();
+		final long startedMillis = System.currentTimeMillis();
+		ssl.handshakeFuture().addListener(f -> {
+			if (f.isSuccess()) {
+				SSLSession tlsSession = ssl.engine().getSession();
+				boolean resumed = FrontendTls.isResumed(tlsSession, startedMillis);
+				metrics.recordTlsHandshake(System.nanoTime() - started, resumed);
+				tlsEstablished = true;
+
+				log.log(Level.INFO, "{0} Connected to frontend server using {1} ({2}).", tlsSession.getProtocol(),
+						resumed ? "resumed session" : "full handshake");
+				onFrontendReady(ctx.channel());
+			} else if (!(f.cause() instanceof ClosedChannelException)) {
+				log.log(Level.SEVERE, "{0} TLS handshake with frontend server failed: {1}", f.cause().getMessage());
+			}
+		});
+	}
 
-		final Channel inboundChannel = ctx.channel();
+	private void onFrontendReady(final Channel inboundChannel) {
+		writeListener = new RelayWriteListener(metrics, metrics.getFrontendRelayLatency(), inboundChannel, !batching);
 
+		if (spool != null) {
+			spool.beginSession();
+		}
+
+		acks = new AckTracker(settings, metrics, spool, inboundChannel.eventLoop());
+
+		if (settings.isBackendKeepSession() || settings.isBackendFanout()) {
+			session = new SessionBuffer(settings, metrics, spool, acks);
+		}
+
+		if (settings.isBackendFanout()) {
+			fanout = new FanoutGroup(settings, inboundChannel, metrics);
+			memberChannels = new Channel[backends.size()];
+			memberDelays = new long[backends.size()];
+			for (int i = 0; i < backends.size(); ++i) {
+				connectMember(inboundChannel, i);
+			}
+		} else {
+			connectBackend(inboundChannel, backends.size());
+		}
+	}
+
+	private Bootstrap newBackendBootstrap(Channel inboundChannel, boolean standby, int member) {
 		Bootstrap b = new Bootstrap();
 		b.group(inboundChannel.eventLoop());
-		b.channel(ctx.channel().getClass());
-		b.handler(new BackendInitializer(settings, inboundChannel));
-		b.option(ChannelOption.AUTO_READ, false);
+		// Spooled pages are not replayed in fan-out mode
+		b.handler(new BackendInitializer(settings, inboundChannel, metrics, session, fanout == null ? spool : null,
+				standby, fanout, member, acks));
+		transport.configure(b, settings);
+
+		return b;
+	}
 
-		ChannelFuture f = b.connect(settings.getBackendAddress());
+	private void connectBackend(final Channel inboundChannel, final int remaining) {
+		final boolean resume = session != null && session.isEstablished();
+
+		ChannelFuture f = newBackendBootstrap(inboundChannel, false, -1).connect(backends.get(backendIndex));
 		outboundChannel = f.channel();
 		f.addListener((ChannelFuture future) -> {
 			if (future.isSuccess()) {
-				inboundChannel.read();
+				backendDelay = 0;
+				if (session != null) {
+					future.channel().closeFuture().addListener(c -> onBackendClosed(inboundChannel));
+				}
+
+				// While resuming the frontend is read from anyway
+				if (!resume) {
+					inboundChannel.read();
+				}
+
+				if (settings.isBackendStandby()) {
+					connectStandby(inboundChannel);
+				}
 			} else {
 				Throwable cause = future.cause();
 				if (cause instanceof ConnectException || cause instanceof UnknownHostException) {
-					LOGGER.log(Level.SEVERE, profileName + " Failed to connect to backend: {0}",
-							future.cause().getMessage());
+					log.log(Level.SEVERE, "{0} Failed to connect to backend: {1}", future.cause().getMessage());
 				} else {
-					LOGGER.log(Level.SEVERE, profileName + " Failed to connect to backend.", cause);
+					log.log(Level.SEVERE, "{0} Failed to connect to backend.", cause);
 				}
 
-				inboundChannel.close();
+				// Try the next backend
+				backendIndex = (backendIndex + 1) % backends.size();
+				if (remaining > 1 && inboundChannel.isActive()) {
+					connectBackend(inboundChannel, remaining - 1);
+				} else if (resume) {
+					scheduleBackendReconnect(inboundChannel);
+				} else {
+					inboundChannel.close();
+				}
 			}
 		});
 	}
 
+	private void onBackendClosed(Channel inboundChannel) {
+		if (inboundChannel.isActive() && session.isEstablished()) {
+			session.setBackendReady(false);
+			if (!promoteStandby(inboundChannel)) {
+				backendIndex = (backendIndex + 1) % backends.size();
+				scheduleBackendReconnect(inboundChannel);
+			}
+		} else {
+			closeOnFlush(inboundChannel);
+		}
+	}
+
+	private void connectMember(final Channel inboundChannel, final int member) {
+		ChannelFuture f = newBackendBootstrap(inboundChannel, false, member).connect(backends.get(member));
+		memberChannels[member] = f.channel();
+		f.addListener((ChannelFuture future) -> {
+			if (future.isSuccess()) {
+				memberDelays[member] = 0;
+				future.channel().closeFuture().addListener(c -> onMemberClosed(inboundChannel, member));
+			} else {
+				log.log(Level.SEVERE, "{0} Failed to connect to backend {1}: {2}", backends.get(member),
+						future.cause().getMessage());
+				onMemberClosed(inboundChannel, member);
+			}
+		});
+	}
+
+	private void onMemberClosed(final Channel inboundChannel, final int member) {
+		memberChannels[member] = null;
+		if (!inboundChannel.isActive()) {
+			return;
+		}
+
+		boolean connected = false;
+		for (Channel channel : memberChannels) {
+			connected |= channel != null;
+		}
+
+		if (!connected) {
+			log.log(Level.SEVERE, "{0} No backend connected, closing frontend connection.");
+			closeOnFlush(inboundChannel);
+			return;
+		} else if (settings.getReconnectSleepTime() <= 0) {
+			return;
+		}
+
+		memberDelays[member] = ReconnectScheduler.nextDelay(memberDelays[member], settings.getReconnectSleepTime(),
+				settings.getReconnectMaxDelay());
+
+		log.log(Level.INFO, "{0} Reconnecting to backend {1} in {2,number,#} ms.",
+				backends.get(member), memberDelays[member]);
+
+		metrics.recordBackendReconnect();
+		inboundChannel.eventLoop().schedule(() -> {
+			if (inboundChannel.isActive() && memberChannels[member] == null) {
+				connectMember(inboundChannel, member);
+			}
+		}, memberDelays[member], TimeUnit.MILLISECONDS);
+	}
+
+	private void connectStandby(final Channel inboundChannel) {
+		if (!inboundChannel.isActive() || standbyChannel != null) {
+			return;
+		}
+
+		standbyIndex = (backendIndex + 1) % backends.size();
+		ChannelFuture f = newBackendBootstrap(inboundChannel, true, -1).connect(backends.get(standbyIndex));
+		standbyChannel = f.channel();
+		f.addListener((ChannelFuture future) -> {
+			if (future.isSuccess()) {
+				log.log(Level.INFO, "{0} Connected to standby backend.");
+				standbyDelay = 0;
+				future.channel().closeFuture().addListener(c -> onStandbyClosed(inboundChannel, future.channel()));
+			} else {
+				log.log(Level.WARNING, "{0} Failed to connect to standby backend: {1}", future.cause().getMessage());
+				onStandbyClosed(inboundChannel, future.channel());
+			}
+		});
+	}
+
+	private void onStandbyClosed(final Channel inboundChannel, Channel channel) {
+		// Ignore a promoted standby connection
+		if (standbyChannel != channel) {
+			return;
+		}
+
+		standbyChannel = null;
+		if (!inboundChannel.isActive() || settings.getReconnectSleepTime() <= 0) {
+			return;
+		}
+
+		standbyDelay = ReconnectScheduler.nextDelay(standbyDelay, settings.getReconnectSleepTime(),
+				settings.getReconnectMaxDelay());
+		inboundChannel.eventLoop().schedule(() -> connectStandby(inboundChannel), standbyDelay,
+				TimeUnit.MILLISECONDS);
+	}
+
+	private boolean promoteStandby(final Channel inboundChannel) {
+		Channel standby = standbyChannel;
+		BackendHandler handler = standby != null ? standby.pipeline().get(BackendHandler.class) : null;
+		if (handler == null || !standby.isActive()) {
+			return false;
+		}
+
+		log.log(Level.INFO, "{0} Switching to standby backend {1}.", backends.get(standbyIndex));
+
+		metrics.recordBackendFailover();
+		backendDelay = 0;
+		standbyChannel = null;
+		outboundChannel = standby;
+		backendIndex = standbyIndex;
+		standby.closeFuture().addListener(c -> onBackendClosed(inboundChannel));
+		handler.promote(standby);
+
+		connectStandby(inboundChannel);
+		return true;
+	}
+
+	private void scheduleBackendReconnect(final Channel inboundChannel) {
+		if (!inboundChannel.isActive()) {
+			return;
+		} else if (settings.getReconnectSleepTime() <= 0) {
+			closeOnFlush(inboundChannel);
+			return;
+		}
+
+		backendDelay = ReconnectScheduler.nextDelay(backendDelay, settings.getReconnectSleepTime(),
+				settings.getReconnectMaxDelay());
+
+		log.log(Level.INFO, "{0} Keeping frontend session, reconnecting to backend in {1,number,#} ms.", backendDelay);
+
+		metrics.recordBackendReconnect();
+		inboundChannel.eventLoop().schedule(() -> {
+			if (inboundChannel.isActive()) {
+				connectBackend(inboundChannel, backends.size());
+			}
+		}, backendDelay, TimeUnit.MILLISECONDS);
+	}
+
 	@Override
-	protected void channelRead0(final ChannelHandlerContext ctx, String msg) throws Exception {
-		LOGGER.log(Level.FINEST, "{0} Forwarding message from frontend to backend.", profileName);
+	protected void channelRead0(final ChannelHandlerContext ctx, DapnetFrame frame) throws Exception {
+		final long received = System.nanoTime();
+		final ByteBuf msg = frame.getContent();
 
-		if (outboundChannel.isActive()) {
-			outboundChannel.writeAndFlush(msg).addListener((ChannelFuture future) -> {
-				if (future.isSuccess()) {
-					ctx.channel().read();
-				} else {
-					future.channel().close();
-				}
-			});
+		log.log(Level.FINEST, "{0} Forwarding message from frontend to backend.");
+
+		metrics.recordFrontendLine(frame);
+
+		if (frame.isSequenced() && frame.getType() < ConnectionMetrics.MESSAGE_TYPES && acks != null) {
+			acks.onMessage(frame, received);
+			if (acks.isEarlyAck()) {
+				writeEarlyAck(ctx, frame.getSequence());
+			}
+		}
+
+		if (fanout != null) {
+			session.capture(frame);
+			if (fanout.write(frame, received) == 0) {
+				log.log(Level.WARNING, "{0} No backend ready, dropping message.");
+			}
+
+			// Otherwise reading is resumed once enough backends are writable
+			if (!batching && fanout.isWritable()) {
+				ctx.read();
+			}
+
+			return;
+		}
+
+		boolean sessionLine = session != null && session.capture(frame);
+		if (sessionLine && standbyChannel != null) {
+			mirrorToStandby(msg);
+		}
+
+		if (sessionLine && !session.isBackendReady()) {
+			// Replayed to the backend as part of the session
+			readNextWhileBuffering(ctx);
+		} else if (session != null && session.isEstablished()
+				&& (!outboundChannel.isActive() || !session.isBackendReady())) {
+			log.log(Level.FINE, "{0} Buffering message while backend is not ready.");
+			session.add(msg);
+			readNextWhileBuffering(ctx);
+		} else if (!outboundChannel.isActive() && spool != null && frame.isSequenced()) {
+			log.log(Level.FINE, "{0} Spooling page while outbound channel is not active.");
+			if (spool.append(msg) && acks != null) {
+				acks.onSpooled(msg);
+			}
+		} else if (!outboundChannel.isActive()) {
+			log.log(Level.WARNING, "{0} Outbound channel not active.");
+		} else if (batching) {
+			// Flushed in channelReadComplete
+			writeListener.add(received);
+			outboundChannel.write(msg.retain()).addListener(writeListener);
 		} else {
-			LOGGER.log(Level.WARNING, "{0} Outbound channel not active.", profileName);
+			writeListener.add(received);
+			outboundChannel.writeAndFlush(msg.retain()).addListener(writeListener);
+		}
+	}
+
+	private void writeEarlyAck(ChannelHandlerContext ctx, int sequence) {
+		ByteBuf ack = AckTracker.getAck(sequence).duplicate();
+		if (batching) {
+			// Flushed in channelReadComplete
+			ctx.write(ack, ctx.voidPromise());
+		} else {
+			ctx.writeAndFlush(ack, ctx.voidPromise());
+		}
+	}
+
+	private void mirrorToStandby(ByteBuf msg) {
+		BackendHandler handler = standbyChannel.pipeline().get(BackendHandler.class);
+		if (handler != null) {
+			handler.mirrorSessionLine(standbyChannel, msg);
+		}
+	}
+
+	private void readNextWhileBuffering(ChannelHandlerContext ctx) {
+		// Reading continues in channelReadComplete in batching mode
+		if (!batching) {
+			ctx.read();
+		}
+	}
+
+	@Override
+	public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+		if (batching && acks != null && acks.isEarlyAck()) {
+			ctx.flush();
+		}
+
+		if (batching && fanout != null) {
+			fanout.flush();
+			if (fanout.isWritable()) {
+				ctx.read();
+			}
+		} else if (batching && session != null && !session.isBackendReady()) {
+			ctx.read();
+		} else if (batching && outboundChannel != null && outboundChannel.isActive()) {
+			outboundChannel.flush();
+
+			// Continue reading once the backend has drained its outbound buffer
+			if (outboundChannel.isWritable()) {
+				ctx.read();
+			}
+		}
+	}
+
+	@Override
+	public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+		if (batching && ctx.channel().isWritable() && fanout != null) {
+			fanout.read();
+		} else if (batching && ctx.channel().isWritable() && outboundChannel != null) {
+			outboundChannel.read();
 		}
 	}
 
 	@Override
 	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-		LOGGER.log(Level.INFO, "{0} Disconnected from frontend server.", profileName);
+		log.log(Level.INFO, "{0} Disconnected from frontend server.");
 
+		PromiseCombiner closed = new PromiseCombiner(ctx.executor());
 		if (outboundChannel != null) {
-			closeOnFlush(outboundChannel);
+			closeBackend(outboundChannel, closed);
 		}
+
+		if (standbyChannel != null) {
+			Channel standby = standbyChannel;
+			standbyChannel = null;
+			standby.close();
+			closed.add(standby.closeFuture());
+		}
+
+		if (fanout != null) {
+			for (Channel channel : memberChannels) {
+				if (channel != null) {
+					closeBackend(channel, closed);
+				}
+			}
+
+			fanout.release();
+		}
+
+		if (session != null) {
+			session.release();
+		}
+
+		if (acks != null) {
+			acks.release();
+		}
+
+		// Acknowledgements of spooled pages are handled until the backends are closed
+		closed.finish(released);
+	}
+
+	private static void closeBackend(Channel channel, PromiseCombiner closed) {
+		if (channel.isActive()) {
+			closeOnFlush(channel);
+		} else {
+			// Still connecting
+			channel.close();
+		}
+
+		closed.add(channel.closeFuture());
 	}
 
 	@Override
 	public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
 		if (cause instanceof ConnectException) {
-			LOGGER.log(Level.SEVERE, profileName + " Could not connect to backend: {0}", cause.getMessage());
+			log.log(Level.SEVERE, "{0} Could not connect to backend: {1}", cause.getMessage());
+		} else if (cause.getCause() instanceof SSLException) {
+			// Handshake failures are logged by the handshake listener
+			if (tlsEstablished) {
+				log.log(Level.SEVERE, "{0} TLS error on frontend connection: {1}", cause.getCause().getMessage());
+			}
 		} else {
-			LOGGER.log(Level.SEVERE, profileName + " Exception in frontend handler.", cause);
+			log.log(Level.SEVERE, "{0} Exception in frontend handler.", cause);
 		}
 
 		closeOnFlush(ctx.channel());
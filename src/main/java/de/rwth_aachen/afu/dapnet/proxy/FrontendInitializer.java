@@ -16,42 +16,64 @@
  */
 package de.rwth_aachen.afu.dapnet.proxy;
 
-import java.nio.charset.StandardCharsets;
-
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
-import io.netty.channel.socket.SocketChannel;
-import io.netty.handler.codec.LineBasedFrameDecoder;
-import io.netty.handler.codec.string.StringDecoder;
-import io.netty.handler.codec.string.StringEncoder;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import io.netty.util.concurrent.Promise;
 
 /**
- * This class initializes the frontend channel pipeline.
+ * This class initializes the frontend channel pipeline. Lines are decoded into
+ * {@link DapnetFrame DAPNET frames}, which keep the line including its line
+ * delimiter so it can be relayed without copying. If TLS is enabled, the TLS
+ * handler is placed in front of the read gate, so the handshake is not held
+ * back by a paused profile. The welcome message encoder is shared by all
+ * connections of the profile.
  *
  * @author Philipp Thiel
  */
-final class FrontendInitializer extends ChannelInitializer<SocketChannel> {
+final class FrontendInitializer extends ChannelInitializer<Channel> {
 
-	private static final StringDecoder DECODER = new StringDecoder(StandardCharsets.US_ASCII);
-	private static final StringEncoder ENCODER = new StringEncoder(StandardCharsets.US_ASCII);
-	private static final LineBreakAdder LBA = new LineBreakAdder();
 	private final WelcomeMessageEncoder msgEncoder;
 	private final ConnectionSettings settings;
+	private final Transport transport;
+	private final ConnectionMetrics metrics;
+	private final PageSpool spool;
+	private final ReadGate gate;
+	private final FrontendTls tls;
+	private final Promise<Void> released;
 
-	public FrontendInitializer(ConnectionSettings settings) {
-		this.msgEncoder = new WelcomeMessageEncoder(settings.getFrontendName(), settings.getFrontendKey());
+	public FrontendInitializer(ConnectionSettings settings, Transport transport, ConnectionMetrics metrics,
+			PageSpool spool, ReadGate gate, FrontendTls tls, WelcomeMessageEncoder msgEncoder, Promise<Void> released) {
+		this.msgEncoder = msgEncoder;
 		this.settings = settings;
+		this.transport = transport;
+		this.metrics = metrics;
+		this.spool = spool;
+		this.gate = gate;
+		this.tls = tls;
+		this.released = released;
 	}
 
 	@Override
-	protected void initChannel(SocketChannel ch) throws Exception {
+	protected void initChannel(Channel ch) throws Exception {
 		ChannelPipeline p = ch.pipeline();
-		p.addLast(new LineBasedFrameDecoder(1024));
-		p.addLast(DECODER);
-		p.addLast(ENCODER);
-		p.addLast(LBA);
+		if (tls != null) {
+			p.addLast(tls.newHandler(ch.alloc()));
+		}
+
+		if (gate != null) {
+			p.addLast(gate);
+		}
+
+		if (settings.isRelayBatching() && settings.getRelayFlushConsolidation() > 0) {
+			p.addLast(new FlushConsolidationHandler(settings.getRelayFlushConsolidation(), true));
+		}
+
+		p.addLast(new DapnetFrameDecoder(DapnetFrameDecoder.DEFAULT_MAX_LENGTH, metrics, settings.getProfileName(),
+				"frontend"));
 		p.addLast(msgEncoder);
-		p.addLast(new FrontendHandler(settings));
+		p.addLast(new FrontendHandler(settings, transport, metrics, spool, released));
 	}
 
 }
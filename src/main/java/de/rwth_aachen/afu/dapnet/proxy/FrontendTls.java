@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.net.InetSocketAddress;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * The TLS client context of the frontend connection of a profile. The context
+ * is created once per profile and kept across reconnects. It caches the
+ * sessions negotiated with the frontend server, so a reconnect resumes the
+ * previous session with an abbreviated handshake.
+ *
+ * OpenSSL is used if netty-tcnative is on the class path, the TLS
+ * implementation of the JDK otherwise. The certificate of the frontend server
+ * is verified against the configured server name.
+ *
+ * @author Philipp Thiel
+ */
+final class FrontendTls {
+
+	private final SslContext context;
+	private final String serverName;
+	private final int port;
+
+	/**
+	 * Creates a new TLS context.
+	 *
+	 * @param settings Connection settings
+	 * @throws SSLException If the context could not be created, e.g. because the
+	 *                      trusted certificates could not be loaded.
+	 */
+	public FrontendTls(ConnectionSettings settings) throws SSLException {
+		SslContextBuilder builder = SslContextBuilder.forClient().sslProvider(getProvider());
+		if (settings.getFrontendTlsTrustCertificates() != null) {
+			builder.trustManager(settings.getFrontendTlsTrustCertificates().toFile());
+		}
+
+		this.context = builder.build();
+		this.serverName = settings.getFrontendTlsServerName();
+		this.port = ((InetSocketAddress) settings.getFrontendAddress()).getPort();
+	}
+
+	/**
+	 * Gets the TLS provider used for new contexts.
+	 *
+	 * @return {@link SslProvider#OPENSSL} if available, {@link SslProvider#JDK}
+	 *         otherwise.
+	 */
+	public static SslProvider getProvider() {
+		return OpenSsl.isAvailable() ? SslProvider.OPENSSL : SslProvider.JDK;
+	}
+
+	/**
+	 * Creates a TLS handler for a new connection. Sessions are cached per server
+	 * name and port.
+	 *
+	 * @param alloc Buffer allocator of the channel
+	 * @return TLS handler
+	 */
+	public SslHandler newHandler(ByteBufAllocator alloc) {
+		SslHandler handler = context.newHandler(alloc, serverName, port);
+
+		SSLEngine engine = handler.engine();
+		SSLParameters params = engine.getSSLParameters();
+		params.setEndpointIdentificationAlgorithm("HTTPS");
+		engine.setSSLParameters(params);
+
+		return handler;
+	}
+
+	/**
+	 * Tests if a session has been resumed from the session cache. A resumed
+	 * session has been created before the handshake has been started.
+	 *
+	 * @param session        Session
+	 * @param handshakeStart Start of the handshake in milliseconds since the
+	 *                       epoch.
+	 * @return {@code true} if the session has been resumed
+	 */
+	public static boolean isResumed(SSLSession session, long handshakeStart) {
+		return session.getCreationTime() < handshakeStart;
+	}
+
+	/**
+	 * Releases the context once the profile has been closed.
+	 */
+	public void close() {
+		ReferenceCountUtil.release(context);
+	}
+
+}
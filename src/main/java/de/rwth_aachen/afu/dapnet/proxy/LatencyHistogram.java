@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free latency histogram with logarithmic buckets. Values are recorded
+ * in microseconds. Values below 64 us are counted exactly, larger values are
+ * counted in 32 buckets per power of two, which gives a relative error of
+ * about 3 %. Values above about 71 minutes are counted in the last bucket.
+ * Recording a value does not allocate.
+ *
+ * The recorded values are never reset, so the histogram can be exported as
+ * cumulative counters. Interval snapshots report the values recorded since the
+ * previous interval snapshot instead.
+ *
+ * @author Philipp Thiel
+ */
+final class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int HALF_SUB_BUCKET_COUNT = SUB_BUCKET_COUNT / 2;
+	private static final int MAX_VALUE_BITS = 32;
+	private static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+	private static final int BUCKET_COUNT = index(MAX_VALUE) + 1;
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+	private long[] intervalCounts;
+
+	/**
+	 * Records a value given in nanoseconds.
+	 *
+	 * @param nanos Value in nanoseconds
+	 */
+	public void recordNanos(long nanos) {
+		record(TimeUnit.NANOSECONDS.toMicros(nanos));
+	}
+
+	/**
+	 * Records a value.
+	 *
+	 * @param micros Value in microseconds
+	 */
+	public void record(long micros) {
+		if (micros < 0) {
+			micros = 0;
+		}
+
+		counts.incrementAndGet(index(Math.min(micros, MAX_VALUE)));
+		count.increment();
+		sum.add(micros);
+
+		long current;
+		while (micros > (current = max.get())) {
+			if (max.compareAndSet(current, micros)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of recorded values.
+	 *
+	 * @return Number of values
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Gets the sum of all recorded values.
+	 *
+	 * @return Sum in microseconds
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+
+	/**
+	 * Gets the largest recorded value.
+	 *
+	 * @return Largest value in microseconds or 0 if no value has been recorded.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Gets the number of recorded values less than or equal to the given value.
+	 * Values sharing a bucket with the given value are included.
+	 *
+	 * @param micros Upper bound in microseconds
+	 * @return Number of values
+	 */
+	public long getCountAtOrBelow(long micros) {
+		int last = index(Math.max(0, Math.min(micros, MAX_VALUE)));
+
+		long result = 0;
+		for (int i = 0; i <= last; ++i) {
+			result += counts.get(i);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Creates a snapshot of all recorded values.
+	 *
+	 * @return Snapshot
+	 */
+	public LatencySnapshot snapshot() {
+		long[] current = new long[BUCKET_COUNT];
+		for (int i = 0; i < current.length; ++i) {
+			current[i] = counts.get(i);
+		}
+
+		return createSnapshot(current, max.get());
+	}
+
+	/**
+	 * Creates a snapshot of the values recorded since the previous interval
+	 * snapshot. The maximum is given with the precision of the bucket.
+	 *
+	 * @return Snapshot
+	 */
+	public synchronized LatencySnapshot intervalSnapshot() {
+		if (intervalCounts == null) {
+			intervalCounts = new long[BUCKET_COUNT];
+		}
+
+		long[] delta = new long[BUCKET_COUNT];
+		int highest = -1;
+		for (int i = 0; i < delta.length; ++i) {
+			long current = counts.get(i);
+			delta[i] = current - intervalCounts[i];
+			intervalCounts[i] = current;
+
+			if (delta[i] > 0) {
+				highest = i;
+			}
+		}
+
+		long intervalMax = highest >= 0 ? Math.min(upperBound(highest), max.get()) : 0;
+		return createSnapshot(delta, intervalMax);
+	}
+
+	private static LatencySnapshot createSnapshot(long[] buckets, long maxValue) {
+		long total = 0;
+		long sumOfValues = 0;
+		for (int i = 0; i < buckets.length; ++i) {
+			total += buckets[i];
+			sumOfValues += buckets[i] * ((lowerBound(i) + upperBound(i)) / 2);
+		}
+
+		return new LatencySnapshot(total, total > 0 ? sumOfValues / total : 0,
+				valueAtPercentile(buckets, total, 50.0, maxValue), valueAtPercentile(buckets, total, 99.0, maxValue),
+				valueAtPercentile(buckets, total, 99.9, maxValue), maxValue);
+	}
+
+	private static long valueAtPercentile(long[] buckets, long total, double percentile, long maxValue) {
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+		long seen = 0;
+		for (int i = 0; i < buckets.length; ++i) {
+			seen += buckets[i];
+			if (seen >= rank) {
+				return Math.min(upperBound(i), maxValue);
+			}
+		}
+
+		return maxValue;
+	}
+
+	static int index(long value) {
+		if (value < SUB_BUCKET_COUNT) {
+			return (int) value;
+		}
+
+		int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+		return shift * HALF_SUB_BUCKET_COUNT + (int) (value >>> shift);
+	}
+
+	static long lowerBound(int index) {
+		if (index < SUB_BUCKET_COUNT) {
+			return index;
+		}
+
+		int shift = index / HALF_SUB_BUCKET_COUNT - 1;
+		return (long) (index - shift * HALF_SUB_BUCKET_COUNT) << shift;
+	}
+
+	static long upperBound(int index) {
+		return index + 1 < BUCKET_COUNT ? lowerBound(index + 1) - 1 : MAX_VALUE;
+	}
+
+}
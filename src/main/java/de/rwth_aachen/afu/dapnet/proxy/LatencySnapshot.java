@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * This class holds the percentiles of a latency histogram. All values are given
+ * in milliseconds.
+ *
+ * @author Philipp Thiel
+ */
+@JsonInclude(JsonInclude.Include.ALWAYS)
+public final class LatencySnapshot {
+
+	private final long count;
+	private final long mean;
+	private final long p50;
+	private final long p99;
+	private final long p999;
+	private final long max;
+
+	LatencySnapshot(long count, long mean, long p50, long p99, long p999, long max) {
+		this.count = count;
+		this.mean = mean;
+		this.p50 = p50;
+		this.p99 = p99;
+		this.p999 = p999;
+		this.max = max;
+	}
+
+	/**
+	 * Gets the number of recorded values.
+	 *
+	 * @return Number of values
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Gets the mean value.
+	 *
+	 * @return Mean value in milliseconds
+	 */
+	public double getMean() {
+		return toMillis(mean);
+	}
+
+	/**
+	 * Gets the median.
+	 *
+	 * @return 50th percentile in milliseconds
+	 */
+	public double getP50() {
+		return toMillis(p50);
+	}
+
+	/**
+	 * Gets the 99th percentile.
+	 *
+	 * @return 99th percentile in milliseconds
+	 */
+	public double getP99() {
+		return toMillis(p99);
+	}
+
+	/**
+	 * Gets the 99.9th percentile.
+	 *
+	 * @return 99.9th percentile in milliseconds
+	 */
+	public double getP999() {
+		return toMillis(p999);
+	}
+
+	/**
+	 * Gets the largest value.
+	 *
+	 * @return Largest value in milliseconds
+	 */
+	public double getMax() {
+		return toMillis(max);
+	}
+
+	private static double toMillis(long micros) {
+		return micros / 1000.0;
+	}
+
+}
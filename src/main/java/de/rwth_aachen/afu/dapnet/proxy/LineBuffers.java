@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.nio.charset.StandardCharsets;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Helper methods for line frames kept in byte buffers. A line frame contains
+ * the line content followed by its line delimiter ({@code \n} or
+ * {@code \r\n}), exactly as received from the wire.
+ *
+ * @author Philipp Thiel
+ */
+final class LineBuffers {
+
+	private LineBuffers() {
+	}
+
+	/**
+	 * Encodes the given string as US-ASCII.
+	 *
+	 * @param value String to encode
+	 * @return Encoded bytes
+	 */
+	public static byte[] ascii(String value) {
+		return value.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Creates a constant line frame. The returned buffer cannot be released, use
+	 * {@link ByteBuf#duplicate()} when writing it to a channel.
+	 *
+	 * @param line Line content without delimiter
+	 * @return Line frame including the line delimiter
+	 */
+	public static ByteBuf newLine(String line) {
+		ByteBuf buf = Unpooled.copiedBuffer(ascii(line + "\n"));
+		return Unpooled.unreleasableBuffer(buf.asReadOnly());
+	}
+
+	/**
+	 * Gets the length of the line content excluding the line delimiter.
+	 *
+	 * @param frame Line frame
+	 * @return Content length in bytes
+	 */
+	public static int contentLength(ByteBuf frame) {
+		int length = frame.readableBytes();
+		int start = frame.readerIndex();
+
+		if (length > 0 && frame.getByte(start + length - 1) == '\n') {
+			--length;
+			if (length > 0 && frame.getByte(start + length - 1) == '\r') {
+				--length;
+			}
+		}
+
+		return length;
+	}
+
+	/**
+	 * Tests if the line content starts with the given prefix.
+	 *
+	 * @param frame  Line frame
+	 * @param prefix Prefix bytes
+	 * @return {@code true} if the content starts with the prefix
+	 */
+	public static boolean startsWith(ByteBuf frame, byte[] prefix) {
+		if (contentLength(frame) < prefix.length) {
+			return false;
+		}
+
+		int start = frame.readerIndex();
+		for (int i = 0; i < prefix.length; ++i) {
+			if (frame.getByte(start + i) != prefix[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Tests if the line content equals the given bytes.
+	 *
+	 * @param frame   Line frame
+	 * @param content Content bytes
+	 * @return {@code true} if the content is equal
+	 */
+	public static boolean contentEquals(ByteBuf frame, byte[] content) {
+		return contentLength(frame) == content.length && startsWith(frame, content);
+	}
+
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.SimpleFormatter;
+
+/**
+ * Rate limiter for identical log messages. Messages are identical if they are
+ * logged by the same logger with the same level, message pattern and
+ * connection profile; the remaining parameters are not compared. Of the
+ * identical messages logged within {@code dapnet.proxy.log.window}
+ * milliseconds (default 10000) the first {@code dapnet.proxy.log.burst}
+ * (default 10, 0 disables) are logged, the others are suppressed and
+ * summarized once the window has ended, e.g.
+ * {@code db0abc Suppressed 512 identical messages: Backend read timed out, closing channel.}
+ *
+ * Messages below level {@code INFO} are never suppressed. At most 4096
+ * messages are tracked at a time, further messages are not limited until
+ * windows have expired.
+ *
+ * @author Philipp Thiel
+ */
+final class LogRateLimiter {
+
+	static final String BURST_KEY = "dapnet.proxy.log.burst";
+	static final String WINDOW_KEY = "dapnet.proxy.log.window";
+	private static final int MAX_WINDOWS = 4096;
+	private static final String PROFILE_PREFIX = "{0} ";
+	private static final Formatter MESSAGES = new SimpleFormatter();
+	private final ConcurrentMap<String, Window> windows = new ConcurrentHashMap<>();
+	private final int burst;
+	private final long window;
+
+	/**
+	 * Creates a new instance using the settings from the system properties.
+	 */
+	public LogRateLimiter() {
+		this(Integer.getInteger(BURST_KEY, 10), Long.getLong(WINDOW_KEY, 10000));
+	}
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param burst  Number of identical messages logged per window or 0 to
+	 *               disable rate limiting.
+	 * @param window Window length in milliseconds
+	 */
+	public LogRateLimiter(int burst, long window) {
+		if (burst < 0) {
+			throw new IllegalArgumentException("Log burst cannot be negative.");
+		} else if (window < 1) {
+			throw new IllegalArgumentException("Log window must be at least 1 ms.");
+		}
+
+		this.burst = burst;
+		this.window = TimeUnit.MILLISECONDS.toNanos(window);
+	}
+
+	/**
+	 * Tests if a record may be logged. If the window of the message has ended
+	 * and messages have been suppressed in it, the summary is passed to the
+	 * consumer first.
+	 *
+	 * @param record    Log record
+	 * @param now       Current time as returned by {@link System#nanoTime()}
+	 * @param summaries Consumer of suppression summaries
+	 * @return {@code true} if the record may be logged
+	 */
+	public boolean admit(LogRecord record, long now, Consumer<LogRecord> summaries) {
+		if (burst == 0 || record.getLevel().intValue() < Level.INFO.intValue()) {
+			return true;
+		}
+
+		String key = key(record);
+		while (true) {
+			Window w = windows.get(key);
+			if (w == null) {
+				if (windows.size() >= MAX_WINDOWS) {
+					return true;
+				}
+
+				w = windows.computeIfAbsent(key, k -> new Window(now));
+			}
+
+			synchronized (w) {
+				if (w.expired) {
+					// Removed concurrently, use a new window
+					continue;
+				}
+
+				if (now - w.start >= window) {
+					if (w.suppressed > 0) {
+						summaries.accept(summary(w.sample, w.suppressed));
+					}
+
+					w.start = now;
+					w.count = 0;
+					w.suppressed = 0;
+					w.sample = null;
+				}
+
+				if (w.count < burst) {
+					++w.count;
+					return true;
+				}
+
+				if (w.suppressed++ == 0) {
+					w.sample = record;
+				}
+
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Removes the windows that have ended and passes the summaries of messages
+	 * suppressed in them to the consumer.
+	 *
+	 * @param now       Current time as returned by {@link System#nanoTime()}
+	 * @param summaries Consumer of suppression summaries
+	 */
+	public void expire(long now, Consumer<LogRecord> summaries) {
+		expire(now, false, summaries);
+	}
+
+	/**
+	 * Removes all windows and passes the summaries of messages suppressed in them
+	 * to the consumer.
+	 *
+	 * @param summaries Consumer of suppression summaries
+	 */
+	public void expireAll(Consumer<LogRecord> summaries) {
+		expire(0, true, summaries);
+	}
+
+	private void expire(long now, boolean all, Consumer<LogRecord> summaries) {
+		Iterator<Window> it = windows.values().iterator();
+		while (it.hasNext()) {
+			Window w = it.next();
+			synchronized (w) {
+				if (all || now - w.start >= window) {
+					if (w.suppressed > 0) {
+						summaries.accept(summary(w.sample, w.suppressed));
+					}
+
+					w.expired = true;
+					it.remove();
+				}
+			}
+		}
+	}
+
+	private static String key(LogRecord record) {
+		StringBuilder sb = new StringBuilder(128);
+		sb.append(record.getLoggerName()).append('\0').append(record.getLevel().intValue()).append('\0')
+				.append(record.getMessage());
+
+		String profileName = getProfileName(record);
+		if (profileName != null) {
+			sb.append('\0').append(profileName);
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Gets the connection profile name of a record.
+	 *
+	 * @param record Log record
+	 * @return Profile name or {@code null} if the record does not belong to a
+	 *         connection profile.
+	 */
+	static String getProfileName(LogRecord record) {
+		if (record instanceof ProfileLogRecord) {
+			return ((ProfileLogRecord) record).getProfileName();
+		}
+
+		String msg = record.getMessage();
+		Object[] params = record.getParameters();
+		if (msg != null && msg.startsWith(PROFILE_PREFIX) && params != null && params.length > 0) {
+			return String.valueOf(params[0]);
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * Formats the message of a record without the leading profile name.
+	 *
+	 * @param record Log record
+	 * @return Message
+	 */
+	static String formatMessage(LogRecord record) {
+		String msg = MESSAGES.formatMessage(record);
+
+		String profileName = getProfileName(record);
+		if (profileName != null && msg.startsWith(profileName + " ")) {
+			return msg.substring(profileName.length() + 1);
+		} else {
+			return msg;
+		}
+	}
+
+	private static LogRecord summary(LogRecord sample, long suppressed) {
+		String profileName = getProfileName(sample);
+
+		LogRecord summary;
+		if (sample instanceof ProfileLogRecord) {
+			ProfileLogRecord profileSample = (ProfileLogRecord) sample;
+			summary = new ProfileLogRecord(sample.getLevel(), "{0} Suppressed {1,number,#} identical messages: {2}",
+					profileName, profileSample.getDirection(), profileSample.getState());
+		} else if (profileName != null) {
+			summary = new LogRecord(sample.getLevel(), "{0} Suppressed {1,number,#} identical messages: {2}");
+		} else {
+			summary = new LogRecord(sample.getLevel(), "Suppressed {0,number,#} identical messages: {1}");
+		}
+
+		if (profileName != null) {
+			summary.setParameters(new Object[] { profileName, suppressed, formatMessage(sample) });
+		} else {
+			summary.setParameters(new Object[] { suppressed, formatMessage(sample) });
+		}
+
+		summary.setLoggerName(sample.getLoggerName());
+		summary.setSourceClassName(sample.getSourceClassName());
+		summary.setSourceMethodName(sample.getSourceMethodName());
+
+		return summary;
+	}
+
+	private static final class Window {
+
+		private long start;
+		private int count;
+		private long suppressed;
+		private LogRecord sample;
+		private boolean expired;
+
+		Window(long start) {
+			this.start = start;
+		}
+
+	}
+
+}
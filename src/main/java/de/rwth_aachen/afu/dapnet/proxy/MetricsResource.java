@@ -16,23 +16,28 @@
  */
 package de.rwth_aachen.afu.dapnet.proxy;
 
-import java.util.List;
-
-import io.netty.channel.ChannelHandler.Sharable;
-import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.MessageToMessageEncoder;
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
 
 /**
- * This encoder ensures all messages end with a newline.
+ * This class provides the metrics scrape endpoint in the OpenMetrics text
+ * format.
  *
  * @author Philipp Thiel
  */
-@Sharable
-final class LineBreakAdder extends MessageToMessageEncoder<String> {
+@Path("metrics")
+public class MetricsResource {
+
+	@Inject
+	private ConnectionStatusManager manager;
 
-	@Override
-	protected void encode(ChannelHandlerContext ctx, String msg, List<Object> out) throws Exception {
-		out.add(String.format("%s\n", msg));
+	@GET
+	@Produces(OpenMetricsFormatter.CONTENT_TYPE)
+	public Response get() {
+		return Response.ok(manager.renderMetrics()).build();
 	}
 
 }
@@ -0,0 +1,472 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocatorMetric;
+
+/**
+ * Renders the connection status and traffic counters in the OpenMetrics text
+ * format. The output is rendered into a reusable buffer and encoded into a
+ * reusable byte array, so a scrape only allocates the resulting copy of it.
+ *
+ * The bounds of the exported histogram buckets are aligned to the bucket edges
+ * of the {@link LatencyHistogram}, so each bucket only counts values less than
+ * or equal to its bound.
+ *
+ * @author Philipp Thiel
+ */
+final class OpenMetricsFormatter {
+
+	/**
+	 * Content type of the rendered output.
+	 */
+	public static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+	private static final long[] LATENCY_BUCKETS = { 500, 1000, 2500, 5000, 10_000, 25_000, 50_000, 100_000,
+			250_000, 500_000, 1_000_000, 2_500_000, 5_000_000, 10_000_000 };
+	private static final long[] LATENCY_BUCKET_BOUNDS = new long[LATENCY_BUCKETS.length];
+	private static final String[] LATENCY_BUCKET_LABELS = new String[LATENCY_BUCKETS.length];
+	private static final ConnectionStatus.State[] STATES = ConnectionStatus.State.values();
+	private final StringBuilder buffer = new StringBuilder(16 * 1024);
+	private byte[] bytes = new byte[16 * 1024];
+	private final ConnectionStatusManager manager;
+
+	static {
+		for (int i = 0; i < LATENCY_BUCKETS.length; ++i) {
+			// Recorded values are truncated to microseconds, a value v is less than v + 1
+			int index = LatencyHistogram.index(LATENCY_BUCKETS[i]);
+			LATENCY_BUCKET_BOUNDS[i] = LatencyHistogram.upperBound(index);
+			LATENCY_BUCKET_LABELS[i] = BigDecimal.valueOf(LATENCY_BUCKET_BOUNDS[i] + 1, 6).stripTrailingZeros()
+					.toPlainString();
+		}
+	}
+
+	/**
+	 * Creates a new formatter.
+	 *
+	 * @param manager Connection status manager to read from.
+	 */
+	public OpenMetricsFormatter(ConnectionStatusManager manager) {
+		this.manager = manager;
+	}
+
+	/**
+	 * Renders all metrics.
+	 *
+	 * @return UTF-8 encoded output
+	 */
+	public synchronized byte[] render() {
+		StringBuilder sb = buffer;
+		sb.setLength(0);
+
+		Collection<ConnectionStatus> connections = manager.getConnections();
+		appendConnections(sb, connections);
+		appendTraffic(sb, manager.getAllMetrics());
+		appendJvm(sb);
+		appendAllocator(sb);
+		sb.append("# EOF\n");
+
+		return encode(sb);
+	}
+
+	private byte[] encode(CharSequence text) {
+		// At most three bytes per char, a surrogate pair takes four bytes
+		int length = text.length();
+		if (bytes.length < length * 3) {
+			bytes = new byte[length * 3];
+		}
+
+		byte[] b = bytes;
+		int n = 0;
+		for (int i = 0; i < length; ++i) {
+			char c = text.charAt(i);
+			if (c < 0x80) {
+				b[n++] = (byte) c;
+			} else if (c < 0x800) {
+				b[n++] = (byte) (0xC0 | c >> 6);
+				b[n++] = (byte) (0x80 | c & 0x3F);
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, text.charAt(++i));
+				b[n++] = (byte) (0xF0 | cp >> 18);
+				b[n++] = (byte) (0x80 | cp >> 12 & 0x3F);
+				b[n++] = (byte) (0x80 | cp >> 6 & 0x3F);
+				b[n++] = (byte) (0x80 | cp & 0x3F);
+			} else if (Character.isSurrogate(c)) {
+				// Unpaired surrogate, replaced like String.getBytes does
+				b[n++] = '?';
+			} else {
+				b[n++] = (byte) (0xE0 | c >> 12);
+				b[n++] = (byte) (0x80 | c >> 6 & 0x3F);
+				b[n++] = (byte) (0x80 | c & 0x3F);
+			}
+		}
+
+		return Arrays.copyOf(b, n);
+	}
+
+	private static void appendConnections(StringBuilder sb, Collection<ConnectionStatus> connections) {
+		Instant now = Instant.now();
+
+		header(sb, "dapnet_proxy_connection_state", "gauge", "Connection state, 1 for the current state.");
+		for (ConnectionStatus status : connections) {
+			ConnectionStatus.State state = status.getState();
+
+			for (ConnectionStatus.State s : STATES) {
+				sample(sb, "dapnet_proxy_connection_state", status.getProfileName(), "state", s.name(),
+						s == state ? 1 : 0);
+			}
+		}
+
+		header(sb, "dapnet_proxy_connection_uptime_seconds", "gauge",
+				"Time since the connection has been established.");
+		for (ConnectionStatus status : connections) {
+			Instant since = status.getConnectedSince();
+
+			double uptime = since != null ? Duration.between(since, now).toMillis() / 1000.0 : 0.0;
+			sample(sb, "dapnet_proxy_connection_uptime_seconds", status.getProfileName(), null, null, uptime);
+		}
+
+		header(sb, "dapnet_proxy_reconnect_attempts", "gauge",
+				"Reconnect attempts since the connection has last been stable.");
+		for (ConnectionStatus status : connections) {
+			int attempts = status.getReconnectAttempts();
+
+			sample(sb, "dapnet_proxy_reconnect_attempts", status.getProfileName(), null, null, attempts);
+		}
+	}
+
+	private static void appendTraffic(StringBuilder sb, Collection<ConnectionMetrics> metrics) {
+		header(sb, "dapnet_proxy_reconnects", "counter", "Number of scheduled reconnects.");
+		for (ConnectionMetrics m : metrics) {
+			sample(sb, "dapnet_proxy_reconnects_total", m.getProfileName(), null, null, m.getReconnects());
+		}
+
+		header(sb, "dapnet_proxy_handshakes", "counter", "Number of completed backend handshakes.");
+		for (ConnectionMetrics m : metrics) {
+			sample(sb, "dapnet_proxy_handshakes_total", m.getProfileName(), null, null, m.getHandshakes());
+		}
+
+		header(sb, "dapnet_proxy_write_failures", "counter", "Number of failed write operations.");
+		for (ConnectionMetrics m : metrics) {
+			sample(sb, "dapnet_proxy_write_failures_total", m.getProfileName(), null, null, m.getWriteFailures());
+		}
+
+		header(sb, "dapnet_proxy_backend_reconnects", "counter",
+				"Number of backend reconnects while the frontend session was kept.");
+		for (ConnectionMetrics m : metrics) {
+			sample(sb, "dapnet_proxy_backend_reconnects_total", m.getProfileName(), null, null,
+					m.getBackendReconnects());
+		}
+
+		header(sb, "dapnet_proxy_backend_failovers", "counter", "Number of switches to the standby backend.");
+		for (ConnectionMetrics m : metrics) {
+			sample(sb, "dapnet_proxy_backend_failovers_total", m.getProfileName(), null, null,
+					m.getBackendFailovers());
+		}
+
+		header(sb, "dapnet_proxy_buffered_messages", "counter",
+				"Number of messages buffered while the backend was not connected.");
+		for (ConnectionMetrics m : metrics) {
+			sample(sb, "dapnet_proxy_buffered_messages_total", m.getProfileName(), null, null,
+					m.getBufferedMessages());
+		}
+
+		header(sb, "dapnet_proxy_dropped_messages", "counter", "Number of dropped buffered or spooled messages.");
+		for (ConnectionMetrics m : metrics) {
+			sample(sb, "dapnet_proxy_dropped_messages_total", m.getProfileName(), null, null,
+					m.getDroppedMessages());
+		}
+
+		header(sb, "dapnet_proxy_spooled_messages", "counter", "Number of pages appended to the spool.");
+		for (ConnectionMetrics m : metrics) {
+			sample(sb, "dapnet_proxy_spooled_messages_total", m.getProfileName(), null, null,
+					m.getSpooledMessages());
+		}
+
+		header(sb, "dapnet_proxy_replayed_messages", "counter",
+				"Number of spooled pages replayed and acknowledged by the backend.");
+		for (ConnectionMetrics m : metrics) {
+			sample(sb, "dapnet_proxy_replayed_messages_total", m.getProfileName(), null, null,
+					m.getReplayedMessages());
+		}
+
+		header(sb, "dapnet_proxy_oversize_frames", "counter",
+				"Number of lines discarded because they exceeded the maximum line length.");
+		for (ConnectionMetrics m : metrics) {
+			sample(sb, "dapnet_proxy_oversize_frames_total", m.getProfileName(), null, null, m.getOversizeFrames());
+		}
+
+		header(sb, "dapnet_proxy_lines", "counter", "Number of lines received per connection.");
+		for (ConnectionMetrics m : metrics) {
+			sample(sb, "dapnet_proxy_lines_total", m.getProfileName(), "direction", "frontend", m.getFrontendLines());
+			sample(sb, "dapnet_proxy_lines_total", m.getProfileName(), "direction", "backend", m.getBackendLines());
+		}
+
+		header(sb, "dapnet_proxy_bytes", "counter", "Number of bytes received per connection.");
+		for (ConnectionMetrics m : metrics) {
+			sample(sb, "dapnet_proxy_bytes_total", m.getProfileName(), "direction", "frontend", m.getFrontendBytes());
+			sample(sb, "dapnet_proxy_bytes_total", m.getProfileName(), "direction", "backend", m.getBackendBytes());
+		}
+
+		header(sb, "dapnet_proxy_messages", "counter", "Number of messages received from the frontend per type.");
+		for (ConnectionMetrics m : metrics) {
+			for (int type = 0; type < ConnectionMetrics.MESSAGE_TYPES; ++type) {
+				sample(sb, "dapnet_proxy_messages_total", m.getProfileName(), "type", Integer.toString(type),
+						m.getMessageTypeCount(type));
+			}
+		}
+
+		header(sb, "dapnet_proxy_sequenced_messages", "counter",
+				"Number of sequenced messages received from the frontend.");
+		for (ConnectionMetrics m : metrics) {
+			sample(sb, "dapnet_proxy_sequenced_messages_total", m.getProfileName(), null, null,
+					m.getSequencedMessages());
+		}
+
+		header(sb, "dapnet_proxy_keepalive_rtt_seconds", "histogram", "Keep alive round trip time.");
+		for (ConnectionMetrics m : metrics) {
+			histogram(sb, "dapnet_proxy_keepalive_rtt_seconds", m.getProfileName(), null, null,
+					m.getKeepAliveRttHistogram());
+		}
+
+		header(sb, "dapnet_proxy_keepalive_srtt_seconds", "gauge", "Smoothed keep alive round trip time.");
+		for (ConnectionMetrics m : metrics) {
+			seconds(sb, "dapnet_proxy_keepalive_srtt_seconds", m.getProfileName(), m.getSmoothedKeepAliveRtt());
+		}
+
+		header(sb, "dapnet_proxy_keepalive_rttvar_seconds", "gauge", "Keep alive round trip time variation.");
+		for (ConnectionMetrics m : metrics) {
+			seconds(sb, "dapnet_proxy_keepalive_rttvar_seconds", m.getProfileName(), m.getKeepAliveRttVariance());
+		}
+
+		header(sb, "dapnet_proxy_keepalive_timeout_seconds", "gauge",
+				"Time to wait for the response to a keep alive request.");
+		for (ConnectionMetrics m : metrics) {
+			seconds(sb, "dapnet_proxy_keepalive_timeout_seconds", m.getProfileName(), m.getKeepAliveTimeout());
+		}
+
+		header(sb, "dapnet_proxy_keepalive_missed", "counter",
+				"Number of keep alive requests not answered in time.");
+		for (ConnectionMetrics m : metrics) {
+			sample(sb, "dapnet_proxy_keepalive_missed_total", m.getProfileName(), null, null,
+					m.getMissedKeepAlives());
+		}
+
+		header(sb, "dapnet_proxy_tls_handshake_seconds", "histogram", "TLS handshake time with the frontend.");
+		for (ConnectionMetrics m : metrics) {
+			histogram(sb, "dapnet_proxy_tls_handshake_seconds", m.getProfileName(), null, null,
+					m.getTlsHandshakeTime());
+		}
+
+		header(sb, "dapnet_proxy_tls_resumed_sessions", "counter",
+				"Number of TLS handshakes with the frontend that resumed a cached session.");
+		for (ConnectionMetrics m : metrics) {
+			sample(sb, "dapnet_proxy_tls_resumed_sessions_total", m.getProfileName(), null, null,
+					m.getTlsResumedSessions());
+		}
+
+		header(sb, "dapnet_proxy_ack_latency_seconds", "histogram",
+				"Time from receiving a sequenced message until its acknowledgement by the backend.");
+		for (ConnectionMetrics m : metrics) {
+			histogram(sb, "dapnet_proxy_ack_latency_seconds", m.getProfileName(), null, null, m.getAckLatency());
+		}
+
+		header(sb, "dapnet_proxy_lost_acks", "counter",
+				"Number of sequenced messages not acknowledged by the backend.");
+		for (ConnectionMetrics m : metrics) {
+			sample(sb, "dapnet_proxy_lost_acks_total", m.getProfileName(), null, null, m.getLostAcks());
+		}
+
+		header(sb, "dapnet_proxy_duplicate_acks", "counter",
+				"Number of acknowledgements for sequenced messages that were not outstanding.");
+		for (ConnectionMetrics m : metrics) {
+			sample(sb, "dapnet_proxy_duplicate_acks_total", m.getProfileName(), null, null, m.getDuplicateAcks());
+		}
+
+		header(sb, "dapnet_proxy_retried_messages", "counter",
+				"Number of sequenced messages written to the backend again.");
+		for (ConnectionMetrics m : metrics) {
+			sample(sb, "dapnet_proxy_retried_messages_total", m.getProfileName(), null, null,
+					m.getRetriedMessages());
+		}
+
+		header(sb, "dapnet_proxy_outstanding_acks", "gauge",
+				"Number of sequenced messages waiting for their acknowledgement.");
+		for (ConnectionMetrics m : metrics) {
+			sample(sb, "dapnet_proxy_outstanding_acks", m.getProfileName(), null, null, m.getOutstandingAcks());
+		}
+
+		header(sb, "dapnet_proxy_relay_latency_seconds", "histogram",
+				"Time from reading a line until it has been written to the other server.");
+		for (ConnectionMetrics m : metrics) {
+			histogram(sb, "dapnet_proxy_relay_latency_seconds", m.getProfileName(), "direction", "frontend",
+					m.getFrontendRelayLatency());
+			histogram(sb, "dapnet_proxy_relay_latency_seconds", m.getProfileName(), "direction", "backend",
+					m.getBackendRelayLatency());
+		}
+	}
+
+	private static void appendJvm(StringBuilder sb) {
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		MemoryUsage heap = memory.getHeapMemoryUsage();
+		MemoryUsage nonHeap = memory.getNonHeapMemoryUsage();
+
+		header(sb, "jvm_memory_used_bytes", "gauge", "Used JVM memory.");
+		sample(sb, "jvm_memory_used_bytes", null, "area", "heap", heap.getUsed());
+		sample(sb, "jvm_memory_used_bytes", null, "area", "nonheap", nonHeap.getUsed());
+
+		header(sb, "jvm_memory_committed_bytes", "gauge", "Committed JVM memory.");
+		sample(sb, "jvm_memory_committed_bytes", null, "area", "heap", heap.getCommitted());
+		sample(sb, "jvm_memory_committed_bytes", null, "area", "nonheap", nonHeap.getCommitted());
+
+		header(sb, "jvm_threads_current", "gauge", "Current number of JVM threads.");
+		sample(sb, "jvm_threads_current", null, null, null, ManagementFactory.getThreadMXBean().getThreadCount());
+
+		header(sb, "jvm_gc_collections", "counter", "Number of garbage collections.");
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			sample(sb, "jvm_gc_collections_total", null, "gc", gc.getName(), Math.max(0, gc.getCollectionCount()));
+		}
+
+		header(sb, "jvm_gc_collection_seconds", "counter", "Time spent in garbage collections.");
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			sample(sb, "jvm_gc_collection_seconds_total", null, "gc", gc.getName(),
+					Math.max(0, gc.getCollectionTime()) / 1000.0);
+		}
+	}
+
+	private static void appendAllocator(StringBuilder sb) {
+		PooledByteBufAllocatorMetric metric = PooledByteBufAllocator.DEFAULT.metric();
+
+		header(sb, "netty_allocator_used_bytes", "gauge", "Memory used by the pooled buffer allocator.");
+		sample(sb, "netty_allocator_used_bytes", null, "memory", "heap", metric.usedHeapMemory());
+		sample(sb, "netty_allocator_used_bytes", null, "memory", "direct", metric.usedDirectMemory());
+
+		header(sb, "netty_allocator_arenas", "gauge", "Number of pooled buffer allocator arenas.");
+		sample(sb, "netty_allocator_arenas", null, "memory", "heap", metric.numHeapArenas());
+		sample(sb, "netty_allocator_arenas", null, "memory", "direct", metric.numDirectArenas());
+
+		header(sb, "netty_allocator_thread_local_caches", "gauge", "Number of thread local allocator caches.");
+		sample(sb, "netty_allocator_thread_local_caches", null, null, null, metric.numThreadLocalCaches());
+
+		header(sb, "netty_allocator_chunk_size_bytes", "gauge", "Chunk size of the pooled buffer allocator.");
+		sample(sb, "netty_allocator_chunk_size_bytes", null, null, null, metric.chunkSize());
+	}
+
+	private static void header(StringBuilder sb, String name, String type, String help) {
+		sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		if (name.endsWith("_seconds")) {
+			sb.append("# UNIT ").append(name).append(" seconds\n");
+		} else if (name.endsWith("_bytes")) {
+			sb.append("# UNIT ").append(name).append(" bytes\n");
+		}
+
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+	}
+
+	private static void histogram(StringBuilder sb, String name, String profile, String label, String value,
+			LatencyHistogram histogram) {
+		for (int i = 0; i < LATENCY_BUCKETS.length; ++i) {
+			labels(sb.append(name).append("_bucket"), profile, label, value, LATENCY_BUCKET_LABELS[i]);
+			sb.append(' ').append(histogram.getCountAtOrBelow(LATENCY_BUCKET_BOUNDS[i])).append('\n');
+		}
+
+		// Sum up the buckets so the total matches the buckets while recording
+		long count = histogram.getCountAtOrBelow(Long.MAX_VALUE);
+		labels(sb.append(name).append("_bucket"), profile, label, value, "+Inf");
+		sb.append(' ').append(count).append('\n');
+
+		labels(sb.append(name).append("_count"), profile, label, value, null);
+		sb.append(' ').append(count).append('\n');
+		labels(sb.append(name).append("_sum"), profile, label, value, null);
+		sb.append(' ').append(histogram.getSum() / 1_000_000.0).append('\n');
+	}
+
+	private static void sample(StringBuilder sb, String name, String profile, String label, String value, long v) {
+		labels(sb.append(name), profile, label, value, null);
+		sb.append(' ').append(v).append('\n');
+	}
+
+	private static void sample(StringBuilder sb, String name, String profile, String label, String value, double v) {
+		labels(sb.append(name), profile, label, value, null);
+		sb.append(' ').append(v).append('\n');
+	}
+
+	private static void seconds(StringBuilder sb, String name, String profile, double millis) {
+		// Skip values that are not available yet
+		if (millis >= 0) {
+			sample(sb, name, profile, null, null, millis / 1000.0);
+		}
+	}
+
+	private static void labels(StringBuilder sb, String profile, String label, String value, String le) {
+		if (profile == null && label == null && le == null) {
+			return;
+		}
+
+		int start = sb.length();
+		if (profile != null) {
+			label(sb, start, "profile", profile);
+		}
+
+		if (label != null) {
+			label(sb, start, label, value);
+		}
+
+		if (le != null) {
+			label(sb, start, "le", le);
+		}
+
+		sb.append('}');
+	}
+
+	private static void label(StringBuilder sb, int start, String name, String value) {
+		sb.append(sb.length() == start ? '{' : ',').append(name).append("=\"");
+		escape(sb, value);
+		sb.append('"');
+	}
+
+	private static void escape(StringBuilder sb, String value) {
+		for (int i = 0; i < value.length(); ++i) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			default:
+				sb.append(c);
+				break;
+			}
+		}
+	}
+
+}
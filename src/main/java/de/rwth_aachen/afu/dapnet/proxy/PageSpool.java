@@ -0,0 +1,642 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.util.internal.PlatformDependent;
+
+/**
+ * A durable spool for pages that could not be relayed to the backend server.
+ * Pages are appended to memory-mapped segment files in the spool directory of
+ * the connection profile and replayed once a backend connection has been
+ * established, also after a restart of the proxy.
+ *
+ * Each record consists of the payload length, the CRC32 of the payload, a flag
+ * byte and the line frame as received. The length is written last, so an
+ * interrupted append is ignored when the segment is recovered. Replayed records
+ * are flagged once the backend has acknowledged them. The flags also count the
+ * rejections of a record, a record rejected more often than the configured
+ * limit is dropped and flagged like an acknowledged one. Acknowledgements are
+ * matched by the sequence number of the page, if several replayed pages share
+ * a sequence number the oldest one is acknowledged. A segment is deleted as
+ * soon as all of its records have been acknowledged and unmapped once its
+ * replayed records have been written. If a new segment would exceed the
+ * maximum number of segments, the oldest segment without replayed records
+ * waiting for their acknowledgement is dropped.
+ *
+ * Records are replayed in chunks while the backend channel is writable, so the
+ * outbound buffer of the backend is bounded like for relayed lines. The replay
+ * is continued once the channel has become writable again.
+ *
+ * Pages spooled during the current frontend session are told apart from pages
+ * of previous sessions, so the acknowledgements of the former can still be
+ * forwarded to the frontend server.
+ *
+ * Appending does not force the segment to disk, this is done by
+ * {@link #flush()} which is called periodically from a separate thread. All
+ * other methods must only be used from the event loop of the connection. The
+ * spool has to be closed before the spool directory of the profile is opened
+ * again.
+ *
+ * @author Philipp Thiel
+ */
+final class PageSpool {
+
+	static final String SUFFIX = ".spool";
+	private static final int HEADER_SIZE = 9;
+	private static final int CRC_OFFSET = 4;
+	private static final int FLAGS_OFFSET = 8;
+	private static final byte PENDING = 0;
+	private static final byte ACKED = 1;
+	private static final int REJECTIONS_SHIFT = 1;
+	private static final Logger LOGGER = Logger.getLogger(PageSpool.class.getName());
+	private final Deque<Segment> segments = new ArrayDeque<>();
+	private final List<Replayed> replayed = new ArrayList<>();
+	private final CRC32 crc = new CRC32();
+	private final String profileName;
+	private final Path directory;
+	private final int segmentSize;
+	private final int maxSegments;
+	private final int maxRejections;
+	private final ConnectionMetrics metrics;
+	private long nextId;
+	private int pending;
+	private long appended;
+	private long sessionStart;
+	private int replayedHead;
+	private Channel replayChannel;
+	private Segment replaySegment;
+	private int replayPosition;
+	private long replayOrdinal;
+	private boolean closed;
+
+	/**
+	 * Opens the spool of a connection profile and recovers existing segments.
+	 *
+	 * @param settings Connection settings, the spool directory must be set.
+	 * @param metrics  Traffic counters of the connection profile
+	 * @throws IOException If the spool directory could not be read.
+	 */
+	public PageSpool(ConnectionSettings settings, ConnectionMetrics metrics) throws IOException {
+		this.profileName = settings.getProfileName();
+		this.directory = settings.getSpoolDirectory().resolve(profileName);
+		this.segmentSize = settings.getSpoolSegmentSize();
+		this.maxSegments = settings.getSpoolMaxSegments();
+		this.maxRejections = settings.getSpoolMaxRejections();
+		this.metrics = metrics;
+
+		Files.createDirectories(directory);
+		recover();
+	}
+
+	/**
+	 * Gets the number of records that have not been acknowledged.
+	 *
+	 * @return Number of records
+	 */
+	public int getPending() {
+		return pending;
+	}
+
+	/**
+	 * Marks all pending records as belonging to a previous frontend session.
+	 * Must be called when a new frontend session starts.
+	 */
+	public void beginSession() {
+		sessionStart = appended;
+	}
+
+	/**
+	 * Appends a line frame to the spool.
+	 *
+	 * @param frame Line frame, will not be retained.
+	 * @return {@code true} if the frame has been appended
+	 */
+	public boolean append(ByteBuf frame) {
+		int length = frame.readableBytes();
+		if (closed || HEADER_SIZE + length > segmentSize) {
+			metrics.recordDroppedMessage();
+			return false;
+		}
+
+		Segment tail = segments.peekLast();
+		if (tail == null || tail.recovered || tail.writePosition + HEADER_SIZE + length > tail.buffer.capacity()) {
+			if (segments.size() >= maxSegments && !dropSegment()) {
+				metrics.recordDroppedMessage();
+				return false;
+			}
+
+			try {
+				tail = newSegment();
+			} catch (IOException ex) {
+				LOGGER.log(Level.SEVERE, profileName + " Failed to create spool segment.", ex);
+				metrics.recordDroppedMessage();
+				return false;
+			}
+		}
+
+		int position = tail.writePosition;
+		ByteBuffer payload = view(tail.buffer, position + HEADER_SIZE, length);
+		frame.getBytes(frame.readerIndex(), payload);
+
+		crc.reset();
+		crc.update(view(tail.buffer, position + HEADER_SIZE, length));
+
+		tail.buffer.put(position + FLAGS_OFFSET, PENDING);
+		tail.buffer.putInt(position + CRC_OFFSET, (int) crc.getValue());
+		tail.buffer.putInt(position, length);
+		tail.writePosition += HEADER_SIZE + length;
+		tail.dirty = true;
+		++tail.records;
+		++tail.pending;
+		++pending;
+		++appended;
+
+		metrics.recordSpooledMessage();
+		return true;
+	}
+
+	/**
+	 * Starts to write all records that have not been acknowledged to the backend
+	 * channel without copying them. Records are written while the channel is
+	 * writable, the caller has to call {@link #continueReplay(Channel)} once the
+	 * channel has become writable again. The caller has to call
+	 * {@link #ack(int, boolean)} for each acknowledgement received for these
+	 * records. Records replayed before and still waiting for their
+	 * acknowledgement are replayed again.
+	 *
+	 * @param channel Backend channel
+	 * @return Number of records written
+	 */
+	public int replay(Channel channel) {
+		clearReplayed();
+
+		Segment first = segments.peekFirst();
+		if (first != null) {
+			replayChannel = channel;
+			replaySegment = first;
+			replayPosition = first.ackPosition;
+			replayOrdinal = first.firstOrdinal + first.ackIndex;
+			skipAcked();
+		}
+
+		return continueReplay(channel);
+	}
+
+	/**
+	 * Continues a replay to the given channel, if it has not been completed yet.
+	 *
+	 * @param channel Backend channel
+	 * @return Number of records written
+	 */
+	public int continueReplay(Channel channel) {
+		if (replayChannel != channel || !channel.isActive()) {
+			return 0;
+		}
+
+		int count = 0;
+		while (replaySegment != null && channel.isWritable()) {
+			Segment segment = replaySegment;
+			int length = segment.buffer.getInt(replayPosition);
+			ByteBuf record = Unpooled.wrappedBuffer(view(segment.buffer, replayPosition + HEADER_SIZE, length));
+			replayed.add(new Replayed(segment, replayPosition, replayOrdinal, DapnetFrame.sequenceOf(record)));
+			++segment.replayed;
+			++segment.writing;
+			channel.write(record).addListener(segment.writeListener);
+			++count;
+
+			replayPosition += HEADER_SIZE + length;
+			++replayOrdinal;
+			skipAcked();
+		}
+
+		if (replaySegment == null) {
+			replayChannel = null;
+		}
+
+		if (count > 0) {
+			channel.flush();
+		}
+
+		return count;
+	}
+
+	/**
+	 * Tests if a replay has not been completed yet.
+	 *
+	 * @return {@code true} if records are left to replay
+	 */
+	public boolean isReplaying() {
+		return replaySegment != null;
+	}
+
+	/**
+	 * Tests if a replayed record with the given sequence number is waiting for its
+	 * acknowledgement.
+	 *
+	 * @param sequence Sequence number
+	 * @return {@code true} if a record is waiting
+	 */
+	public boolean isReplayed(int sequence) {
+		return indexOfReplayed(sequence) >= 0;
+	}
+
+	/**
+	 * Handles the response to the oldest replayed record with the given sequence
+	 * number. If the record has been delivered, it is flagged as acknowledged and
+	 * the segment is deleted if all of its records have been acknowledged.
+	 * Otherwise the record is replayed again on the next replay, unless it has
+	 * been rejected more often than the configured limit. It is dropped then.
+	 *
+	 * @param sequence  Sequence number
+	 * @param delivered Whether the backend has acknowledged the record
+	 * @return {@code true} if the record has been appended during the current
+	 *         frontend session
+	 */
+	public boolean ack(int sequence, boolean delivered) {
+		int index = indexOfReplayed(sequence);
+		if (index < 0) {
+			return false;
+		}
+
+		Replayed record = replayed.set(index, null);
+		while (replayedHead < replayed.size() && replayed.get(replayedHead) == null) {
+			++replayedHead;
+		}
+
+		Segment segment = record.segment;
+		--segment.replayed;
+		if (delivered) {
+			metrics.recordReplayedMessage();
+		} else {
+			int rejections = (segment.buffer.get(record.position + FLAGS_OFFSET) >>> REJECTIONS_SHIFT) + 1;
+			if (rejections <= maxRejections) {
+				segment.buffer.put(record.position + FLAGS_OFFSET, (byte) (rejections << REJECTIONS_SHIFT));
+				segment.dirty = true;
+				return record.ordinal >= sessionStart;
+			}
+
+			LOGGER.log(Level.WARNING, "{0} Dropping spooled page #{1} rejected {2,number,#} times.",
+					new Object[] { profileName, String.format("%02X", sequence), rejections });
+			metrics.recordDroppedMessage();
+		}
+
+		segment.buffer.put(record.position + FLAGS_OFFSET, ACKED);
+		segment.dirty = true;
+		--segment.pending;
+		--pending;
+
+		// Skip the acknowledged records at the start of the segment
+		while (segment.ackPosition < segment.writePosition && isAcked(segment.buffer, segment.ackPosition)) {
+			segment.ackPosition += HEADER_SIZE + segment.buffer.getInt(segment.ackPosition);
+			++segment.ackIndex;
+		}
+
+		if (segment.pending == 0) {
+			removeSegment(segment);
+			deleteSegment(segment);
+		}
+
+		return record.ordinal >= sessionStart;
+	}
+
+	/**
+	 * Forces modified segments to disk. May be called from any thread.
+	 */
+	public void flush() {
+		List<Segment> snapshot;
+		synchronized (segments) {
+			snapshot = new ArrayList<>(segments);
+		}
+
+		for (Segment segment : snapshot) {
+			// The segment may have been deleted and unmapped in the meantime
+			synchronized (segment) {
+				if (segment.dirty && !segment.unmapped) {
+					segment.dirty = false;
+					segment.buffer.force();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forces all segments to disk and closes the spool. Pages appended afterwards
+	 * are dropped, the segments are recovered by the next spool opened for the
+	 * profile.
+	 */
+	public void close() {
+		if (closed) {
+			return;
+		}
+
+		closed = true;
+		flush();
+		clearReplayed();
+
+		synchronized (segments) {
+			segments.clear();
+		}
+
+		pending = 0;
+	}
+
+	private int indexOfReplayed(int sequence) {
+		if (sequence < 0) {
+			return -1;
+		}
+
+		// Acknowledgements arrive in order, so the first record usually matches
+		for (int i = replayedHead; i < replayed.size(); ++i) {
+			Replayed record = replayed.get(i);
+			if (record != null && record.sequence == sequence) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	private void clearReplayed() {
+		for (Segment segment : segments) {
+			segment.replayed = 0;
+		}
+
+		replayed.clear();
+		replayedHead = 0;
+		replayChannel = null;
+		replaySegment = null;
+	}
+
+	private void skipAcked() {
+		// Moves to the next record to replay, the segment is kept as it has a pending record then
+		while (replaySegment != null) {
+			Segment segment = replaySegment;
+			while (replayPosition < segment.writePosition) {
+				if (!isAcked(segment.buffer, replayPosition)) {
+					return;
+				}
+
+				replayPosition += HEADER_SIZE + segment.buffer.getInt(replayPosition);
+				++replayOrdinal;
+			}
+
+			replaySegment = nextSegment(segment);
+			if (replaySegment != null) {
+				replayPosition = replaySegment.ackPosition;
+				replayOrdinal = replaySegment.firstOrdinal + replaySegment.ackIndex;
+			}
+		}
+	}
+
+	private Segment nextSegment(Segment segment) {
+		Iterator<Segment> it = segments.iterator();
+		while (it.hasNext()) {
+			if (it.next() == segment) {
+				return it.hasNext() ? it.next() : null;
+			}
+		}
+
+		return null;
+	}
+
+	private boolean dropSegment() {
+		// Segments with replayed records cannot be dropped until they are acknowledged
+		Segment oldest = null;
+		for (Segment segment : segments) {
+			if (segment.replayed == 0 && segment != replaySegment) {
+				oldest = segment;
+				break;
+			}
+		}
+
+		if (oldest == null) {
+			LOGGER.log(Level.WARNING, "{0} Spool is full and being replayed, dropped page.", profileName);
+			return false;
+		}
+
+		removeSegment(oldest);
+		deleteSegment(oldest);
+		pending -= oldest.pending;
+
+		LOGGER.log(Level.WARNING, "{0} Spool is full, dropped {1,number,#} pages.",
+				new Object[] { profileName, oldest.pending });
+
+		for (int i = 0; i < oldest.pending; ++i) {
+			metrics.recordDroppedMessage();
+		}
+
+		return true;
+	}
+
+	private Segment newSegment() throws IOException {
+		Path path = directory.resolve(String.format("%020d%s", nextId++, SUFFIX));
+		Segment segment = new Segment(path, map(path, StandardOpenOption.CREATE_NEW), appended);
+
+		synchronized (segments) {
+			segments.addLast(segment);
+		}
+
+		return segment;
+	}
+
+	private void removeSegment(Segment segment) {
+		synchronized (segments) {
+			segments.remove(segment);
+		}
+	}
+
+	private void deleteSegment(Segment segment) {
+		try {
+			Files.deleteIfExists(segment.path);
+		} catch (IOException ex) {
+			LOGGER.log(Level.WARNING, profileName + " Failed to delete spool segment.", ex);
+		}
+
+		segment.deleted = true;
+		segment.unmap();
+	}
+
+	private void recover() throws IOException {
+		List<Path> paths = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+			stream.forEach(paths::add);
+		}
+
+		Collections.sort(paths);
+
+		for (Path path : paths) {
+			String name = path.getFileName().toString();
+			try {
+				nextId = Math.max(nextId, Long.parseLong(name.substring(0, name.length() - SUFFIX.length())) + 1);
+			} catch (NumberFormatException ex) {
+				LOGGER.log(Level.WARNING, "{0} Ignoring spool file {1}.", new Object[] { profileName, path });
+				continue;
+			}
+
+			Segment segment = new Segment(path, map(path, StandardOpenOption.READ), appended);
+			scan(segment);
+
+			if (segment.pending > 0) {
+				segments.addLast(segment);
+				pending += segment.pending;
+				appended += segment.records;
+			} else {
+				deleteSegment(segment);
+			}
+		}
+
+		sessionStart = appended;
+
+		if (pending > 0) {
+			LOGGER.log(Level.INFO, "{0} Recovered {1,number,#} spooled pages.", new Object[] { profileName, pending });
+		}
+	}
+
+	private void scan(Segment segment) {
+		ByteBuffer buffer = segment.buffer;
+		int position = 0;
+		while (position + HEADER_SIZE <= buffer.capacity()) {
+			int length = buffer.getInt(position);
+			if (length <= 0 || length > buffer.capacity() - position - HEADER_SIZE) {
+				break;
+			}
+
+			crc.reset();
+			crc.update(view(buffer, position + HEADER_SIZE, length));
+			if (buffer.getInt(position + CRC_OFFSET) != (int) crc.getValue()) {
+				LOGGER.log(Level.WARNING, "{0} Dropping corrupt spool records in {1}.",
+						new Object[] { profileName, segment.path });
+				break;
+			}
+
+			if (isAcked(buffer, position)) {
+				if (segment.pending == 0) {
+					segment.ackPosition = position + HEADER_SIZE + length;
+					++segment.ackIndex;
+				}
+			} else {
+				++segment.pending;
+			}
+
+			position += HEADER_SIZE + length;
+			++segment.records;
+		}
+
+		// Records are only appended to new segments
+		segment.writePosition = position;
+		segment.recovered = true;
+	}
+
+	private MappedByteBuffer map(Path path, StandardOpenOption option) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, option, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			long size = option == StandardOpenOption.CREATE_NEW ? segmentSize : channel.size();
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+	}
+
+	private static boolean isAcked(ByteBuffer buffer, int position) {
+		return (buffer.get(position + FLAGS_OFFSET) & ACKED) != 0;
+	}
+
+	private static ByteBuffer view(ByteBuffer buffer, int offset, int length) {
+		ByteBuffer view = buffer.duplicate();
+		view.limit(offset + length);
+		view.position(offset);
+		return view.slice();
+	}
+
+	private static final class Segment {
+
+		private final Path path;
+		private final MappedByteBuffer buffer;
+		private final long firstOrdinal;
+		private final ChannelFutureListener writeListener;
+		private int writePosition;
+		private boolean recovered;
+		private int ackPosition;
+		private int ackIndex;
+		private int records;
+		private int pending;
+		private int replayed;
+		private int writing;
+		private boolean deleted;
+		private boolean unmapped;
+		private volatile boolean dirty;
+
+		Segment(Path path, MappedByteBuffer buffer, long firstOrdinal) {
+			this.path = path;
+			this.buffer = buffer;
+			this.firstOrdinal = firstOrdinal;
+			this.writeListener = f -> {
+				--writing;
+				unmap();
+			};
+		}
+
+		/**
+		 * Unmaps the buffer of a deleted segment once none of its records is being
+		 * written anymore, instead of waiting for the garbage collector.
+		 */
+		synchronized void unmap() {
+			if (deleted && writing == 0 && !unmapped) {
+				unmapped = true;
+				PlatformDependent.freeDirectBuffer(buffer);
+			}
+		}
+
+	}
+
+	private static final class Replayed {
+
+		private final Segment segment;
+		private final int position;
+		private final long ordinal;
+		private final int sequence;
+
+		Replayed(Segment segment, int position, long ordinal, int sequence) {
+			this.segment = segment;
+			this.position = position;
+			this.ordinal = ordinal;
+			this.sequence = sequence;
+		}
+
+	}
+
+}
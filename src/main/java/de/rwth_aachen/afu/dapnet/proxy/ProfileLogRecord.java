@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * A log record of a connection profile. Besides the message it carries the
+ * profile name, the direction and the state of the connection, which are
+ * written as separate fields by the {@link StructuredFormatter}. The message
+ * follows the convention of all profile messages: the pattern starts with
+ * {@code {0}} and the profile name is the first parameter.
+ *
+ * @author Philipp Thiel
+ */
+final class ProfileLogRecord extends LogRecord {
+
+	private static final long serialVersionUID = 1L;
+	private final String profileName;
+	private final String direction;
+	private final String state;
+
+	/**
+	 * Creates a new log record.
+	 *
+	 * @param level       Log level
+	 * @param msg         Message pattern
+	 * @param profileName Connection profile name
+	 * @param direction   Connection direction ({@code frontend} or
+	 *                    {@code backend}) or {@code null} if not applicable.
+	 * @param state       Connection state or {@code null} if not applicable.
+	 */
+	public ProfileLogRecord(Level level, String msg, String profileName, String direction, String state) {
+		super(level, msg);
+		this.profileName = profileName;
+		this.direction = direction;
+		this.state = state;
+	}
+
+	/**
+	 * Gets the connection profile name.
+	 *
+	 * @return Profile name
+	 */
+	public String getProfileName() {
+		return profileName;
+	}
+
+	/**
+	 * Gets the connection direction.
+	 *
+	 * @return Direction or {@code null} if not applicable.
+	 */
+	public String getDirection() {
+		return direction;
+	}
+
+	/**
+	 * Gets the connection state at the time the record was created.
+	 *
+	 * @return State or {@code null} if not applicable.
+	 */
+	public String getState() {
+		return state;
+	}
+
+}
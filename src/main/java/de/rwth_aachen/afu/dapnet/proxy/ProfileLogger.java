@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Logger for the messages of a connection profile. Messages follow the
+ * convention of all profile messages: the pattern starts with {@code {0}},
+ * which is replaced by the profile name, further parameters start at
+ * {@code {1}}. The records carry the profile name, the direction and the
+ * current connection state as separate fields.
+ *
+ * The level is checked before anything is allocated, so disabled messages on
+ * the relay path are free. There are no varargs methods for the same reason.
+ *
+ * @author Philipp Thiel
+ */
+final class ProfileLogger {
+
+	private static final StackWalker WALKER = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE);
+	private final Logger logger;
+	private final String profileName;
+	private final String direction;
+	private final Supplier<?> state;
+
+	/**
+	 * Creates a new profile logger.
+	 *
+	 * @param logger      Logger to log to
+	 * @param profileName Connection profile name
+	 * @param direction   Connection direction ({@code frontend} or
+	 *                    {@code backend}) or {@code null} if not applicable.
+	 * @param state       Supplier of the current connection state or {@code null}
+	 *                    if not applicable. Only called if a message is logged.
+	 */
+	public ProfileLogger(Logger logger, String profileName, String direction, Supplier<?> state) {
+		this.logger = logger;
+		this.profileName = profileName;
+		this.direction = direction;
+		this.state = state;
+	}
+
+	/**
+	 * Tests if a message of the given level would be logged.
+	 *
+	 * @param level Log level
+	 * @return {@code true} if the message would be logged
+	 */
+	public boolean isLoggable(Level level) {
+		return logger.isLoggable(level);
+	}
+
+	/**
+	 * Logs a message without further parameters.
+	 *
+	 * @param level Log level
+	 * @param msg   Message pattern
+	 */
+	public void log(Level level, String msg) {
+		if (logger.isLoggable(level)) {
+			log(level, msg, new Object[] { profileName }, null);
+		}
+	}
+
+	/**
+	 * Logs a message with one parameter.
+	 *
+	 * @param level  Log level
+	 * @param msg    Message pattern
+	 * @param param1 Parameter {@code {1}}
+	 */
+	public void log(Level level, String msg, Object param1) {
+		if (logger.isLoggable(level)) {
+			log(level, msg, new Object[] { profileName, param1 }, null);
+		}
+	}
+
+	/**
+	 * Logs a message with two parameters.
+	 *
+	 * @param level  Log level
+	 * @param msg    Message pattern
+	 * @param param1 Parameter {@code {1}}
+	 * @param param2 Parameter {@code {2}}
+	 */
+	public void log(Level level, String msg, Object param1, Object param2) {
+		if (logger.isLoggable(level)) {
+			log(level, msg, new Object[] { profileName, param1, param2 }, null);
+		}
+	}
+
+	/**
+	 * Logs a message with an exception.
+	 *
+	 * @param level  Log level
+	 * @param msg    Message pattern
+	 * @param thrown Exception
+	 */
+	public void log(Level level, String msg, Throwable thrown) {
+		if (logger.isLoggable(level)) {
+			log(level, msg, new Object[] { profileName }, thrown);
+		}
+	}
+
+	private void log(Level level, String msg, Object[] params, Throwable thrown) {
+		Object currentState = state != null ? state.get() : null;
+
+		ProfileLogRecord record = new ProfileLogRecord(level, msg, profileName, direction,
+				currentState != null ? currentState.toString() : null);
+		record.setLoggerName(logger.getName());
+		record.setParameters(params);
+		record.setThrown(thrown);
+
+		// The caller would be inferred as this class
+		WALKER.walk(frames -> frames.filter(f -> f.getDeclaringClass() != ProfileLogger.class).findFirst())
+				.ifPresent(frame -> {
+					record.setSourceClassName(frame.getClassName());
+					record.setSourceMethodName(frame.getMethodName());
+				});
+
+		logger.log(record);
+	}
+
+}
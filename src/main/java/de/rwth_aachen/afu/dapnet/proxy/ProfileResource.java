@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.inject.Inject;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/**
+ * This class provides the REST API for managing the connection profiles at
+ * runtime. It is only registered if enabled via the system property
+ * {@code dapnet.proxy.rest.admin}.
+ *
+ * @author Philipp Thiel
+ */
+@Path("profiles")
+public class ProfileResource {
+
+	private static final Logger LOGGER = Logger.getLogger(ProfileResource.class.getName());
+	@Inject
+	private ProxyManager manager;
+
+	@POST
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.TEXT_PLAIN)
+	public Response add(Map<String, String> body) {
+		if (body == null) {
+			return Response.status(Response.Status.BAD_REQUEST).entity("Missing profile settings.").build();
+		}
+
+		Properties props = new Properties();
+		props.putAll(body);
+
+		ConnectionSettings settings;
+		try {
+			settings = new ConnectionSettings(props);
+		} catch (RuntimeException ex) {
+			return Response.status(Response.Status.BAD_REQUEST).entity("Invalid profile settings: " + ex.getMessage())
+					.build();
+		}
+
+		try {
+			manager.openConnection(settings);
+		} catch (IllegalStateException ex) {
+			return Response.status(Response.Status.CONFLICT).entity(ex.getMessage()).build();
+		} catch (IOException ex) {
+			LOGGER.log(Level.SEVERE, settings.getProfileName() + " Failed to open profile.", ex);
+			return Response.serverError().entity("Failed to open profile: " + ex.getMessage()).build();
+		}
+
+		return Response.created(URI.create("status/" + settings.getProfileName())).build();
+	}
+
+	@DELETE
+	@Path("{name}")
+	public Response remove(@PathParam("name") String name) {
+		return apply(name, manager::closeConnection);
+	}
+
+	@POST
+	@Path("{name}/pause")
+	public Response pause(@PathParam("name") String name) {
+		return apply(name, manager::pauseConnection);
+	}
+
+	@POST
+	@Path("{name}/resume")
+	public Response resume(@PathParam("name") String name) {
+		return apply(name, manager::resumeConnection);
+	}
+
+	@POST
+	@Path("{name}/reconnect")
+	public Response reconnect(@PathParam("name") String name) {
+		return apply(name, manager::reconnectConnection);
+	}
+
+	@POST
+	@Path("{name}/drain")
+	public Response drain(@PathParam("name") String name) {
+		return apply(name, manager::drainConnection);
+	}
+
+	private static Response apply(String name, Predicate<String> action) {
+		if (action.test(name)) {
+			return Response.noContent().build();
+		} else {
+			return Response.status(Response.Status.NOT_FOUND).build();
+		}
+	}
+
+}
@@ -16,6 +16,11 @@
  */
 package de.rwth_aachen.afu.dapnet.proxy;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -27,9 +32,14 @@ import java.util.logging.Logger;
 public final class Program {
 
 	private static final String REST_PORT_KEY = "dapnet.proxy.rest.port";
+	private static final String REST_THREADS_KEY = "dapnet.proxy.rest.threads";
+	private static final String REST_ADMIN_KEY = "dapnet.proxy.rest.admin";
+	private static final String LOG_ASYNC_KEY = "dapnet.proxy.log.async";
 	private static final Logger LOGGER = Logger.getLogger(Program.class.getName());
 
 	public static void main(String[] args) {
+		configureLogging();
+
 		if (args.length < 1) {
 			LOGGER.log(Level.SEVERE, "No configuration file provided.");
 			System.exit(1);
@@ -43,13 +53,15 @@ public final class Program {
 			Integer port = Integer.getInteger(REST_PORT_KEY);
 			if (port != null) {
 				statusManager = new ConnectionStatusManager();
-				LOGGER.log(Level.INFO, "Starting REST server on port {0,number,#}", port);
-				statusManager.start(port);
 			}
 
 			ProxyManager proxyManager = new ProxyManager(statusManager);
 			registerShutdownHook(proxyManager);
 
+			if (statusManager != null) {
+				startRestServer(statusManager, proxyManager, port);
+			}
+
 			for (String arg : args) {
 				registerService(proxyManager, arg);
 			}
@@ -59,8 +71,50 @@ public final class Program {
 		}
 	}
 
+	private static void configureLogging() {
+		Logger root = Logger.getLogger("");
+
+		StructuredFormatter formatter = StructuredFormatter.fromSystemProperties();
+		if (formatter != null) {
+			for (Handler handler : root.getHandlers()) {
+				handler.setFormatter(formatter);
+			}
+		}
+
+		// Log from the event loops without blocking on the console
+		if (Boolean.parseBoolean(System.getProperty(LOG_ASYNC_KEY, "true"))) {
+			AsyncLogHandler.install(root);
+		}
+	}
+
+	private static void startRestServer(ConnectionStatusManager statusManager, ProxyManager proxyManager, int port)
+			throws IOException {
+		// Dedicated worker threads, requests must never run on the relay event loops
+		int threads = Integer.getInteger(REST_THREADS_KEY, 2);
+		if (threads < 1) {
+			throw new IllegalArgumentException("Invalid number of REST server threads: " + threads);
+		}
+
+		ProxyManager admin = null;
+		if (Boolean.getBoolean(REST_ADMIN_KEY)) {
+			LOGGER.log(Level.WARNING, "Profile management API is enabled, restrict access to the REST port.");
+			admin = proxyManager;
+		}
+
+		LOGGER.log(Level.INFO, "Starting REST server on port {0,number,#} ({1} worker threads)",
+				new Object[] { port, threads });
+		statusManager.start(port, threads, admin);
+	}
+
 	private static void registerService(ProxyManager manager, String configFile) {
 		try {
+			// Watch configuration directories for changes
+			Path path = Paths.get(configFile);
+			if (Files.isDirectory(path)) {
+				new ConfigWatcher(manager, path).start();
+				return;
+			}
+
 			ConnectionSettings settings = ConnectionSettings.fromFile(configFile);
 			manager.openConnection(settings);
 		} catch (Exception ex) {
@@ -0,0 +1,428 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.netty.util.internal.PlatformDependent;
+
+/**
+ * This class dispatches proxy events to any number of listeners on a
+ * dedicated thread, so a slow listener cannot stall the event loops reporting
+ * the events. Events that change the state of a profile, i.e. registration,
+ * connection, reconnect state and handshake events, are passed through an
+ * unbounded queue in the order they have been published and are never
+ * dropped. Keep alive samples are passed through a bounded lock-free queue
+ * with {@code dapnet.proxy.events.capacity} entries (default 4096). If this
+ * queue is full, the sample is dropped and counted.
+ *
+ * The dispatcher takes all queued events at once and coalesces them per
+ * profile before calling the listeners: a connect followed by a disconnect is
+ * dropped if the profile is reconnected anyway, and only the latest reconnect
+ * state and keep alive round trip time are passed on. The relayed bytes are
+ * taken from the traffic counters of the profiles every
+ * {@code dapnet.proxy.events.trafficInterval} milliseconds (default 1000, 0
+ * disables) and reported if they have changed.
+ *
+ * Registration events are never coalesced. The shutdown event is dispatched
+ * on the calling thread once all queued events have been dispatched.
+ *
+ * @author Philipp Thiel
+ */
+final class ProxyEventBus implements ProxyEventListener {
+
+	static final String CAPACITY_KEY = "dapnet.proxy.events.capacity";
+	static final String TRAFFIC_INTERVAL_KEY = "dapnet.proxy.events.trafficInterval";
+	private static final Logger LOGGER = Logger.getLogger(ProxyEventBus.class.getName());
+	private static final int REGISTER = 0;
+	private static final int UNREGISTER = 1;
+	private static final int CONNECT = 2;
+	private static final int DISCONNECT = 3;
+	private static final int RECONNECT_STATE = 4;
+	private static final int HANDSHAKE = 5;
+	private static final int KEEP_ALIVE = 6;
+	private final List<ProxyEventListener> listeners = new CopyOnWriteArrayList<>();
+	private final Queue<Event> states = new ConcurrentLinkedQueue<>();
+	private final Queue<Event> samples;
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+	private final long trafficInterval;
+	private final Thread dispatcher;
+	private volatile boolean running = true;
+	private volatile boolean parked;
+	// Dispatcher thread only
+	private final Map<String, ConnectionMetrics> metrics = new HashMap<>();
+	private final Map<String, long[]> lastTraffic = new HashMap<>();
+	private long nextTraffic;
+	private long reportedDrops;
+
+	/**
+	 * Creates a new instance using the settings from the system properties and
+	 * starts the dispatcher thread.
+	 */
+	public ProxyEventBus() {
+		this(Integer.getInteger(CAPACITY_KEY, 4096), Long.getLong(TRAFFIC_INTERVAL_KEY, 1000));
+	}
+
+	/**
+	 * Creates a new instance and starts the dispatcher thread.
+	 *
+	 * @param capacity        Maximum number of queued keep alive samples
+	 * @param trafficInterval Interval of the traffic events in milliseconds or 0
+	 *                        to disable them.
+	 */
+	public ProxyEventBus(int capacity, long trafficInterval) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Sample queue capacity must be at least 1.");
+		} else if (trafficInterval < 0) {
+			throw new IllegalArgumentException("Traffic interval cannot be negative.");
+		}
+
+		this.samples = PlatformDependent.newFixedMpscQueue(capacity);
+		this.trafficInterval = TimeUnit.MILLISECONDS.toNanos(trafficInterval);
+		this.dispatcher = new Thread(this::run, "dapnet-events");
+		this.dispatcher.setDaemon(true);
+		this.dispatcher.start();
+	}
+
+	/**
+	 * Adds a listener.
+	 *
+	 * @param listener Listener to add
+	 */
+	public void addListener(ProxyEventListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Removes a listener.
+	 *
+	 * @param listener Listener to remove
+	 */
+	public void removeListener(ProxyEventListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Gets the number of keep alive samples dropped because the queue was full.
+	 *
+	 * @return Number of events
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Gets the number of events that have been coalesced with a later event.
+	 *
+	 * @return Number of events
+	 */
+	public long getCoalesced() {
+		return coalesced.sum();
+	}
+
+	@Override
+	public void onRegister(String profileName, ConnectionMetrics metrics) {
+		Event event = new Event(REGISTER, profileName);
+		event.metrics = metrics;
+		publishState(event);
+	}
+
+	@Override
+	public void onUnregister(String profileName) {
+		publishState(new Event(UNREGISTER, profileName));
+	}
+
+	@Override
+	public void onConnect(String profileName) {
+		publishState(new Event(CONNECT, profileName));
+	}
+
+	@Override
+	public void onDisconnect(String profileName, boolean reconnect) {
+		Event event = new Event(DISCONNECT, profileName);
+		event.reconnect = reconnect;
+		publishState(event);
+	}
+
+	@Override
+	public void onReconnectStateChanged(String profileName, int attempt, Instant nextAttempt) {
+		Event event = new Event(RECONNECT_STATE, profileName);
+		event.attempt = attempt;
+		event.nextAttempt = nextAttempt;
+		publishState(event);
+	}
+
+	@Override
+	public void onHandshakeCompleted(String profileName) {
+		publishState(new Event(HANDSHAKE, profileName));
+	}
+
+	@Override
+	public void onKeepAlive(String profileName, long rttNanos) {
+		Event event = new Event(KEEP_ALIVE, profileName);
+		event.value = rttNanos;
+		publishSample(event);
+	}
+
+	/**
+	 * Dispatches the queued events, stops the dispatcher thread and calls the
+	 * shutdown event of the listeners on the calling thread.
+	 */
+	@Override
+	public void onShutdown() {
+		running = false;
+		LockSupport.unpark(dispatcher);
+
+		try {
+			dispatcher.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+
+		for (ProxyEventListener listener : listeners) {
+			try {
+				listener.onShutdown();
+			} catch (Exception ex) {
+				LOGGER.log(Level.SEVERE, "Failed to shut down proxy event listener.", ex);
+			}
+		}
+	}
+
+	private void publishState(Event event) {
+		states.add(event);
+		wakeUp();
+	}
+
+	private void publishSample(Event event) {
+		if (samples.offer(event)) {
+			wakeUp();
+		} else {
+			dropped.increment();
+		}
+	}
+
+	private void wakeUp() {
+		if (parked) {
+			LockSupport.unpark(dispatcher);
+		}
+	}
+
+	private void run() {
+		List<Event> batch = new ArrayList<>();
+		nextTraffic = System.nanoTime() + trafficInterval;
+
+		while (true) {
+			boolean stopping = !running;
+
+			// Samples published after a state event are taken after it
+			Event event;
+			while ((event = states.poll()) != null) {
+				batch.add(event);
+			}
+
+			while ((event = samples.poll()) != null) {
+				batch.add(event);
+			}
+
+			if (!batch.isEmpty()) {
+				coalesce(batch);
+				for (Event e : batch) {
+					if (e != null) {
+						dispatch(e);
+					}
+				}
+
+				batch.clear();
+			}
+
+			long now = System.nanoTime();
+			if (trafficInterval > 0 && now - nextTraffic >= 0) {
+				nextTraffic = now + trafficInterval;
+				dispatchTraffic();
+				reportDrops();
+			}
+
+			if (stopping) {
+				break;
+			} else if (states.isEmpty() && samples.isEmpty()) {
+				parked = true;
+				if (states.isEmpty() && samples.isEmpty() && running) {
+					if (trafficInterval > 0) {
+						LockSupport.parkNanos(this, Math.max(0, nextTraffic - System.nanoTime()));
+					} else {
+						LockSupport.park(this);
+					}
+				}
+
+				parked = false;
+			}
+		}
+	}
+
+	/**
+	 * Coalesces the events of a batch by replacing superseded events with
+	 * {@code null}.
+	 */
+	private void coalesce(List<Event> batch) {
+		Map<String, Integer> lastConnect = new HashMap<>();
+		Map<String, Integer> lastReconnectState = new HashMap<>();
+		Map<String, Integer> lastKeepAlive = new HashMap<>();
+
+		for (int i = 0; i < batch.size(); ++i) {
+			Event event = batch.get(i);
+			switch (event.type) {
+			case CONNECT:
+				lastConnect.put(event.profileName, i);
+				break;
+			case DISCONNECT:
+				// Flapping connection: drop the connect and the disconnect if reconnecting
+				Integer connect = lastConnect.remove(event.profileName);
+				if (connect != null && event.reconnect) {
+					batch.set(connect, null);
+					batch.set(i, null);
+					coalesced.add(2);
+				}
+				break;
+			case RECONNECT_STATE:
+				supersede(batch, lastReconnectState.put(event.profileName, i));
+				break;
+			case KEEP_ALIVE:
+				supersede(batch, lastKeepAlive.put(event.profileName, i));
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	private void supersede(List<Event> batch, Integer index) {
+		if (index != null) {
+			batch.set(index, null);
+			coalesced.increment();
+		}
+	}
+
+	private void dispatch(Event event) {
+		if (event.type == REGISTER) {
+			metrics.put(event.profileName, event.metrics);
+		} else if (event.type == UNREGISTER) {
+			metrics.remove(event.profileName);
+			lastTraffic.remove(event.profileName);
+		}
+
+		for (ProxyEventListener listener : listeners) {
+			try {
+				switch (event.type) {
+				case REGISTER:
+					listener.onRegister(event.profileName, event.metrics);
+					break;
+				case UNREGISTER:
+					listener.onUnregister(event.profileName);
+					break;
+				case CONNECT:
+					listener.onConnect(event.profileName);
+					break;
+				case DISCONNECT:
+					listener.onDisconnect(event.profileName, event.reconnect);
+					break;
+				case RECONNECT_STATE:
+					listener.onReconnectStateChanged(event.profileName, event.attempt, event.nextAttempt);
+					break;
+				case HANDSHAKE:
+					listener.onHandshakeCompleted(event.profileName);
+					break;
+				case KEEP_ALIVE:
+					listener.onKeepAlive(event.profileName, event.value);
+					break;
+				default:
+					break;
+				}
+			} catch (Exception ex) {
+				LOGGER.log(Level.SEVERE, "Proxy event listener failed.", ex);
+			}
+		}
+	}
+
+	private void dispatchTraffic() {
+		for (ConnectionMetrics m : metrics.values()) {
+			long frontendBytes = m.getFrontendBytes();
+			long backendBytes = m.getBackendBytes();
+			long[] last = lastTraffic.get(m.getProfileName());
+			if (last == null) {
+				last = new long[2];
+				lastTraffic.put(m.getProfileName(), last);
+			}
+
+			if (frontendBytes == last[0] && backendBytes == last[1]) {
+				continue;
+			}
+
+			long frontendDelta = frontendBytes - last[0];
+			long backendDelta = backendBytes - last[1];
+			last[0] = frontendBytes;
+			last[1] = backendBytes;
+
+			for (ProxyEventListener listener : listeners) {
+				try {
+					listener.onTraffic(m.getProfileName(), frontendDelta, backendDelta);
+				} catch (Exception ex) {
+					LOGGER.log(Level.SEVERE, "Proxy event listener failed.", ex);
+				}
+			}
+		}
+	}
+
+	private void reportDrops() {
+		long drops = dropped.sum();
+		if (drops != reportedDrops) {
+			LOGGER.log(Level.WARNING, "Sample queue is full, dropped {0,number,#} keep alive samples.",
+					drops - reportedDrops);
+			reportedDrops = drops;
+		}
+	}
+
+	private static final class Event {
+
+		private final int type;
+		private final String profileName;
+		private ConnectionMetrics metrics;
+		private boolean reconnect;
+		private int attempt;
+		private Instant nextAttempt;
+		private long value;
+
+		Event(int type, String profileName) {
+			this.type = type;
+			this.profileName = profileName;
+		}
+
+	}
+
+}
@@ -16,6 +16,8 @@
  */
 package de.rwth_aachen.afu.dapnet.proxy;
 
+import java.time.Instant;
+
 /**
  * Event listener interface for proxy connection events.
  *
@@ -27,8 +29,16 @@ interface ProxyEventListener {
 	 * Called when a proxy connection profile is registered.
 	 *
 	 * @param profileName Profile name
+	 * @param metrics     Traffic counters of the profile
 	 */
-	void onRegister(String profileName);
+	void onRegister(String profileName, ConnectionMetrics metrics);
+
+	/**
+	 * Called when a proxy connection profile has been closed and removed.
+	 *
+	 * @param profileName Profile name
+	 */
+	void onUnregister(String profileName);
 
 	/**
 	 * Called when a proxy connection has been established.
@@ -45,6 +55,46 @@ interface ProxyEventListener {
 	 */
 	void onDisconnect(String profileName, boolean reconnect);
 
+	/**
+	 * Called when a reconnect has been scheduled or the reconnect delay has been
+	 * reset after a stable connection.
+	 *
+	 * @param profileName Profile name
+	 * @param attempt     Number of reconnect attempts since the last reset.
+	 * @param nextAttempt Time of the next attempt or {@code null} if none is
+	 *                    scheduled.
+	 */
+	void onReconnectStateChanged(String profileName, int attempt, Instant nextAttempt);
+
+	/**
+	 * Called when the handshake with a backend server has been completed.
+	 *
+	 * @param profileName Profile name
+	 */
+	default void onHandshakeCompleted(String profileName) {
+	}
+
+	/**
+	 * Called when a keep alive response has been received from a backend
+	 * server.
+	 *
+	 * @param profileName Profile name
+	 * @param rttNanos    Round trip time in nanoseconds
+	 */
+	default void onKeepAlive(String profileName, long rttNanos) {
+	}
+
+	/**
+	 * Called periodically with the number of bytes relayed since the previous
+	 * call, if any.
+	 *
+	 * @param profileName   Profile name
+	 * @param frontendBytes Bytes received from the frontend server
+	 * @param backendBytes  Bytes received from the backend server
+	 */
+	default void onTraffic(String profileName, long frontendBytes, long backendBytes) {
+	}
+
 	/**
 	 * Called when the proxy manager is shutting down.
 	 */
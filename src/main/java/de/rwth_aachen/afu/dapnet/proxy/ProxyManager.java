@@ -16,130 +16,540 @@
  */
 package de.rwth_aachen.afu.dapnet.proxy;
 
+import java.io.IOException;
 import java.net.ConnectException;
 import java.net.UnknownHostException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelOption;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.Promise;
 
 /**
- * This class manages the proxy connections.
+ * This class manages the proxy connections. Each connection profile is
+ * represented by a handle, so single profiles can be closed or reopened with
+ * new settings while the other profiles stay connected.
  *
  * @author Philipp Thiel
  */
 final class ProxyManager {
 
 	private static final Logger LOGGER = Logger.getLogger(ProxyManager.class.getName());
-	private final EventLoopGroup workerGroup = new NioEventLoopGroup();
-	private final ProxyEventListener listener;
+	private static final long CLOSE_TIMEOUT = 5;
+	private final Transport transport;
+	private final WorkerGroups workerGroups;
+	private final ReconnectScheduler reconnectScheduler = new ReconnectScheduler();
+	private final ConcurrentMap<String, ConnectionMetrics> metrics = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Profile> profiles = new ConcurrentHashMap<>();
+	// Profiles removed but not yet closed, their names stay reserved
+	private final ConcurrentMap<String, Profile> closing = new ConcurrentHashMap<>();
+	private ScheduledExecutorService spoolFlusher;
+	private final ProxyEventBus events = new ProxyEventBus();
 	private volatile boolean shutdownRequested = false;
 
 	/**
 	 * Creates a new proxy manager instance.
 	 *
-	 * @param listener Proxy event listener to use.
+	 * @param listener Proxy event listener to use or {@code null}. More listeners
+	 *                 can be added to the event bus.
 	 */
 	public ProxyManager(ProxyEventListener listener) {
-		this.listener = listener;
+		if (listener != null) {
+			events.addListener(listener);
+		}
+
+		this.transport = Transport.select();
+		this.workerGroups = new WorkerGroups(transport);
+
+		LOGGER.log(Level.INFO, "Using {0} transport.", transport);
 	}
 
 	/**
 	 * Opens a new proxy connection.
 	 *
 	 * @param settings Connection settings
+	 * @throws IOException           If the TLS context could not be created or the
+	 *                               page spool could not be opened.
+	 * @throws IllegalStateException If a profile with the same name is already
+	 *                               open or still being closed.
 	 */
-	public void openConnection(final ConnectionSettings settings) {
-		workerGroup.submit(() -> doConnect(settings));
+	public void openConnection(final ConnectionSettings settings) throws IOException {
+		String profileName = settings.getProfileName();
 
-		if (listener != null) {
-			listener.onRegister(settings.getProfileName());
+		// Checked before the spool directory of an open profile is touched
+		synchronized (profiles) {
+			if (profiles.containsKey(profileName)) {
+				throw new IllegalStateException("Profile is already open: " + profileName);
+			} else if (closing.containsKey(profileName)) {
+				throw new IllegalStateException("Profile is still being closed: " + profileName);
+			}
+
+			ConnectionMetrics profileMetrics = metrics.computeIfAbsent(profileName, ConnectionMetrics::new);
+			profileMetrics.setListener(events);
+
+			FrontendTls tls = null;
+			PageSpool spool = null;
+			try {
+				// Kept across reconnects to resume TLS sessions
+				if (settings.isFrontendTls()) {
+					tls = new FrontendTls(settings);
+				}
+
+				if (settings.getSpoolDirectory() != null) {
+					spool = new PageSpool(settings, profileMetrics);
+				}
+
+				final Profile profile = new Profile(settings, profileMetrics, spool, tls);
+				if (spool != null) {
+					scheduleSpoolFlush(profile);
+				}
+
+				profiles.put(profileName, profile);
+				reconnectScheduler.acquire(workerGroups.getEventLoop(settings), () -> doConnect(profile));
+			} catch (IOException | RuntimeException ex) {
+				profiles.remove(profileName);
+				closeResources(spool, tls);
+				throw ex;
+			}
+
+			events.onRegister(profileName, profileMetrics);
 		}
 	}
 
 	/**
-	 * Stops the proxy manager and closes all open connections.
+	 * Closes a proxy connection and removes its profile. Pending writes are
+	 * flushed before the connection is closed, no reconnect is made.
+	 *
+	 * @param profileName Profile name
+	 * @return {@code true} if the profile was open
+	 */
+	public boolean closeConnection(String profileName) {
+		Profile profile = remove(profileName);
+		if (profile == null) {
+			return false;
+		}
+
+		profile.log.log(Level.INFO, "{0} Closing profile.");
+
+		closeProfile(profile, () -> {
+			reconnectScheduler.reset(profileName);
+			metrics.remove(profileName);
+
+			events.onUnregister(profileName);
+		});
+
+		return true;
+	}
+
+	/**
+	 * Closes the proxy connection of a profile and opens it again with the
+	 * given settings once it has been closed and its pages have been spooled.
+	 * The traffic counters of the profile are kept. If the profile is not open,
+	 * it is opened.
+	 *
+	 * @param settings New connection settings
+	 * @return Future completed once the profile has been opened again, completed
+	 *         exceptionally if it could not be opened.
+	 * @throws IOException If the page spool could not be opened.
+	 */
+	public CompletableFuture<Void> reopenConnection(final ConnectionSettings settings) throws IOException {
+		String profileName = settings.getProfileName();
+		Profile profile = remove(profileName);
+		if (profile == null) {
+			openConnection(settings);
+			return CompletableFuture.completedFuture(null);
+		}
+
+		profile.log.log(Level.INFO, "{0} Reopening profile with changed settings.");
+
+		CompletableFuture<Void> reopened = new CompletableFuture<>();
+		closeProfile(profile, () -> {
+			try {
+				openConnection(settings);
+				reopened.complete(null);
+			} catch (Exception ex) {
+				profile.log.log(Level.SEVERE, "{0} Failed to reopen profile.", ex);
+				reopened.completeExceptionally(ex);
+			}
+		});
+
+		return reopened;
+	}
+
+	/**
+	 * Pauses relaying of a profile. No more lines are read from the frontend
+	 * server until relaying is resumed, the connections stay open.
+	 *
+	 * @param profileName Profile name
+	 * @return {@code true} if the profile is open
+	 */
+	public boolean pauseConnection(String profileName) {
+		return execute(profileName, profile -> {
+			profile.paused = true;
+
+			if (profile.gate != null) {
+				profile.gate.setPaused(true);
+			}
+
+			profile.log.log(Level.INFO, "{0} Relaying paused.");
+		});
+	}
+
+	/**
+	 * Resumes relaying of a paused or drained profile.
+	 *
+	 * @param profileName Profile name
+	 * @return {@code true} if the profile is open
+	 */
+	public boolean resumeConnection(String profileName) {
+		return execute(profileName, profile -> {
+			profile.paused = false;
+
+			if (profile.gate != null) {
+				profile.gate.setPaused(false);
+			}
+
+			if (profile.drained) {
+				profile.drained = false;
+				connectNow(profile);
+			}
+
+			profile.log.log(Level.INFO, "{0} Relaying resumed.");
+		});
+	}
+
+	/**
+	 * Closes the connection of a profile and connects again without delay. If
+	 * the profile is waiting for a reconnect, the attempt is made at once.
+	 *
+	 * @param profileName Profile name
+	 * @return {@code true} if the profile is open
+	 */
+	public boolean reconnectConnection(String profileName) {
+		return execute(profileName, profile -> {
+			profile.log.log(Level.INFO, "{0} Forcing reconnect.");
+
+			profile.drained = false;
+			reconnectScheduler.reset(profileName);
+
+			Channel channel = profile.channel;
+			if (channel != null && channel.isOpen()) {
+				profile.reconnectNow = true;
+				channel.close();
+			} else {
+				connectNow(profile);
+			}
+		});
+	}
+
+	/**
+	 * Drains a profile. No more lines are read from the frontend server, the
+	 * lines already read are flushed and the connection is closed. The profile
+	 * is not reconnected until it is resumed or a reconnect is forced.
+	 *
+	 * @param profileName Profile name
+	 * @return {@code true} if the profile is open
+	 */
+	public boolean drainConnection(String profileName) {
+		return execute(profileName, profile -> {
+			profile.log.log(Level.INFO, "{0} Draining connection.");
+
+			profile.drained = true;
+
+			if (profile.reconnect != null) {
+				profile.reconnect.cancel(false);
+			}
+
+			if (profile.gate != null) {
+				profile.gate.setPaused(true);
+			}
+
+			Channel channel = profile.channel;
+			if (channel != null && channel.isOpen()) {
+				channel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+			}
+		});
+	}
+
+	/**
+	 * Tests if a profile is open.
+	 *
+	 * @param profileName Profile name
+	 * @return {@code true} if the profile is open
+	 */
+	public boolean isOpen(String profileName) {
+		return profiles.containsKey(profileName);
+	}
+
+	/**
+	 * Stops the proxy manager and closes all open connections. The event loops
+	 * are shut down once the pages of all profiles have been spooled.
 	 */
 	public void shutdown() {
 		shutdownRequested = true;
 
 		LOGGER.info("Shutting down proxy manager ...");
 
-		if (listener != null) {
-			try {
-				listener.onShutdown();
-			} catch (Exception ex) {
-				LOGGER.log(Level.SEVERE, "Failed to shut down proxy event listener.", ex);
+		events.onShutdown();
+
+		reconnectScheduler.clear();
+
+		List<Profile> open = new ArrayList<>(profiles.values());
+		CountDownLatch closed = new CountDownLatch(open.size());
+		for (Profile profile : open) {
+			closeProfile(profile, closed::countDown);
+		}
+
+		try {
+			if (!closed.await(CLOSE_TIMEOUT, TimeUnit.SECONDS)) {
+				LOGGER.warning("Timed out waiting for the profiles to be closed.");
 			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
 		}
 
-		workerGroup.shutdownGracefully();
+		workerGroups.shutdownGracefully();
+
+		synchronized (profiles) {
+			if (spoolFlusher != null) {
+				spoolFlusher.shutdown();
+			}
+		}
 
 		LOGGER.info("Proxy manager has been shut down.");
 	}
 
-	private void doConnect(final ConnectionSettings settings) {
+	/**
+	 * Gets the event bus the proxy events are dispatched by.
+	 *
+	 * @return Event bus
+	 */
+	public ProxyEventBus getEventBus() {
+		return events;
+	}
+
+	private Profile remove(String profileName) {
+		synchronized (profiles) {
+			Profile profile = profiles.remove(profileName);
+			if (profile != null) {
+				closing.put(profileName, profile);
+			}
+
+			return profile;
+		}
+	}
+
+	private boolean execute(String profileName, Consumer<Profile> action) {
+		Profile profile = profiles.get(profileName);
+		if (profile == null) {
+			return false;
+		}
+
+		workerGroups.getEventLoop(profile.settings).execute(() -> {
+			if (!profile.closed) {
+				action.accept(profile);
+			}
+		});
+
+		return true;
+	}
+
+	private void connectNow(Profile profile) {
+		if (profile.reconnect != null) {
+			profile.reconnect.cancel(false);
+		}
+
+		reconnectScheduler.acquire(workerGroups.getEventLoop(profile.settings), () -> doConnect(profile));
+	}
+
+	private void scheduleSpoolFlush(Profile profile) {
+		long interval = profile.settings.getSpoolFlushInterval();
+		if (interval <= 0) {
+			return;
+		}
+
+		synchronized (profiles) {
+			if (spoolFlusher == null) {
+				spoolFlusher = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("dapnet-spool",
+						true));
+			}
+
+			profile.spoolFlush = spoolFlusher.scheduleWithFixedDelay(profile.spool::flush, interval, interval,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void closeProfile(final Profile profile, final Runnable whenClosed) {
+		final EventLoop eventLoop = workerGroups.getEventLoop(profile.settings);
+		eventLoop.execute(() -> {
+			profile.closed = true;
+
+			if (profile.reconnect != null) {
+				profile.reconnect.cancel(false);
+			}
+
+			Channel channel = profile.channel;
+			if (channel != null && channel.isOpen()) {
+				channel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+			}
+
+			// Wait until the frontend handler has spooled its session and closed the backends
+			if (profile.released != null) {
+				profile.released.addListener(f -> onProfileClosed(profile, whenClosed));
+			} else {
+				onProfileClosed(profile, whenClosed);
+			}
+		});
+	}
+
+	private void onProfileClosed(Profile profile, Runnable whenClosed) {
+		if (profile.spoolFlush != null) {
+			profile.spoolFlush.cancel(false);
+		}
+
+		closeResources(profile.spool, profile.tls);
+
+		// The worker group may have changed
+		String profileName = profile.settings.getProfileName();
+		workerGroups.release(profileName);
+		closing.remove(profileName, profile);
+
+		profile.log.log(Level.INFO, "{0} Profile closed.");
+
+		whenClosed.run();
+	}
+
+	private static void closeResources(PageSpool spool, FrontendTls tls) {
+		if (spool != null) {
+			spool.close();
+		}
+
+		if (tls != null) {
+			tls.close();
+		}
+	}
+
+	private void doConnect(final Profile profile) {
+		// Skip attempts made obsolete by a closed profile or a forced reconnect
+		if (profile.closed || profile.drained || (profile.channel != null && profile.channel.isOpen())) {
+			reconnectScheduler.release();
+			return;
+		}
+
+		final ConnectionSettings settings = profile.settings;
+		EventLoop eventLoop = workerGroups.getEventLoop(settings);
+
+		profile.gate = new ReadGate(profile.paused);
+		final Promise<Void> released = eventLoop.newPromise();
+		profile.released = released;
+
 		Bootstrap b = new Bootstrap();
-		b.group(workerGroup);
-		b.channel(NioSocketChannel.class);
-		b.handler(new FrontendInitializer(settings));
-		b.option(ChannelOption.AUTO_READ, false);
+		b.group(eventLoop);
+		b.handler(new FrontendInitializer(settings, transport, profile.metrics, profile.spool, profile.gate,
+				profile.tls, profile.welcome, released));
+		transport.configure(b, settings);
 
 		ChannelFuture connf = b.connect(settings.getFrontendAddress());
+		profile.channel = connf.channel();
 		connf.addListener((ChannelFuture f) -> {
+			reconnectScheduler.release();
+
 			if (f.isSuccess()) {
-				onConnectSucceeded(settings, f.channel());
+				onConnectSucceeded(profile, f.channel());
 			} else {
+				// The frontend handler has never been active
 				f.channel().close();
-				onConnectFailed(settings, f.cause());
+				released.trySuccess(null);
+				onConnectFailed(profile, f.cause());
 			}
 		});
 	}
 
-	private void onConnectSucceeded(final ConnectionSettings settings, final Channel channel) {
-		channel.closeFuture().addListener(f -> onClose(settings));
+	private void onConnectSucceeded(final Profile profile, final Channel channel) {
+		final ConnectionSettings settings = profile.settings;
 
-		LOGGER.log(Level.INFO, "{0} Proxy connection added.", settings.getProfileName());
+		// Reset the reconnect delay once the connection has been stable
+		ScheduledFuture<?> stable = channel.eventLoop().schedule(() -> onConnectionStable(settings),
+				settings.getReconnectStableTime(), TimeUnit.MILLISECONDS);
 
-		if (listener != null) {
-			listener.onConnect(settings.getProfileName());
+		channel.closeFuture().addListener(f -> {
+			stable.cancel(false);
+			onClose(profile);
+		});
+
+		profile.log.log(Level.INFO, "{0} Proxy connection added.");
+
+		events.onConnect(settings.getProfileName());
+	}
+
+	private void onConnectionStable(ConnectionSettings settings) {
+		if (reconnectScheduler.getAttempts(settings.getProfileName()) > 0) {
+			reconnectScheduler.reset(settings.getProfileName());
+
+			events.onReconnectStateChanged(settings.getProfileName(), 0, null);
 		}
 	}
 
-	private void onConnectFailed(ConnectionSettings settings, Throwable ex) {
-		if (ex instanceof ConnectException || ex instanceof UnknownHostException) {
-			LOGGER.log(Level.SEVERE, settings.getProfileName() + " Could not connect to frontend: {0}",
-					ex.getMessage());
+	private void onConnectFailed(Profile profile, Throwable ex) {
+		if (profile.closed) {
+			profile.log.log(Level.FINE, "{0} Connection attempt aborted.");
+			return;
+		} else if (ex instanceof ConnectException || ex instanceof UnknownHostException) {
+			profile.log.log(Level.SEVERE, "{0} Could not connect to frontend: {1}", ex.getMessage());
 		} else {
-			LOGGER.log(Level.SEVERE, settings.getProfileName() + " Could not connect to frontend.", ex);
+			profile.log.log(Level.SEVERE, "{0} Could not connect to frontend.", ex);
 		}
 
-		scheduleReconnect(settings);
+		scheduleReconnect(profile);
 	}
 
-	private void onClose(ConnectionSettings settings) {
-		LOGGER.log(Level.INFO, "{0} Connection closed.", settings.getProfileName());
+	private void onClose(Profile profile) {
+		profile.log.log(Level.INFO, "{0} Connection closed.");
 
-		boolean reconnect = scheduleReconnect(settings);
+		boolean reconnect = scheduleReconnect(profile);
 
-		if (listener != null) {
-			listener.onDisconnect(settings.getProfileName(), reconnect);
-		}
+		events.onDisconnect(profile.settings.getProfileName(), reconnect);
 	}
 
-	private boolean scheduleReconnect(final ConnectionSettings settings) {
+	private boolean scheduleReconnect(final Profile profile) {
+		final ConnectionSettings settings = profile.settings;
+		boolean now = profile.reconnectNow;
+		profile.reconnectNow = false;
+
 		long sleepTime = settings.getReconnectSleepTime();
-		if (!shutdownRequested && sleepTime > 0) {
-			LOGGER.log(Level.INFO, "{0} Performing reconnect.", settings.getProfileName());
+		if (!shutdownRequested && !profile.closed && !profile.drained && (now || sleepTime > 0)) {
+			String profileName = settings.getProfileName();
+			long delay = now ? 0 : reconnectScheduler.nextDelay(settings);
+			int attempt = reconnectScheduler.getAttempts(profileName);
+
+			profile.log.log(Level.INFO, "{0} Performing reconnect in {1,number,#} ms (attempt {2,number,#}).", delay,
+					attempt);
 
-			workerGroup.schedule(() -> doConnect(settings), sleepTime, TimeUnit.MILLISECONDS);
+			profile.metrics.recordReconnect();
+			EventLoop eventLoop = workerGroups.getEventLoop(settings);
+			profile.reconnect = eventLoop.schedule(
+					() -> reconnectScheduler.acquire(eventLoop, () -> doConnect(profile)), delay,
+					TimeUnit.MILLISECONDS);
+
+			events.onReconnectStateChanged(profileName, attempt, Instant.now().plusMillis(delay));
 
 			return true;
 		} else {
@@ -147,4 +557,50 @@ final class ProxyManager {
 		}
 	}
 
+	/**
+	 * Handle of an open connection profile. The channel, the read gate, the
+	 * released promise of the last connection, the reconnect task and the pause
+	 * and drain state are only accessed from the event loop of the profile.
+	 */
+	private static final class Profile {
+
+		private final ConnectionSettings settings;
+		private final ConnectionMetrics metrics;
+		private final PageSpool spool;
+		private final FrontendTls tls;
+		private final WelcomeMessageEncoder welcome;
+		private final ProfileLogger log;
+		private volatile ScheduledFuture<?> spoolFlush;
+		private Channel channel;
+		private ReadGate gate;
+		private Promise<Void> released;
+		private ScheduledFuture<?> reconnect;
+		private boolean reconnectNow;
+		private boolean drained;
+		private boolean paused;
+		private volatile boolean closed;
+
+		Profile(ConnectionSettings settings, ConnectionMetrics metrics, PageSpool spool, FrontendTls tls) {
+			this.settings = settings;
+			this.metrics = metrics;
+			this.spool = spool;
+			this.tls = tls;
+			this.welcome = new WelcomeMessageEncoder(settings.getFrontendName(), settings.getFrontendKey());
+			this.log = new ProfileLogger(LOGGER, settings.getProfileName(), null, this::getState);
+		}
+
+		private String getState() {
+			if (closed) {
+				return "closed";
+			} else if (drained) {
+				return "drained";
+			} else if (paused) {
+				return "paused";
+			} else {
+				return "open";
+			}
+		}
+
+	}
+
 }
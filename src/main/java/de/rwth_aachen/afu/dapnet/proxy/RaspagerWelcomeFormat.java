@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+/**
+ * The welcome message format of the RasPager and compatible firmwares:
+ * {@code [<type> v<version>]}. The type consists of ASCII letters, digits and
+ * slashes. The {@code v} is optional, the version starts with a digit followed
+ * by at least one digit or dot and may contain any printable ASCII characters
+ * afterwards, e.g. {@code [RasPager v1.0.0-SCP-#123456]}. The reply always
+ * contains the {@code v}.
+ *
+ * @author Philipp Thiel
+ */
+final class RaspagerWelcomeFormat implements WelcomeFormat {
+
+	private static final byte[] VERSION_PREFIX = LineBuffers.ascii(" v");
+
+	@Override
+	public ByteBuf rewrite(ByteBuf frame, int start, int length, byte[] auth, ByteBufAllocator alloc) {
+		int end = start + length - 1;
+		if (length < 6 || frame.getByte(start) != '[' || frame.getByte(end) != ']') {
+			return null;
+		}
+
+		// Type
+		int pos = start + 1;
+		while (pos < end && isTypeChar(frame.getByte(pos))) {
+			++pos;
+		}
+
+		int typeEnd = pos;
+		if (typeEnd == start + 1 || pos >= end || frame.getByte(pos++) != ' ') {
+			return null;
+		}
+
+		// Version
+		if (pos < end && frame.getByte(pos) == 'v') {
+			++pos;
+		}
+
+		int version = pos;
+		if (end - version < 2 || !isDigit(frame.getByte(version)) || !isDigitOrDot(frame.getByte(version + 1))) {
+			return null;
+		}
+
+		for (pos = version + 2; pos < end; ++pos) {
+			if (!isGraph(frame.getByte(pos))) {
+				return null;
+			}
+		}
+
+		int typeLength = typeEnd - start;
+		ByteBuf reply = alloc.buffer(typeLength + VERSION_PREFIX.length + end - version + auth.length);
+		reply.writeBytes(frame, start, typeLength);
+		reply.writeBytes(VERSION_PREFIX);
+		reply.writeBytes(frame, version, end - version);
+		reply.writeBytes(auth);
+		return reply;
+	}
+
+	private static boolean isTypeChar(byte b) {
+		return isDigit(b) || (b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z') || b == '/';
+	}
+
+	private static boolean isDigit(byte b) {
+		return b >= '0' && b <= '9';
+	}
+
+	private static boolean isDigitOrDot(byte b) {
+		return isDigit(b) || b == '.';
+	}
+
+	private static boolean isGraph(byte b) {
+		return b > ' ' && b < 0x7F;
+	}
+
+}
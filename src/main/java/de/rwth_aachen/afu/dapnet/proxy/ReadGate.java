@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * This handler holds back read requests while relaying is paused. It must be
+ * the first handler of the pipeline so it sees all read requests and the data
+ * as read from the socket. A read requested while paused is issued once
+ * relaying is resumed. Data of a read that was already in progress when
+ * relaying was paused is queued and passed on once relaying is resumed, or
+ * released if the channel is closed before. Since auto read is disabled, no
+ * further data is read from the socket while paused. Pending writes are still
+ * flushed.
+ *
+ * @author Philipp Thiel
+ */
+final class ReadGate extends ChannelDuplexHandler {
+
+	private final Queue<Object> queued = new ArrayDeque<>();
+	private ChannelHandlerContext ctx;
+	private boolean paused;
+	private boolean readPending;
+	private boolean readCompletePending;
+
+	/**
+	 * Creates a new handler instance.
+	 *
+	 * @param paused Whether relaying is paused initially.
+	 */
+	public ReadGate(boolean paused) {
+		this.paused = paused;
+	}
+
+	@Override
+	public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+		this.ctx = ctx;
+	}
+
+	@Override
+	public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+		releaseQueued();
+	}
+
+	@Override
+	public void read(ChannelHandlerContext ctx) throws Exception {
+		if (paused) {
+			readPending = true;
+		} else {
+			ctx.read();
+		}
+	}
+
+	@Override
+	public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+		if (paused) {
+			queued.add(msg);
+		} else {
+			ctx.fireChannelRead(msg);
+		}
+	}
+
+	@Override
+	public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+		if (paused) {
+			readCompletePending = true;
+		} else {
+			ctx.fireChannelReadComplete();
+		}
+	}
+
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		releaseQueued();
+		ctx.fireChannelInactive();
+	}
+
+	/**
+	 * Pauses or resumes relaying. Must be called from the event loop of the
+	 * channel.
+	 *
+	 * @param paused Whether to pause relaying.
+	 */
+	public void setPaused(boolean paused) {
+		this.paused = paused;
+		if (paused || ctx == null) {
+			return;
+		}
+
+		Object msg;
+		while (!this.paused && (msg = queued.poll()) != null) {
+			ctx.fireChannelRead(msg);
+		}
+
+		if (!this.paused && readCompletePending) {
+			readCompletePending = false;
+			ctx.fireChannelReadComplete();
+		}
+
+		if (!this.paused && readPending) {
+			readPending = false;
+			ctx.read();
+		}
+	}
+
+	private void releaseQueued() {
+		Object msg;
+		while ((msg = queued.poll()) != null) {
+			ReferenceCountUtil.release(msg);
+		}
+
+		readCompletePending = false;
+	}
+
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.channel.EventLoop;
+
+/**
+ * This class computes the reconnect delays of the connection profiles and
+ * limits the connection attempts across all profiles.
+ *
+ * The delay of a profile grows with decorrelated jitter: each delay is chosen
+ * at random between the reconnect sleep time and three times the previous
+ * delay, capped at the maximum delay of the profile. It is reset once a
+ * connection has been open for the stable time of the profile. Profiles that
+ * lose their connection at the same time therefore spread their attempts.
+ *
+ * Connection attempts are additionally limited by a token bucket
+ * ({@code dapnet.proxy.reconnect.rate} attempts per second, up to
+ * {@code dapnet.proxy.reconnect.burst} at once) and by the number of attempts
+ * in progress ({@code dapnet.proxy.reconnect.concurrency}). Attempts exceeding
+ * the limits are queued in order. A value of 0 disables the respective limit.
+ *
+ * @author Philipp Thiel
+ */
+final class ReconnectScheduler {
+
+	static final String RATE_KEY = "dapnet.proxy.reconnect.rate";
+	static final String BURST_KEY = "dapnet.proxy.reconnect.burst";
+	static final String CONCURRENCY_KEY = "dapnet.proxy.reconnect.concurrency";
+	private final ConcurrentMap<String, Backoff> backoffs = new ConcurrentHashMap<>();
+	private final Deque<Attempt> pending = new ArrayDeque<>();
+	private final double rate;
+	private final int burst;
+	private final int concurrency;
+	private double tokens;
+	private long lastRefill = System.nanoTime();
+	private int inProgress;
+	private boolean pumpScheduled;
+
+	/**
+	 * Creates a new instance using the limits from the system properties.
+	 */
+	public ReconnectScheduler() {
+		this(Integer.getInteger(RATE_KEY, 20), Integer.getInteger(BURST_KEY, 20),
+				Integer.getInteger(CONCURRENCY_KEY, 16));
+	}
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param rate        Connection attempts per second or 0 for no limit.
+	 * @param burst       Maximum number of attempts started at once.
+	 * @param concurrency Maximum number of attempts in progress or 0 for no
+	 *                    limit.
+	 */
+	public ReconnectScheduler(double rate, int burst, int concurrency) {
+		if (rate < 0 || burst < 0 || concurrency < 0) {
+			throw new IllegalArgumentException("Reconnect limits cannot be negative.");
+		}
+
+		this.rate = rate;
+		this.burst = Math.max(1, burst);
+		this.concurrency = concurrency;
+		this.tokens = this.burst;
+	}
+
+	/**
+	 * Computes the delay until the next reconnect attempt of a profile and
+	 * increments its attempt counter.
+	 *
+	 * @param settings Connection settings
+	 * @return Delay in milliseconds
+	 */
+	public long nextDelay(ConnectionSettings settings) {
+		Backoff backoff = backoffs.computeIfAbsent(settings.getProfileName(), n -> new Backoff());
+		long base = settings.getReconnectSleepTime();
+
+		synchronized (backoff) {
+			backoff.delay = nextDelay(backoff.delay, base, settings.getReconnectMaxDelay());
+			++backoff.attempts;
+
+			return backoff.delay;
+		}
+	}
+
+	/**
+	 * Computes a delay with decorrelated jitter.
+	 *
+	 * @param previous Previous delay or 0 for the first attempt.
+	 * @param base     Minimum delay
+	 * @param cap      Maximum delay
+	 * @return Delay
+	 */
+	static long nextDelay(long previous, long base, long cap) {
+		long upper = Math.min(cap, Math.max(base, previous) * 3);
+		return upper > base ? ThreadLocalRandom.current().nextLong(base, upper + 1) : base;
+	}
+
+	/**
+	 * Gets the number of reconnect attempts of a profile since the last reset.
+	 *
+	 * @param profileName Profile name
+	 * @return Number of attempts
+	 */
+	public int getAttempts(String profileName) {
+		Backoff backoff = backoffs.get(profileName);
+		if (backoff != null) {
+			synchronized (backoff) {
+				return backoff.attempts;
+			}
+		} else {
+			return 0;
+		}
+	}
+
+	/**
+	 * Resets the delay of a profile to the reconnect sleep time.
+	 *
+	 * @param profileName Profile name
+	 */
+	public void reset(String profileName) {
+		backoffs.remove(profileName);
+	}
+
+	/**
+	 * Runs a connection attempt on the given event loop once the limits allow
+	 * it. The attempt must call {@link #release()} once it has completed.
+	 *
+	 * @param eventLoop Event loop to run the attempt on
+	 * @param attempt   Connection attempt
+	 */
+	public synchronized void acquire(EventLoop eventLoop, Runnable attempt) {
+		pending.add(new Attempt(eventLoop, attempt));
+		pump();
+	}
+
+	/**
+	 * Releases the limit taken by a completed connection attempt.
+	 */
+	public synchronized void release() {
+		if (inProgress > 0) {
+			--inProgress;
+		}
+
+		pump();
+	}
+
+	/**
+	 * Gets the number of queued connection attempts.
+	 *
+	 * @return Number of attempts
+	 */
+	public synchronized int getPending() {
+		return pending.size();
+	}
+
+	/**
+	 * Drops all queued connection attempts.
+	 */
+	public synchronized void clear() {
+		pending.clear();
+	}
+
+	private void pump() {
+		refill();
+
+		while (!pending.isEmpty() && (concurrency == 0 || inProgress < concurrency) && tokens >= 1) {
+			Attempt next = pending.poll();
+			if (rate > 0) {
+				tokens -= 1;
+			}
+			++inProgress;
+
+			next.eventLoop.execute(next.task);
+		}
+
+		// Wait for the next token, a completed attempt calls pump() on its own
+		if (!pending.isEmpty() && tokens < 1 && !pumpScheduled) {
+			long wait = (long) Math.ceil((1 - tokens) / rate * TimeUnit.SECONDS.toNanos(1));
+			pumpScheduled = true;
+			pending.peek().eventLoop.schedule(this::scheduledPump, wait, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	private synchronized void scheduledPump() {
+		pumpScheduled = false;
+		pump();
+	}
+
+	private void refill() {
+		if (rate > 0) {
+			long now = System.nanoTime();
+			tokens = Math.min(burst, tokens + (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+			lastRefill = now;
+		}
+	}
+
+	private static final class Backoff {
+
+		private long delay;
+		private int attempts;
+
+	}
+
+	private static final class Attempt {
+
+		private final EventLoop eventLoop;
+		private final Runnable task;
+
+		Attempt(EventLoop eventLoop, Runnable task) {
+			this.eventLoop = eventLoop;
+			this.task = task;
+		}
+
+	}
+
+}
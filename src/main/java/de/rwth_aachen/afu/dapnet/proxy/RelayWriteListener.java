@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+
+/**
+ * Listener for the relayed writes in one direction. It records the time from
+ * reading a line until its write has completed and closes the channel if a
+ * write fails. The receive timestamps are queued in write order, which is the
+ * order the writes complete in. A single instance is used for all writes, so
+ * relaying a line does not allocate a listener. This class must only be used
+ * from the event loop of the connection.
+ *
+ * @author Philipp Thiel
+ */
+final class RelayWriteListener implements ChannelFutureListener {
+
+	private final ConnectionMetrics metrics;
+	private final LatencyHistogram latency;
+	private final Channel source;
+	private final boolean readOnSuccess;
+	private long[] timestamps = new long[16];
+	private int head;
+	private int size;
+
+	/**
+	 * Creates a new listener.
+	 *
+	 * @param metrics       Traffic counters for failed writes
+	 * @param latency       Histogram to record the relay latency in
+	 * @param source        Channel the relayed lines are read from
+	 * @param readOnSuccess Whether to read the next line from the source channel
+	 *                      once a write has completed.
+	 */
+	public RelayWriteListener(ConnectionMetrics metrics, LatencyHistogram latency, Channel source,
+			boolean readOnSuccess) {
+		this.metrics = metrics;
+		this.latency = latency;
+		this.source = source;
+		this.readOnSuccess = readOnSuccess;
+	}
+
+	/**
+	 * Adds the receive timestamp of a line. Must be called before the line is
+	 * written.
+	 *
+	 * @param receivedNanos Receive timestamp as returned by
+	 *                      {@link System#nanoTime()}
+	 */
+	public void add(long receivedNanos) {
+		if (size == timestamps.length) {
+			long[] grown = new long[timestamps.length * 2];
+			for (int i = 0; i < size; ++i) {
+				grown[i] = timestamps[(head + i) % timestamps.length];
+			}
+
+			timestamps = grown;
+			head = 0;
+		}
+
+		timestamps[(head + size) % timestamps.length] = receivedNanos;
+		++size;
+	}
+
+	@Override
+	public void operationComplete(ChannelFuture future) throws Exception {
+		if (size > 0) {
+			latency.recordNanos(System.nanoTime() - timestamps[head]);
+			head = (head + 1) % timestamps.length;
+			--size;
+		}
+
+		if (future.isSuccess()) {
+			if (readOnSuccess) {
+				source.read();
+			}
+		} else {
+			metrics.recordWriteFailure();
+			future.channel().close();
+		}
+	}
+
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.util.concurrent.TimeUnit;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+
+/**
+ * This class keeps the state of a frontend session while the backend
+ * connection is re-established. It captures the last session lines
+ * ({@code 2:} time sync, {@code 3:} and {@code 4:} slot configuration)
+ * received from the frontend server, so they can be replayed to a new backend
+ * connection, and buffers all other lines in a bounded ring. If the ring is
+ * full the oldest line is dropped, lines older than the max age are dropped
+ * when the ring is accessed. Pages dropped because the ring is full or still
+ * buffered when the frontend session ends are appended to the page spool, if
+ * configured, and are no longer tracked for acknowledgements then.
+ *
+ * This class must only be used from the event loop of the connection.
+ *
+ * @author Philipp Thiel
+ */
+final class SessionBuffer {
+
+	private static final int FIRST_SESSION_TYPE = 2;
+	private static final int LAST_SESSION_TYPE = 4;
+	private final ByteBuf[] sessionLines = new ByteBuf[LAST_SESSION_TYPE - FIRST_SESSION_TYPE + 1];
+	private final ByteBuf[] frames;
+	private final long[] timestamps;
+	private final long maxAgeNanos;
+	private final ConnectionMetrics metrics;
+	private final PageSpool spool;
+	private final AckTracker acks;
+	private int head;
+	private int size;
+	private boolean backendReady = true;
+
+	/**
+	 * Creates a new session buffer.
+	 *
+	 * @param settings Connection settings
+	 * @param metrics  Traffic counters for buffered and dropped lines
+	 * @param spool    Page spool or {@code null} if pages are not spooled.
+	 * @param acks     Acknowledgement tracker of the session
+	 */
+	public SessionBuffer(ConnectionSettings settings, ConnectionMetrics metrics, PageSpool spool, AckTracker acks) {
+		this.frames = new ByteBuf[settings.getBackendBufferSize()];
+		this.timestamps = new long[frames.length];
+		this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(settings.getBackendBufferMaxAge());
+		this.metrics = metrics;
+		this.spool = spool;
+		this.acks = acks;
+	}
+
+	/**
+	 * Captures the given line if it is a session line.
+	 *
+	 * @param frame Frame received from the frontend server
+	 * @return {@code true} if the line is a session line
+	 */
+	public boolean capture(DapnetFrame frame) {
+		int type = frame.getType();
+		if (frame.isSequenced() || type < FIRST_SESSION_TYPE || type > LAST_SESSION_TYPE) {
+			return false;
+		}
+
+		int index = type - FIRST_SESSION_TYPE;
+		if (sessionLines[index] != null) {
+			sessionLines[index].release();
+		}
+
+		sessionLines[index] = frame.getContent().copy();
+		return true;
+	}
+
+	/**
+	 * Returns whether the frontend session has been established, i.e. the time
+	 * sync line has been captured.
+	 *
+	 * @return {@code true} if established
+	 */
+	public boolean isEstablished() {
+		return sessionLines[0] != null;
+	}
+
+	/**
+	 * Returns whether lines can be relayed to the backend. This is not the case
+	 * while the session is replayed to a new backend connection.
+	 *
+	 * @return {@code true} if the backend is ready
+	 */
+	public boolean isBackendReady() {
+		return backendReady;
+	}
+
+	/**
+	 * Sets whether lines can be relayed to the backend.
+	 *
+	 * @param backendReady {@code true} if the backend is ready
+	 */
+	public void setBackendReady(boolean backendReady) {
+		this.backendReady = backendReady;
+	}
+
+	/**
+	 * Adds a line to the buffer. The oldest line is dropped if the buffer is
+	 * full.
+	 *
+	 * @param frame Line frame, will be retained.
+	 */
+	public void add(ByteBuf frame) {
+		expire(System.nanoTime());
+		metrics.recordBufferedMessage();
+
+		if (frames.length == 0) {
+			drop(frame);
+			return;
+		}
+
+		if (size == frames.length) {
+			ByteBuf oldest = poll();
+			drop(oldest);
+			oldest.release();
+		}
+
+		int tail = (head + size) % frames.length;
+		frames[tail] = frame.retain();
+		timestamps[tail] = System.nanoTime();
+		++size;
+	}
+
+	/**
+	 * Gets the number of buffered lines.
+	 *
+	 * @return Number of lines
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Writes the captured session lines to the backend channel.
+	 *
+	 * @param channel Backend channel
+	 * @return Number of lines written
+	 */
+	public int replaySession(Channel channel) {
+		int count = 0;
+		for (ByteBuf line : sessionLines) {
+			if (line != null) {
+				channel.write(line.retainedDuplicate());
+				++count;
+			}
+		}
+
+		channel.flush();
+		return count;
+	}
+
+	/**
+	 * Writes all buffered lines that have not expired to the backend channel in
+	 * the order they have been received.
+	 *
+	 * @param channel Backend channel
+	 * @return Number of lines written
+	 */
+	public int replay(Channel channel) {
+		expire(System.nanoTime());
+
+		int count = 0;
+		while (size > 0) {
+			channel.write(poll());
+			++count;
+		}
+
+		channel.flush();
+		return count;
+	}
+
+	/**
+	 * Releases all buffered and captured lines. Buffered pages are appended to
+	 * the page spool.
+	 */
+	public void release() {
+		expire(System.nanoTime());
+
+		while (size > 0) {
+			ByteBuf frame = poll();
+			spool(frame);
+			frame.release();
+		}
+
+		for (int i = 0; i < sessionLines.length; ++i) {
+			if (sessionLines[i] != null) {
+				sessionLines[i].release();
+				sessionLines[i] = null;
+			}
+		}
+	}
+
+	private void expire(long now) {
+		while (maxAgeNanos > 0 && size > 0 && now - timestamps[head] > maxAgeNanos) {
+			poll().release();
+			metrics.recordDroppedMessage();
+		}
+	}
+
+	private void drop(ByteBuf frame) {
+		if (!spool(frame)) {
+			metrics.recordDroppedMessage();
+		}
+	}
+
+	private boolean spool(ByteBuf frame) {
+		if (spool == null || DapnetFrame.sequenceOf(frame) < 0 || !spool.append(frame)) {
+			return false;
+		}
+
+		acks.onSpooled(frame);
+		return true;
+	}
+
+	private ByteBuf poll() {
+		ByteBuf frame = frames[head];
+		frames[head] = null;
+		head = (head + 1) % frames.length;
+		--size;
+
+		return frame;
+	}
+
+}
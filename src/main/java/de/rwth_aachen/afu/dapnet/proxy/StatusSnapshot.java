@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * An immutable snapshot of the status of all registered connections. Each
+ * change publishes a new snapshot with an incremented version, so readers
+ * never see a partially applied change and never block the writers. The JSON
+ * representation of the snapshot is created on first use and cached.
+ *
+ * @author Philipp Thiel
+ */
+final class StatusSnapshot {
+
+	static final StatusSnapshot EMPTY = new StatusSnapshot(0, Collections.emptyMap());
+	// Versions restart on each start, the tags must not match the tags of a previous process
+	private static final String EPOCH = Long.toString(System.currentTimeMillis(), 36);
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	private final long version;
+	private final Map<String, ConnectionStatus> connections;
+	private volatile byte[] json;
+
+	private StatusSnapshot(long version, Map<String, ConnectionStatus> connections) {
+		this.version = version;
+		this.connections = connections;
+	}
+
+	/**
+	 * Creates the next snapshot with the given status added or replaced.
+	 *
+	 * @param status Connection status
+	 * @return New snapshot
+	 */
+	public StatusSnapshot with(ConnectionStatus status) {
+		Map<String, ConnectionStatus> copy = new LinkedHashMap<>(connections);
+		copy.put(status.getProfileName(), status);
+		return new StatusSnapshot(version + 1, Collections.unmodifiableMap(copy));
+	}
+
+	/**
+	 * Creates the next snapshot with the given profile removed.
+	 *
+	 * @param profileName Profile name
+	 * @return New snapshot
+	 */
+	public StatusSnapshot without(String profileName) {
+		Map<String, ConnectionStatus> copy = new LinkedHashMap<>(connections);
+		copy.remove(profileName);
+		return new StatusSnapshot(version + 1, Collections.unmodifiableMap(copy));
+	}
+
+	/**
+	 * Gets the version, which is incremented with each change.
+	 *
+	 * @return Version number
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Gets the tag of this snapshot, which identifies the version within this
+	 * process.
+	 *
+	 * @return Tag
+	 */
+	public String getTag() {
+		return tagOf(version);
+	}
+
+	/**
+	 * Gets the tag of a snapshot version.
+	 *
+	 * @param version Version number
+	 * @return Tag
+	 */
+	public static String tagOf(long version) {
+		return EPOCH + "-" + version;
+	}
+
+	/**
+	 * Gets the status of a connection.
+	 *
+	 * @param profileName Profile name
+	 * @return Connection status or {@code null} if not found.
+	 */
+	public ConnectionStatus get(String profileName) {
+		return connections.get(profileName);
+	}
+
+	/**
+	 * Gets the status of all connections.
+	 *
+	 * @return Unmodifiable collection
+	 */
+	public Collection<ConnectionStatus> getConnections() {
+		return connections.values();
+	}
+
+	/**
+	 * Gets the status of all connections as JSON array.
+	 *
+	 * @return UTF-8 encoded JSON, must not be modified.
+	 */
+	public byte[] toJson() {
+		byte[] result = json;
+		if (result == null) {
+			// Concurrent readers may serialize twice, the result is the same
+			try {
+				result = MAPPER.writeValueAsBytes(connections.values());
+			} catch (JsonProcessingException ex) {
+				throw new IllegalStateException("Failed to serialize status.", ex);
+			}
+
+			json = result;
+		}
+
+		return result;
+	}
+
+}
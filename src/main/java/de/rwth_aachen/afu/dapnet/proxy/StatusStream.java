@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.sse.OutboundSseEvent;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseBroadcaster;
+import javax.ws.rs.sse.SseEventSink;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/**
+ * This class pushes connection status changes to the subscribers of the
+ * status stream as server-sent events. A new subscriber first receives the
+ * current status of all profiles. Then it receives a {@code status} event for
+ * each change, a {@code removed} event for each removed profile and a
+ * {@code traffic} event every {@code dapnet.proxy.rest.stream.interval}
+ * milliseconds (default 1000, 0 disables) with the lines and bytes relayed
+ * since the previous one. If no traffic has been relayed, a comment is sent
+ * instead, so closed subscriptions are detected. The event ids are the entity
+ * tags of the status report.
+ *
+ * Events are serialized and sent by a dedicated thread, which is started with
+ * the first subscription and stopped once the last subscription has been
+ * closed, so publishing an event does not block the caller. A status event
+ * older than the last event sent for the same profile is dropped.
+ *
+ * @author Philipp Thiel
+ */
+final class StatusStream {
+
+	static final String INTERVAL_KEY = "dapnet.proxy.rest.stream.interval";
+	private static final Logger LOGGER = Logger.getLogger(StatusStream.class.getName());
+	private final ConnectionStatusManager manager;
+	private final long interval;
+	private final Map<String, long[]> lastTraffic = new HashMap<>();
+	private final Map<String, Long> lastVersions = new HashMap<>();
+	private final List<SseEventSink> sinks = new ArrayList<>();
+	private volatile ScheduledExecutorService executor;
+	private Sse sse;
+	private SseBroadcaster broadcaster;
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param manager Status manager to take the current status and traffic
+	 *                counters from.
+	 */
+	public StatusStream(ConnectionStatusManager manager) {
+		this.manager = manager;
+		this.interval = Long.getLong(INTERVAL_KEY, 1000);
+	}
+
+	/**
+	 * Adds a subscriber.
+	 *
+	 * @param sink Event sink of the subscriber
+	 * @param sse  SSE context to create the events with
+	 */
+	public synchronized void register(SseEventSink sink, Sse sse) {
+		if (executor == null) {
+			this.sse = sse;
+			this.broadcaster = sse.newBroadcaster();
+			this.broadcaster.onError((s, ex) -> LOGGER.log(Level.FINE, "Failed to send status event.", ex));
+
+			ScheduledExecutorService theExecutor = Executors
+					.newSingleThreadScheduledExecutor(new DefaultThreadFactory("dapnet-rest-stream", true));
+			if (interval > 0) {
+				theExecutor.scheduleWithFixedDelay(this::publishTraffic, interval, interval, TimeUnit.MILLISECONDS);
+			}
+
+			executor = theExecutor;
+		}
+
+		// Added before the task, so the executor is not stopped in between
+		sinks.add(sink);
+		executor.execute(() -> {
+			StatusSnapshot current = manager.getSnapshot();
+			for (ConnectionStatus status : current.getConnections()) {
+				lastVersions.merge(status.getProfileName(), current.getVersion(), Math::max);
+				sink.send(statusEvent(current.getVersion(), status));
+			}
+
+			broadcaster.register(sink);
+		});
+	}
+
+	/**
+	 * Tests if the stream has been subscribed to.
+	 *
+	 * @return {@code true} if events are published
+	 */
+	public boolean isActive() {
+		return executor != null;
+	}
+
+	/**
+	 * Publishes a status change. May be called from any thread.
+	 *
+	 * @param version Status version after the change
+	 * @param status  Changed status
+	 */
+	public void publishStatus(long version, ConnectionStatus status) {
+		submit(() -> {
+			// Changes published concurrently may arrive out of order
+			if (lastVersions.merge(status.getProfileName(), version, Math::max) == version) {
+				broadcaster.broadcast(statusEvent(version, status));
+				removeClosed();
+			}
+		});
+	}
+
+	/**
+	 * Publishes the removal of a profile. May be called from any thread.
+	 *
+	 * @param version     Status version after the change
+	 * @param profileName Profile name
+	 */
+	public void publishRemoved(long version, String profileName) {
+		submit(() -> {
+			lastTraffic.remove(profileName);
+			lastVersions.remove(profileName);
+			broadcaster.broadcast(sse.newEventBuilder().name("removed").id(StatusSnapshot.tagOf(version))
+					.data(profileName).build());
+			removeClosed();
+		});
+	}
+
+	/**
+	 * Closes all subscriptions.
+	 */
+	public synchronized void close() {
+		sinks.clear();
+		stop();
+	}
+
+	private void submit(Runnable task) {
+		ScheduledExecutorService theExecutor = executor;
+		if (theExecutor != null) {
+			try {
+				theExecutor.execute(task);
+			} catch (RejectedExecutionException ex) {
+				// The last subscription has just been closed
+			}
+		}
+	}
+
+	private synchronized void removeClosed() {
+		sinks.removeIf(SseEventSink::isClosed);
+		if (sinks.isEmpty()) {
+			LOGGER.fine("Last status stream subscription closed.");
+			stop();
+		}
+	}
+
+	private void stop() {
+		if (executor != null) {
+			// Also drops the queued events, a new subscriber receives the current status
+			executor.shutdownNow();
+			executor = null;
+			broadcaster.close();
+			lastTraffic.clear();
+			lastVersions.clear();
+		}
+	}
+
+	private OutboundSseEvent statusEvent(long version, ConnectionStatus status) {
+		return sse.newEventBuilder().name("status").id(StatusSnapshot.tagOf(version))
+				.mediaType(MediaType.APPLICATION_JSON_TYPE).data(ConnectionStatus.class, status).build();
+	}
+
+	private void publishTraffic() {
+		Map<String, Map<String, Long>> deltas = new LinkedHashMap<>();
+		for (ConnectionMetrics metrics : manager.getAllMetrics()) {
+			long[] current = { metrics.getFrontendLines(), metrics.getFrontendBytes(), metrics.getBackendLines(),
+					metrics.getBackendBytes() };
+			long[] last = lastTraffic.put(metrics.getProfileName(), current);
+			if (last == null) {
+				last = new long[current.length];
+			}
+
+			if (current[0] != last[0] || current[2] != last[2]) {
+				Map<String, Long> delta = new LinkedHashMap<>();
+				delta.put("frontendLines", current[0] - last[0]);
+				delta.put("frontendBytes", current[1] - last[1]);
+				delta.put("backendLines", current[2] - last[2]);
+				delta.put("backendBytes", current[3] - last[3]);
+				deltas.put(metrics.getProfileName(), delta);
+			}
+		}
+
+		if (!deltas.isEmpty()) {
+			broadcaster.broadcast(sse.newEventBuilder().name("traffic").mediaType(MediaType.APPLICATION_JSON_TYPE)
+					.data(Map.class, deltas).build());
+		} else {
+			broadcaster.broadcast(sse.newEventBuilder().comment("").build());
+		}
+
+		removeClosed();
+	}
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Formatter;
+import java.util.logging.LogRecord;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Formats log records as a single line of fields for journald or log
+ * collectors, either as {@code key=value} pairs or as a JSON object. The
+ * fields are {@code time}, {@code level}, {@code logger}, {@code profile},
+ * {@code direction}, {@code state}, {@code msg}, {@code error} and
+ * {@code stack}; fields without a value are omitted. The profile is taken from
+ * {@link ProfileLogRecord}s or from messages following the convention of
+ * profile messages, the message is written without the profile name.
+ *
+ * @author Philipp Thiel
+ */
+final class StructuredFormatter extends Formatter {
+
+	static final String FORMAT_KEY = "dapnet.proxy.log.format";
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	private final boolean json;
+
+	/**
+	 * Creates a new formatter.
+	 *
+	 * @param json Whether to write JSON objects instead of {@code key=value}
+	 *             pairs.
+	 */
+	public StructuredFormatter(boolean json) {
+		this.json = json;
+	}
+
+	/**
+	 * Creates the formatter selected by the system property
+	 * {@code dapnet.proxy.log.format}.
+	 *
+	 * @return Formatter or {@code null} if the format is {@code text} or not set.
+	 */
+	public static StructuredFormatter fromSystemProperties() {
+		String format = System.getProperty(FORMAT_KEY, "text");
+		if ("json".equalsIgnoreCase(format)) {
+			return new StructuredFormatter(true);
+		} else if ("keyvalue".equalsIgnoreCase(format)) {
+			return new StructuredFormatter(false);
+		} else if ("text".equalsIgnoreCase(format)) {
+			return null;
+		} else {
+			throw new IllegalArgumentException("Unknown log format: " + format);
+		}
+	}
+
+	@Override
+	public String format(LogRecord record) {
+		Map<String, String> fields = new LinkedHashMap<>();
+		fields.put("time", record.getInstant().toString());
+		fields.put("level", record.getLevel().getName());
+		fields.put("logger", record.getLoggerName());
+		fields.put("profile", LogRateLimiter.getProfileName(record));
+
+		if (record instanceof ProfileLogRecord) {
+			ProfileLogRecord profileRecord = (ProfileLogRecord) record;
+			fields.put("direction", profileRecord.getDirection());
+			fields.put("state", profileRecord.getState());
+		}
+
+		fields.put("msg", LogRateLimiter.formatMessage(record));
+
+		Throwable thrown = record.getThrown();
+		if (thrown != null) {
+			StringWriter stack = new StringWriter();
+			try (PrintWriter pw = new PrintWriter(stack)) {
+				thrown.printStackTrace(pw);
+			}
+
+			fields.put("error", thrown.toString());
+			fields.put("stack", stack.toString().trim());
+		}
+
+		fields.values().removeIf(v -> v == null);
+
+		return json ? toJson(fields) : toKeyValue(fields);
+	}
+
+	private static String toJson(Map<String, String> fields) {
+		try {
+			return MAPPER.writeValueAsString(fields) + System.lineSeparator();
+		} catch (JsonProcessingException ex) {
+			throw new IllegalStateException("Failed to serialize log record.", ex);
+		}
+	}
+
+	private static String toKeyValue(Map<String, String> fields) {
+		StringBuilder sb = new StringBuilder(256);
+		for (Map.Entry<String, String> e : fields.entrySet()) {
+			if (sb.length() > 0) {
+				sb.append(' ');
+			}
+
+			sb.append(e.getKey()).append('=');
+			appendValue(sb, e.getValue());
+		}
+
+		return sb.append(System.lineSeparator()).toString();
+	}
+
+	private static void appendValue(StringBuilder sb, String value) {
+		boolean quote = value.isEmpty();
+		for (int i = 0; i < value.length() && !quote; ++i) {
+			char c = value.charAt(i);
+			quote = c <= ' ' || c == '"' || c == '=' || c == '\\';
+		}
+
+		if (!quote) {
+			sb.append(value);
+			return;
+		}
+
+		sb.append('"');
+		for (int i = 0; i < value.length(); ++i) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+			case '\\':
+				sb.append('\\').append(c);
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				sb.append(c);
+				break;
+			}
+		}
+
+		sb.append('"');
+	}
+
+}
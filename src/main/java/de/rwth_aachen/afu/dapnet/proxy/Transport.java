@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.net.SocketAddress;
+import java.util.Locale;
+import java.util.concurrent.ThreadFactory;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.resolver.AddressResolver;
+import io.netty.resolver.AddressResolverGroup;
+import io.netty.resolver.NoopAddressResolver;
+import io.netty.util.concurrent.EventExecutor;
+
+/**
+ * The network transport used for the proxy connections. The native epoll
+ * transport is used if available, NIO otherwise. The choice can be overridden
+ * via the system property {@code dapnet.proxy.transport} ({@code auto},
+ * {@code epoll} or {@code nio}).
+ *
+ * The embedded transport is never selected, it connects the backend channels
+ * of a frontend {@link EmbeddedChannel} in memory, so the complete relay can be
+ * driven from a single thread by the benchmarks.
+ *
+ * @author Philipp Thiel
+ */
+enum Transport {
+
+	EPOLL {
+		@Override
+		public EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory) {
+			return new EpollEventLoopGroup(threads, threadFactory);
+		}
+
+		@Override
+		public void configure(Bootstrap b, ConnectionSettings settings) {
+			b.channel(EpollSocketChannel.class);
+			configureCommon(b, settings);
+
+			b.option(EpollChannelOption.TCP_QUICKACK, settings.isTcpQuickAck());
+			if (settings.getTcpUserTimeout() > 0) {
+				b.option(EpollChannelOption.TCP_USER_TIMEOUT, settings.getTcpUserTimeout());
+			}
+		}
+	},
+
+	NIO {
+		@Override
+		public EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory) {
+			return new NioEventLoopGroup(threads, threadFactory);
+		}
+
+		@Override
+		public void configure(Bootstrap b, ConnectionSettings settings) {
+			// TCP_QUICKACK and TCP_USER_TIMEOUT require the native transport
+			b.channel(NioSocketChannel.class);
+			configureCommon(b, settings);
+		}
+	},
+
+	EMBEDDED {
+		@Override
+		public EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory) {
+			throw new UnsupportedOperationException("Embedded channels run on the frontend event loop.");
+		}
+
+		@Override
+		public void configure(Bootstrap b, ConnectionSettings settings) {
+			// Registered on the event loop of the frontend channel, connecting always succeeds
+			b.channelFactory(() -> new EmbeddedChannel(false, false));
+			b.resolver(EmbeddedResolverGroup.INSTANCE);
+			configureRelay(b, settings);
+		}
+	};
+
+	static final String TRANSPORT_KEY = "dapnet.proxy.transport";
+
+	/**
+	 * Creates a new event loop group for this transport.
+	 *
+	 * @param threads       Number of threads or 0 to use the Netty default.
+	 * @param threadFactory Factory used to create the threads.
+	 * @return Event loop group
+	 */
+	public abstract EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory);
+
+	/**
+	 * Sets the channel type and the channel options of the given connection
+	 * profile.
+	 *
+	 * @param b        Bootstrap to configure
+	 * @param settings Connection settings
+	 */
+	public abstract void configure(Bootstrap b, ConnectionSettings settings);
+
+	/**
+	 * Selects the transport based on the system property and the availability of
+	 * the native transport.
+	 *
+	 * @return Selected transport
+	 * @throws IllegalArgumentException If the system property is invalid.
+	 * @throws IllegalStateException    If epoll is requested but not available.
+	 */
+	public static Transport select() {
+		String value = System.getProperty(TRANSPORT_KEY, "auto").trim().toLowerCase(Locale.ROOT);
+		switch (value) {
+		case "auto":
+			return Epoll.isAvailable() ? EPOLL : NIO;
+		case "epoll":
+			if (!Epoll.isAvailable()) {
+				throw new IllegalStateException("Native epoll transport not available.", Epoll.unavailabilityCause());
+			}
+			return EPOLL;
+		case "nio":
+			return NIO;
+		default:
+			throw new IllegalArgumentException("Unknown transport: " + value);
+		}
+	}
+
+	private static void configureCommon(Bootstrap b, ConnectionSettings settings) {
+		configureRelay(b, settings);
+		b.option(ChannelOption.TCP_NODELAY, settings.isTcpNoDelay());
+		b.option(ChannelOption.SO_KEEPALIVE, settings.isKeepAlive());
+	}
+
+	private static void configureRelay(Bootstrap b, ConnectionSettings settings) {
+		int maxPending = settings.getRelayMaxPendingBytes();
+
+		b.option(ChannelOption.AUTO_READ, false);
+		b.option(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(maxPending / 2, maxPending));
+	}
+
+	/**
+	 * Address resolver of the embedded transport. The resolver groups of Netty
+	 * register with the termination future of the event loop, which the embedded
+	 * event loop does not support. The address is not resolved at all.
+	 */
+	private static final class EmbeddedResolverGroup extends AddressResolverGroup<SocketAddress> {
+
+		static final EmbeddedResolverGroup INSTANCE = new EmbeddedResolverGroup();
+
+		@Override
+		public AddressResolver<SocketAddress> getResolver(EventExecutor executor) {
+			return new NoopAddressResolver(executor);
+		}
+
+		@Override
+		protected AddressResolver<SocketAddress> newResolver(EventExecutor executor) {
+			return new NoopAddressResolver(executor);
+		}
+
+	}
+
+}
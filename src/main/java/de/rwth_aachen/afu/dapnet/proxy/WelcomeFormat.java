@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+/**
+ * Format of the welcome message a raspager firmware sends once connected. The
+ * welcome message is relayed to the DAPNET server with the authentication of
+ * the transmitter appended, e.g. {@code [RasPager v1.2]} is relayed as
+ * {@code [RasPager v1.2 name key]}. Implementations parse the line frame in
+ * place and must not modify it.
+ *
+ * @author Philipp Thiel
+ */
+interface WelcomeFormat {
+
+	/**
+	 * The format of the RasPager and compatible firmwares,
+	 * {@code [<type> v<version>]} with an optional {@code v}.
+	 */
+	WelcomeFormat RASPAGER = new RaspagerWelcomeFormat();
+
+	/**
+	 * Rewrites a welcome message of this format.
+	 *
+	 * @param frame  Line frame
+	 * @param start  Index of the first byte of the line
+	 * @param length Length of the line without the line delimiter
+	 * @param auth   Authentication to append, {@code " <name> <key>]\n"}
+	 * @param alloc  Allocator for the reply
+	 * @return Reply to send to the DAPNET server or {@code null} if the line is
+	 *         not a welcome message of this format.
+	 */
+	ByteBuf rewrite(ByteBuf frame, int start, int length, byte[] auth, ByteBufAllocator alloc);
+
+}
@@ -12,58 +12,103 @@
  * GNU General Public License for more details.
  *
  * You should have received a copy of the GNU General Public License
- * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
  */
 package de.rwth_aachen.afu.dapnet.proxy;
 
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.MessageToMessageEncoder;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
 
 /**
  * This handler intercepts the welcome message and adds the auth key. If no auth
- * key is required, do not add this handler to the channel pipeline.
+ * key is required, do not add this handler to the channel pipeline. Only lines
+ * starting with {@code [} are matched against the welcome formats, all other
+ * line frames are forwarded untouched. Lines are parsed in place without
+ * decoding them, the authentication is encoded once when the handler is
+ * created. The handler removes itself from the pipeline once the welcome
+ * message has been rewritten.
  *
  * @author Philipp Thiel
  */
-final class WelcomeMessageEncoder extends MessageToMessageEncoder<String> {
+@Sharable
+final class WelcomeMessageEncoder extends ChannelOutboundHandlerAdapter {
 
-	private static final Pattern WELCOME_PATTERN = Pattern
-			.compile("\\[([/\\p{Alnum}]+) v?(\\d[\\d\\.]+[\\p{Graph}]*)\\]");
-	private final String authName;
-	private final String authKey;
+	private final byte[] auth;
+	private final WelcomeFormat[] formats;
 
 	/**
-	 * Creates a new handler instance.
+	 * Creates a new handler instance accepting the RasPager welcome format.
 	 *
-	 * @param authKey Authentication key to use. This must not be null or empty.
+	 * @param authName Transmitter name to use. This must not be null or empty.
+	 * @param authKey  Authentication key to use. This must not be null or empty.
 	 */
 	public WelcomeMessageEncoder(String authName, String authKey) {
+		this(authName, authKey, WelcomeFormat.RASPAGER);
+	}
+
+	/**
+	 * Creates a new handler instance.
+	 *
+	 * @param authName Transmitter name to use. This must not be null or empty.
+	 * @param authKey  Authentication key to use. This must not be null or empty.
+	 * @param formats  Welcome formats to accept, tried in the given order.
+	 */
+	public WelcomeMessageEncoder(String authName, String authKey, WelcomeFormat... formats) {
 		if (authName == null || authName.isEmpty()) {
 			throw new NullPointerException("name");
 		} else if (authKey == null || authKey.isEmpty()) {
 			throw new NullPointerException("authKey");
+		} else if (formats.length == 0) {
+			throw new IllegalArgumentException("No welcome format given.");
 		}
 
-		this.authName = authName;
-		this.authKey = authKey;
+		this.auth = LineBuffers.ascii(" " + authName + " " + authKey + "]\n");
+		this.formats = formats.clone();
 	}
 
 	@Override
-	protected void encode(ChannelHandlerContext ctx, String msg, List<Object> out) throws Exception {
-		Matcher m = WELCOME_PATTERN.matcher(msg);
-		if (m.matches()) {
-			String response = String.format("[%s v%s %s %s]", m.group(1), m.group(2), authName, authKey);
-			out.add(response);
+	public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+		if (msg instanceof ByteBuf) {
+			ByteBuf reply = rewrite((ByteBuf) msg, ctx.alloc());
+			if (reply != null) {
+				((ByteBuf) msg).release();
+				ctx.write(reply, promise);
+
+				ctx.pipeline().remove(this);
+				return;
+			}
+		}
+
+		// Forward the message
+		ctx.write(msg, promise);
+	}
 
-			ctx.pipeline().remove(this);
-		} else {
-			// Forward the message
-			out.add(msg);
+	/**
+	 * Rewrites a welcome message.
+	 *
+	 * @param frame Line frame, it is not modified or released
+	 * @param alloc Allocator for the reply
+	 * @return Reply or {@code null} if the frame is not a welcome message.
+	 */
+	ByteBuf rewrite(ByteBuf frame, ByteBufAllocator alloc) {
+		int length = LineBuffers.contentLength(frame);
+		int start = frame.readerIndex();
+		if (length == 0 || frame.getByte(start) != '[') {
+			return null;
+		}
+
+		for (WelcomeFormat format : formats) {
+			ByteBuf reply = format.rewrite(frame, start, length, auth, alloc);
+			if (reply != null) {
+				return reply;
+			}
 		}
+
+		return null;
 	}
 
 }
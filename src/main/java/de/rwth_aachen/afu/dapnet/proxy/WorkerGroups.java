@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.NettyRuntime;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/**
+ * This class manages the named event loop groups the connection profiles are
+ * assigned to. Each group is created on first use. The number of threads is
+ * taken from the system property {@code dapnet.proxy.threads.<group>} or
+ * {@code dapnet.proxy.threads} if not set for the group, 0 selects the Netty
+ * default of two threads per core. Threads are named
+ * {@code dapnet-<group>-<pool>-<thread>}.
+ *
+ * A profile is pinned to a single event loop of its group, which is kept
+ * across reconnects. The backend connection runs on the same event loop as the
+ * frontend connection.
+ *
+ * @author Philipp Thiel
+ */
+final class WorkerGroups {
+
+	static final String THREADS_KEY = "dapnet.proxy.threads";
+	static final String DEFAULT_GROUP = "default";
+	private static final Logger LOGGER = Logger.getLogger(WorkerGroups.class.getName());
+	private final ConcurrentMap<String, EventLoopGroup> groups = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, EventLoop> affinity = new ConcurrentHashMap<>();
+	private final Transport transport;
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param transport Transport used to create the event loop groups.
+	 */
+	public WorkerGroups(Transport transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * Gets the event loop group with the given name. The group is created if it
+	 * does not exist.
+	 *
+	 * @param name Group name
+	 * @return Event loop group
+	 */
+	public EventLoopGroup getGroup(String name) {
+		return groups.computeIfAbsent(name, this::createGroup);
+	}
+
+	/**
+	 * Gets the event loop the given connection profile is pinned to.
+	 *
+	 * @param settings Connection settings
+	 * @return Event loop
+	 */
+	public EventLoop getEventLoop(ConnectionSettings settings) {
+		return affinity.computeIfAbsent(settings.getProfileName(),
+				name -> getGroup(settings.getWorkerGroup()).next());
+	}
+
+	/**
+	 * Releases the event loop a connection profile is pinned to. The profile is
+	 * assigned to an event loop again on next use.
+	 *
+	 * @param profileName Profile name
+	 */
+	public void release(String profileName) {
+		affinity.remove(profileName);
+	}
+
+	/**
+	 * Shuts down all event loop groups.
+	 */
+	public void shutdownGracefully() {
+		groups.values().forEach(EventLoopGroup::shutdownGracefully);
+	}
+
+	private EventLoopGroup createGroup(String name) {
+		int threads = Integer.getInteger(THREADS_KEY + "." + name, Integer.getInteger(THREADS_KEY, 0));
+		if (threads < 0) {
+			throw new IllegalArgumentException("Number of threads cannot be negative: " + name);
+		} else if (threads == 0) {
+			// Same default as the Netty event loop groups
+			threads = Math.max(1, Integer.getInteger("io.netty.eventLoopThreads",
+					NettyRuntime.availableProcessors() * 2));
+		}
+
+		LOGGER.log(Level.INFO, "Creating worker group {0} with {1,number,#} threads.",
+				new Object[] { name, threads });
+
+		return transport.newEventLoopGroup(threads, new DefaultThreadFactory("dapnet-" + name));
+	}
+
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+/**
+ * Test cases for the acknowledgement tracker.
+ *
+ * @author Philipp Thiel
+ */
+public class AckTrackerTest {
+
+	private static final long TIMEOUT = TimeUnit.MILLISECONDS.toNanos(1000);
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testTracking() {
+		ConnectionMetrics metrics = new ConnectionMetrics("test");
+		EmbeddedChannel channel = new EmbeddedChannel();
+		AckTracker acks = new AckTracker(createSettings(false), metrics, null, channel.eventLoop());
+
+		// The timeout checks are scheduled with the first message
+		Assert.assertEquals("no timer", -1, channel.runScheduledPendingTasks());
+		track(acks, "#01 6:page 1", 0);
+		Assert.assertNotEquals("timer", -1, channel.runScheduledPendingTasks());
+		track(acks, "#02 6:page 2", 0);
+		Assert.assertEquals("outstanding", 2, acks.getOutstanding());
+		Assert.assertEquals("outstanding metric", 2, metrics.getOutstandingAcks());
+
+		Assert.assertTrue("forward", acks.onAck(1, TimeUnit.MILLISECONDS.toNanos(5)));
+		Assert.assertEquals("acknowledged", 1, metrics.getAcknowledgedMessages());
+		Assert.assertEquals("latency", 5000, metrics.getAckLatency().getMax());
+
+		// Acknowledged twice
+		Assert.assertTrue("forward duplicate", acks.onAck(1, 0));
+		Assert.assertEquals("duplicate", 1, metrics.getDuplicateAcks());
+
+		// Sequence number reused before the acknowledgement
+		track(acks, "#02 6:page 3", 0);
+		Assert.assertEquals("lost on reuse", 1, metrics.getLostAcks());
+		Assert.assertEquals("outstanding after reuse", 1, acks.getOutstanding());
+
+		acks.expire(TIMEOUT);
+		Assert.assertEquals("lost on timeout", 2, metrics.getLostAcks());
+		Assert.assertEquals("outstanding after timeout", 0, acks.getOutstanding());
+
+		acks.release();
+		Assert.assertFalse(channel.finish());
+	}
+
+	@Test
+	public void testEarlyAckRetry() throws IOException {
+		ConnectionMetrics metrics = new ConnectionMetrics("test");
+		EmbeddedChannel channel = new EmbeddedChannel();
+		ConnectionSettings settings = createSettings(true);
+		PageSpool spool = new PageSpool(settings, metrics);
+		AckTracker acks = new AckTracker(settings, metrics, spool, channel.eventLoop());
+		Assert.assertTrue("early", acks.isEarlyAck());
+		Assert.assertEquals("ack", "#0A +\n", AckTracker.getAck(10).toString(StandardCharsets.US_ASCII));
+
+		track(acks, "#0A 6:page", 0);
+
+		// Not retried while no backend is connected
+		acks.expire(TIMEOUT);
+		Assert.assertEquals("retried without backend", 0, metrics.getRetriedMessages());
+
+		acks.setBackend(channel);
+		acks.expire(2 * TIMEOUT);
+		Assert.assertEquals("retried", 1, metrics.getRetriedMessages());
+		ByteBuf retry = channel.readOutbound();
+		try {
+			Assert.assertEquals("retry", "#0A 6:page\n", retry.toString(StandardCharsets.US_ASCII));
+		} finally {
+			retry.release();
+		}
+
+		// Retries exhausted, the message is spooled
+		acks.expire(3 * TIMEOUT);
+		Assert.assertEquals("lost", 0, metrics.getLostAcks());
+		Assert.assertEquals("spooled", 1, spool.getPending());
+		Assert.assertNull("no more retries", channel.readOutbound());
+
+		// Sequence number reused before the acknowledgement
+		track(acks, "#0C 6:page", 0);
+		track(acks, "#0C 6:page", 0);
+		Assert.assertEquals("spooled on reuse", 2, spool.getPending());
+		acks.onAck(12, 0);
+
+		track(acks, "#0B 6:page", 0);
+		Assert.assertFalse("not forwarded", acks.onAck(11, 0));
+		Assert.assertEquals("acknowledged", 2, metrics.getAcknowledgedMessages());
+
+		acks.release();
+		Assert.assertFalse(channel.finish());
+		spool.close();
+	}
+
+	@Test
+	public void testEarlyAckRelease() throws IOException {
+		ConnectionMetrics metrics = new ConnectionMetrics("test");
+		ConnectionSettings settings = createSettings(true);
+		PageSpool spool = new PageSpool(settings, metrics);
+		AckTracker acks = new AckTracker(settings, metrics, spool, new EmbeddedChannel().eventLoop());
+
+		track(acks, "#05 6:page 1", 0);
+		track(acks, "#02 6:page 2", 1);
+		track(acks, "#07 6:page 3", 2);
+		track(acks, "#01 6:page 4", 3);
+		acks.onAck(7, 4);
+
+		// Already spooled while the backend was not connected
+		ByteBuf page = LineBuffers.newLine("#01 6:page 4");
+		Assert.assertTrue("append", spool.append(page));
+		acks.onSpooled(page);
+		Assert.assertEquals("outstanding", 2, acks.getOutstanding());
+
+		// The unacknowledged pages are spooled in the order they have been received
+		acks.release();
+		Assert.assertEquals("outstanding after release", 0, acks.getOutstanding());
+		Assert.assertEquals("lost", 0, metrics.getLostAcks());
+		Assert.assertEquals("pending", 3, spool.getPending());
+
+		EmbeddedChannel channel = new EmbeddedChannel();
+		Assert.assertEquals("replayed", 3, spool.replay(channel));
+		assertLine("#01 6:page 4", channel.readOutbound());
+		assertLine("#05 6:page 1", channel.readOutbound());
+		assertLine("#02 6:page 2", channel.readOutbound());
+		spool.close();
+	}
+
+	private static void assertLine(String expected, ByteBuf actual) {
+		try {
+			Assert.assertEquals(expected + "\n", actual.toString(StandardCharsets.US_ASCII));
+		} finally {
+			actual.release();
+		}
+	}
+
+	private static void track(AckTracker acks, String line, long received) {
+		DapnetFrame frame = DapnetFrame.parse(Unpooled.copiedBuffer(line + "\n", StandardCharsets.US_ASCII));
+		try {
+			acks.onMessage(frame, received);
+		} finally {
+			frame.release();
+		}
+	}
+
+	private ConnectionSettings createSettings(boolean early) {
+		Properties props = new Properties();
+		props.setProperty("profileName", "test");
+		props.setProperty("reconnectSleepTime", "0");
+		props.setProperty("frontend.name", "name");
+		props.setProperty("frontend.key", "key");
+		props.setProperty("frontend.host", "127.0.0.1");
+		props.setProperty("frontend.port", "43434");
+		props.setProperty("backend.host", "127.0.0.1");
+		props.setProperty("backend.port", "1337");
+		props.setProperty("backend.timeout", "0");
+		props.setProperty("backend.ack.early", Boolean.toString(early));
+		props.setProperty("backend.ack.timeout", "1000");
+		props.setProperty("backend.ack.retries", "1");
+		props.setProperty("spool.directory", folder.getRoot().getPath());
+		return new ConnectionSettings(props);
+	}
+
+}
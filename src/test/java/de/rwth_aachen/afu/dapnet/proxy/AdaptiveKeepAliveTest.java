@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test cases for the adaptive keep alive estimator.
+ *
+ * @author Philipp Thiel
+ */
+public class AdaptiveKeepAliveTest {
+
+	@Test
+	public void testInitialState() {
+		AdaptiveKeepAlive keepAlive = new AdaptiveKeepAlive(createSettings(30000));
+
+		Assert.assertEquals("srtt", -1, keepAlive.getSmoothedRtt());
+		Assert.assertEquals("rttvar", -1, keepAlive.getRttVariance());
+		Assert.assertEquals("timeout", millis(1000), keepAlive.getTimeout());
+		Assert.assertEquals("interval", millis(8000), keepAlive.getInterval());
+	}
+
+	@Test
+	public void testEstimate() {
+		AdaptiveKeepAlive keepAlive = new AdaptiveKeepAlive(createSettings(30000));
+
+		// First sample
+		keepAlive.onResponse(millis(100));
+		Assert.assertEquals("srtt", millis(100), keepAlive.getSmoothedRtt());
+		Assert.assertEquals("rttvar", millis(50), keepAlive.getRttVariance());
+		Assert.assertEquals("timeout", millis(300), keepAlive.getTimeout());
+		Assert.assertEquals("interval", millis(2400), keepAlive.getInterval());
+
+		// Later samples are smoothed
+		keepAlive.onResponse(millis(200));
+		Assert.assertEquals("srtt", TimeUnit.MICROSECONDS.toNanos(112500), keepAlive.getSmoothedRtt());
+		Assert.assertEquals("rttvar", TimeUnit.MICROSECONDS.toNanos(62500), keepAlive.getRttVariance());
+		Assert.assertEquals("timeout", TimeUnit.MICROSECONDS.toNanos(362500), keepAlive.getTimeout());
+
+		// Response to a repeated request is not sampled
+		keepAlive.onResponse(-1);
+		Assert.assertEquals("srtt unchanged", TimeUnit.MICROSECONDS.toNanos(112500), keepAlive.getSmoothedRtt());
+	}
+
+	@Test
+	public void testBackoff() {
+		AdaptiveKeepAlive keepAlive = new AdaptiveKeepAlive(createSettings(30000));
+		keepAlive.onResponse(millis(100));
+
+		Assert.assertFalse("dead after 1", keepAlive.onTimeout());
+		Assert.assertEquals("timeout after 1", millis(600), keepAlive.getTimeout());
+		Assert.assertFalse("dead after 2", keepAlive.onTimeout());
+		Assert.assertEquals("timeout after 2", millis(1200), keepAlive.getTimeout());
+
+		// A response resets the missed requests but keeps the timeout until sampled
+		keepAlive.onResponse(-1);
+		Assert.assertEquals("missed", 0, keepAlive.getMissed());
+		Assert.assertEquals("timeout kept", millis(1200), keepAlive.getTimeout());
+
+		Assert.assertFalse("dead after 1", keepAlive.onTimeout());
+		Assert.assertFalse("dead after 2", keepAlive.onTimeout());
+		Assert.assertTrue("dead after 3", keepAlive.onTimeout());
+		Assert.assertEquals("missed", 3, keepAlive.getMissed());
+	}
+
+	@Test
+	public void testLimits() {
+		AdaptiveKeepAlive keepAlive = new AdaptiveKeepAlive(createSettings(30000));
+
+		// Limited by the minimum timeout and interval
+		keepAlive.onResponse(0);
+		Assert.assertEquals("min timeout", millis(100), keepAlive.getTimeout());
+		Assert.assertEquals("min interval", millis(1000), keepAlive.getInterval());
+
+		// Limited by the backend timeout
+		for (int i = 0; i < 16; ++i) {
+			keepAlive.onTimeout();
+		}
+
+		Assert.assertEquals("max timeout", millis(30000), keepAlive.getTimeout());
+		Assert.assertEquals("max interval", millis(30000), keepAlive.getInterval());
+
+		// Backend timeout below the minimum values
+		keepAlive = new AdaptiveKeepAlive(createSettings(50));
+		Assert.assertEquals("timeout", millis(50), keepAlive.getTimeout());
+		Assert.assertEquals("interval", millis(50), keepAlive.getInterval());
+	}
+
+	private static long millis(long value) {
+		return TimeUnit.MILLISECONDS.toNanos(value);
+	}
+
+	private static ConnectionSettings createSettings(long timeout) {
+		Properties props = new Properties();
+		props.setProperty("profileName", "test");
+		props.setProperty("reconnectSleepTime", "0");
+		props.setProperty("frontend.name", "name");
+		props.setProperty("frontend.key", "key");
+		props.setProperty("frontend.host", "127.0.0.1");
+		props.setProperty("frontend.port", "43434");
+		props.setProperty("backend.host", "127.0.0.1");
+		props.setProperty("backend.port", "1337");
+		props.setProperty("backend.timeout", Long.toString(timeout));
+		props.setProperty("backend.keepAlive.minInterval", "1000");
+		props.setProperty("backend.keepAlive.minTimeout", "100");
+		props.setProperty("backend.keepAlive.probes", "3");
+		return new ConnectionSettings(props);
+	}
+
+}
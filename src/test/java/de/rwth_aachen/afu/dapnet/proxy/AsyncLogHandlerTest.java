@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the rate limiting, structured formatting and asynchronous dispatch of
+ * log records.
+ *
+ * @author Philipp Thiel
+ */
+public class AsyncLogHandlerTest {
+
+	@Test
+	public void testRateLimiting() {
+		LogRateLimiter limiter = new LogRateLimiter(2, 1000);
+		List<LogRecord> summaries = new ArrayList<>();
+		long now = 0;
+
+		int admitted = 0;
+		for (int i = 0; i < 514; ++i) {
+			if (limiter.admit(profileRecord(Level.SEVERE, "a"), now, summaries::add)) {
+				++admitted;
+			}
+		}
+
+		Assert.assertEquals("admitted", 2, admitted);
+
+		// Other profiles and debug messages are not limited
+		Assert.assertTrue("other profile", limiter.admit(profileRecord(Level.SEVERE, "b"), now, summaries::add));
+		Assert.assertTrue("debug", limiter.admit(profileRecord(Level.FINE, "a"), now, summaries::add));
+		Assert.assertTrue("summaries", summaries.isEmpty());
+
+		// The summary is emitted with the next message after the window
+		now += TimeUnit.SECONDS.toNanos(1);
+		Assert.assertTrue("next window", limiter.admit(profileRecord(Level.SEVERE, "a"), now, summaries::add));
+		Assert.assertEquals("summaries", 1, summaries.size());
+		Assert.assertEquals("summary", "a Suppressed 512 identical messages: Backend read timed out.",
+				new SimpleFormatter().formatMessage(summaries.get(0)));
+		Assert.assertEquals("profile", "a", ((ProfileLogRecord) summaries.get(0)).getProfileName());
+
+		// Or once the window has expired
+		Assert.assertTrue("admitted", limiter.admit(profileRecord(Level.SEVERE, "a"), now, summaries::add));
+		Assert.assertFalse("suppressed", limiter.admit(profileRecord(Level.SEVERE, "a"), now, summaries::add));
+		limiter.expire(now + TimeUnit.SECONDS.toNanos(1), summaries::add);
+		Assert.assertEquals("summaries", 2, summaries.size());
+		Assert.assertEquals("summary", "a Suppressed 1 identical messages: Backend read timed out.",
+				new SimpleFormatter().formatMessage(summaries.get(1)));
+	}
+
+	@Test
+	public void testStructuredFormat() {
+		ProfileLogRecord record = new ProfileLogRecord(Level.SEVERE, "{0} Failed to connect to backend: {1}", "a",
+				"frontend", "open");
+		record.setLoggerName("test");
+		record.setParameters(new Object[] { "a", "Connection \"refused\"" });
+
+		String keyValue = new StructuredFormatter(false).format(record);
+		Assert.assertTrue(keyValue, keyValue.contains(
+				" level=SEVERE logger=test profile=a direction=frontend state=open msg=\"Failed to connect to backend: "
+						+ "Connection \\\"refused\\\"\""));
+
+		String json = new StructuredFormatter(true).format(record);
+		Assert.assertTrue(json, json.contains("\"profile\":\"a\",\"direction\":\"frontend\",\"state\":\"open\""));
+		Assert.assertTrue(json, json.contains("\"msg\":\"Failed to connect to backend: Connection \\\"refused\\\"\""));
+
+		// Plain records following the convention of profile messages
+		LogRecord plain = new LogRecord(Level.INFO, "{0} Connection closed.");
+		plain.setLoggerName("test");
+		plain.setParameters(new Object[] { "b" });
+		plain.setThrown(new IllegalStateException("test"));
+
+		keyValue = new StructuredFormatter(false).format(plain);
+		Assert.assertTrue(keyValue, keyValue.contains(" profile=b msg=\"Connection closed.\""));
+		Assert.assertTrue(keyValue, keyValue.contains(" error=\"java.lang.IllegalStateException: test\" stack=\""));
+		Assert.assertFalse(keyValue, keyValue.contains("direction="));
+		Assert.assertEquals("single line", keyValue.length() - 1, keyValue.indexOf('\n'));
+	}
+
+	@Test
+	public void testDispatch() throws Exception {
+		List<LogRecord> published = new CopyOnWriteArrayList<>();
+		Handler target = new Handler() {
+			@Override
+			public void publish(LogRecord record) {
+				published.add(record);
+			}
+
+			@Override
+			public void flush() {
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+
+		AsyncLogHandler handler = new AsyncLogHandler(List.of(target), 16, new LogRateLimiter(1, 60000));
+		Logger logger = Logger.getAnonymousLogger();
+		logger.setUseParentHandlers(false);
+		logger.addHandler(handler);
+
+		try {
+			ProfileLogger log = new ProfileLogger(logger, "a", "backend", () -> "SEND_KEEP_ALIVE");
+			log.log(Level.INFO, "{0} Connected to backend server.");
+			log.log(Level.FINEST, "{0} Forwarding message from backend to frontend.");
+			for (int i = 0; i < 3; ++i) {
+				log.log(Level.SEVERE, "{0} Backend read timed out, closing channel.");
+			}
+
+			long deadline = System.currentTimeMillis() + 5000;
+			while (published.size() < 2 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+		} finally {
+			logger.removeHandler(handler);
+			handler.close();
+		}
+
+		// The suppressed messages are summarized on close
+		Assert.assertEquals("records", 3, published.size());
+		ProfileLogRecord first = (ProfileLogRecord) published.get(0);
+		Assert.assertEquals("state", "SEND_KEEP_ALIVE", first.getState());
+		Assert.assertEquals("source", AsyncLogHandlerTest.class.getName(), first.getSourceClassName());
+		Assert.assertEquals("summary", "a Suppressed 2 identical messages: Backend read timed out, closing channel.",
+				new SimpleFormatter().formatMessage(published.get(2)));
+	}
+
+	private static LogRecord profileRecord(Level level, String profileName) {
+		ProfileLogRecord record = new ProfileLogRecord(level, "{0} Backend read timed out.", profileName, "backend",
+				null);
+		record.setLoggerName("test");
+		record.setParameters(new Object[] { profileName });
+		return record;
+	}
+
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+
+/**
+ * Tests applying changes of a configuration directory to the open profiles.
+ *
+ * @author Philipp Thiel
+ */
+public class ConfigWatcherTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	private EventLoopGroup group;
+	private FakeCoreServer core;
+	private FakeRaspagerServer raspager;
+	private ConnectionStatusManager statusManager;
+	private ProxyManager manager;
+	private ConfigWatcher watcher;
+	private Path directory;
+
+	@Before
+	public void setUp() throws Exception {
+		group = new NioEventLoopGroup(1);
+		core = new FakeCoreServer("name", "key", new LatencyHistogram());
+		core.start(group);
+		raspager = new FakeRaspagerServer();
+		raspager.start(group);
+
+		directory = folder.newFolder("config").toPath();
+		statusManager = new ConnectionStatusManager();
+		manager = new ProxyManager(statusManager);
+		watcher = new ConfigWatcher(manager, directory, 50, 100);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		watcher.close();
+		manager.shutdown();
+		core.stop();
+		raspager.stop();
+		group.shutdownGracefully();
+	}
+
+	@Test
+	public void testReload() throws Exception {
+		writeProfile("a", "100");
+		watcher.start();
+		Assert.assertTrue("a opened", manager.isOpen("a"));
+		awaitValue("handshake a", core::getHandshakes, 1);
+
+		// New profile
+		writeProfile("b", "100");
+		awaitCondition("b opened", () -> manager.isOpen("b"));
+		awaitValue("handshake b", core::getHandshakes, 2);
+
+		// Changed profile, the other profile stays connected
+		writeProfile("a", "200");
+		awaitValue("handshake a reopened", core::getHandshakes, 3);
+		Assert.assertEquals("b reconnects", 0, statusManager.getMetrics("b").getReconnects());
+
+		// Removed profile
+		Files.delete(directory.resolve("b.properties"));
+		awaitCondition("b closed", () -> statusManager.get("b") == null);
+		Assert.assertFalse("b open", manager.isOpen("b"));
+
+		// Invalid file keeps the previous settings
+		Files.write(directory.resolve("a.properties"), "profileName = a\n".getBytes());
+		Thread.sleep(300);
+		Assert.assertTrue("a open", manager.isOpen("a"));
+		Assert.assertEquals("handshakes", 3, core.getHandshakes());
+	}
+
+	@Test
+	public void testRetry() throws Exception {
+		// The spool directory cannot be created while a file is in its place
+		Path spool = folder.newFile("spool").toPath();
+		Properties props = createProperties("a", "100");
+		props.setProperty("spool.directory", spool.toString());
+		writeProfile("a", props);
+		watcher.start();
+		Assert.assertFalse("a opened", manager.isOpen("a"));
+
+		// Retried without a change of the configuration
+		Files.delete(spool);
+		awaitCondition("a retried", () -> manager.isOpen("a"));
+		awaitValue("handshake a", core::getHandshakes, 1);
+	}
+
+	private void writeProfile(String name, String timeout) throws IOException {
+		writeProfile(name, createProperties(name, timeout));
+	}
+
+	private void writeProfile(String name, Properties props) throws IOException {
+		try (OutputStream out = Files.newOutputStream(directory.resolve(name + ConfigWatcher.SUFFIX))) {
+			props.store(out, null);
+		}
+	}
+
+	private Properties createProperties(String name, String timeout) {
+		Properties props = new Properties();
+		props.setProperty("profileName", name);
+		props.setProperty("reconnectSleepTime", "100");
+		props.setProperty("frontend.name", "name");
+		props.setProperty("frontend.key", "key");
+		props.setProperty("frontend.host", "127.0.0.1");
+		props.setProperty("frontend.port", Integer.toString(core.getPort()));
+		props.setProperty("backend.host", "127.0.0.1");
+		props.setProperty("backend.port", Integer.toString(raspager.getPort()));
+		props.setProperty("backend.timeout", timeout);
+		return props;
+	}
+
+	private static void awaitValue(String name, LongSupplier value, long expected)
+			throws InterruptedException {
+		awaitCondition(name, () -> value.getAsLong() >= expected);
+		Assert.assertEquals(name, expected, value.getAsLong());
+	}
+
+	private static void awaitCondition(String name, BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+
+		Assert.assertTrue(name, condition.getAsBoolean());
+	}
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the status snapshots published by the connection status manager.
+ *
+ * @author Philipp Thiel
+ */
+public class ConnectionStatusManagerTest {
+
+	@Test
+	public void testSnapshots() {
+		ConnectionStatusManager manager = new ConnectionStatusManager();
+		manager.onRegister("a", new ConnectionMetrics("a"));
+		StatusSnapshot registered = manager.getSnapshot();
+		Assert.assertEquals("version", 1, registered.getVersion());
+		Assert.assertEquals("state", ConnectionStatus.State.CONNECTING, registered.get("a").getState());
+
+		// The JSON representation is cached until the next change
+		byte[] json = registered.toJson();
+		Assert.assertSame("cached", json, manager.getSnapshot().toJson());
+		Assert.assertTrue("json", new String(json, StandardCharsets.UTF_8).contains("\"state\":\"CONNECTING\""));
+
+		manager.onConnect("a");
+		StatusSnapshot connected = manager.getSnapshot();
+		Assert.assertEquals("version", 2, connected.getVersion());
+		Assert.assertEquals("state", ConnectionStatus.State.ONLINE, connected.get("a").getState());
+		Assert.assertNotNull("connectedSince", connected.get("a").getConnectedSince());
+		Assert.assertTrue("json", new String(connected.toJson(), StandardCharsets.UTF_8).contains("\"ONLINE\""));
+
+		// Previous snapshots are not modified
+		Assert.assertEquals("old state", ConnectionStatus.State.CONNECTING, registered.get("a").getState());
+
+		manager.onDisconnect("a", false);
+		Assert.assertEquals("state", ConnectionStatus.State.OFFLINE, manager.get("a").getState());
+		Assert.assertNull("connectedSince", manager.get("a").getConnectedSince());
+
+		// Unknown profiles do not change the version
+		manager.onConnect("b");
+		Assert.assertEquals("version", 3, manager.getVersion());
+
+		manager.onUnregister("a");
+		Assert.assertNull("removed", manager.get("a"));
+		Assert.assertNull("metrics", manager.getMetrics("a"));
+		Assert.assertEquals("version", 4, manager.getVersion());
+	}
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+/**
+ * Test cases for the DAPNET frame decoder.
+ *
+ * @author Philipp Thiel
+ */
+public class DapnetFrameDecoderTest {
+
+	@Test
+	public void testMessageTypes() {
+		EmbeddedChannel channel = createChannel(new ConnectionMetrics("test"), 32);
+		write(channel, "2:1A2B\r\n#0F 6:page\n#1a +\n+\n-\n[RasPager v1.0]\n#XY 6:page\nunknown\n");
+
+		assertFrame(channel.readInbound(), 2, -1, "1A2B", "2:1A2B\r\n");
+		assertFrame(channel.readInbound(), 6, 0x0F, "page", "#0F 6:page\n");
+		assertFrame(channel.readInbound(), DapnetFrame.TYPE_ACK, 0x1A, "", "#1a +\n");
+		assertFrame(channel.readInbound(), DapnetFrame.TYPE_ACK, -1, "", "+\n");
+		assertFrame(channel.readInbound(), DapnetFrame.TYPE_NAK, -1, "", "-\n");
+		assertFrame(channel.readInbound(), DapnetFrame.TYPE_WELCOME, -1, "[RasPager v1.0]", "[RasPager v1.0]\n");
+		assertFrame(channel.readInbound(), DapnetFrame.TYPE_OTHER, -1, "#XY 6:page", "#XY 6:page\n");
+		assertFrame(channel.readInbound(), DapnetFrame.TYPE_OTHER, -1, "unknown", "unknown\n");
+		Assert.assertNull("no more frames", channel.readInbound());
+		Assert.assertFalse(channel.finish());
+	}
+
+	@Test
+	public void testSplitLine() {
+		EmbeddedChannel channel = createChannel(new ConnectionMetrics("test"), 32);
+		write(channel, "#01 6:pa");
+		Assert.assertNull("incomplete line", channel.readInbound());
+
+		write(channel, "ge\n#02");
+		assertFrame(channel.readInbound(), 6, 1, "page", "#01 6:page\n");
+		Assert.assertNull("incomplete line", channel.readInbound());
+		Assert.assertFalse(channel.finish());
+	}
+
+	@Test
+	public void testOversizeLine() {
+		ConnectionMetrics metrics = new ConnectionMetrics("test");
+		EmbeddedChannel channel = createChannel(metrics, 10);
+
+		// Line delimiter found in the same read
+		write(channel, "2:0123456789\n2:ok\n");
+		assertFrame(channel.readInbound(), 2, -1, "ok", "2:ok\n");
+		Assert.assertEquals("oversize", 1, metrics.getOversizeFrames());
+
+		// Line delimiter found in a later read
+		write(channel, "2:0123456789");
+		write(channel, "0123456789");
+		write(channel, "\n2:ok\r\n");
+		assertFrame(channel.readInbound(), 2, -1, "ok", "2:ok\r\n");
+		Assert.assertEquals("oversize", 2, metrics.getOversizeFrames());
+
+		// The line delimiter does not count
+		write(channel, "2:01234567\r\n");
+		assertFrame(channel.readInbound(), 2, -1, "01234567", "2:01234567\r\n");
+		Assert.assertEquals("oversize", 2, metrics.getOversizeFrames());
+
+		Assert.assertTrue("channel open", channel.isOpen());
+		Assert.assertFalse(channel.finish());
+	}
+
+	private static EmbeddedChannel createChannel(ConnectionMetrics metrics, int maxLength) {
+		return new EmbeddedChannel(new DapnetFrameDecoder(maxLength, metrics, "test", "frontend"));
+	}
+
+	private static void write(EmbeddedChannel channel, String data) {
+		channel.writeInbound(Unpooled.copiedBuffer(data, StandardCharsets.US_ASCII));
+	}
+
+	private static void assertFrame(DapnetFrame frame, int type, int sequence, String payload, String line) {
+		Assert.assertNotNull("frame", frame);
+		try {
+			ByteBuf content = frame.getContent();
+			Assert.assertEquals("type", type, frame.getType());
+			Assert.assertEquals("sequence", sequence, frame.getSequence());
+			Assert.assertEquals("payload", payload,
+					content.toString(frame.getPayloadOffset(), frame.getPayloadLength(), StandardCharsets.US_ASCII));
+			Assert.assertEquals("line", line, content.toString(StandardCharsets.US_ASCII));
+		} finally {
+			Assert.assertTrue("released", frame.release());
+		}
+	}
+
+}
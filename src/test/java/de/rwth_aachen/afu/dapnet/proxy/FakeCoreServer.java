@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.LineBasedFrameDecoder;
+import io.netty.handler.ssl.SslContext;
+
+/**
+ * A DAPNET core stand-in listening on loopback. It expects the welcome message
+ * with the transmitter name and key, performs the time sync ({@code 2:}) and
+ * slot ({@code 3:}, {@code 4:}) handshake and then sends paging messages with
+ * {@code #NN} sequence numbers on request. The time until a message has been
+ * acknowledged is recorded in the given histogram. The connections are
+ * optionally secured by TLS.
+ *
+ * @author Philipp Thiel
+ */
+final class FakeCoreServer {
+
+	private static final byte[] HEX = LineBuffers.ascii("0123456789ABCDEF");
+	private static final byte[] PAGE = LineBuffers.ascii(" 6:1:7C8:3:0:DAPNET load test message\n");
+	private static final String[] HANDSHAKE = { "2:1A2B\n", "3:+0000\n", "4:0123\n" };
+	private final String welcome;
+	private final LatencyHistogram latency;
+	private final SslContext sslContext;
+	private final AtomicLong handshakes = new AtomicLong();
+	private final AtomicLong authFailures = new AtomicLong();
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong acks = new AtomicLong();
+	private final AtomicLong unexpected = new AtomicLong();
+	private Channel serverChannel;
+	private volatile Session session;
+
+	/**
+	 * Creates a new server.
+	 *
+	 * @param name    Expected transmitter name
+	 * @param key     Expected transmitter key
+	 * @param latency Histogram to record the acknowledgement latency in
+	 */
+	public FakeCoreServer(String name, String key, LatencyHistogram latency) {
+		this(name, key, latency, null);
+	}
+
+	/**
+	 * Creates a new server accepting TLS connections.
+	 *
+	 * @param name       Expected transmitter name
+	 * @param key        Expected transmitter key
+	 * @param latency    Histogram to record the acknowledgement latency in
+	 * @param sslContext Server TLS context or {@code null} to accept plain
+	 *                   connections.
+	 */
+	public FakeCoreServer(String name, String key, LatencyHistogram latency, SslContext sslContext) {
+		this.welcome = String.format("[RasPager v1.0 %s %s]", name, key);
+		this.latency = latency;
+		this.sslContext = sslContext;
+	}
+
+	/**
+	 * Starts listening on an ephemeral loopback port.
+	 *
+	 * @param group Event loop group to use
+	 * @throws InterruptedException If interrupted while binding.
+	 */
+	public void start(EventLoopGroup group) throws InterruptedException {
+		ServerBootstrap b = new ServerBootstrap();
+		b.group(group);
+		b.channel(NioServerSocketChannel.class);
+		b.childHandler(new ChannelInitializer<Channel>() {
+			@Override
+			protected void initChannel(Channel ch) throws Exception {
+				if (sslContext != null) {
+					ch.pipeline().addLast(sslContext.newHandler(ch.alloc()));
+				}
+
+				ch.pipeline().addLast(new LineBasedFrameDecoder(1024), new Session());
+			}
+		});
+
+		serverChannel = b.bind("127.0.0.1", 0).sync().channel();
+	}
+
+	/**
+	 * Stops listening and closes the current session.
+	 */
+	public void stop() {
+		if (serverChannel != null) {
+			serverChannel.close().syncUninterruptibly();
+		}
+
+		disconnect();
+	}
+
+	/**
+	 * Gets the port the server is listening on.
+	 *
+	 * @return Port number
+	 */
+	public int getPort() {
+		return ((InetSocketAddress) serverChannel.localAddress()).getPort();
+	}
+
+	/**
+	 * Sends paging messages if a session has completed its handshake.
+	 *
+	 * @param count Number of messages to send
+	 * @return {@code true} if the messages are sent
+	 */
+	public boolean sendPages(int count) {
+		Session s = session;
+		if (s == null || !s.ready) {
+			return false;
+		}
+
+		sent.addAndGet(count);
+		s.channel.eventLoop().execute(() -> s.sendPages(count));
+		return true;
+	}
+
+	/**
+	 * Closes the current session.
+	 */
+	public void disconnect() {
+		Session s = session;
+		if (s != null) {
+			s.channel.close();
+		}
+	}
+
+	/**
+	 * Gets the number of completed handshakes.
+	 *
+	 * @return Number of handshakes
+	 */
+	public long getHandshakes() {
+		return handshakes.get();
+	}
+
+	/**
+	 * Gets the number of sessions closed because of an unexpected welcome
+	 * message.
+	 *
+	 * @return Number of authentication failures
+	 */
+	public long getAuthFailures() {
+		return authFailures.get();
+	}
+
+	/**
+	 * Gets the number of sent paging messages.
+	 *
+	 * @return Number of messages
+	 */
+	public long getSent() {
+		return sent.get();
+	}
+
+	/**
+	 * Gets the number of acknowledged paging messages.
+	 *
+	 * @return Number of messages
+	 */
+	public long getAcks() {
+		return acks.get();
+	}
+
+	/**
+	 * Gets the number of unexpected lines received after the welcome message.
+	 *
+	 * @return Number of lines
+	 */
+	public long getUnexpectedLines() {
+		return unexpected.get();
+	}
+
+	private final class Session extends SimpleChannelInboundHandler<ByteBuf> {
+
+		private final long[] sendTimes = new long[256];
+		private Channel channel;
+		private volatile boolean ready;
+		private boolean welcomed;
+		private int step;
+		private int nextSeq;
+
+		@Override
+		public void channelActive(ChannelHandlerContext ctx) throws Exception {
+			channel = ctx.channel();
+			session = this;
+		}
+
+		@Override
+		protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) throws Exception {
+			if (!welcomed) {
+				if (!welcome.equals(msg.toString(StandardCharsets.US_ASCII))) {
+					authFailures.incrementAndGet();
+					ctx.close();
+					return;
+				}
+
+				welcomed = true;
+				ctx.writeAndFlush(ByteBufUtil.writeAscii(ctx.alloc(), HANDSHAKE[0]));
+			} else if (msg.readableBytes() >= 3 && msg.getByte(msg.readerIndex()) == '#') {
+				int seq = Character.digit(msg.getByte(msg.readerIndex() + 1), 16) << 4
+						| Character.digit(msg.getByte(msg.readerIndex() + 2), 16);
+				latency.recordNanos(System.nanoTime() - sendTimes[seq & 0xFF]);
+				acks.incrementAndGet();
+			} else if (!ready && msg.readableBytes() == 1 && msg.getByte(msg.readerIndex()) == '+') {
+				if (++step < HANDSHAKE.length) {
+					ctx.writeAndFlush(ByteBufUtil.writeAscii(ctx.alloc(), HANDSHAKE[step]));
+				} else {
+					ready = true;
+					handshakes.incrementAndGet();
+				}
+			} else if (ready || !msg.isReadable() || msg.getByte(msg.readerIndex()) != '2') {
+				// Only the time sync response is expected besides acks
+				unexpected.incrementAndGet();
+			}
+		}
+
+		@Override
+		public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+			ctx.close();
+		}
+
+		void sendPages(int count) {
+			if (!channel.isActive()) {
+				return;
+			}
+
+			ByteBuf buf = channel.alloc().buffer(count * (PAGE.length + 3));
+			long now = System.nanoTime();
+			for (int i = 0; i < count; ++i) {
+				int seq = nextSeq++ & 0xFF;
+				sendTimes[seq] = now;
+				buf.writeByte('#').writeByte(HEX[seq >> 4]).writeByte(HEX[seq & 0xF]).writeBytes(PAGE);
+			}
+
+			channel.writeAndFlush(buf);
+		}
+
+	}
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.LineBasedFrameDecoder;
+
+/**
+ * A raspager stand-in listening on loopback. It sends the welcome message,
+ * answers time sync ({@code 2:}), slot and keep alive requests with
+ * {@code +} and acknowledges paging messages ({@code #NN}).
+ *
+ * @author Philipp Thiel
+ */
+@ChannelHandler.Sharable
+final class FakeRaspagerServer extends SimpleChannelInboundHandler<ByteBuf> {
+
+	static final String WELCOME = "[RasPager v1.0]";
+	private static final byte[] ACK = LineBuffers.ascii(" +\n");
+	private static final byte[] OK = LineBuffers.ascii("+\n");
+	private static final byte[] KEEP_ALIVE = LineBuffers.ascii("2:PING");
+	private final AtomicLong messages = new AtomicLong();
+	private final AtomicLong keepAlives = new AtomicLong();
+	private final AtomicLong connections = new AtomicLong();
+	private Channel serverChannel;
+	private volatile Channel connection;
+
+	/**
+	 * Starts listening on an ephemeral loopback port.
+	 *
+	 * @param group Event loop group to use
+	 * @throws InterruptedException If interrupted while binding.
+	 */
+	public void start(EventLoopGroup group) throws InterruptedException {
+		ServerBootstrap b = new ServerBootstrap();
+		b.group(group);
+		b.channel(NioServerSocketChannel.class);
+		b.childHandler(new ChannelInitializer<Channel>() {
+			@Override
+			protected void initChannel(Channel ch) throws Exception {
+				ch.pipeline().addLast(new LineBasedFrameDecoder(1024), FakeRaspagerServer.this);
+			}
+		});
+
+		serverChannel = b.bind("127.0.0.1", 0).sync().channel();
+	}
+
+	/**
+	 * Stops listening. Open connections are not closed.
+	 */
+	public void stop() {
+		if (serverChannel != null) {
+			serverChannel.close().syncUninterruptibly();
+		}
+	}
+
+	/**
+	 * Closes the current connection, e.g. to simulate a restart.
+	 */
+	public void disconnect() {
+		Channel ch = connection;
+		if (ch != null) {
+			ch.close();
+		}
+	}
+
+	/**
+	 * Gets the number of accepted connections.
+	 *
+	 * @return Number of connections
+	 */
+	public long getConnections() {
+		return connections.get();
+	}
+
+	/**
+	 * Gets the port the server is listening on.
+	 *
+	 * @return Port number
+	 */
+	public int getPort() {
+		return ((InetSocketAddress) serverChannel.localAddress()).getPort();
+	}
+
+	/**
+	 * Gets the number of acknowledged paging messages.
+	 *
+	 * @return Number of messages
+	 */
+	public long getMessages() {
+		return messages.get();
+	}
+
+	/**
+	 * Gets the number of answered keep alive requests.
+	 *
+	 * @return Number of keep alive requests
+	 */
+	public long getKeepAlives() {
+		return keepAlives.get();
+	}
+
+	@Override
+	public void channelActive(ChannelHandlerContext ctx) throws Exception {
+		connection = ctx.channel();
+		connections.incrementAndGet();
+		ctx.writeAndFlush(ByteBufUtil.writeAscii(ctx.alloc(), WELCOME + "\n"));
+	}
+
+	@Override
+	protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) throws Exception {
+		if (msg.readableBytes() < 2) {
+			return;
+		}
+
+		ByteBuf reply = ctx.alloc().buffer();
+		byte first = msg.getByte(msg.readerIndex());
+		if (first == '#' && msg.readableBytes() >= 3) {
+			// #NN 6:... is acknowledged with #NN +
+			messages.incrementAndGet();
+			reply.writeBytes(msg, msg.readerIndex(), 3).writeBytes(ACK);
+		} else if (first == '2') {
+			// Time sync and keep alive are echoed and confirmed
+			if (LineBuffers.startsWith(msg, KEEP_ALIVE)) {
+				keepAlives.incrementAndGet();
+			}
+
+			reply.writeBytes(msg).writeByte('\n').writeBytes(OK);
+		} else {
+			reply.writeBytes(OK);
+		}
+
+		ctx.write(reply);
+	}
+
+	@Override
+	public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+		ctx.flush();
+	}
+
+	@Override
+	public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+		ctx.close();
+	}
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+/**
+ * Test cases for the fan-out group.
+ *
+ * @author Philipp Thiel
+ */
+public class FanoutGroupTest {
+
+	@Test
+	public void testQuorumWithBackendDown() {
+		EmbeddedChannel frontend = new EmbeddedChannel();
+		EmbeddedChannel backend = new EmbeddedChannel();
+		FanoutGroup group = new FanoutGroup(createSettings("quorum", 2), frontend, new ConnectionMetrics("test"));
+
+		// Only one of two backends is ready, the page reaches a single backend
+		group.join(0, backend);
+		Assert.assertEquals("targets", 1, write(group, "#01 6:page"));
+		Assert.assertTrue("ack forwarded", accept(group, 0, "#01 +"));
+
+		group.release();
+		backend.finishAndReleaseAll();
+		Assert.assertFalse(frontend.finish());
+	}
+
+	@Test
+	public void testQuorumNak() {
+		EmbeddedChannel frontend = new EmbeddedChannel();
+		EmbeddedChannel first = new EmbeddedChannel();
+		EmbeddedChannel second = new EmbeddedChannel();
+		EmbeddedChannel third = new EmbeddedChannel();
+		FanoutGroup group = new FanoutGroup(createSettings("quorum", 3), frontend, new ConnectionMetrics("test"));
+		group.join(0, first);
+		group.join(1, second);
+		group.join(2, third);
+
+		Assert.assertEquals("targets", 3, write(group, "#01 6:page 1"));
+		Assert.assertEquals("targets", 3, write(group, "#02 6:page 2"));
+
+		// A rejection is not forwarded while the quorum can still be met
+		Assert.assertFalse("first nak", accept(group, 0, "#01 -"));
+		Assert.assertFalse("first ack", accept(group, 1, "#01 +"));
+		Assert.assertTrue("quorum met", accept(group, 2, "#01 +"));
+
+		// A rejection is forwarded once the quorum can no longer be met
+		Assert.assertFalse("second nak", accept(group, 0, "#02 -"));
+		Assert.assertTrue("quorum missed", accept(group, 1, "#02 -"));
+		Assert.assertFalse("late ack", accept(group, 2, "#02 +"));
+
+		group.release();
+		first.finishAndReleaseAll();
+		second.finishAndReleaseAll();
+		third.finishAndReleaseAll();
+		Assert.assertFalse(frontend.finish());
+	}
+
+	@Test
+	public void testLeaveForwardsKeptAck() {
+		EmbeddedChannel frontend = new EmbeddedChannel();
+		EmbeddedChannel first = new EmbeddedChannel();
+		EmbeddedChannel second = new EmbeddedChannel();
+		FanoutGroup group = new FanoutGroup(createSettings("all", 2), frontend, new ConnectionMetrics("test"));
+		group.join(0, first);
+		group.join(1, second);
+
+		Assert.assertEquals("targets", 2, write(group, "#01 6:page"));
+		Assert.assertFalse("waiting", accept(group, 0, "#01 +"));
+
+		// The acknowledgement kept for the page is forwarded once the other backend leaves
+		group.leave(1);
+		ByteBuf ack = frontend.readOutbound();
+		try {
+			Assert.assertEquals("ack", "#01 +\n", ack.toString(StandardCharsets.US_ASCII));
+		} finally {
+			ack.release();
+		}
+
+		group.release();
+		first.finishAndReleaseAll();
+		second.finishAndReleaseAll();
+		Assert.assertFalse(frontend.finish());
+	}
+
+	@Test
+	public void testLeaveRejectsUnansweredPage() {
+		EmbeddedChannel frontend = new EmbeddedChannel();
+		EmbeddedChannel first = new EmbeddedChannel();
+		EmbeddedChannel second = new EmbeddedChannel();
+		ConnectionMetrics metrics = new ConnectionMetrics("test");
+		FanoutGroup group = new FanoutGroup(createSettings("first", 2), frontend, metrics);
+		group.join(0, first);
+
+		// Written to the first backend only, which leaves without answering
+		Assert.assertEquals("targets", 1, write(group, "#2A 6:page"));
+		group.join(1, second);
+		group.leave(0);
+
+		ByteBuf nak = frontend.readOutbound();
+		try {
+			Assert.assertEquals("nak", "#2A -\n", nak.toString(StandardCharsets.US_ASCII));
+		} finally {
+			nak.release();
+		}
+
+		Assert.assertEquals("dropped", 1, metrics.getDroppedMessages());
+
+		// The next page is matched to the remaining backend
+		Assert.assertEquals("targets", 1, write(group, "#2B 6:page"));
+		Assert.assertTrue("ack forwarded", accept(group, 1, "#2B +"));
+
+		group.release();
+		first.finishAndReleaseAll();
+		second.finishAndReleaseAll();
+		Assert.assertFalse(frontend.finish());
+	}
+
+	private static int write(FanoutGroup group, String line) {
+		DapnetFrame frame = DapnetFrame.parse(Unpooled.copiedBuffer(line + "\n", StandardCharsets.US_ASCII));
+		try {
+			return group.write(frame, 0);
+		} finally {
+			frame.release();
+		}
+	}
+
+	private static boolean accept(FanoutGroup group, int member, String line) {
+		DapnetFrame frame = DapnetFrame.parse(Unpooled.copiedBuffer(line + "\n", StandardCharsets.US_ASCII));
+		try {
+			return group.accept(member, frame);
+		} finally {
+			frame.release();
+		}
+	}
+
+	private static ConnectionSettings createSettings(String policy, int backends) {
+		StringBuilder hosts = new StringBuilder();
+		for (int i = 0; i < backends; ++i) {
+			hosts.append(i > 0 ? "," : "").append("127.0.0.1:").append(1337 + i);
+		}
+
+		Properties props = new Properties();
+		props.setProperty("profileName", "test");
+		props.setProperty("reconnectSleepTime", "0");
+		props.setProperty("frontend.name", "name");
+		props.setProperty("frontend.key", "key");
+		props.setProperty("frontend.host", "127.0.0.1");
+		props.setProperty("frontend.port", "43434");
+		props.setProperty("backend.hosts", hosts.toString());
+		props.setProperty("backend.timeout", "0");
+		props.setProperty("backend.fanout", "true");
+		props.setProperty("backend.fanout.ack", policy);
+		return new ConnectionSettings(props);
+	}
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test cases for the latency histogram.
+ *
+ * @author Philipp Thiel
+ */
+public class LatencyHistogramTest {
+
+	@Test
+	public void testBucketBounds() {
+		int last = LatencyHistogram.index(0);
+		for (long value = 1; value < 1L << 20; ++value) {
+			int index = LatencyHistogram.index(value);
+			Assert.assertTrue("index not continuous at " + value, index == last || index == last + 1);
+			Assert.assertTrue("lower bound above " + value, LatencyHistogram.lowerBound(index) <= value);
+			Assert.assertTrue("relative error at " + value, value - LatencyHistogram.lowerBound(index) <= value / 32);
+			last = index;
+		}
+	}
+
+	@Test
+	public void testRecord() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(10);
+		histogram.record(1000);
+		histogram.recordNanos(5_000_000);
+
+		Assert.assertEquals("count", 3, histogram.getCount());
+		Assert.assertEquals("sum", 6010, histogram.getSum());
+		Assert.assertEquals("max", 5000, histogram.getMax());
+		Assert.assertEquals("count <= 10", 1, histogram.getCountAtOrBelow(10));
+		Assert.assertEquals("count <= 1000", 2, histogram.getCountAtOrBelow(1000));
+		Assert.assertEquals("count <= max", 3, histogram.getCountAtOrBelow(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void testSnapshot() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 1000; ++i) {
+			histogram.record(i);
+		}
+
+		LatencySnapshot snapshot = histogram.intervalSnapshot();
+		Assert.assertEquals("count", 1000, snapshot.getCount());
+		Assert.assertEquals("p50", 0.5, snapshot.getP50(), 0.5 / 32);
+		Assert.assertEquals("p99", 0.99, snapshot.getP99(), 0.99 / 32);
+		Assert.assertEquals("max", 1.0, snapshot.getMax(), 1.0 / 32);
+
+		histogram.record(50);
+		snapshot = histogram.intervalSnapshot();
+		Assert.assertEquals("interval count", 1, snapshot.getCount());
+		Assert.assertEquals("interval max", 0.05, snapshot.getMax(), 0.0);
+		Assert.assertEquals("cumulative count", 1001, histogram.snapshot().getCount());
+		Assert.assertEquals("empty interval", 0, histogram.intervalSnapshot().getCount());
+	}
+
+}
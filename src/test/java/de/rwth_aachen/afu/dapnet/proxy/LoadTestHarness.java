@@ -0,0 +1,417 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/**
+ * Load test for a single proxy process. It starts a DAPNET core and a raspager
+ * stand-in per profile on loopback, opens all profiles via the
+ * {@link ProxyManager} and runs the following phases:
+ *
+ * <ol>
+ * <li>connect: all profiles connect and complete the handshake,</li>
+ * <li>steady: each core sends a paging message per interval while the keep
+ * alive requests run,</li>
+ * <li>burst: all cores send a burst of paging messages at once,</li>
+ * <li>storm: all core connections are dropped at the same time and the proxy
+ * has to reconnect every profile.</li>
+ * </ol>
+ *
+ * The parameters are read from system properties ({@code loadtest.*}) and
+ * written to the report together with the results, so a run can be repeated
+ * with the same parameters. The stand-ins run in the same JVM on their own
+ * event loop group, so the heap figures include them.
+ *
+ * @author Philipp Thiel
+ */
+final class LoadTestHarness {
+
+	private static final String PREFIX = "loadtest.";
+	private final int profiles = Integer.getInteger(PREFIX + "profiles", 200);
+	private final int duration = Integer.getInteger(PREFIX + "duration", 30);
+	private final int interval = Integer.getInteger(PREFIX + "interval", 1000);
+	private final int burst = Integer.getInteger(PREFIX + "burst", 64);
+	private final int bursts = Integer.getInteger(PREFIX + "bursts", 10);
+	private final int keepAlive = Integer.getInteger(PREFIX + "keepAlive", 500);
+	private final int reconnect = Integer.getInteger(PREFIX + "reconnect", 1000);
+	private final int timeout = Integer.getInteger(PREFIX + "timeout", 60);
+	private final int serverThreads = Integer.getInteger(PREFIX + "serverThreads", 2);
+	private final boolean batching = Boolean.getBoolean(PREFIX + "batching");
+	private final Path reportFile = Paths.get(System.getProperty(PREFIX + "report", "target/loadtest-report.txt"));
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final List<FakeCoreServer> cores = new ArrayList<>();
+	private final List<FakeRaspagerServer> raspagers = new ArrayList<>();
+	private final Listener listener = new Listener();
+	private final StringWriter report = new StringWriter();
+	private final PrintWriter out = new PrintWriter(report);
+	private final HeapSampler heap = new HeapSampler();
+	private EventLoopGroup serverGroup;
+	private ProxyManager proxyManager;
+
+	public static void main(String[] args) throws Exception {
+		if (!Boolean.getBoolean(PREFIX + "verbose")) {
+			Logger.getLogger(LoadTestHarness.class.getPackage().getName()).setLevel(Level.WARNING);
+		}
+
+		new LoadTestHarness().run();
+	}
+
+	private void run() throws Exception {
+		writeParameters();
+
+		long baseline = usedHeapAfterGc();
+		serverGroup = new NioEventLoopGroup(serverThreads, new DefaultThreadFactory("loadtest-server"));
+		heap.start();
+
+		try {
+			runConnect(baseline);
+			runSteady();
+			runBursts();
+			runStorm();
+		} finally {
+			heap.stop();
+			if (proxyManager != null) {
+				proxyManager.shutdown();
+			}
+
+			cores.forEach(FakeCoreServer::stop);
+			raspagers.forEach(FakeRaspagerServer::stop);
+			serverGroup.shutdownGracefully().syncUninterruptibly();
+		}
+
+		writeTotals();
+		out.flush();
+
+		System.out.print(report);
+		if (reportFile.getParent() != null) {
+			Files.createDirectories(reportFile.getParent());
+		}
+		Files.write(reportFile, report.toString().getBytes(StandardCharsets.UTF_8));
+		System.out.println("Report written to " + reportFile.toAbsolutePath());
+	}
+
+	private void writeParameters() {
+		out.printf("# DAPNET proxy load test, %s%n", Instant.now());
+		out.printf("java: %s %s%n", System.getProperty("java.vm.name"), System.getProperty("java.version"));
+		out.printf("cpus: %d%n", Runtime.getRuntime().availableProcessors());
+		out.printf("maxHeap: %d MiB%n", Runtime.getRuntime().maxMemory() >> 20);
+		out.printf("transport: %s%n", Transport.select());
+		out.printf("threads: %s%n", System.getProperty(WorkerGroups.THREADS_KEY, "default"));
+		out.printf("profiles: %d%n", profiles);
+		out.printf("duration: %d s%n", duration);
+		out.printf("interval: %d ms%n", interval);
+		out.printf("burst: %d x %d messages%n", bursts, burst);
+		out.printf("keepAlive: %d ms%n", keepAlive);
+		out.printf("reconnect: %d ms%n", reconnect);
+		out.printf("reconnectLimits: rate %s/s, burst %s, concurrency %s%n",
+				System.getProperty(ReconnectScheduler.RATE_KEY, "default"),
+				System.getProperty(ReconnectScheduler.BURST_KEY, "default"),
+				System.getProperty(ReconnectScheduler.CONCURRENCY_KEY, "default"));
+		out.printf("batching: %b%n", batching);
+	}
+
+	private void runConnect(long baseline) throws Exception {
+		for (int i = 0; i < profiles; ++i) {
+			String name = "load" + i;
+			FakeCoreServer core = new FakeCoreServer(name, "key" + i, latency);
+			core.start(serverGroup);
+			cores.add(core);
+
+			FakeRaspagerServer raspager = new FakeRaspagerServer();
+			raspager.start(serverGroup);
+			raspagers.add(raspager);
+		}
+
+		proxyManager = new ProxyManager(listener);
+		heap.reset();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < profiles; ++i) {
+			proxyManager.openConnection(createSettings(i));
+		}
+
+		boolean complete = await(() -> sum(FakeCoreServer::getHandshakes), profiles);
+		long elapsed = System.nanoTime() - start;
+
+		section("connect");
+		out.printf("complete: %b (%d of %d handshakes)%n", complete, sum(FakeCoreServer::getHandshakes), profiles);
+		out.printf("time: %d ms%n", TimeUnit.NANOSECONDS.toMillis(elapsed));
+		out.printf("authFailures: %d%n", sum(FakeCoreServer::getAuthFailures));
+
+		long connected = usedHeapAfterGc();
+		out.printf("heapPerProfile: %d KiB (including stand-ins)%n", (connected - baseline) / profiles >> 10);
+		heap.write("heap");
+	}
+
+	private void runSteady() throws Exception {
+		List<ScheduledFuture<?>> tasks = new ArrayList<>();
+		latency.intervalSnapshot();
+		heap.reset();
+
+		// Spread the messages of all profiles evenly over the interval
+		long sentBefore = sum(FakeCoreServer::getSent);
+		long start = System.nanoTime();
+		for (int i = 0; i < cores.size(); ++i) {
+			FakeCoreServer core = cores.get(i);
+			long delay = (long) i * interval * 1000 / cores.size();
+			tasks.add(serverGroup.scheduleAtFixedRate(() -> core.sendPages(1), delay, interval * 1000L,
+					TimeUnit.MICROSECONDS));
+		}
+
+		Thread.sleep(TimeUnit.SECONDS.toMillis(duration));
+		tasks.forEach(t -> t.cancel(false));
+		long sent = sum(FakeCoreServer::getSent) - sentBefore;
+		await(() -> sum(FakeCoreServer::getAcks), sum(FakeCoreServer::getSent));
+		long elapsed = System.nanoTime() - start;
+
+		section("steady");
+		out.printf("messages: %d%n", sent);
+		out.printf("throughput: %.1f messages/s%n", sent * 1e9 / elapsed);
+		writeLatency(latency.intervalSnapshot());
+		out.printf("keepAlives: %d%n", raspagers.stream().mapToLong(FakeRaspagerServer::getKeepAlives).sum());
+		heap.write("heap");
+	}
+
+	private void runBursts() throws Exception {
+		latency.intervalSnapshot();
+		heap.reset();
+
+		long sentBefore = sum(FakeCoreServer::getSent);
+		long start = System.nanoTime();
+		boolean complete = true;
+		for (int i = 0; i < bursts && complete; ++i) {
+			cores.forEach(c -> c.sendPages(burst));
+			complete = await(() -> sum(FakeCoreServer::getAcks), sum(FakeCoreServer::getSent));
+		}
+
+		long elapsed = System.nanoTime() - start;
+		long sent = sum(FakeCoreServer::getSent) - sentBefore;
+
+		section("burst");
+		out.printf("complete: %b%n", complete);
+		out.printf("messages: %d%n", sent);
+		out.printf("throughput: %.1f messages/s%n", sent * 1e9 / elapsed);
+		writeLatency(latency.intervalSnapshot());
+		heap.write("heap");
+	}
+
+	private void runStorm() throws Exception {
+		heap.reset();
+		long handshakes = sum(FakeCoreServer::getHandshakes);
+		long reconnects = listener.sumMetrics(ConnectionMetrics::getReconnects);
+
+		long start = System.nanoTime();
+		cores.forEach(FakeCoreServer::disconnect);
+		boolean complete = await(() -> sum(FakeCoreServer::getHandshakes), handshakes + profiles);
+		long elapsed = System.nanoTime() - start;
+
+		section("storm");
+		out.printf("complete: %b (%d of %d handshakes)%n", complete, sum(FakeCoreServer::getHandshakes) - handshakes,
+				profiles);
+		out.printf("recoveryTime: %d ms (reconnect delay %d ms)%n", TimeUnit.NANOSECONDS.toMillis(elapsed),
+				reconnect);
+		out.printf("reconnects: %d%n", listener.sumMetrics(ConnectionMetrics::getReconnects) - reconnects);
+		heap.write("heap");
+	}
+
+	private void writeTotals() {
+		section("totals");
+		out.printf("sent: %d%n", sum(FakeCoreServer::getSent));
+		out.printf("acknowledged: %d%n", sum(FakeCoreServer::getAcks));
+		out.printf("relayed: %d%n", raspagers.stream().mapToLong(FakeRaspagerServer::getMessages).sum());
+		out.printf("connects: %d%n", listener.connects.get());
+		out.printf("disconnects: %d%n", listener.disconnects.get());
+		out.printf("writeFailures: %d%n", listener.sumMetrics(ConnectionMetrics::getWriteFailures));
+
+		double worst = 0;
+		for (ConnectionMetrics m : listener.metrics.values()) {
+			worst = Math.max(worst, m.getFrontendRelayLatency().snapshot().getP99());
+		}
+		out.printf("relayLatencyP99: %.3f ms (worst profile)%n", worst);
+	}
+
+	private void writeLatency(LatencySnapshot snapshot) {
+		out.printf("latency: mean %.3f ms, p50 %.3f ms, p99 %.3f ms, p999 %.3f ms, max %.3f ms%n",
+				snapshot.getMean(), snapshot.getP50(), snapshot.getP99(), snapshot.getP999(), snapshot.getMax());
+	}
+
+	private void section(String name) {
+		out.printf("%n[%s]%n", name);
+	}
+
+	private ConnectionSettings createSettings(int index) {
+		Properties props = new Properties();
+		props.setProperty("profileName", "load" + index);
+		props.setProperty("reconnectSleepTime", Integer.toString(reconnect));
+		props.setProperty("frontend.name", "load" + index);
+		props.setProperty("frontend.key", "key" + index);
+		props.setProperty("frontend.host", "127.0.0.1");
+		props.setProperty("frontend.port", Integer.toString(cores.get(index).getPort()));
+		props.setProperty("backend.host", "127.0.0.1");
+		props.setProperty("backend.port", Integer.toString(raspagers.get(index).getPort()));
+		props.setProperty("backend.timeout", Integer.toString(keepAlive));
+		props.setProperty("relay.batching", Boolean.toString(batching));
+
+		return new ConnectionSettings(props);
+	}
+
+	private long sum(ToLongFunction<FakeCoreServer> counter) {
+		return cores.stream().mapToLong(counter).sum();
+	}
+
+	private boolean await(LongSupplier value, long expected) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout);
+		while (value.getAsLong() < expected) {
+			if (System.nanoTime() > deadline) {
+				return false;
+			}
+
+			Thread.sleep(5);
+		}
+
+		return true;
+	}
+
+	private static long usedHeapAfterGc() {
+		System.gc();
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	/**
+	 * Collects the traffic counters and connection events of the proxy manager.
+	 */
+	private static final class Listener implements ProxyEventListener {
+
+		private final ConcurrentMap<String, ConnectionMetrics> metrics = new ConcurrentHashMap<>();
+		private final AtomicLong connects = new AtomicLong();
+		private final AtomicLong disconnects = new AtomicLong();
+
+		@Override
+		public void onRegister(String profileName, ConnectionMetrics metrics) {
+			this.metrics.put(profileName, metrics);
+		}
+
+		@Override
+		public void onUnregister(String profileName) {
+			this.metrics.remove(profileName);
+		}
+
+		@Override
+		public void onConnect(String profileName) {
+			connects.incrementAndGet();
+		}
+
+		@Override
+		public void onDisconnect(String profileName, boolean reconnect) {
+			disconnects.incrementAndGet();
+		}
+
+		@Override
+		public void onReconnectStateChanged(String profileName, int attempt, Instant nextAttempt) {
+		}
+
+		@Override
+		public void onShutdown() {
+		}
+
+		long sumMetrics(ToLongFunction<ConnectionMetrics> counter) {
+			return metrics.values().stream().mapToLong(counter).sum();
+		}
+
+	}
+
+	/**
+	 * Samples the used heap once per second.
+	 */
+	private final class HeapSampler implements Runnable {
+
+		private final Thread thread = new Thread(this, "loadtest-heap");
+		private volatile boolean running = true;
+		private long min;
+		private long max;
+		private long last;
+
+		void start() {
+			reset();
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		void stop() {
+			running = false;
+			thread.interrupt();
+		}
+
+		synchronized void reset() {
+			min = Long.MAX_VALUE;
+			max = 0;
+			sample();
+		}
+
+		synchronized void write(String name) {
+			sample();
+			out.printf("%s: min %d MiB, max %d MiB, last %d MiB%n", name, min >> 20, max >> 20, last >> 20);
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				try {
+					Thread.sleep(1000);
+				} catch (InterruptedException ex) {
+					return;
+				}
+
+				synchronized (this) {
+					sample();
+				}
+			}
+		}
+
+		private void sample() {
+			last = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+			min = Math.min(min, last);
+			max = Math.max(max, last);
+		}
+
+	}
+
+}
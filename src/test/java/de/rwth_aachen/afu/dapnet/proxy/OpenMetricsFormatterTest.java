@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the OpenMetrics text format rendered for the metrics endpoint.
+ *
+ * @author Philipp Thiel
+ */
+public class OpenMetricsFormatterTest {
+
+	@Test
+	public void testFormat() {
+		ConnectionStatusManager manager = new ConnectionStatusManager();
+		manager.onRegister("test", createMetrics("test"));
+		manager.onRegister("a\"b\\c", new ConnectionMetrics("a\"b\\c"));
+		manager.onRegister("\u00fc\u20ac\ud83d\udce1", new ConnectionMetrics("\u00fc\u20ac\ud83d\udce1"));
+
+		String text = new String(manager.renderMetrics(), StandardCharsets.UTF_8);
+		Assert.assertTrue("EOF", text.endsWith("\n# EOF\n"));
+		Assert.assertEquals("single EOF", text.indexOf("# EOF"), text.lastIndexOf("# EOF"));
+
+		Map<String, String> types = new HashMap<>();
+		Set<String> finished = new HashSet<>();
+		String family = null;
+		for (String line : text.substring(0, text.length() - "# EOF\n".length()).split("\n")) {
+			if (line.startsWith("# TYPE ")) {
+				String[] parts = line.split(" ");
+				Assert.assertEquals(line, 4, parts.length);
+				Assert.assertNull("duplicate family " + parts[2], types.put(parts[2], parts[3]));
+				if (family != null) {
+					finished.add(family);
+				}
+				family = parts[2];
+			} else if (line.startsWith("# UNIT ")) {
+				String[] parts = line.split(" ");
+				Assert.assertEquals(line, family, parts[2]);
+				Assert.assertTrue("unit suffix " + line, family.endsWith("_" + parts[3]));
+			} else if (line.startsWith("# HELP ")) {
+				Assert.assertTrue(line, line.startsWith("# HELP " + family + " "));
+			} else {
+				Assert.assertFalse("comment " + line, line.startsWith("#"));
+				Assert.assertNotNull("sample without family " + line, family);
+				String name = line.substring(0, indexOfAny(line, '{', ' '));
+				Assert.assertFalse("family not contiguous " + line, finished.contains(family));
+				assertSampleName(line, family, types.get(family), name);
+
+				// Value must be a number
+				Double.parseDouble(line.substring(line.lastIndexOf(' ') + 1));
+			}
+		}
+
+		// Counters, histograms and label escaping
+		assertSample(text, "dapnet_proxy_reconnects_total{profile=\"test\"} 2");
+		assertSample(text, "dapnet_proxy_write_failures_total{profile=\"test\"} 1");
+		assertSample(text, "dapnet_proxy_reconnects_total{profile=\"a\\\"b\\\\c\"} 0");
+		assertSample(text, "dapnet_proxy_reconnects_total{profile=\"\u00fc\u20ac\ud83d\udce1\"} 0");
+		assertSample(text, "dapnet_proxy_keepalive_rtt_seconds_bucket{profile=\"test\",le=\"0.001008\"} 0");
+		assertSample(text, "dapnet_proxy_keepalive_rtt_seconds_bucket{profile=\"test\",le=\"0.00256\"} 1");
+		assertSample(text, "dapnet_proxy_keepalive_rtt_seconds_bucket{profile=\"test\",le=\"+Inf\"} 1");
+		assertSample(text, "dapnet_proxy_keepalive_rtt_seconds_count{profile=\"test\"} 1");
+		assertSample(text, "dapnet_proxy_keepalive_rtt_seconds_sum{profile=\"test\"} 0.002");
+		assertSample(text, "dapnet_proxy_connection_state{profile=\"test\",state=\"CONNECTING\"} 1");
+		assertSample(text, "dapnet_proxy_connection_state{profile=\"test\",state=\"ONLINE\"} 0");
+		assertSample(text, "dapnet_proxy_keepalive_srtt_seconds{profile=\"test\"} 0.002");
+		Assert.assertTrue("unit", text.contains("# UNIT dapnet_proxy_keepalive_rtt_seconds seconds\n"));
+
+		// Values that are not available are not exported
+		Assert.assertFalse("unavailable", text.contains("dapnet_proxy_keepalive_srtt_seconds{profile=\"a"));
+	}
+
+	@Test
+	public void testBucketBounds() {
+		ConnectionStatusManager manager = new ConnectionStatusManager();
+		ConnectionMetrics metrics = new ConnectionMetrics("test");
+		manager.onRegister("test", metrics);
+
+		// 503 us shares the histogram bucket of 500 us, so the bound is raised to its edge
+		LatencyHistogram histogram = metrics.getKeepAliveRttHistogram();
+		histogram.record(503);
+		histogram.record(504);
+
+		String text = new String(manager.renderMetrics(), StandardCharsets.UTF_8);
+		assertSample(text, "dapnet_proxy_keepalive_rtt_seconds_bucket{profile=\"test\",le=\"0.000504\"} 1");
+		assertSample(text, "dapnet_proxy_keepalive_rtt_seconds_bucket{profile=\"test\",le=\"0.001008\"} 2");
+	}
+
+	private static ConnectionMetrics createMetrics(String profileName) {
+		ConnectionMetrics metrics = new ConnectionMetrics(profileName);
+		metrics.recordReconnect();
+		metrics.recordReconnect();
+		metrics.recordWriteFailure();
+
+		long rtt = TimeUnit.MILLISECONDS.toNanos(2);
+		metrics.recordKeepAlive(rtt);
+		metrics.recordKeepAliveEstimate(rtt, rtt / 2, TimeUnit.SECONDS.toNanos(1));
+		return metrics;
+	}
+
+	private static void assertSampleName(String line, String family, String type, String name) {
+		switch (type) {
+		case "counter":
+			Assert.assertEquals(line, family + "_total", name);
+			break;
+		case "histogram":
+			Assert.assertTrue(line, name.equals(family + "_bucket") || name.equals(family + "_count")
+					|| name.equals(family + "_sum"));
+			break;
+		case "gauge":
+			Assert.assertEquals(line, family, name);
+			break;
+		default:
+			Assert.fail("Unknown type: " + type);
+		}
+	}
+
+	private static void assertSample(String text, String sample) {
+		Assert.assertTrue(sample, text.contains("\n" + sample + "\n"));
+	}
+
+	private static int indexOfAny(String s, char a, char b) {
+		int i = s.indexOf(a);
+		int j = s.indexOf(b);
+		return i >= 0 && i < j ? i : j;
+	}
+
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+/**
+ * Test cases for the page spool.
+ *
+ * @author Philipp Thiel
+ */
+public class PageSpoolTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testReplayAndAck() throws IOException {
+		ConnectionMetrics metrics = new ConnectionMetrics("test");
+		PageSpool spool = new PageSpool(createSettings(2), metrics);
+
+		for (int i = 0; i < 3; ++i) {
+			Assert.assertTrue("append", spool.append(LineBuffers.newLine("#0" + i + " 6:page " + i)));
+		}
+
+		Assert.assertEquals("pending", 3, spool.getPending());
+		Assert.assertEquals("spooled", 3, metrics.getSpooledMessages());
+
+		EmbeddedChannel channel = new EmbeddedChannel();
+		Assert.assertEquals("replayed", 3, spool.replay(channel));
+		for (int i = 0; i < 3; ++i) {
+			assertLine("#0" + i + " 6:page " + i, channel.readOutbound());
+		}
+
+		Assert.assertTrue("current session", spool.ack(0, true));
+		spool.ack(1, true);
+		Assert.assertEquals("pending after ack", 1, spool.getPending());
+		Assert.assertEquals("acknowledged", 2, metrics.getReplayedMessages());
+
+		// Reconnect: only the last page is replayed again
+		channel = new EmbeddedChannel();
+		Assert.assertEquals("replayed after reconnect", 1, spool.replay(channel));
+		assertLine("#02 6:page 2", channel.readOutbound());
+
+		spool.ack(2, true);
+		Assert.assertEquals("pending after all acks", 0, spool.getPending());
+		Assert.assertEquals("segments after all acks", 0, countSegments());
+	}
+
+	@Test
+	public void testChunkedReplay() throws IOException {
+		PageSpool spool = new PageSpool(createSettings(2), new ConnectionMetrics("test"));
+		for (int i = 0; i < 8; ++i) {
+			spool.append(LineBuffers.newLine("#0" + i + " 6:page " + i));
+		}
+
+		// Only written while the channel is writable
+		EmbeddedChannel channel = new EmbeddedChannel();
+		channel.config().setWriteBufferWaterMark(new WriteBufferWaterMark(1, 2));
+		Assert.assertEquals("first chunk", 1, spool.replay(channel));
+		Assert.assertTrue("replaying", spool.isReplaying());
+		Assert.assertEquals("other channel", 0, spool.continueReplay(new EmbeddedChannel()));
+
+		int replayed = 1;
+		while (spool.isReplaying()) {
+			Assert.assertEquals("chunk", 1, spool.continueReplay(channel));
+			++replayed;
+		}
+
+		Assert.assertEquals("replayed", 8, replayed);
+		for (int i = 0; i < 8; ++i) {
+			assertLine("#0" + i + " 6:page " + i, channel.readOutbound());
+		}
+
+		// A new replay starts over
+		Assert.assertEquals("replayed again", 1, spool.replay(channel));
+		assertLine("#00 6:page 0", channel.readOutbound());
+		spool.close();
+		Assert.assertFalse("closed", spool.isReplaying());
+	}
+
+	@Test
+	public void testRecover() throws IOException {
+		ConnectionMetrics metrics = new ConnectionMetrics("test");
+		PageSpool spool = new PageSpool(createSettings(2), metrics);
+		spool.append(LineBuffers.newLine("#01 6:first"));
+		spool.append(LineBuffers.newLine("#02 6:second"));
+		spool.append(LineBuffers.newLine("#03 6:third"));
+		spool.replay(new EmbeddedChannel());
+		spool.ack(1, true);
+		spool.flush();
+
+		// Restart
+		spool = new PageSpool(createSettings(2), metrics);
+		Assert.assertEquals("recovered", 2, spool.getPending());
+
+		EmbeddedChannel channel = new EmbeddedChannel();
+		Assert.assertEquals("replayed", 2, spool.replay(channel));
+		assertLine("#02 6:second", channel.readOutbound());
+		assertLine("#03 6:third", channel.readOutbound());
+
+		// Appended to a new segment
+		spool.beginSession();
+		spool.append(LineBuffers.newLine("#04 6:fourth"));
+		Assert.assertEquals("segments", 2, countSegments());
+
+		spool.replay(new EmbeddedChannel());
+		Assert.assertFalse("previous session", spool.ack(2, true));
+		Assert.assertFalse("previous session", spool.ack(3, true));
+		Assert.assertTrue("current session", spool.ack(4, true));
+		Assert.assertEquals("segments after all acks", 0, countSegments());
+	}
+
+	@Test
+	public void testAckBySequence() throws IOException {
+		ConnectionMetrics metrics = new ConnectionMetrics("test");
+		PageSpool spool = new PageSpool(createSettings(2), metrics);
+		spool.append(LineBuffers.newLine("#01 6:first"));
+		spool.append(LineBuffers.newLine("#02 6:second"));
+		spool.append(LineBuffers.newLine("#01 6:third"));
+		Assert.assertEquals("replayed", 3, spool.replay(new EmbeddedChannel()));
+
+		// Unknown sequence numbers are not matched
+		Assert.assertFalse("unknown", spool.isReplayed(5));
+		Assert.assertFalse("unknown ack", spool.ack(5, true));
+		Assert.assertEquals("pending", 3, spool.getPending());
+
+		// Out of order, the oldest page with a sequence number is acknowledged first
+		Assert.assertTrue("replayed", spool.isReplayed(2));
+		spool.ack(2, true);
+		spool.ack(1, true);
+		Assert.assertEquals("pending", 1, spool.getPending());
+
+		// A rejected page is replayed again
+		spool.ack(1, false);
+		Assert.assertFalse("answered", spool.isReplayed(1));
+		Assert.assertEquals("pending after reject", 1, spool.getPending());
+		Assert.assertEquals("acknowledged", 2, metrics.getReplayedMessages());
+
+		EmbeddedChannel channel = new EmbeddedChannel();
+		Assert.assertEquals("replayed again", 1, spool.replay(channel));
+		assertLine("#01 6:third", channel.readOutbound());
+		spool.flush();
+
+		// The acknowledged records are skipped after a restart
+		spool = new PageSpool(createSettings(2), metrics);
+		channel = new EmbeddedChannel();
+		Assert.assertEquals("recovered", 1, spool.replay(channel));
+		assertLine("#01 6:third", channel.readOutbound());
+	}
+
+	@Test
+	public void testMaxRejections() throws IOException {
+		ConnectionMetrics metrics = new ConnectionMetrics("test");
+		PageSpool spool = new PageSpool(createSettings(2, 1), metrics);
+		spool.append(LineBuffers.newLine("#01 6:first"));
+		spool.append(LineBuffers.newLine("#02 6:second"));
+
+		spool.replay(new EmbeddedChannel());
+		spool.ack(1, false);
+		spool.ack(2, true);
+		spool.flush();
+
+		// The rejection is kept after a restart
+		spool = new PageSpool(createSettings(2, 1), metrics);
+		Assert.assertEquals("recovered", 1, spool.getPending());
+		EmbeddedChannel channel = new EmbeddedChannel();
+		Assert.assertEquals("replayed", 1, spool.replay(channel));
+		assertLine("#01 6:first", channel.readOutbound());
+
+		// Rejected again, the page is dropped
+		Assert.assertFalse("previous session", spool.ack(1, false));
+		Assert.assertEquals("pending", 0, spool.getPending());
+		Assert.assertEquals("dropped", 1, metrics.getDroppedMessages());
+		Assert.assertEquals("segments", 0, countSegments());
+	}
+
+	@Test
+	public void testCorruptRecord() throws IOException {
+		PageSpool spool = new PageSpool(createSettings(2), new ConnectionMetrics("test"));
+		spool.append(LineBuffers.newLine("#01 6:first"));
+		spool.append(LineBuffers.newLine("#02 6:second"));
+		spool.flush();
+
+		// Damage the payload of the second record
+		Path segment = listSegments()[0];
+		try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(new byte[] { 'X' }), 9 + 12 + 9 + 4);
+		}
+
+		spool = new PageSpool(createSettings(2), new ConnectionMetrics("test"));
+		Assert.assertEquals("recovered", 1, spool.getPending());
+	}
+
+	@Test
+	public void testMaxSegments() throws IOException {
+		ConnectionMetrics metrics = new ConnectionMetrics("test");
+		PageSpool spool = new PageSpool(createSettings(2), metrics);
+
+		// About 4 KiB per segment, 2 segments
+		StringBuilder sb = new StringBuilder("#01 6:");
+		while (sb.length() < 1500) {
+			sb.append('x');
+		}
+
+		ByteBuf page = LineBuffers.newLine(sb.toString());
+		for (int i = 0; i < 6; ++i) {
+			Assert.assertTrue("append", spool.append(page));
+		}
+
+		Assert.assertEquals("segments", 2, countSegments());
+		Assert.assertEquals("pending", 4, spool.getPending());
+		Assert.assertEquals("dropped", 2, metrics.getDroppedMessages());
+
+		// Segments waiting for acknowledgements of replayed pages are kept
+		EmbeddedChannel channel = new EmbeddedChannel();
+		Assert.assertEquals("replayed", 4, spool.replay(channel));
+		channel.finishAndReleaseAll();
+		Assert.assertFalse("append while replayed", spool.append(page));
+		Assert.assertEquals("dropped while replayed", 3, metrics.getDroppedMessages());
+		Assert.assertEquals("pending while replayed", 4, spool.getPending());
+
+		// All four pages share the sequence number and are acknowledged in order
+		for (int i = 0; i < 4; ++i) {
+			Assert.assertTrue("ack " + i, spool.isReplayed(1));
+			spool.ack(1, true);
+		}
+
+		Assert.assertEquals("pending after acks", 0, spool.getPending());
+		Assert.assertTrue("append after acks", spool.append(page));
+	}
+
+	private ConnectionSettings createSettings(int maxSegments) {
+		return createSettings(maxSegments, 3);
+	}
+
+	private ConnectionSettings createSettings(int maxSegments, int maxRejections) {
+		Properties props = new Properties();
+		props.setProperty("profileName", "test");
+		props.setProperty("reconnectSleepTime", "1000");
+		props.setProperty("frontend.name", "name");
+		props.setProperty("frontend.key", "key");
+		props.setProperty("frontend.host", "localhost");
+		props.setProperty("frontend.port", "43434");
+		props.setProperty("backend.host", "localhost");
+		props.setProperty("backend.port", "1337");
+		props.setProperty("backend.timeout", "0");
+		props.setProperty("spool.directory", folder.getRoot().getPath());
+		props.setProperty("spool.segmentSize", "4096");
+		props.setProperty("spool.maxSegments", Integer.toString(maxSegments));
+		props.setProperty("spool.maxRejections", Integer.toString(maxRejections));
+
+		return new ConnectionSettings(props);
+	}
+
+	private Path[] listSegments() throws IOException {
+		try (Stream<Path> files = Files.list(folder.getRoot().toPath().resolve("test"))) {
+			return files.sorted().toArray(Path[]::new);
+		}
+	}
+
+	private long countSegments() throws IOException {
+		return listSegments().length;
+	}
+
+	private static void assertLine(String expected, ByteBuf actual) {
+		try {
+			Assert.assertEquals(expected + "\n", actual.toString(StandardCharsets.US_ASCII));
+		} finally {
+			actual.release();
+		}
+	}
+
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the asynchronous dispatch of proxy events.
+ *
+ * @author Philipp Thiel
+ */
+public class ProxyEventBusTest {
+
+	@Test
+	public void testCoalesceAndDrop() throws Exception {
+		CountDownLatch entered = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		RecordingListener blocking = new RecordingListener() {
+			@Override
+			public void onRegister(String profileName, ConnectionMetrics metrics) {
+				super.onRegister(profileName, metrics);
+				entered.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		RecordingListener other = new RecordingListener();
+
+		ProxyEventBus bus = new ProxyEventBus(4, 0);
+		bus.addListener(blocking);
+		bus.addListener(other);
+
+		// Block the dispatcher while the events are queued
+		bus.onRegister("a", new ConnectionMetrics("a"));
+		Assert.assertTrue("entered", entered.await(5, TimeUnit.SECONDS));
+
+		bus.onConnect("a");
+		bus.onDisconnect("a", true);
+		bus.onReconnectStateChanged("a", 1, Instant.now());
+		bus.onReconnectStateChanged("a", 2, null);
+		for (int i = 1; i <= 5; ++i) {
+			bus.onKeepAlive("a", i * 1000);
+		}
+
+		// Only keep alive samples are dropped
+		Assert.assertEquals("dropped", 1, bus.getDropped());
+
+		release.countDown();
+		bus.onShutdown();
+
+		List<String> expected = Arrays.asList("register a", "reconnect a 2", "keepAlive a 4000", "shutdown");
+		Assert.assertEquals("blocking listener", expected, blocking.events);
+		Assert.assertEquals("other listener", expected, other.events);
+		Assert.assertEquals("coalesced", 6, bus.getCoalesced());
+	}
+
+	@Test
+	public void testStateEventsInOrder() throws Exception {
+		CountDownLatch entered = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		RecordingListener blocking = new RecordingListener() {
+			@Override
+			public void onRegister(String profileName, ConnectionMetrics metrics) {
+				super.onRegister(profileName, metrics);
+				entered.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+
+		ProxyEventBus bus = new ProxyEventBus(1, 0);
+		bus.addListener(blocking);
+		bus.onRegister("a", new ConnectionMetrics("a"));
+		Assert.assertTrue("entered", entered.await(5, TimeUnit.SECONDS));
+
+		// More state events than the sample queue can hold
+		bus.onKeepAlive("a", 1000);
+		bus.onRegister("b", new ConnectionMetrics("b"));
+		bus.onConnect("b");
+		bus.onDisconnect("b", false);
+		bus.onUnregister("a");
+		Assert.assertEquals("dropped", 0, bus.getDropped());
+
+		release.countDown();
+		bus.onShutdown();
+
+		List<String> expected = Arrays.asList("register a", "register b", "connect b", "disconnect b", "unregister a",
+				"keepAlive a 1000", "shutdown");
+		Assert.assertEquals("events", expected, blocking.events);
+	}
+
+	@Test
+	public void testFailingListener() throws Exception {
+		RecordingListener failing = new RecordingListener() {
+			@Override
+			public void onConnect(String profileName) {
+				throw new IllegalStateException("Test");
+			}
+		};
+		RecordingListener other = new RecordingListener();
+
+		ProxyEventBus bus = new ProxyEventBus(16, 0);
+		bus.addListener(failing);
+		bus.addListener(other);
+		bus.onConnect("a");
+		bus.onHandshakeCompleted("a");
+		bus.onShutdown();
+
+		Assert.assertEquals("other listener", Arrays.asList("connect a", "handshake a", "shutdown"), other.events);
+	}
+
+	private static class RecordingListener implements ProxyEventListener {
+
+		final List<String> events = Collections.synchronizedList(new ArrayList<>());
+
+		@Override
+		public void onRegister(String profileName, ConnectionMetrics metrics) {
+			events.add("register " + profileName);
+		}
+
+		@Override
+		public void onUnregister(String profileName) {
+			events.add("unregister " + profileName);
+		}
+
+		@Override
+		public void onConnect(String profileName) {
+			events.add("connect " + profileName);
+		}
+
+		@Override
+		public void onDisconnect(String profileName, boolean reconnect) {
+			events.add("disconnect " + profileName);
+		}
+
+		@Override
+		public void onReconnectStateChanged(String profileName, int attempt, Instant nextAttempt) {
+			events.add("reconnect " + profileName + " " + attempt);
+		}
+
+		@Override
+		public void onHandshakeCompleted(String profileName) {
+			events.add("handshake " + profileName);
+		}
+
+		@Override
+		public void onKeepAlive(String profileName, long rttNanos) {
+			events.add("keepAlive " + profileName + " " + rttNanos);
+		}
+
+		@Override
+		public void onShutdown() {
+			events.add("shutdown");
+		}
+
+	}
+
+}
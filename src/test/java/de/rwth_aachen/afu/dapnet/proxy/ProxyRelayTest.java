@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.ssl.SslContextBuilder;
+
+/**
+ * End-to-end test of a proxy connection using the core and raspager
+ * stand-ins of the load test harness. Each test runs with the batching relay
+ * mode disabled and enabled.
+ *
+ * @author Philipp Thiel
+ */
+@RunWith(Parameterized.class)
+public class ProxyRelayTest {
+
+	@Parameter
+	public boolean batching;
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private EventLoopGroup group;
+	private FakeCoreServer core;
+	private FakeRaspagerServer raspager;
+	private ConnectionStatusManager statusManager;
+	private ProxyManager manager;
+
+	@Parameters(name = "batching={0}")
+	public static Collection<Object[]> parameters() {
+		return Arrays.asList(new Object[][] { { false }, { true } });
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		group = new NioEventLoopGroup(1);
+		core = new FakeCoreServer("name", "key", latency);
+		core.start(group);
+		raspager = new FakeRaspagerServer();
+		raspager.start(group);
+	}
+
+	private Properties createProperties() {
+		Properties props = new Properties();
+		props.setProperty("profileName", "test");
+		props.setProperty("reconnectSleepTime", "100");
+		props.setProperty("frontend.name", "name");
+		props.setProperty("frontend.key", "key");
+		props.setProperty("frontend.host", "127.0.0.1");
+		props.setProperty("frontend.port", Integer.toString(core.getPort()));
+		props.setProperty("backend.host", "127.0.0.1");
+		props.setProperty("backend.port", Integer.toString(raspager.getPort()));
+		props.setProperty("backend.timeout", "100");
+		props.setProperty("relay.batching", Boolean.toString(batching));
+		return props;
+	}
+
+	private void openConnection(Properties props) throws IOException {
+		statusManager = new ConnectionStatusManager();
+		manager = new ProxyManager(statusManager);
+		manager.openConnection(new ConnectionSettings(props));
+	}
+
+	@After
+	public void tearDown() {
+		if (manager != null) {
+			manager.shutdown();
+		}
+
+		core.stop();
+		raspager.stop();
+		group.shutdownGracefully();
+	}
+
+	@Test
+	public void testRelay() throws Exception {
+		openConnection(createProperties());
+		awaitValue("handshake", core::getHandshakes, 1);
+		Assert.assertEquals("authFailures", 0, core.getAuthFailures());
+
+		Assert.assertTrue("sendPages", core.sendPages(10));
+		awaitValue("acks", core::getAcks, 10);
+		Assert.assertEquals("relayed", 10, raspager.getMessages());
+		Assert.assertEquals("latency", 10, latency.getCount());
+
+		ConnectionMetrics metrics = statusManager.getMetrics("test");
+		Assert.assertEquals("acknowledged", 10, metrics.getAcknowledgedMessages());
+		Assert.assertEquals("outstanding", 0, metrics.getOutstandingAcks());
+		Assert.assertEquals("duplicate", 0, metrics.getDuplicateAcks());
+
+		// Handshake of three lines and ten pages of 41 bytes each
+		Assert.assertEquals("frontendLines", 13, metrics.getFrontendLines());
+		Assert.assertEquals("frontendBytes", 7 + 8 + 7 + 10 * 41, metrics.getFrontendBytes());
+		Assert.assertEquals("sequencedMessages", 10, metrics.getSequencedMessages());
+		Assert.assertEquals("type 2", 1, metrics.getMessageTypeCount(2));
+		Assert.assertEquals("type 3", 1, metrics.getMessageTypeCount(3));
+		Assert.assertEquals("type 4", 1, metrics.getMessageTypeCount(4));
+		Assert.assertEquals("type 6", 10, metrics.getMessageTypeCount(6));
+		Assert.assertEquals("type 0", 0, metrics.getMessageTypeCount(0));
+
+		// Welcome, time sync echo, three confirmations and ten acks, keep alive responses may follow
+		Assert.assertTrue("backendLines", metrics.getBackendLines() >= 15);
+		Assert.assertTrue("backendBytes", metrics.getBackendBytes() >= 16 + 7 + 3 * 2 + 10 * 6);
+		Assert.assertEquals("handshakes", 1, metrics.getHandshakes());
+		Assert.assertEquals("reconnects", 0, metrics.getReconnects());
+		Assert.assertEquals("writeFailures", 0, metrics.getWriteFailures());
+		Assert.assertEquals("oversizeFrames", 0, metrics.getOversizeFrames());
+
+		awaitValue("keepAlives", raspager::getKeepAlives, 1);
+
+		// The round trip time is measured and the keep alive timeout derived from it
+		LatencyHistogram rtt = metrics.getKeepAliveRttHistogram();
+		awaitValue("keepAliveRtt", () -> Math.min(rtt.getCount(), 1), 1);
+		Assert.assertTrue("srtt", metrics.getSmoothedKeepAliveRtt() >= 0);
+		Assert.assertTrue("timeout", metrics.getKeepAliveTimeout() > 0);
+	}
+
+	@Test
+	public void testEarlyAck() throws Exception {
+		Properties props = createProperties();
+		props.setProperty("backend.ack.early", "true");
+		props.setProperty("spool.directory", folder.getRoot().getPath());
+		openConnection(props);
+		awaitValue("handshake", core::getHandshakes, 1);
+
+		Assert.assertTrue("sendPages", core.sendPages(10));
+		awaitValue("relayed", raspager::getMessages, 10);
+
+		// The acknowledgements of the raspager are not forwarded
+		ConnectionMetrics metrics = statusManager.getMetrics("test");
+		awaitValue("acknowledged", metrics::getAcknowledgedMessages, 10);
+		Assert.assertEquals("acks", 10, core.getAcks());
+		Assert.assertEquals("outstanding", 0, metrics.getOutstandingAcks());
+		Assert.assertEquals("unexpected lines", 0, core.getUnexpectedLines());
+	}
+
+	@Test
+	public void testReconnect() throws Exception {
+		openConnection(createProperties());
+		awaitValue("handshake", core::getHandshakes, 1);
+
+		core.disconnect();
+		awaitValue("reconnect", core::getHandshakes, 2);
+
+		// Counters are kept across reconnects
+		ConnectionMetrics metrics = statusManager.getMetrics("test");
+		Assert.assertEquals("reconnects", 1, metrics.getReconnects());
+		Assert.assertEquals("handshakes", 2, metrics.getHandshakes());
+		Assert.assertEquals("frontendLines", 6, metrics.getFrontendLines());
+	}
+
+	@Test
+	public void testPauseAndDrain() throws Exception {
+		openConnection(createProperties());
+		awaitValue("handshake", core::getHandshakes, 1);
+
+		Assert.assertTrue("pause", manager.pauseConnection("test"));
+		Thread.sleep(100);
+		Assert.assertTrue("sendPages", core.sendPages(5));
+		Thread.sleep(200);
+		Assert.assertEquals("paused acks", 0, core.getAcks());
+
+		Assert.assertTrue("resume", manager.resumeConnection("test"));
+		awaitValue("acks", core::getAcks, 5);
+
+		Assert.assertTrue("reconnect", manager.reconnectConnection("test"));
+		awaitValue("reconnect", core::getHandshakes, 2);
+
+		Assert.assertTrue("drain", manager.drainConnection("test"));
+		awaitValue("drained", () -> statusManager.get("test").getState() == ConnectionStatus.State.OFFLINE ? 1 : 0,
+				1);
+		Thread.sleep(300);
+		Assert.assertEquals("drained handshakes", 2, core.getHandshakes());
+
+		Assert.assertTrue("resume drained", manager.resumeConnection("test"));
+		awaitValue("resumed", core::getHandshakes, 3);
+		Assert.assertFalse("unknown profile", manager.pauseConnection("unknown"));
+	}
+
+	@Test
+	public void testTls() throws Exception {
+		File certificate = new File(getClass().getResource("/localhost.crt").toURI());
+		File key = new File(getClass().getResource("/localhost.key").toURI());
+
+		core.stop();
+		core = new FakeCoreServer("name", "key", latency, SslContextBuilder.forServer(certificate, key).build());
+		core.start(group);
+
+		Properties props = createProperties();
+		props.setProperty("frontend.tls", "true");
+		props.setProperty("frontend.tls.trustCertificates", certificate.getPath());
+		openConnection(props);
+		awaitValue("handshake", core::getHandshakes, 1);
+
+		Assert.assertTrue("sendPages", core.sendPages(3));
+		awaitValue("acks", core::getAcks, 3);
+
+		// The session is resumed on reconnect
+		core.disconnect();
+		awaitValue("reconnect", core::getHandshakes, 2);
+		ConnectionMetrics metrics = statusManager.getMetrics("test");
+		Assert.assertEquals("tlsHandshakes", 2, metrics.getTlsHandshakes());
+		Assert.assertEquals("tlsResumedSessions", 1, metrics.getTlsResumedSessions());
+		Assert.assertTrue("handshake time", metrics.getLastTlsHandshakeTime() > 0);
+
+		// The certificate does not match the server name
+		props.setProperty("profileName", "other");
+		props.setProperty("frontend.tls.serverName", "dapnet.example.org");
+		manager.openConnection(new ConnectionSettings(props));
+		Thread.sleep(300);
+		Assert.assertEquals("handshakes", 2, core.getHandshakes());
+		Assert.assertEquals("untrusted", 0, statusManager.getMetrics("other").getTlsHandshakes());
+	}
+
+	@Test
+	public void testKeepSession() throws Exception {
+		Properties props = createProperties();
+		props.setProperty("backend.keepSession", "true");
+		openConnection(props);
+		awaitValue("handshake", core::getHandshakes, 1);
+
+		ConnectionMetrics metrics = statusManager.getMetrics("test");
+		raspager.disconnect();
+		awaitValue("backendReconnects", metrics::getBackendReconnects, 1);
+
+		Assert.assertTrue("sendPages", core.sendPages(10));
+		awaitValue("acks", core::getAcks, 10);
+		awaitValue("backend connections", raspager::getConnections, 2);
+
+		Assert.assertEquals("frontend handshakes", 1, core.getHandshakes());
+		Assert.assertEquals("unexpected lines", 0, core.getUnexpectedLines());
+		Assert.assertEquals("relayed", 10, raspager.getMessages());
+	}
+
+	@Test
+	public void testStandby() throws Exception {
+		FakeRaspagerServer standby = new FakeRaspagerServer();
+		standby.start(group);
+
+		try {
+			Properties props = createProperties();
+			props.setProperty("backend.hosts", "127.0.0.1:" + raspager.getPort() + ", 127.0.0.1:" + standby.getPort());
+			props.setProperty("backend.standby", "true");
+			openConnection(props);
+			awaitValue("handshake", core::getHandshakes, 1);
+			awaitValue("standby connections", standby::getConnections, 1);
+
+			ConnectionMetrics metrics = statusManager.getMetrics("test");
+			raspager.disconnect();
+			awaitValue("failovers", metrics::getBackendFailovers, 1);
+
+			Assert.assertTrue("sendPages", core.sendPages(10));
+			awaitValue("acks", core::getAcks, 10);
+
+			Assert.assertEquals("relayed by standby", 10, standby.getMessages());
+			Assert.assertEquals("backend reconnects", 0, metrics.getBackendReconnects());
+			Assert.assertEquals("frontend handshakes", 1, core.getHandshakes());
+			Assert.assertEquals("unexpected lines", 0, core.getUnexpectedLines());
+		} finally {
+			standby.stop();
+		}
+	}
+
+	@Test
+	public void testFanout() throws Exception {
+		FakeRaspagerServer second = new FakeRaspagerServer();
+		second.start(group);
+
+		try {
+			Properties props = createProperties();
+			props.setProperty("backend.hosts", "127.0.0.1:" + raspager.getPort() + ", 127.0.0.1:" + second.getPort());
+			props.setProperty("backend.fanout", "true");
+			props.setProperty("backend.fanout.ack", "all");
+			openConnection(props);
+			awaitValue("handshake", core::getHandshakes, 1);
+
+			Assert.assertTrue("sendPages", core.sendPages(10));
+			awaitValue("acks", core::getAcks, 10);
+			Assert.assertEquals("relayed to first", 10, raspager.getMessages());
+			Assert.assertEquals("relayed to second", 10, second.getMessages());
+
+			// The remaining backend continues alone
+			second.disconnect();
+			awaitValue("backendReconnects", statusManager.getMetrics("test")::getBackendReconnects, 1);
+			Assert.assertTrue("sendPages", core.sendPages(10));
+			awaitValue("acks", core::getAcks, 20);
+
+			Thread.sleep(100);
+			Assert.assertEquals("acks forwarded once", 20, core.getAcks());
+			Assert.assertEquals("frontend handshakes", 1, core.getHandshakes());
+			Assert.assertEquals("unexpected lines", 0, core.getUnexpectedLines());
+		} finally {
+			second.stop();
+		}
+	}
+
+	@Test
+	public void testSpool() throws Exception {
+		Properties props = createProperties();
+		props.setProperty("reconnectSleepTime", "1000");
+		props.setProperty("backend.keepSession", "true");
+		props.setProperty("backend.buffer.size", "0");
+		props.setProperty("spool.directory", folder.getRoot().getPath());
+		openConnection(props);
+		awaitValue("handshake", core::getHandshakes, 1);
+
+		ConnectionMetrics metrics = statusManager.getMetrics("test");
+		raspager.disconnect();
+		awaitValue("backendReconnects", metrics::getBackendReconnects, 1);
+
+		Assert.assertTrue("sendPages", core.sendPages(10));
+		awaitValue("spooled", metrics::getSpooledMessages, 10);
+		awaitValue("acks", core::getAcks, 10);
+
+		Assert.assertEquals("replayed", 10, metrics.getReplayedMessages());
+		Assert.assertEquals("relayed", 10, raspager.getMessages());
+		Assert.assertEquals("unexpected lines", 0, core.getUnexpectedLines());
+	}
+
+	private static void awaitValue(String name, LongSupplier value, long expected) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (value.getAsLong() < expected && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+
+		Assert.assertEquals(name, expected, value.getAsLong());
+	}
+
+}
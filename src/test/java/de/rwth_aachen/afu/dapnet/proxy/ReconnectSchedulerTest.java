@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.netty.channel.DefaultEventLoop;
+import io.netty.channel.EventLoop;
+
+/**
+ * Test cases for the reconnect scheduler.
+ *
+ * @author Philipp Thiel
+ */
+public class ReconnectSchedulerTest {
+
+	private final EventLoop eventLoop = new DefaultEventLoop();
+
+	@After
+	public void tearDown() {
+		eventLoop.shutdownGracefully();
+	}
+
+	@Test
+	public void testBackoff() {
+		ConnectionSettings settings = createSettings(1000, 10000);
+		ReconnectScheduler scheduler = new ReconnectScheduler(0, 0, 0);
+
+		long previous = 1000;
+		for (int i = 1; i <= 50; ++i) {
+			long delay = scheduler.nextDelay(settings);
+			Assert.assertTrue("delay below sleep time", delay >= 1000);
+			Assert.assertTrue("delay above cap", delay <= Math.min(10000, previous * 3));
+			Assert.assertEquals("attempts", i, scheduler.getAttempts("test"));
+			previous = delay;
+		}
+
+		scheduler.reset("test");
+		Assert.assertEquals("attempts after reset", 0, scheduler.getAttempts("test"));
+		Assert.assertTrue("delay after reset", scheduler.nextDelay(settings) <= 3000);
+	}
+
+	@Test
+	public void testConcurrencyLimit() throws Exception {
+		ReconnectScheduler scheduler = new ReconnectScheduler(0, 0, 2);
+		AtomicInteger started = new AtomicInteger();
+
+		for (int i = 0; i < 5; ++i) {
+			scheduler.acquire(eventLoop, started::incrementAndGet);
+		}
+
+		awaitValue(started, 2);
+		Assert.assertEquals("pending", 3, scheduler.getPending());
+
+		scheduler.release();
+		awaitValue(started, 3);
+		Assert.assertEquals("pending after release", 2, scheduler.getPending());
+	}
+
+	@Test
+	public void testRateLimit() throws Exception {
+		ReconnectScheduler scheduler = new ReconnectScheduler(20, 1, 0);
+		AtomicInteger started = new AtomicInteger();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < 4; ++i) {
+			scheduler.acquire(eventLoop, started::incrementAndGet);
+		}
+
+		awaitValue(started, 4);
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		Assert.assertTrue("attempts not spread: " + elapsed + " ms", elapsed >= 140);
+	}
+
+	private static void awaitValue(AtomicInteger value, int expected) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (value.get() < expected && System.nanoTime() < deadline) {
+			Thread.sleep(5);
+		}
+
+		// Give further attempts the chance to start
+		Thread.sleep(50);
+		Assert.assertEquals(expected, value.get());
+	}
+
+	private static ConnectionSettings createSettings(long sleepTime, long maxDelay) {
+		Properties props = new Properties();
+		props.setProperty("profileName", "test");
+		props.setProperty("reconnectSleepTime", Long.toString(sleepTime));
+		props.setProperty("reconnect.maxDelay", Long.toString(maxDelay));
+		props.setProperty("frontend.name", "name");
+		props.setProperty("frontend.key", "key");
+		props.setProperty("frontend.host", "localhost");
+		props.setProperty("frontend.port", "43434");
+		props.setProperty("backend.host", "localhost");
+		props.setProperty("backend.port", "43435");
+		props.setProperty("backend.timeout", "0");
+
+		return new ConnectionSettings(props);
+	}
+
+}
@@ -17,6 +17,8 @@
 package de.rwth_aachen.afu.dapnet.proxy;
 
 import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Properties;
 
 import org.junit.Assert;
@@ -38,6 +40,9 @@ public class SettingsTest {
 		// General
 		Assert.assertEquals("profileName", "testProfile", s.getProfileName());
 		Assert.assertEquals("reconnectSleepTime", 0, s.getReconnectSleepTime());
+		Assert.assertEquals("workerGroup", "default", s.getWorkerGroup());
+		Assert.assertEquals("reconnect.maxDelay", 60000, s.getReconnectMaxDelay());
+		Assert.assertEquals("reconnect.stableTime", 60000, s.getReconnectStableTime());
 
 		// Frontend
 		Assert.assertEquals("frontend.name", "proxyTest", s.getFrontendName());
@@ -45,11 +50,74 @@ public class SettingsTest {
 
 		InetSocketAddress address = new InetSocketAddress("localhost", 43434);
 		Assert.assertEquals("frontendAddress", address, s.getFrontendAddress());
+		Assert.assertFalse("frontend.tls", s.isFrontendTls());
+		Assert.assertNull("frontend.tls.trustCertificates", s.getFrontendTlsTrustCertificates());
+		Assert.assertEquals("frontend.tls.serverName", "localhost", s.getFrontendTlsServerName());
 
 		// Backend
 		address = new InetSocketAddress("localhost", 43435);
 		Assert.assertEquals("backendAddress", address, s.getBackendAddress());
 		Assert.assertEquals("backend.timeout", 30000, s.getBackendTimout());
+		Assert.assertEquals("backend.keepAlive.minInterval", 5000, s.getBackendKeepAliveMinInterval());
+		Assert.assertEquals("backend.keepAlive.minTimeout", 1000, s.getBackendKeepAliveMinTimeout());
+		Assert.assertEquals("backend.keepAlive.probes", 3, s.getBackendKeepAliveProbes());
+		Assert.assertEquals("backendAddresses", Collections.singletonList(address), s.getBackendAddresses());
+		Assert.assertFalse("backend.standby", s.isBackendStandby());
+		Assert.assertFalse("backend.keepSession", s.isBackendKeepSession());
+		Assert.assertFalse("backend.fanout", s.isBackendFanout());
+		Assert.assertEquals("backend.fanout.ack", FanoutAckPolicy.ALL, s.getBackendFanoutAck());
+		Assert.assertFalse("backend.ack.early", s.isBackendAckEarly());
+		Assert.assertEquals("backend.ack.timeout", 30000, s.getBackendAckTimeout());
+		Assert.assertEquals("backend.ack.retries", 3, s.getBackendAckRetries());
+
+		// Spool
+		Assert.assertNull("spool.directory", s.getSpoolDirectory());
+		Assert.assertEquals("spool.segmentSize", 1024 * 1024, s.getSpoolSegmentSize());
+		Assert.assertEquals("spool.maxSegments", 16, s.getSpoolMaxSegments());
+		Assert.assertEquals("spool.maxRejections", 3, s.getSpoolMaxRejections());
+		Assert.assertEquals("spool.flushInterval", 1000, s.getSpoolFlushInterval());
+
+		// Relay
+		Assert.assertFalse("relay.batching", s.isRelayBatching());
+		Assert.assertEquals("relay.maxPendingBytes", 65536, s.getRelayMaxPendingBytes());
+		Assert.assertEquals("relay.flushConsolidation", 256, s.getRelayFlushConsolidation());
+
+		// Socket
+		Assert.assertTrue("socket.tcpNoDelay", s.isTcpNoDelay());
+		Assert.assertFalse("socket.tcpQuickAck", s.isTcpQuickAck());
+		Assert.assertFalse("socket.keepAlive", s.isKeepAlive());
+		Assert.assertEquals("socket.tcpUserTimeout", 0, s.getTcpUserTimeout());
+	}
+
+	@Test
+	public void testBackendHosts() {
+		Properties props = createProperties();
+		props.setProperty("backend.hosts", "raspager1:1337, [::1]:1338");
+		props.setProperty("backend.standby", "true");
+
+		ConnectionSettings s = new ConnectionSettings(props);
+		Assert.assertEquals("backendAddresses", Arrays.asList(new InetSocketAddress("raspager1", 1337),
+				new InetSocketAddress("::1", 1338)), s.getBackendAddresses());
+		Assert.assertTrue("backend.standby", s.isBackendStandby());
+		Assert.assertTrue("backend.keepSession", s.isBackendKeepSession());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testEarlyAckWithFanout() {
+		Properties props = createProperties();
+		props.setProperty("backend.hosts", "raspager1:1337, raspager2:1337");
+		props.setProperty("backend.fanout", "true");
+		props.setProperty("backend.ack.early", "true");
+
+		new ConnectionSettings(props);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testEarlyAckWithoutSpool() {
+		Properties props = createProperties();
+		props.setProperty("backend.ack.early", "true");
+
+		new ConnectionSettings(props);
 	}
 
 	private static Properties createProperties() {
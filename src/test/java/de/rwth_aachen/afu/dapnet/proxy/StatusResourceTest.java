@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2017 Amateurfunkgruppe der RWTH Aachen
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.rwth_aachen.afu.dapnet.proxy;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+
+/**
+ * Tests the status report and the status stream of the REST server for a
+ * relayed connection.
+ *
+ * @author Philipp Thiel
+ */
+public class StatusResourceTest {
+
+	private EventLoopGroup group;
+	private FakeCoreServer core;
+	private FakeRaspagerServer raspager;
+	private ConnectionStatusManager statusManager;
+	private ProxyManager manager;
+	private int port;
+
+	@Before
+	public void setUp() throws Exception {
+		group = new NioEventLoopGroup(1);
+		core = new FakeCoreServer("name", "key", new LatencyHistogram());
+		core.start(group);
+		raspager = new FakeRaspagerServer();
+		raspager.start(group);
+
+		try (ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+
+		System.setProperty(StatusStream.INTERVAL_KEY, "100");
+		statusManager = new ConnectionStatusManager();
+		statusManager.start(port, 1, null);
+		manager = new ProxyManager(statusManager);
+		manager.openConnection(new ConnectionSettings(createProperties()));
+		awaitValue("handshake", core::getHandshakes, 1);
+	}
+
+	@After
+	public void tearDown() {
+		System.clearProperty(StatusStream.INTERVAL_KEY);
+		manager.shutdown();
+		core.stop();
+		raspager.stop();
+		group.shutdownGracefully();
+	}
+
+	@Test
+	public void testConditionalGet() throws Exception {
+		awaitCondition("online", () -> statusManager.get("test").getState() == ConnectionStatus.State.ONLINE);
+
+		HttpURLConnection first = open("status");
+		Assert.assertEquals("status", 200, first.getResponseCode());
+		String tag = first.getHeaderField("ETag");
+		first.disconnect();
+		Assert.assertEquals("tag", "\"" + statusManager.getSnapshot().getTag() + "\"", tag);
+		Assert.assertNotEquals("epoch", "\"" + statusManager.getVersion() + "\"", tag);
+
+		HttpURLConnection unchanged = open("status");
+		unchanged.setRequestProperty("If-None-Match", tag);
+		Assert.assertEquals("unchanged", 304, unchanged.getResponseCode());
+		unchanged.disconnect();
+
+		HttpURLConnection profile = open("status/test");
+		profile.setRequestProperty("If-None-Match", tag);
+		Assert.assertEquals("unchanged profile", 304, profile.getResponseCode());
+		profile.disconnect();
+
+		// A reconnect changes the status
+		long version = statusManager.getVersion();
+		core.disconnect();
+		awaitValue("reconnect", core::getHandshakes, 2);
+		awaitCondition("changed", () -> statusManager.getVersion() > version);
+
+		HttpURLConnection changed = open("status");
+		changed.setRequestProperty("If-None-Match", tag);
+		Assert.assertEquals("changed", 200, changed.getResponseCode());
+		Assert.assertNotEquals("new tag", tag, changed.getHeaderField("ETag"));
+		changed.disconnect();
+	}
+
+	@Test
+	public void testStream() throws Exception {
+		HttpURLConnection stream = open("status/stream");
+		stream.setRequestProperty("Accept", "text/event-stream");
+		Assert.assertEquals("status", 200, stream.getResponseCode());
+
+		try (BufferedReader reader = new BufferedReader(
+				new InputStreamReader(stream.getInputStream(), StandardCharsets.UTF_8))) {
+			// The current status is sent first
+			Assert.assertEquals("event", "event: status", reader.readLine());
+			String tag = StatusSnapshot.tagOf(0);
+			String epoch = tag.substring(0, tag.indexOf('-') + 1);
+			Assert.assertTrue("id", reader.readLine().matches("id: " + epoch + "\\d+"));
+			Assert.assertTrue("subscribed", statusManager.getStream().isActive());
+
+			// Traffic is published
+			Assert.assertTrue("sendPages", core.sendPages(1));
+			String line;
+			while ((line = reader.readLine()) != null && !line.equals("event: traffic")) {
+				// Skip other events and comments
+			}
+
+			Assert.assertEquals("traffic", "event: traffic", line);
+		}
+
+		// The stream is stopped once the subscriber has left
+		stream.disconnect();
+		awaitCondition("stopped", () -> !statusManager.getStream().isActive());
+	}
+
+	private HttpURLConnection open(String path) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/" + path)
+				.openConnection();
+		connection.setConnectTimeout(5000);
+		connection.setReadTimeout(5000);
+		return connection;
+	}
+
+	private Properties createProperties() {
+		Properties props = new Properties();
+		props.setProperty("profileName", "test");
+		props.setProperty("reconnectSleepTime", "100");
+		props.setProperty("frontend.name", "name");
+		props.setProperty("frontend.key", "key");
+		props.setProperty("frontend.host", "127.0.0.1");
+		props.setProperty("frontend.port", Integer.toString(core.getPort()));
+		props.setProperty("backend.host", "127.0.0.1");
+		props.setProperty("backend.port", Integer.toString(raspager.getPort()));
+		props.setProperty("backend.timeout", "0");
+		return props;
+	}
+
+	private static void awaitValue(String name, LongSupplier value, long expected) throws InterruptedException {
+		awaitCondition(name, () -> value.getAsLong() >= expected);
+		Assert.assertEquals(name, expected, value.getAsLong());
+	}
+
+	private static void awaitCondition(String name, BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+
+		Assert.assertTrue(name, condition.getAsBoolean());
+	}
+
+}
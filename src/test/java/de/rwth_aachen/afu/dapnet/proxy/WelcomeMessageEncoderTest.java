@@ -16,6 +16,7 @@
  */
 package de.rwth_aachen.afu.dapnet.proxy;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Collection;
 
@@ -25,11 +26,10 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.embedded.EmbeddedChannel;
 import io.netty.handler.codec.LineBasedFrameDecoder;
-import io.netty.handler.codec.string.StringDecoder;
-import io.netty.handler.codec.string.StringEncoder;
 
 /**
  *
@@ -38,9 +38,6 @@ import io.netty.handler.codec.string.StringEncoder;
 @RunWith(Parameterized.class)
 public class WelcomeMessageEncoderTest {
 
-	private static final StringDecoder DECODER = new StringDecoder();
-	private static final StringEncoder ENCODER = new StringEncoder();
-	private static final LineBreakAdder LBA = new LineBreakAdder();
 	private final EmbeddedChannel channel;
 	private final String input;
 	private final String output;
@@ -49,7 +46,10 @@ public class WelcomeMessageEncoderTest {
 	public static Collection<Object[]> getParams() {
 		return Arrays.asList(new Object[][] { { "forward", "forward" }, { "[Test v1.0]", "[Test v1.0 name key]" },
 				{ "[Test v1.0.0-SCP-#123456]", "[Test v1.0.0-SCP-#123456 name key]" },
-				{ "Test/RPC v1.0", "Test/RPC v1.0" } });
+				{ "Test/RPC v1.0", "Test/RPC v1.0" }, { "[Test/RPC 1.0]", "[Test/RPC v1.0 name key]" },
+				{ "[Test v1.0]]", "[Test v1.0] name key]" }, { "[Test v1]", "[Test v1]" },
+				{ "[Test vv1.0]", "[Test vv1.0]" }, { "[Te st v1.0]", "[Te st v1.0]" },
+				{ "[Test v1.0 x]", "[Test v1.0 x]" }, { "[Test v1.0", "[Test v1.0" } });
 	}
 
 	public WelcomeMessageEncoderTest(String input, String output) {
@@ -61,13 +61,18 @@ public class WelcomeMessageEncoderTest {
 	@Test
 	public void test() {
 		// Write
-		Assert.assertTrue(channel.writeOutbound(input));
+		ByteBuf frame = Unpooled.copiedBuffer(input + "\n", StandardCharsets.US_ASCII);
+		Assert.assertTrue(channel.writeOutbound(frame));
 		Assert.assertTrue(channel.writeInbound((ByteBuf) channel.readOutbound()));
 		Assert.assertTrue(channel.finish());
 
 		// Read
-		String msg = channel.readInbound();
-		Assert.assertEquals(output, msg);
+		ByteBuf msg = channel.readInbound();
+		try {
+			Assert.assertEquals(output, msg.toString(StandardCharsets.US_ASCII));
+		} finally {
+			msg.release();
+		}
 	}
 
 	private static EmbeddedChannel createChannel() {
@@ -76,9 +81,6 @@ public class WelcomeMessageEncoderTest {
 
 		ChannelPipeline p = channel.pipeline();
 		p.addLast(new LineBasedFrameDecoder(64));
-		p.addLast(DECODER);
-		p.addLast(ENCODER);
-		p.addLast(LBA);
 		p.addLast(msgEncoder);
 
 		return channel;